@@ -163,6 +163,24 @@ class BootStrap {
                     properties.setProperty(IceOptions.ONDEMAND_COST_ALERT_THRESHOLD, prop.getProperty(IceOptions.ONDEMAND_COST_ALERT_THRESHOLD));
                 if (prop.getProperty(IceOptions.URL_PREFIX) != null)
                     properties.setProperty(IceOptions.URL_PREFIX, prop.getProperty(IceOptions.URL_PREFIX));
+                if (prop.getProperty(IceOptions.PROCESSOR_THREADS) != null)
+                    properties.setProperty(IceOptions.PROCESSOR_THREADS, prop.getProperty(IceOptions.PROCESSOR_THREADS));
+                if (prop.getProperty(IceOptions.PROCESSOR_PARSE_THREADS) != null)
+                    properties.setProperty(IceOptions.PROCESSOR_PARSE_THREADS, prop.getProperty(IceOptions.PROCESSOR_PARSE_THREADS));
+                if (prop.getProperty(IceOptions.DATA_FILE_VERSION) != null)
+                    properties.setProperty(IceOptions.DATA_FILE_VERSION, prop.getProperty(IceOptions.DATA_FILE_VERSION));
+                if (prop.getProperty(IceOptions.TAGDB_FILE_VERSION) != null)
+                    properties.setProperty(IceOptions.TAGDB_FILE_VERSION, prop.getProperty(IceOptions.TAGDB_FILE_VERSION));
+                if (prop.getProperty(IceOptions.PROCESSOR_INCREMENTAL) != null)
+                    properties.setProperty(IceOptions.PROCESSOR_INCREMENTAL, prop.getProperty(IceOptions.PROCESSOR_INCREMENTAL));
+                if (prop.getProperty(IceOptions.PROCESSOR_ROLLUPS) != null)
+                    properties.setProperty(IceOptions.PROCESSOR_ROLLUPS, prop.getProperty(IceOptions.PROCESSOR_ROLLUPS));
+                if (prop.getProperty(IceOptions.PROCESSOR_ARCHIVE_THREADS) != null)
+                    properties.setProperty(IceOptions.PROCESSOR_ARCHIVE_THREADS, prop.getProperty(IceOptions.PROCESSOR_ARCHIVE_THREADS));
+                if (prop.getProperty(IceOptions.PROCESSOR_SPILL_MEMORY_MB) != null)
+                    properties.setProperty(IceOptions.PROCESSOR_SPILL_MEMORY_MB, prop.getProperty(IceOptions.PROCESSOR_SPILL_MEMORY_MB));
+                if (prop.getProperty(IceOptions.PROCESSOR_RESERVATION_THREADS) != null)
+                    properties.setProperty(IceOptions.PROCESSOR_RESERVATION_THREADS, prop.getProperty(IceOptions.PROCESSOR_RESERVATION_THREADS));
 
                 ReservationCapacityPoller reservationCapacityPoller = null;
                 if ("true".equals(prop.getProperty("ice.reservationCapacityPoller"))) {
@@ -193,6 +211,16 @@ class BootStrap {
                 properties.setProperty(IceOptions.LOCAL_DIR, prop.getProperty("ice.reader.localDir"));
                 if (prop.getProperty(IceOptions.MONTHLY_CACHE_SIZE) != null)
                     properties.setProperty(IceOptions.MONTHLY_CACHE_SIZE, prop.getProperty(IceOptions.MONTHLY_CACHE_SIZE));
+                if (prop.getProperty(IceOptions.READER_MMAP) != null)
+                    properties.setProperty(IceOptions.READER_MMAP, prop.getProperty(IceOptions.READER_MMAP));
+                if (prop.getProperty(IceOptions.READER_GROUPED_SCAN_MIN_GROUPS) != null)
+                    properties.setProperty(IceOptions.READER_GROUPED_SCAN_MIN_GROUPS, prop.getProperty(IceOptions.READER_GROUPED_SCAN_MIN_GROUPS));
+                if (prop.getProperty(IceOptions.READER_ROLLUPS) != null)
+                    properties.setProperty(IceOptions.READER_ROLLUPS, prop.getProperty(IceOptions.READER_ROLLUPS));
+                if (prop.getProperty(IceOptions.READER_QUERY_CACHE_MB) != null)
+                    properties.setProperty(IceOptions.READER_QUERY_CACHE_MB, prop.getProperty(IceOptions.READER_QUERY_CACHE_MB));
+                if (prop.getProperty(IceOptions.READER_QUERY_THREADS) != null)
+                    properties.setProperty(IceOptions.READER_QUERY_THREADS, prop.getProperty(IceOptions.READER_QUERY_THREADS));
                 if (prop.getProperty(IceOptions.CURRENCY_RATE) != null)
                     properties.setProperty(IceOptions.CURRENCY_RATE, prop.getProperty(IceOptions.CURRENCY_RATE));
                 if (prop.getProperty(IceOptions.CURRENCY_SIGN) != null)
@@ -37,11 +37,14 @@ import com.netflix.ice.reader.*;
 import com.google.common.collect.Lists
 import com.google.common.collect.Sets
 import com.google.common.collect.Maps
+import com.google.common.collect.Multimap
+import com.google.common.collect.HashMultimap
 import org.json.JSONObject
 import com.netflix.ice.common.ConsolidateType
 import org.joda.time.Hours
 import org.apache.commons.lang.StringUtils
 import com.netflix.ice.common.AwsUtils
+import java.util.concurrent.Callable
 
 
 class DashboardController {
@@ -197,7 +200,6 @@ class DashboardController {
         boolean forReservation = query.has("forReservation") ? query.getBoolean("forReservation") : false;
 
         Collection<Operation> data;
-        System.out.println(new Date().getTime());
         if (showResourceGroups) {
             data = Sets.newTreeSet();
             if (products.size() == 0) {
@@ -210,7 +212,6 @@ class DashboardController {
                 TagGroupManager tagGroupManager = getManagers().getTagGroupManager(product);
                 Collection<Operation> tmp = tagGroupManager.getOperations(new TagLists(accounts, regions, zones, products, operations, null, null));
                 data.addAll(tmp);
-                System.out.println(new Date().getTime() + " " + product);
             }
         }
         else {
@@ -441,19 +442,17 @@ class DashboardController {
         }
         interval = roundInterval(interval, consolidateType);
 
-        Map<Tag, double[]> data;
-        if (groupBy == TagType.ApplicationGroup) {
-            data = Maps.newTreeMap();
-            if (products.size() == 0) {
-                products = Lists.newArrayList(getManagers().getProducts());
-            }
+        QueryResultCache.Loader compute = { QueryResultCache.Generations generations ->
+            generations.add(getManagers());
+            Map<Tag, double[]> data;
+            if (groupBy == TagType.ApplicationGroup) {
+                List<Callable<Map<Tag, double[]>>> lookups = Lists.newArrayList();
+                if (products.size() == 0) {
+                    products = Lists.newArrayList(getManagers().getProducts());
+                }
 
-            Map<String, ApplicationGroup> appgroups = getConfig().applicationGroupService.getApplicationGroups();
-            List<List<Product>> productsWithResources = getConfig().resourceService.getProductsWithResources();
-            for (String name: appgroups.keySet()) {
-                appgroup = appgroups.get(name);
-                if (appgroup.data == null)
-                    continue;
+                Map<String, ApplicationGroup> appgroups = getConfig().applicationGroupService.getApplicationGroups();
+                List<List<Product>> productsWithResources = getConfig().resourceService.getProductsWithResources();
                 for (Product product: products) {
                     if (product == null)
                         continue;
@@ -468,196 +467,192 @@ class DashboardController {
                     if (appgroupProduct == null)
                         continue;
 
-                    List<ResourceGroup> resourceGroupsOfProduct = ResourceGroup.getResourceGroups(appgroup.data.get(appgroupProduct.toString()));
-                    if (resourceGroupsOfProduct.size() == 0)
+                    Multimap<ResourceGroup, Tag> applicationGroups = HashMultimap.create();
+                    for (String name: appgroups.keySet()) {
+                        ApplicationGroup group = appgroups.get(name);
+                        if (group.data == null)
+                            continue;
+                        Tag appgroupTag = new com.netflix.ice.tag.ApplicationGroup(name);
+                        for (ResourceGroup resourceGroup: ResourceGroup.getResourceGroups(group.data.get(appgroupProduct.toString())))
+                            applicationGroups.put(resourceGroup, appgroupTag);
+                    }
+                    if (applicationGroups.size() == 0)
                         continue;
 
-                    DataManager dataManager = isCost ? getManagers().getCostManager(product, consolidateType) : getManagers().getUsageManager(product, consolidateType);
+                    DataManager dataManager = getDataManager(isCost, product, consolidateType, generations);
                     if (dataManager == null)
                         continue;
-                    Map<Tag, double[]> dataOfProduct = dataManager.getData(
-                        interval,
-                        new TagLists(accounts, regions, zones, Lists.newArrayList(product), operations, usageTypes, resourceGroupsOfProduct),
-                        null,
-                        aggregate,
-                        forReservation
-                    );
-
-                    Map<Tag, double[]> tmp = Maps.newHashMap();
-                    tmp.put(new com.netflix.ice.tag.ApplicationGroup(name), dataOfProduct.get(Tag.aggregated));
-
-                    merge(tmp, data);
-                    System.out.println(product);
+                    TagLists tagLists = new TagLists(accounts, regions, zones, Lists.newArrayList(product), operations, usageTypes);
+                    lookups.add({ ->
+                        return dataManager.getApplicationGroupData(interval, tagLists, applicationGroups);
+                    } as Callable);
                 }
+                data = getConfig().queryExecutor.sum(lookups);
             }
-        }
-        else if (resourceGroups.size() > 0 || groupBy == TagType.ResourceGroup || appgroup != null || showResourceGroups) {
-            data = Maps.newTreeMap();
-            if ((groupBy == TagType.ResourceGroup || appgroup != null) && products.size() == 0) {
-                products = Lists.newArrayList(getManagers().getProducts());
-            }
-            else if (resourceGroups.size() > 0 && products.size() == 0) {
-                products = Lists.newArrayList(getManagers().getProducts());
-            }
-            else if (showResourceGroups && products.size() == 0) {
-                Set productSet = Sets.newTreeSet();
-                for (Product product: getManagers().getProducts()) {
+            else if (resourceGroups.size() > 0 || groupBy == TagType.ResourceGroup || appgroup != null || showResourceGroups) {
+                List<Callable<Map<Tag, double[]>>> lookups = Lists.newArrayList();
+                if ((groupBy == TagType.ResourceGroup || appgroup != null) && products.size() == 0) {
+                    products = Lists.newArrayList(getManagers().getProducts());
+                }
+                else if (resourceGroups.size() > 0 && products.size() == 0) {
+                    products = Lists.newArrayList(getManagers().getProducts());
+                }
+                else if (showResourceGroups && products.size() == 0) {
+                    Set productSet = Sets.newTreeSet();
+                    for (Product product: getManagers().getProducts()) {
+                        if (product == null)
+                            continue;
+
+                        Collection<Product> tmp = generations.add(getManagers().getTagGroupManager(product)).getProducts(new TagLists(accounts, regions, zones));
+                        productSet.addAll(tmp);
+                    }
+                    products = Lists.newArrayList(productSet);
+                }
+                for (Product product: products) {
                     if (product == null)
                         continue;
 
-                    Collection<Product> tmp = getManagers().getTagGroupManager(product).getProducts(new TagLists(accounts, regions, zones));
-                    productSet.addAll(tmp);
-                }
-                products = Lists.newArrayList(productSet);
-            }
-            for (Product product: products) {
-                if (product == null)
-                    continue;
-
-                if (appgroup != null) {
-                    boolean found = false;
-                    List<List<Product>> tmp = getConfig().resourceService.getProductsWithResources();
-                    for (List<Product> list: tmp) {
-                        if (list.contains(product)) {
-                            found = true;
-                            break;
+                    if (appgroup != null) {
+                        boolean found = false;
+                        List<List<Product>> tmp = getConfig().resourceService.getProductsWithResources();
+                        for (List<Product> list: tmp) {
+                            if (list.contains(product)) {
+                                found = true;
+                                break;
+                            }
                         }
+                        if (!found)
+                            continue;
                     }
-                    if (!found)
-                        continue;
+                    DataManager dataManager = getDataManager(isCost, product, consolidateType, generations);
+                    TagLists tagLists = new TagLists(accounts, regions, zones, Lists.newArrayList(product), operations, usageTypes, resourceGroups);
+                    lookups.add({ ->
+                        Map<Tag, double[]> dataOfProduct = dataManager.getData(interval, tagLists, groupBy, aggregate, forReservation);
+
+                        if (groupBy == TagType.Product && dataOfProduct.size() > 0) {
+                            double[] currentProductValues = dataOfProduct.get(dataOfProduct.keySet().iterator().next());
+                            dataOfProduct.put(Tag.aggregated, Arrays.copyOf(currentProductValues, currentProductValues.size()));
+                        }
+                        return dataOfProduct;
+                    } as Callable);
                 }
-                DataManager dataManager = isCost ? getManagers().getCostManager(product, consolidateType) : getManagers().getUsageManager(product, consolidateType);
-                Map<Tag, double[]> dataOfProduct = dataManager.getData(
+                data = getConfig().queryExecutor.sum(lookups);
+            }
+            else {
+                DataManager dataManager = getDataManager(isCost, null, consolidateType, generations);
+                data = dataManager.getData(
                     interval,
-                    new TagLists(accounts, regions, zones, Lists.newArrayList(product), operations, usageTypes, resourceGroups),
+                    new TagLists(accounts, regions, zones, products, operations, usageTypes, resourceGroups),
                     groupBy,
                     aggregate,
                     forReservation
                 );
-                
-                if (groupBy == TagType.Product && dataOfProduct.size() > 0) {
-                    double[] currentProductValues = dataOfProduct.get(dataOfProduct.keySet().iterator().next());
-                    dataOfProduct.put(Tag.aggregated, Arrays.copyOf(currentProductValues, currentProductValues.size()));
-                } 
-                
-                merge(dataOfProduct, data);
-                System.out.println(product);
             }
-        }
-        else {
-            DataManager dataManager = isCost ? getManagers().getCostManager(null, consolidateType) : getManagers().getUsageManager(null, consolidateType);
-            data = dataManager.getData(
-                interval,
-                new TagLists(accounts, regions, zones, products, operations, usageTypes, resourceGroups),
-                groupBy,
-                aggregate,
-                forReservation
-            );
-        }
-        def stats = getStats(data);
-        if (aggregate == AggregateType.stats && data.size() > 1)
-            data.remove(Tag.aggregated);
-
-        def result = [status: 200, start: interval.getStartMillis(), data: data, stats: stats, groupBy: groupBy == null ? "None" : groupBy.name()]
-        if (breakdown && data.size() > 0 && data.values().iterator().next().length > 0) {
-            result.time = new IntRange(0, data.values().iterator().next().length - 1).collect {
-                if (consolidateType == ConsolidateType.daily)
-                    interval.getStart().plusDays(it).getMillis()
-                else if (consolidateType == ConsolidateType.weekly)
-                    interval.getStart().plusWeeks(it).getMillis()
-                else if (consolidateType == ConsolidateType.monthly)
-                    interval.getStart().plusMonths(it).getMillis()
-            }
-            result.hours = new IntRange(0, result.time.size() - 1).collect {
-                int hours;
-                if (consolidateType == ConsolidateType.daily)
-                    hours = 24
-                else if (consolidateType == ConsolidateType.weekly)
-                    hours = 24*7
-                else if (consolidateType == ConsolidateType.monthly)
-                    hours = interval.getStart().plusMonths(it).dayOfMonth().getMaximumValue() * 24;
-
-                if (it == result.time.size() - 1) {
-                    DateTime period = new DateTime(result.time.get(result.time.size() - 1), DateTimeZone.UTC);
-                    DateTime periodEnd = consolidateType == ConsolidateType.daily ? period.plusDays(1) : (consolidateType == ConsolidateType.weekly ? period.plusWeeks(1) : period.plusMonths(1));
-                    DateTime month = period.withMillisOfDay(0).withDayOfMonth(1);
-                    int dataHours = getManagers().getCostManager(null, ConsolidateType.hourly).getDataLength(month);
-                    DateTime dataEnd = month.plusHours(dataHours);
-
-                    if (dataEnd.isBefore(periodEnd)) {
-                        hours - Hours.hoursBetween(dataEnd, periodEnd).getHours()
+            def stats = getStats(data);
+            if (aggregate == AggregateType.stats && data.size() > 1)
+                data.remove(Tag.aggregated);
+
+            def result = [status: 200, start: interval.getStartMillis(), data: data, stats: stats, groupBy: groupBy == null ? "None" : groupBy.name()]
+            if (breakdown && data.size() > 0 && data.values().iterator().next().length > 0) {
+                result.time = new IntRange(0, data.values().iterator().next().length - 1).collect {
+                    if (consolidateType == ConsolidateType.daily)
+                        interval.getStart().plusDays(it).getMillis()
+                    else if (consolidateType == ConsolidateType.weekly)
+                        interval.getStart().plusWeeks(it).getMillis()
+                    else if (consolidateType == ConsolidateType.monthly)
+                        interval.getStart().plusMonths(it).getMillis()
+                }
+                result.hours = new IntRange(0, result.time.size() - 1).collect {
+                    int hours;
+                    if (consolidateType == ConsolidateType.daily)
+                        hours = 24
+                    else if (consolidateType == ConsolidateType.weekly)
+                        hours = 24*7
+                    else if (consolidateType == ConsolidateType.monthly)
+                        hours = interval.getStart().plusMonths(it).dayOfMonth().getMaximumValue() * 24;
+
+                    if (it == result.time.size() - 1) {
+                        DateTime period = new DateTime(result.time.get(result.time.size() - 1), DateTimeZone.UTC);
+                        DateTime periodEnd = consolidateType == ConsolidateType.daily ? period.plusDays(1) : (consolidateType == ConsolidateType.weekly ? period.plusWeeks(1) : period.plusMonths(1));
+                        DateTime month = period.withMillisOfDay(0).withDayOfMonth(1);
+                        int dataHours = generations.add(getManagers().getCostManager(null, ConsolidateType.hourly)).getDataLength(month);
+                        DateTime dataEnd = month.plusHours(dataHours);
+
+                        if (dataEnd.isBefore(periodEnd)) {
+                            hours - Hours.hoursBetween(dataEnd, periodEnd).getHours()
+                        }
+                        else {
+                            hours
+                        }
                     }
                     else {
                         hours
                     }
-                }
-                else {
-                    hours
+
                 }
 
+                result.data = data.sort {-it.getValue()[it.getValue().length-1]}
             }
 
-            result.data = data.sort {-it.getValue()[it.getValue().length-1]}
-        }
-
-        if (showsps || factorsps) {
-            result.sps = config.throughputMetricService.getData(interval, consolidateType);
-        }
+            if (showsps || factorsps) {
+                result.sps = config.throughputMetricService.getData(interval, consolidateType);
+            }
 
-        if (factorsps) {
-            double[] consolidatedSps = result.sps;
-            double multiply = config.throughputMetricService.getFactoredCostMultiply();
-            for (Tag tag: result.data.keySet()) {
-                double[] values = result.data.get(tag);
-                for (int i = 0; i < values.length; i++) {
-                    double sps = i < consolidatedSps.length ? consolidatedSps[i] : 0.0;
-                    if (sps == 0.0)
-                        values[i] = 0.0;
-                    else
-                        values[i] = values[i] / sps * multiply;
+            if (factorsps) {
+                double[] consolidatedSps = result.sps;
+                double multiply = config.throughputMetricService.getFactoredCostMultiply();
+                for (Tag tag: result.data.keySet()) {
+                    double[] values = result.data.get(tag);
+                    for (int i = 0; i < values.length; i++) {
+                        double sps = i < consolidatedSps.length ? consolidatedSps[i] : 0.0;
+                        if (sps == 0.0)
+                            values[i] = 0.0;
+                        else
+                            values[i] = values[i] / sps * multiply;
+                    }
                 }
             }
-        }
 
-        if (isCost && config.currencyRate != 1) {
-            for (Tag tag: result.data.keySet()) {
-                double[] values = result.data.get(tag);
-                for (int i = 0; i < values.length; i++) {
-                    values[i] = values[i] * config.currencyRate;
+            if (isCost && config.currencyRate != 1) {
+                for (Tag tag: result.data.keySet()) {
+                    double[] values = result.data.get(tag);
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = values[i] * config.currencyRate;
+                    }
                 }
-            }
 
-            for (Tag tag: result.stats.keySet()) {
-                Map<String, Double> stat = result.stats.get(tag);
-                for (Map.Entry<String, Double> entry: stat.entrySet()) {
-                    entry.setValue(entry.getValue() * config.currencyRate);
+                for (Tag tag: result.stats.keySet()) {
+                    Map<String, Double> stat = result.stats.get(tag);
+                    for (Map.Entry<String, Double> entry: stat.entrySet()) {
+                        entry.setValue(entry.getValue() * config.currencyRate);
+                    }
                 }
             }
-        }
-
-        if (consolidateType != ConsolidateType.monthly) {
-            result.interval = consolidateType.millis;
-        }
-        else {
-            result.time = new IntRange(0, data.values().iterator().next().length - 1).collect { interval.getStart().plusMonths(it).getMillis() }
-        }
-        return result;
-    }
 
-    private void merge(Map<Tag, double[]> from, Map<Tag, double[]> to) {
-        for (Map.Entry<Tag, double[]> entry: from.entrySet()) {
-            Tag tag = entry.getKey();
-            double[] newValues = entry.getValue();
-            if (to.containsKey(tag)) {
-                double[] oldValues = to.get(tag);
-                for (int i = 0; i < newValues.length; i++) {
-                    oldValues[i] += newValues[i];
-                }
+            if (consolidateType != ConsolidateType.monthly) {
+                result.interval = consolidateType.millis;
             }
             else {
-                to.put(tag, newValues);
+                result.time = new IntRange(0, data.values().iterator().next().length - 1).collect { interval.getStart().plusMonths(it).getMillis() }
             }
-        }
+            return result;
+        } as QueryResultCache.Loader;
+
+        // throughput metrics and application groups change without a new generation of data
+        QueryResultCache queryResultCache = getConfig().queryResultCache;
+        if (queryResultCache == null || groupBy == TagType.ApplicationGroup || showsps || factorsps)
+            return compute.load(new QueryResultCache.Generations());
+
+        String key = QueryResultCache.getKey(groupBy, isCost, breakdown, aggregate, consolidateType, forReservation, showResourceGroups,
+            interval.getStartMillis(), interval.getEndMillis(), accounts, regions, zones, products, operations, usageTypes, resourceGroups,
+            query.has("appgroup") ? query.getString("appgroup") : null);
+        return queryResultCache.get(key, compute);
+    }
+
+    private DataManager getDataManager(boolean isCost, Product product, ConsolidateType consolidateType, QueryResultCache.Generations generations) {
+        // data managers look up tag groups in the tag group manager of their product
+        generations.add(getManagers().getTagGroupManager(product));
+        return generations.add(isCost ? getManagers().getCostManager(product, consolidateType) : getManagers().getUsageManager(product, consolidateType));
     }
 
     private Map<Tag, Map> getStats(Map<Tag, double[]> data) {
@@ -17,24 +17,33 @@
  */
 package com.netflix.ice.basic;
 
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.google.common.cache.*;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.netflix.ice.common.*;
 import com.netflix.ice.reader.*;
 import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.ResourceGroup;
 import com.netflix.ice.tag.Tag;
 import com.netflix.ice.tag.TagType;
 import org.joda.time.*;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class reads data from s3 bucket and feeds the data to UI
@@ -47,6 +56,7 @@ public class BasicDataManager extends Poller implements DataManager {
     protected Product product;
 
     protected Map<DateTime, File> fileCache = Maps.newConcurrentMap();
+    protected final AtomicLong generation = new AtomicLong();
     protected LoadingCache<DateTime, ReadOnlyData> data = CacheBuilder.newBuilder()
        .maximumSize(config.monthlyCacheSize)
        .removalListener(new RemovalListener<DateTime, ReadOnlyData>() {
@@ -86,6 +96,7 @@ public class BasicDataManager extends Poller implements DataManager {
                     ReadOnlyData newData = loadDataFromFile(file);
                     data.put(key, newData);
                     fileCache.put(key, file);
+                    generation.incrementAndGet();
                 }
             }
             catch (Exception e) {
@@ -123,9 +134,10 @@ public class BasicDataManager extends Poller implements DataManager {
         }
     }
 
-    private synchronized File getDownloadFile(DateTime monthDate) {
+    private File getDownloadFile(DateTime monthDate) {
         File file = getFile(monthDate);
-        downloadFile(file);
+        if (downloadFile(file))
+            generation.incrementAndGet();
         return file;
     }
 
@@ -139,7 +151,7 @@ public class BasicDataManager extends Poller implements DataManager {
         return file;
     }
 
-    private synchronized boolean downloadFile(File file) {
+    private boolean downloadFile(File file) {
         try {
             return AwsUtils.downloadFileIfChanged(config.workS3BucketName, config.workS3BucketPrefix, file, 0);
         }
@@ -150,15 +162,75 @@ public class BasicDataManager extends Poller implements DataManager {
     }
 
     private ReadOnlyData loadDataFromFile(File file) throws Exception {
-        logger.info("trying to load data from " + file);
-        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        ReadOnlyData result;
+        if (config.mmapData) {
+            logger.info("trying to map data from " + file);
+            result = MappedReadOnlyData.load(file);
+            logger.info("done mapping data from " + file);
+        }
+        else {
+            logger.info("trying to load data from " + file);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                result = ReadOnlyData.Serializer.deserialize(in);
+                logger.info("done loading data from " + file);
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        if (config.useRollups)
+            result.setRollups(loadRollups(file));
+        return result;
+    }
+
+    /**
+     * Loads the rollups written by processor next to the data file. Rollups computed from another version of the data
+     * file are left out.
+     */
+    private Map<TagType, Rollup> loadRollups(File file) {
+        Map<TagType, Rollup> result = Maps.newHashMap();
+        Long dataChecksum = null;
+
+        for (TagType dimension: Rollup.DIMENSIONS) {
+            File rollupFile = new File(file.getParentFile(), Rollup.getFileName(file.getName(), dimension));
+            try {
+                downloadRollupFile(rollupFile);
+                if (!rollupFile.exists())
+                    continue;
+
+                Rollup rollup;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(rollupFile)));
+                try {
+                    rollup = Rollup.Serializer.deserialize(in);
+                }
+                finally {
+                    in.close();
+                }
+
+                if (dataChecksum == null)
+                    dataChecksum = Rollup.checksum(file);
+                if (rollup.getDataChecksum() == dataChecksum)
+                    result.put(dimension, rollup);
+                else
+                    logger.info("ignoring " + rollupFile + " of another version of " + file);
+            }
+            catch (Exception e) {
+                logger.error("error in loading rollup " + rollupFile, e);
+            }
+        }
+        return result;
+    }
+
+    private void downloadRollupFile(File file) {
         try {
-            ReadOnlyData result = ReadOnlyData.Serializer.deserialize(in);
-            logger.info("done loading data from " + file);
-            return result;
+            AwsUtils.downloadFileIfChanged(config.workS3BucketName, config.workS3BucketPrefix, file, 0);
         }
-        finally {
-            in.close();
+        catch (AmazonS3Exception e) {
+            // processor does not write rollups unless asked to
+            if (e.getStatusCode() != 404)
+                logger.error("error downloading " + file, e);
         }
     }
 
@@ -173,19 +245,7 @@ public class BasicDataManager extends Poller implements DataManager {
         return result;
     }
 
-    private double[] getData(Interval interval, TagLists tagLists) throws ExecutionException {
-        DateTime start = config.startDate;
-        DateTime end = config.startDate;
-
-        if (consolidateType == ConsolidateType.hourly) {
-            start = interval.getStart().withDayOfMonth(1).withMillisOfDay(0);
-            end = interval.getEnd();
-        }
-        else if (consolidateType == ConsolidateType.daily) {
-            start = interval.getStart().withDayOfYear(1).withMillisOfDay(0);
-            end = interval.getEnd();
-        }
-
+    private int getNum(Interval interval) {
         int num = 0;
         if (consolidateType == ConsolidateType.hourly) {
             num = interval.toPeriod(PeriodType.hours()).getHours();
@@ -207,8 +267,26 @@ public class BasicDataManager extends Poller implements DataManager {
             if (interval.getStart().plusMonths(num).isBefore(interval.getEnd()))
                 num++;
         }
+        return num;
+    }
 
-        double[] result = new double[num];
+    /**
+     * Finds the data files covering the interval, and which of their rows go to which periods of the result.
+     */
+    private List<DataSlice> getDataSlices(Interval interval, int num) throws ExecutionException {
+        DateTime start = config.startDate;
+        DateTime end = config.startDate;
+
+        if (consolidateType == ConsolidateType.hourly) {
+            start = interval.getStart().withDayOfMonth(1).withMillisOfDay(0);
+            end = interval.getEnd();
+        }
+        else if (consolidateType == ConsolidateType.daily) {
+            start = interval.getStart().withDayOfYear(1).withMillisOfDay(0);
+            end = interval.getEnd();
+        }
+
+        List<DataSlice> slices = Lists.newArrayList();
 
         do {
             ReadOnlyData data = getReadOnlyData(start);
@@ -247,19 +325,9 @@ public class BasicDataManager extends Poller implements DataManager {
                 }
             }
 
-            List<Integer> columeIndexs = Lists.newArrayList();
-            int columeIndex = 0;
-            for (TagGroup tagGroup: data.getTagGroups()) {
-                if (tagLists.contains(tagGroup))
-                    columeIndexs.add(columeIndex);
-                columeIndex++;
-            }
-            while (resultIndex < num && fromIndex < data.getNum()) {
-                double[] fromData = data.getData(fromIndex++);
-                for (Integer cIndex: columeIndexs)
-                    result[resultIndex] += fromData[cIndex];
-                resultIndex++;
-            }
+            int count = Math.min(num - resultIndex, data.getNum() - fromIndex);
+            if (count > 0)
+                slices.add(new DataSlice(data, fromIndex, resultIndex, count));
 
             if (consolidateType  == ConsolidateType.hourly)
                 start = start.plusMonths(1);
@@ -270,9 +338,106 @@ public class BasicDataManager extends Poller implements DataManager {
         }
         while (start.isBefore(end));
 
+        return slices;
+    }
+
+    /**
+     * Adds up the data of tag. If rollupDimension is not null, files with rollups by that dimension are read from their
+     * rollups, and only the other files are scanned for the tag groups in tagLists.
+     */
+    private double[] getData(List<DataSlice> slices, int num, Tag tag, TagLists tagLists, TagType rollupDimension) {
+        double[] result = new double[num];
+
+        for (DataSlice slice: slices) {
+            Rollup rollup = rollupDimension == null ? null : slice.data.getRollup(rollupDimension);
+            if (rollup != null && rollup.getNum() == slice.data.getNum()) {
+                rollup.sum(tag, slice.fromIndex, result, slice.resultIndex, slice.count);
+                continue;
+            }
+
+            BitSet columns = slice.data.getIndex().getMatches(tagLists);
+            if (!columns.isEmpty())
+                slice.data.sum(toArray(columns), slice.fromIndex, result, slice.resultIndex, slice.count);
+        }
+
+        return result;
+    }
+
+    /**
+     * Adds up the data of all groups at once. Groups differ in their tag of the group by dimension, so every column of a
+     * data file belongs to at most one group. Each file is mapped to an array of group indexes by column and scanned once
+     * for all groups. Files with rollups by rollupDimension are read from their rollups.
+     * @return data of tags.get(i) at index i
+     */
+    private double[][] getGroupedData(List<DataSlice> slices, int num, List<Tag> tags, Map<Tag, TagLists> tagListsMap, TagType rollupDimension) {
+        double[][] result = new double[tags.size()][num];
+
+        for (DataSlice slice: slices) {
+            Rollup rollup = rollupDimension == null ? null : slice.data.getRollup(rollupDimension);
+            if (rollup != null && rollup.getNum() == slice.data.getNum()) {
+                for (int group = 0; group < tags.size(); group++)
+                    rollup.sum(tags.get(group), slice.fromIndex, result[group], slice.resultIndex, slice.count);
+                continue;
+            }
+
+            TagGroupIndex index = slice.data.getIndex();
+            int[] columnToGroup = new int[index.size()];
+            Arrays.fill(columnToGroup, -1);
+            boolean hasGroups = false;
+            for (int group = 0; group < tags.size(); group++) {
+                BitSet columns = index.getMatches(tagListsMap.get(tags.get(group)));
+                for (int column = columns.nextSetBit(0); column >= 0; column = columns.nextSetBit(column + 1)) {
+                    columnToGroup[column] = group;
+                    hasGroups = true;
+                }
+            }
+            if (hasGroups)
+                slice.data.sumByGroup(columnToGroup, slice.fromIndex, result, slice.resultIndex, slice.count);
+        }
+
         return result;
     }
 
+    /**
+     * Rollups hold totals over all tag groups of a file, so they can only answer a group by without filters on other
+     * dimensions. Except for the operation rollup, they also leave out lent instances, which only the reservation
+     * dashboard asks for.
+     */
+    private boolean canUseRollups(TagLists tagLists, TagType groupBy, boolean forReservation) {
+        if (groupBy == null || !Rollup.DIMENSIONS.contains(groupBy))
+            return false;
+        if (forReservation && groupBy != TagType.Operation)
+            return false;
+
+        return (groupBy == TagType.Account || isEmpty(tagLists.accounts)) &&
+               (groupBy == TagType.Region || isEmpty(tagLists.regions)) &&
+               isEmpty(tagLists.zones) &&
+               (groupBy == TagType.Product || isEmpty(tagLists.products)) &&
+               (groupBy == TagType.Operation || isEmpty(tagLists.operations)) &&
+               isEmpty(tagLists.usageTypes) &&
+               isEmpty(tagLists.resourceGroups);
+    }
+
+    private static int[] toArray(BitSet bitSet) {
+        int[] result = new int[bitSet.cardinality()];
+        int j = 0;
+        for (int i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1))
+            result[j++] = i;
+        return result;
+    }
+
+    private static int[] toArray(Collection<Integer> integers) {
+        int[] result = new int[integers.size()];
+        int j = 0;
+        for (int i: integers)
+            result[j++] = i;
+        return result;
+    }
+
+    private static boolean isEmpty(List<?> list) {
+        return list == null || list.size() == 0;
+    }
+
     private void addData(double[] from, double[] to) {
         for (int i = 0; i < from.length; i++)
             to[i] += from[i];
@@ -292,18 +457,30 @@ public class BasicDataManager extends Poller implements DataManager {
         Map<Tag, double[]> result = Maps.newTreeMap();
         double[] aggregated = null;
 
-        for (Tag tag: tagListsMap.keySet()) {
-            try {
-                double[] data = getData(interval, tagListsMap.get(tag));
-                result.put(tag, data);
-                if (aggregate != AggregateType.none && tagListsMap.size() > 1) {
-                    if (aggregated == null)
-                        aggregated = new double[data.length];
-                    addData(data, aggregated);
-                }
-            }
-            catch (ExecutionException e) {
-                logger.error("error in getData for " + tag + " " + interval, e);
+        int num = getNum(interval);
+        List<DataSlice> slices;
+        try {
+            slices = getDataSlices(interval, num);
+        }
+        catch (ExecutionException e) {
+            logger.error("error in getData for " + interval, e);
+            return result;
+        }
+        TagType rollupDimension = canUseRollups(tagLists, groupBy, forReservation) ? groupBy : null;
+
+        List<Tag> tags = Lists.newArrayList(tagListsMap.keySet());
+        double[][] groupedData = null;
+        if (groupBy != null && tags.size() >= config.groupedScanMinGroups)
+            groupedData = getGroupedData(slices, num, tags, tagListsMap, rollupDimension);
+
+        for (int group = 0; group < tags.size(); group++) {
+            Tag tag = tags.get(group);
+            double[] data = groupedData != null ? groupedData[group] : getData(slices, num, tag, tagListsMap.get(tag), rollupDimension);
+            result.put(tag, data);
+            if (aggregate != AggregateType.none && tagListsMap.size() > 1) {
+                if (aggregated == null)
+                    aggregated = new double[data.length];
+                addData(data, aggregated);
             }
         }
         if (aggregated != null)
@@ -311,6 +488,60 @@ public class BasicDataManager extends Poller implements DataManager {
         return result;
     }
 
+    /**
+     * Scans each file once for all application groups. A resource group can be in several application groups, so each
+     * matching column is mapped to the indexes of all groups of its resource group. The data of each group is added up
+     * in the same order as a getData call filtered on its resource groups.
+     */
+    public Map<Tag, double[]> getApplicationGroupData(Interval interval, TagLists tagLists, Multimap<ResourceGroup, Tag> applicationGroups) {
+        List<Tag> tags = Lists.newArrayList(Sets.newTreeSet(applicationGroups.values()));
+        Map<Tag, Integer> tagIndexes = Maps.newHashMap();
+        for (int group = 0; group < tags.size(); group++)
+            tagIndexes.put(tags.get(group), group);
+
+        Map<ResourceGroup, int[]> groupsByResourceGroup = Maps.newHashMap();
+        for (ResourceGroup resourceGroup: applicationGroups.keySet()) {
+            Set<Integer> groups = Sets.newTreeSet();
+            for (Tag tag: applicationGroups.get(resourceGroup))
+                groups.add(tagIndexes.get(tag));
+            groupsByResourceGroup.put(resourceGroup, toArray(groups));
+        }
+
+        Map<Tag, double[]> result = Maps.newTreeMap();
+        int num = getNum(interval);
+        List<DataSlice> slices;
+        try {
+            slices = getDataSlices(interval, num);
+        }
+        catch (ExecutionException e) {
+            logger.error("error in getApplicationGroupData for " + interval, e);
+            return result;
+        }
+
+        double[][] groupedData = new double[tags.size()][num];
+        for (DataSlice slice: slices) {
+            TagGroupIndex index = slice.data.getIndex();
+            int[][] columnToGroups = new int[index.size()][];
+            boolean hasGroups = false;
+            BitSet columns = index.getMatches(tagLists);
+            for (int column = columns.nextSetBit(0); column >= 0; column = columns.nextSetBit(column + 1)) {
+                ResourceGroup resourceGroup = index.get(column).resourceGroup;
+                columnToGroups[column] = resourceGroup == null ? null : groupsByResourceGroup.get(resourceGroup);
+                hasGroups |= columnToGroups[column] != null;
+            }
+            if (hasGroups)
+                slice.data.sumByGroups(columnToGroups, slice.fromIndex, groupedData, slice.resultIndex, slice.count);
+        }
+
+        for (int group = 0; group < tags.size(); group++)
+            result.put(tags.get(group), groupedData[group]);
+        return result;
+    }
+
+    public long getGeneration() {
+        return generation.get();
+    }
+
     public int getDataLength(DateTime start) {
         try {
             ReadOnlyData data = getReadOnlyData(start);
@@ -321,4 +552,21 @@ public class BasicDataManager extends Poller implements DataManager {
             return 0;
         }
     }
+
+    /**
+     * Rows fromIndex to fromIndex + count - 1 of a data file, which go to periods resultIndex on of a query result.
+     */
+    private static class DataSlice {
+        final ReadOnlyData data;
+        final int fromIndex;
+        final int resultIndex;
+        final int count;
+
+        DataSlice(ReadOnlyData data, int fromIndex, int resultIndex, int count) {
+            this.data = data;
+            this.fromIndex = fromIndex;
+            this.resultIndex = resultIndex;
+            this.count = count;
+        }
+    }
 }
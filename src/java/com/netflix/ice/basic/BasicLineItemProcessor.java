@@ -17,6 +17,9 @@
  */
 package com.netflix.ice.basic;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Lists;
 import com.netflix.ice.common.*;
 import com.netflix.ice.processor.*;
@@ -34,23 +37,20 @@ import java.util.Map;
 public class BasicLineItemProcessor implements LineItemProcessor {
     private Logger logger = LoggerFactory.getLogger(BasicLineItemProcessor.class);
 
-    private int accountIdIndex;
-    private int productIndex;
-    private int zoneIndex;
-    private int reservedIndex;
-    private int descriptionIndex;
-    private int usageTypeIndex;
-    private int operationIndex;
-    private int usageQuantityIndex;
-    private int startTimeIndex;
-    private int endTimeIndex;
-    private int rateIndex;
-    private int costIndex;
-    private int resourceIndex;
-
-    private List<String> header;
+    // column positions depend on the file being processed, so they are kept per thread to allow several
+    // billing files to be processed concurrently
+    private final ThreadLocal<ColumnIndexes> columnIndexes = new ThreadLocal<ColumnIndexes>();
+
+    // a month has millions of line items but only a few thousand distinct combinations of the fields reform() looks at
+    private static final int REFORM_CACHE_SIZE = 100000;
+    private final Cache<ReformKey, ReformedMetaData> reformCache = CacheBuilder.newBuilder()
+            .maximumSize(REFORM_CACHE_SIZE)
+            .recordStats()
+            .build();
+    private CacheStats loggedReformCacheStats = new CacheStats(0, 0, 0, 0, 0, 0);
 
     public void initIndexes(ProcessorConfig processorConfig, boolean withTags, String[] header) {
+        ColumnIndexes columns = new ColumnIndexes();
         boolean hasBlendedCost = false;
         boolean useBlendedCost = processorConfig.useBlended;
         for (String column: header) {
@@ -59,74 +59,86 @@ public class BasicLineItemProcessor implements LineItemProcessor {
                 break;
             }
         }
-        accountIdIndex = 2;
-        productIndex = 5 + (withTags ? 0 : -1);
-        zoneIndex = 11 + (withTags ? 0 : -1);
-        reservedIndex = 12 + (withTags ? 0 : -1);
-        descriptionIndex = 13 + (withTags ? 0 : -1);
-        usageTypeIndex = 9 + (withTags ? 0 : -1);
-        operationIndex = 10 + (withTags ? 0 : -1);
-        usageQuantityIndex = 16 + (withTags ? 0 : -1);
-        startTimeIndex = 14 + (withTags ? 0 : -1);
-        endTimeIndex = 15 + (withTags ? 0 : -1);
+        columns.accountIdIndex = 2;
+        columns.productIndex = 5 + (withTags ? 0 : -1);
+        columns.zoneIndex = 11 + (withTags ? 0 : -1);
+        columns.reservedIndex = 12 + (withTags ? 0 : -1);
+        columns.descriptionIndex = 13 + (withTags ? 0 : -1);
+        columns.usageTypeIndex = 9 + (withTags ? 0 : -1);
+        columns.operationIndex = 10 + (withTags ? 0 : -1);
+        columns.usageQuantityIndex = 16 + (withTags ? 0 : -1);
+        columns.startTimeIndex = 14 + (withTags ? 0 : -1);
+        columns.endTimeIndex = 15 + (withTags ? 0 : -1);
         // When blended vales are present, the rows look like this
         //    ..., UsageQuantity, BlendedRate, BlendedCost, UnBlended Rate, UnBlended Cost
         // Without Blended Rates
         //    ..., UsageQuantity, UnBlendedRate, UnBlendedCost
         // We want to always reference the UnBlended Cost unless useBlendedCost is true.
-        rateIndex = 19 + (withTags ? 0 : -1) + ((hasBlendedCost && useBlendedCost == false) ? 0 : -2);
-        costIndex = 20 + (withTags ? 0 : -1) + ((hasBlendedCost && useBlendedCost == false) ? 0 : -2);
-        resourceIndex = 21 + (withTags ? 0 : -1) + (hasBlendedCost ? 0 : -2);
+        columns.rateIndex = 19 + (withTags ? 0 : -1) + ((hasBlendedCost && useBlendedCost == false) ? 0 : -2);
+        columns.costIndex = 20 + (withTags ? 0 : -1) + ((hasBlendedCost && useBlendedCost == false) ? 0 : -2);
+        columns.resourceIndex = 21 + (withTags ? 0 : -1) + (hasBlendedCost ? 0 : -2);
+
+        columns.header = Lists.newArrayList(header);
+        columnIndexes.set(columns);
+        logReformCacheStats();
+    }
 
-        this.header = Lists.newArrayList(header);
+    /**
+     * @return hits and misses of the reform() results kept for repeated line items
+     */
+    public CacheStats getReformCacheStats() {
+        return reformCache.stats();
+    }
+
+    private synchronized void logReformCacheStats() {
+        CacheStats stats = reformCache.stats();
+        CacheStats recent = stats.minus(loggedReformCacheStats);
+        if (recent.requestCount() == 0)
+            return;
+        logger.info(String.format("reform cache: %.1f%% hits of %d lookups since last file, %.1f%% of %d in total, %d entries",
+                recent.hitRate() * 100, recent.requestCount(), stats.hitRate() * 100, stats.requestCount(), reformCache.size()));
+        loggedReformCacheStats = stats;
     }
 
     public List<String> getHeader() {
-        return this.header;
+        return columnIndexes.get().header;
     }
 
     public int getUserTagStartIndex() {
-        return resourceIndex + 1;
+        return columnIndexes.get().resourceIndex + 1;
     }
 
     public long getEndMillis(String[] items) {
-        return amazonBillingDateFormat.parseMillis(items[endTimeIndex]);
+        return BillingFieldParser.parseMillis(items[columnIndexes.get().endTimeIndex]);
     }
 
     public Result process(long startMilli, boolean processDelayed, ProcessorConfig config, String[] items, Map<Product, ReadWriteData> usageDataByProduct, Map<Product, ReadWriteData> costDataByProduct, Map<String, Double> ondemandRate) {
-        if (StringUtils.isEmpty(items[accountIdIndex]) ||
-            StringUtils.isEmpty(items[productIndex]) ||
-            StringUtils.isEmpty(items[usageTypeIndex]) ||
-            StringUtils.isEmpty(items[operationIndex]) ||
-            StringUtils.isEmpty(items[usageQuantityIndex]) ||
-            StringUtils.isEmpty(items[costIndex]))
+        ColumnIndexes columns = columnIndexes.get();
+        if (StringUtils.isEmpty(items[columns.accountIdIndex]) ||
+            StringUtils.isEmpty(items[columns.productIndex]) ||
+            StringUtils.isEmpty(items[columns.usageTypeIndex]) ||
+            StringUtils.isEmpty(items[columns.operationIndex]) ||
+            StringUtils.isEmpty(items[columns.usageQuantityIndex]) ||
+            StringUtils.isEmpty(items[columns.costIndex]))
             return Result.ignore;
 
-        Account account = config.accountService.getAccountById(items[accountIdIndex]);
+        Account account = config.accountService.getAccountById(items[columns.accountIdIndex]);
         if (account == null)
             return Result.ignore;
 
-        double usageValue = Double.parseDouble(items[usageQuantityIndex]);
-        double costValue = Double.parseDouble(items[costIndex]);
+        double usageValue = BillingFieldParser.parseDouble(items[columns.usageQuantityIndex]);
+        double costValue = BillingFieldParser.parseDouble(items[columns.costIndex]);
 
-        long millisStart;
-        long millisEnd;
-        try {
-            millisStart = amazonBillingDateFormat.parseMillis(items[startTimeIndex]);
-            millisEnd = amazonBillingDateFormat.parseMillis(items[endTimeIndex]);
-        }
-        catch (IllegalArgumentException e) {
-            millisStart = amazonBillingDateFormat2.parseMillis(items[startTimeIndex]);
-            millisEnd = amazonBillingDateFormat2.parseMillis(items[endTimeIndex]);
-        }
+        long millisStart = BillingFieldParser.parseMillis(items[columns.startTimeIndex]);
+        long millisEnd = BillingFieldParser.parseMillis(items[columns.endTimeIndex]);
 
-        Product product = config.productService.getProductByAwsName(items[productIndex]);
-        boolean reservationUsage = "Y".equals(items[reservedIndex]);
-        ReformedMetaData reformedMetaData = reform(millisStart, config, product, reservationUsage, items[operationIndex], items[usageTypeIndex], items[descriptionIndex], costValue);
+        Product product = config.productService.getProductByAwsName(items[columns.productIndex]);
+        boolean reservationUsage = "Y".equals(items[columns.reservedIndex]);
+        ReformedMetaData reformedMetaData = getReformedMetaData(millisStart, config, product, reservationUsage, items[columns.operationIndex], items[columns.usageTypeIndex], items[columns.descriptionIndex], costValue);
         product = reformedMetaData.product;
         Operation operation = reformedMetaData.operation;
         UsageType usageType = reformedMetaData.usageType;
-        Zone zone = Zone.getZone(items[zoneIndex], reformedMetaData.region);
+        Zone zone = Zone.getZone(items[columns.zoneIndex], reformedMetaData.region);
 
         int startIndex = (int)((millisStart - startMilli)/ AwsUtils.hourMillis);
         int endIndex = (int)((millisEnd + 1000 - startMilli)/ AwsUtils.hourMillis);
@@ -157,7 +169,7 @@ public class BasicLineItemProcessor implements LineItemProcessor {
         if (usageType.name.startsWith("TimedStorage-ByteHrs"))
             result = Result.daily;
 
-        boolean monthlyCost = StringUtils.isEmpty(items[descriptionIndex]) ? false : items[descriptionIndex].toLowerCase().contains("-month");
+        boolean monthlyCost = StringUtils.isEmpty(items[columns.descriptionIndex]) ? false : items[columns.descriptionIndex].toLowerCase().contains("-month");
 
         ReadWriteData usageData = usageDataByProduct.get(null);
         ReadWriteData costData = costDataByProduct.get(null);
@@ -204,7 +216,7 @@ public class BasicLineItemProcessor implements LineItemProcessor {
         }
 
         double resourceCostValue = costValue;
-        if (items.length > resourceIndex && config.resourceService != null) {
+        if (items.length > columns.resourceIndex && config.resourceService != null) {
 
             if (config.useCostForResourceGroup.equals("modeled") && product == Product.ec2_instance)
                 operation = Operation.getReservedInstances(config.reservationService.getDefaultReservationUtilization(0L));
@@ -223,13 +235,13 @@ public class BasicLineItemProcessor implements LineItemProcessor {
                 }
             }
 
-            String resourceGroupStr = config.resourceService.getResource(account, reformedMetaData.region, product, items[resourceIndex], items, millisStart);
+            String resourceGroupStr = config.resourceService.getResource(account, reformedMetaData.region, product, items[columns.resourceIndex], items, millisStart);
             if (!StringUtils.isEmpty(resourceGroupStr)) {
                 ResourceGroup resourceGroup = ResourceGroup.getResourceGroup(resourceGroupStr);
                 resourceTagGroup = TagGroup.getTagGroup(account, reformedMetaData.region, zone, product, operation, usageType, resourceGroup);
                 if (usageDataOfProduct == null) {
-                    usageDataOfProduct = new ReadWriteData();
-                    costDataOfProduct = new ReadWriteData();
+                    usageDataOfProduct = ReadWriteData.newProductData(config);
+                    costDataOfProduct = ReadWriteData.newProductData(config);
                     usageDataByProduct.put(product, usageDataOfProduct);
                     costDataByProduct.put(product, costDataOfProduct);
                 }
@@ -251,26 +263,24 @@ public class BasicLineItemProcessor implements LineItemProcessor {
                 costValue = usageValue * config.randomizer.randomizeCost(tagGroup);
             }
             if (product != Product.monitor) {
-                Map<TagGroup, Double> usages = usageData.getData(i);
-                Map<TagGroup, Double> costs = costData.getData(i);
-
-                addValue(usages, tagGroup, usageValue,  config.randomizer == null || tagGroup.product == Product.rds || tagGroup.product == Product.s3);
-                addValue(costs, tagGroup, costValue, config.randomizer == null || tagGroup.product == Product.rds || tagGroup.product == Product.s3);
+                addValue(usageData, i, tagGroup, usageValue,  config.randomizer == null || tagGroup.product == Product.rds || tagGroup.product == Product.s3);
+                addValue(costData, i, tagGroup, costValue, config.randomizer == null || tagGroup.product == Product.rds || tagGroup.product == Product.s3);
             }
             else {
                 resourceCostValue = usageValue * config.costPerMonitorMetricPerHour;
             }
 
             if (resourceTagGroup != null) {
-                Map<TagGroup, Double> usagesOfResource = usageDataOfProduct.getData(i);
-                Map<TagGroup, Double> costsOfResource = costDataOfProduct.getData(i);
+                // make sure the hour exists even if nothing is added to it
+                usageDataOfProduct.getData(i);
+                costDataOfProduct.getData(i);
 
                 if (config.randomizer == null || tagGroup.product == Product.rds || tagGroup.product == Product.s3) {
-                    addValue(usagesOfResource, resourceTagGroup, usageValue, product != Product.monitor);
+                    addValue(usageDataOfProduct, i, resourceTagGroup, usageValue, product != Product.monitor);
                     if (!config.useCostForResourceGroup.equals("modeled") || resourceCostValue < 0) {
-                        addValue(costsOfResource, resourceTagGroup, costValue, product != Product.monitor);
+                        addValue(costDataOfProduct, i, resourceTagGroup, costValue, product != Product.monitor);
                     } else {
-                        addValue(costsOfResource, resourceTagGroup, resourceCostValue, product != Product.monitor);
+                        addValue(costDataOfProduct, i, resourceTagGroup, resourceCostValue, product != Product.monitor);
                     }
                 }
                 else {
@@ -282,8 +292,8 @@ public class BasicLineItemProcessor implements LineItemProcessor {
                         double usage = usageValue * dist;
                         if (product == Product.ec2_instance)
                             usage = (int)usageValue * dist;
-                        addValue(usagesOfResource, resourceTagGroup, usage, false);
-                        addValue(costsOfResource, resourceTagGroup, usage * config.randomizer.randomizeCost(tagGroup), false);
+                        addValue(usageDataOfProduct, i, resourceTagGroup, usage, false);
+                        addValue(costDataOfProduct, i, resourceTagGroup, usage * config.randomizer.randomizeCost(tagGroup), false);
                     }
                 }
             }
@@ -292,13 +302,11 @@ public class BasicLineItemProcessor implements LineItemProcessor {
         return result;
     }
 
-    private void addValue(Map<TagGroup, Double> map, TagGroup tagGroup, double value, boolean add) {
-        Double oldV = map.get(tagGroup);
-        if (oldV != null) {
-            value = add ? value + oldV : value;
-        }
-
-        map.put(tagGroup, value);
+    private void addValue(ReadWriteData data, int i, TagGroup tagGroup, double value, boolean add) {
+        if (add)
+            data.add(i, tagGroup, value);
+        else
+            data.put(i, tagGroup, value);
     }
 
     private Result processEc2Instance(boolean processDelayed, boolean reservationUsage, Operation operation, Zone zone) {
@@ -351,6 +359,24 @@ public class BasicLineItemProcessor implements LineItemProcessor {
             return Result.hourly;
     }
 
+    /**
+     * Returns the result of reform() for the line item, reusing the result of an earlier line item with the same fields.
+     * Of the start time and the cost, reform() only looks at whether the cost is zero and at the default reservation
+     * utilization at the start time, so those are part of the key instead.
+     */
+    ReformedMetaData getReformedMetaData(long millisStart, ProcessorConfig config, Product product, boolean reservationUsage, String operationStr, String usageTypeStr, String description, double cost) {
+        Ec2InstanceReservationPrice.ReservationUtilization utilization = reservationUsage && product == Product.ec2 && cost != 0 ?
+                config.reservationService.getDefaultReservationUtilization(millisStart) : null;
+        ReformKey key = new ReformKey(product, reservationUsage, cost == 0, utilization, operationStr, usageTypeStr, description);
+
+        ReformedMetaData result = reformCache.getIfPresent(key);
+        if (result == null) {
+            result = reform(millisStart, config, product, reservationUsage, operationStr, usageTypeStr, description, cost);
+            reformCache.put(key, result);
+        }
+        return result;
+    }
+
     protected ReformedMetaData reform(long millisStart, ProcessorConfig config, Product product, boolean reservationUsage, String operationStr, String usageTypeStr, String description, double cost) {
 
         Operation operation = null;
@@ -456,7 +482,7 @@ public class BasicLineItemProcessor implements LineItemProcessor {
             return null;
     }
 
-    private static class ReformedMetaData{
+    static class ReformedMetaData{
         public final Region region;
         public final Product product;
         public final Operation operation;
@@ -468,4 +494,74 @@ public class BasicLineItemProcessor implements LineItemProcessor {
             this.usageType = usageType;
         }
     }
+
+    private static class ReformKey {
+        private final Product product;
+        private final boolean reservationUsage;
+        private final boolean zeroCost;
+        private final Ec2InstanceReservationPrice.ReservationUtilization utilization;
+        private final String operationStr;
+        private final String usageTypeStr;
+        private final String description;
+        private final int hashCode;
+
+        ReformKey(Product product, boolean reservationUsage, boolean zeroCost, Ec2InstanceReservationPrice.ReservationUtilization utilization,
+                  String operationStr, String usageTypeStr, String description) {
+            this.product = product;
+            this.reservationUsage = reservationUsage;
+            this.zeroCost = zeroCost;
+            this.utilization = utilization;
+            this.operationStr = operationStr;
+            this.usageTypeStr = usageTypeStr;
+            this.description = description;
+
+            int hash = product == null ? 0 : product.hashCode();
+            hash = 31 * hash + (reservationUsage ? 1 : 0);
+            hash = 31 * hash + (zeroCost ? 1 : 0);
+            hash = 31 * hash + (utilization == null ? 0 : utilization.hashCode());
+            hash = 31 * hash + operationStr.hashCode();
+            hash = 31 * hash + usageTypeStr.hashCode();
+            hash = 31 * hash + (description == null ? 0 : description.hashCode());
+            this.hashCode = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof ReformKey))
+                return false;
+            ReformKey other = (ReformKey)o;
+            return hashCode == other.hashCode &&
+                    product == other.product &&
+                    reservationUsage == other.reservationUsage &&
+                    zeroCost == other.zeroCost &&
+                    utilization == other.utilization &&
+                    operationStr.equals(other.operationStr) &&
+                    usageTypeStr.equals(other.usageTypeStr) &&
+                    (description == null ? other.description == null : description.equals(other.description));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static class ColumnIndexes {
+        int accountIdIndex;
+        int productIndex;
+        int zoneIndex;
+        int reservedIndex;
+        int descriptionIndex;
+        int usageTypeIndex;
+        int operationIndex;
+        int usageQuantityIndex;
+        int startTimeIndex;
+        int endTimeIndex;
+        int rateIndex;
+        int costIndex;
+        int resourceIndex;
+        List<String> header;
+    }
 }
@@ -31,6 +31,7 @@ import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class manages all BasicTagGroupManager and BasicDataManager instances.
@@ -42,6 +43,7 @@ public class BasicManagers extends Poller implements Managers {
     private Map<Product, BasicTagGroupManager> tagGroupManagers = Maps.newHashMap();
     private TreeMap<Key, BasicDataManager> costManagers = Maps.newTreeMap();
     private TreeMap<Key, BasicDataManager> usageManagers = Maps.newTreeMap();
+    private final AtomicLong generation = new AtomicLong();
 
     public void shutdown() {
         for (BasicTagGroupManager tagGroupManager: tagGroupManagers.values()) {
@@ -77,6 +79,10 @@ public class BasicManagers extends Poller implements Managers {
         return usageManagers.get(new Key(product, consolidateType));
     }
 
+    public long getGeneration() {
+        return generation.get();
+    }
+
     @Override
     protected void poll() throws Exception {
         doWork();
@@ -123,6 +129,7 @@ public class BasicManagers extends Poller implements Managers {
             this.usageManagers = usageManagers;
             this.tagGroupManagers = tagGroupManagers;
             this.products = products;
+            generation.incrementAndGet();
         }
     }
 
@@ -440,7 +440,7 @@ public class BasicReservationService extends Poller implements ReservationServic
 
             UsageType usageType = UsageType.getUsageType(reservedInstances.getInstanceType() + os.usageType, "hours");
 
-            TagGroup reservationKey = new TagGroup(account, zone.region, zone, Product.ec2_instance, Operation.getReservedInstances(utilization), usageType, null);
+            TagGroup reservationKey = TagGroup.getTagGroup(account, zone.region, zone, Product.ec2_instance, Operation.getReservedInstances(utilization), usageType, null);
 
             List<Reservation> reservations = reservationMap.get(utilization).get(reservationKey);
             if (reservations == null) {
@@ -25,6 +25,7 @@ import com.netflix.ice.common.Poller;
 import com.netflix.ice.common.TagGroup;
 import com.netflix.ice.processor.TagGroupWriter;
 import com.netflix.ice.reader.ReaderConfig;
+import com.netflix.ice.reader.TagGroupCatalog;
 import com.netflix.ice.reader.TagGroupManager;
 import com.netflix.ice.reader.TagLists;
 import com.netflix.ice.tag.*;
@@ -32,20 +33,26 @@ import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.Interval;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BasicTagGroupManager extends Poller implements TagGroupManager {
 
     private ReaderConfig config = ReaderConfig.getInstance();
     private String dbName;
     private File file;
-    private TreeMap<Long, Collection<TagGroup>> tagGroups;
     private TreeMap<Long, Collection<TagGroup>> tagGroupsWithResourceGroups;
+    /**
+     * One catalog, and so one TagGroupIndex, per month over the tag groups with resource groups
+     */
+    private Map<Long, TagGroupCatalog> catalogs;
     private Interval totalInterval;
+    private final AtomicLong generation = new AtomicLong();
 
     BasicTagGroupManager(Product product) {
         this.dbName = TagGroupWriter.DB_PREFIX + (product == null ? "all" : product.s3Name);
@@ -59,22 +66,22 @@ public class BasicTagGroupManager extends Poller implements TagGroupManager {
         start(300);
     }
 
+    /**
+     * Creates a manager of the given tag groups, which does not poll for new ones.
+     */
+    BasicTagGroupManager(TreeMap<Long, Collection<TagGroup>> tagGroupsWithResourceGroups) {
+        this.dbName = TagGroupWriter.DB_PREFIX + "test";
+        setTagGroups(tagGroupsWithResourceGroups);
+    }
+
     @Override
     protected void poll() throws IOException {
         boolean downloaded = AwsUtils.downloadFileIfChanged(config.workS3BucketName, config.workS3BucketPrefix, file, 0);
-        if (downloaded || tagGroups == null) {
+        if (downloaded || tagGroupsWithResourceGroups == null) {
             logger.info("trying to read from " + file);
-            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
             try {
-                TreeMap<Long, Collection<TagGroup>> tagGroupsWithResourceGroups = TagGroup.Serializer.deserializeTagGroups(config, in);
-                TreeMap<Long, Collection<TagGroup>> tagGroups = removeResourceGroups(tagGroupsWithResourceGroups);
-                Interval totalInterval = null;
-                if (tagGroups.size() > 0) {
-                    totalInterval = new Interval(tagGroups.firstKey(), new DateTime(tagGroups.lastKey()).plusMonths(1).getMillis(), DateTimeZone.UTC);
-                }
-                this.totalInterval = totalInterval;
-                this.tagGroups = tagGroups;
-                this.tagGroupsWithResourceGroups = tagGroupsWithResourceGroups;
+                setTagGroups(TagGroup.Serializer.deserializeTagGroups(config, in));
                 logger.info("done reading " + file);
             }
             finally {
@@ -83,47 +90,59 @@ public class BasicTagGroupManager extends Poller implements TagGroupManager {
         }
     }
 
+    private void setTagGroups(TreeMap<Long, Collection<TagGroup>> tagGroupsWithResourceGroups) {
+        Interval totalInterval = null;
+        if (tagGroupsWithResourceGroups.size() > 0) {
+            totalInterval = new Interval(tagGroupsWithResourceGroups.firstKey(),
+                    new DateTime(tagGroupsWithResourceGroups.lastKey()).plusMonths(1).getMillis(), DateTimeZone.UTC);
+        }
+        Map<Long, TagGroupCatalog> catalogs = Maps.newHashMap();
+        for (Map.Entry<Long, Collection<TagGroup>> entry: tagGroupsWithResourceGroups.entrySet()) {
+            catalogs.put(entry.getKey(), new TagGroupCatalog(entry.getValue(), TagType.Account, TagType.Region, TagType.Zone,
+                    TagType.Product, TagType.Operation, TagType.UsageType, TagType.ResourceGroup));
+        }
+        this.totalInterval = totalInterval;
+        this.catalogs = catalogs;
+        this.tagGroupsWithResourceGroups = tagGroupsWithResourceGroups;
+        generation.incrementAndGet();
+    }
+
     @Override
     protected String getThreadName() {
         return this.dbName;
     }
 
-    private TreeMap<Long, Collection<TagGroup>> removeResourceGroups(TreeMap<Long, Collection<TagGroup>> tagGroups) {
-        TreeMap<Long, Collection<TagGroup>> result = Maps.newTreeMap();
-        for (Long key: tagGroups.keySet()) {
-            Collection<TagGroup> from = tagGroups.get(key);
-            Set<TagGroup> to = Sets.newHashSet();
-            for (TagGroup tagGroup: from) {
-                if (tagGroup.resourceGroup != null)
-                    to.add(new TagGroup(tagGroup.account, tagGroup.region, tagGroup.zone, tagGroup.product, tagGroup.operation, tagGroup.usageType, null));
-                else
-                    to.add(tagGroup);
-            }
-
-            result.put(key, to);
+    private <T extends Tag> Set<T> getValues(TagType dimension, Interval interval, TagLists tagLists) {
+        Set<T> result = Sets.newTreeSet();
+        if (dimension != TagType.ResourceGroup) {
+            tagLists = withoutResourceGroups(tagLists);
+            if (tagLists == null)
+                return result;
+        }
+        for (Long monthMilli: getMonthMillis(interval)) {
+            TagGroupCatalog catalog = catalogs.get(monthMilli);
+            if (catalog != null)
+                catalog.addValues(dimension, tagLists, result);
         }
         return result;
     }
 
-    private Set<TagGroup> getTagGroupsInRange(Collection<Long> monthMillis) {
-        Set<TagGroup> tagGroupsInRange = Sets.newHashSet();
-        for (Long monthMilli: monthMillis) {
-            tagGroupsInRange.addAll(this.tagGroups.get(monthMilli));
-        }
-        return tagGroupsInRange;
-    }
-
-    private Set<TagGroup> getTagGroupsWithResourceGroupsInRange(Collection<Long> monthMillis) {
-        Set<TagGroup> tagGroupsInRange = Sets.newHashSet();
-        for (Long monthMilli: monthMillis) {
-            tagGroupsInRange.addAll(this.tagGroupsWithResourceGroups.get(monthMilli));
-        }
-        return tagGroupsInRange;
+    /**
+     * Values of the dimensions other than resource groups are those of the tag groups with their resource groups
+     * removed. A resource group filter then matches all of them when it contains null, and none of them otherwise.
+     * @return tagLists without its resource group filter, or null if it matches none of those tag groups
+     */
+    private static TagLists withoutResourceGroups(TagLists tagLists) {
+        if (tagLists.resourceGroups == null || tagLists.resourceGroups.size() == 0)
+            return tagLists;
+        if (!tagLists.resourceGroups.contains(null))
+            return null;
+        return new TagLists(tagLists.accounts, tagLists.regions, tagLists.zones, tagLists.products, tagLists.operations, tagLists.usageTypes);
     }
 
     private Collection<Long> getMonthMillis(Interval interval) {
         Set<Long> result = Sets.newTreeSet();
-        for (Long milli: tagGroups.keySet()) {
+        for (Long milli: tagGroupsWithResourceGroups.keySet()) {
             DateTime monthDate = new DateTime(milli, DateTimeZone.UTC);
             if (new Interval(monthDate, monthDate.plusMonths(1)).overlap(interval) != null)
                 result.add(milli);
@@ -133,90 +152,31 @@ public class BasicTagGroupManager extends Poller implements TagGroupManager {
     }
 
     public Collection<Account> getAccounts(Interval interval, TagLists tagLists) {
-        Set<Account> result = Sets.newTreeSet();
-        Set<TagGroup> tagGroupsInRange = getTagGroupsInRange(getMonthMillis(interval));
-
-        for (TagGroup tagGroup: tagGroupsInRange) {
-            if (tagLists.contains(tagGroup))
-                result.add(tagGroup.account);
-        }
-
-        return result;
+        return this.<Account>getValues(TagType.Account, interval, tagLists);
     }
 
     public Collection<Region> getRegions(Interval interval, TagLists tagLists) {
-        Set<Region> result = Sets.newTreeSet();
-        Set<TagGroup> tagGroupsInRange = getTagGroupsInRange(getMonthMillis(interval));
-
-        for (TagGroup tagGroup: tagGroupsInRange) {
-            if (tagLists.contains(tagGroup))
-                result.add(tagGroup.region);
-        }
-
-        return result;
+        return this.<Region>getValues(TagType.Region, interval, tagLists);
     }
 
     public Collection<Zone> getZones(Interval interval, TagLists tagLists) {
-        Set<Zone> result = Sets.newTreeSet();
-        Set<TagGroup> tagGroupsInRange = getTagGroupsInRange(getMonthMillis(interval));
-
-        for (TagGroup tagGroup: tagGroupsInRange) {
-            if (tagLists.contains(tagGroup) && tagGroup.zone != null)
-                result.add(tagGroup.zone);
-        }
-
-        return result;
+        return this.<Zone>getValues(TagType.Zone, interval, tagLists);
     }
 
     public Collection<Product> getProducts(Interval interval, TagLists tagLists) {
-        Set<Product> result = Sets.newTreeSet();
-        Set<TagGroup> tagGroupsInRange = getTagGroupsInRange(getMonthMillis(interval));
-
-        for (TagGroup tagGroup: tagGroupsInRange) {
-            if (tagLists.contains(tagGroup))
-                result.add(tagGroup.product);
-        }
-
-        return result;
+        return this.<Product>getValues(TagType.Product, interval, tagLists);
     }
 
     public Collection<Operation> getOperations(Interval interval, TagLists tagLists) {
-        Set<Operation> result = Sets.newTreeSet();
-        Set<TagGroup> tagGroupsInRange = getTagGroupsInRange(getMonthMillis(interval));
-
-        for (TagGroup tagGroup: tagGroupsInRange) {
-            if (tagGroup.product == Product.emr || tagGroup.product == Product.redshift) {
-                int iii = 0;
-            }
-            if (tagLists.contains(tagGroup))
-                result.add(tagGroup.operation);
-        }
-
-        return result;
+        return this.<Operation>getValues(TagType.Operation, interval, tagLists);
     }
 
     public Collection<UsageType> getUsageTypes(Interval interval, TagLists tagLists) {
-        Set<UsageType> result = Sets.newTreeSet();
-        Set<TagGroup> tagGroupsInRange = getTagGroupsInRange(getMonthMillis(interval));
-
-        for (TagGroup tagGroup: tagGroupsInRange) {
-            if (tagLists.contains(tagGroup))
-                result.add(tagGroup.usageType);
-        }
-
-        return result;
+        return this.<UsageType>getValues(TagType.UsageType, interval, tagLists);
     }
 
     public Collection<ResourceGroup> getResourceGroups(Interval interval, TagLists tagLists) {
-        Set<ResourceGroup> result = Sets.newTreeSet();
-        Set<TagGroup> tagGroupsInRange = getTagGroupsWithResourceGroupsInRange(getMonthMillis(interval));
-
-        for (TagGroup tagGroup: tagGroupsInRange) {
-            if (tagLists.contains(tagGroup) && tagGroup.resourceGroup != null)
-                result.add(tagGroup.resourceGroup);
-        }
-
-        return result;
+        return this.<ResourceGroup>getValues(TagType.ResourceGroup, interval, tagLists);
     }
 
     public Collection<Account> getAccounts(TagLists tagLists) {
@@ -247,6 +207,10 @@ public class BasicTagGroupManager extends Poller implements TagGroupManager {
         return this.getResourceGroups(totalInterval, tagLists);
     }
 
+    public long getGeneration() {
+        return generation.get();
+    }
+
     public Interval getOverlapInterval(Interval interval) {
         return totalInterval == null ? null : totalInterval.overlap(interval);
     }
@@ -287,12 +251,26 @@ public class BasicTagGroupManager extends Poller implements TagGroupManager {
             for (Operation.ReservationOperation lentOp: Operation.getLentInstances())
                 groupByTags.remove(lentOp);
         }
+
+        // operations of every group, found in one pass over the tag groups of each month. Tag groups without resource
+        // groups never match a resource group filter, so groups filtered by resource group get no operations.
+        boolean addOperations = !forReservation && groupBy != TagType.Operation && (tagLists.operations == null || tagLists.operations.size() == 0);
+        Map<Tag, Set<Operation>> operationsByTag = Maps.newHashMap();
+        if (addOperations && groupBy != TagType.ResourceGroup && (tagLists.resourceGroups == null || tagLists.resourceGroups.size() == 0)) {
+            for (Long monthMilli: getMonthMillis(totalInterval)) {
+                TagGroupCatalog catalog = catalogs.get(monthMilli);
+                if (catalog != null)
+                    catalog.addValuesByGroup(groupBy, TagType.Operation, tagLists, operationsByTag);
+            }
+        }
+
         for (Tag tag: groupByTags) {
             if (tagLists.contains(tag, groupBy)) {
                 TagLists tmp = tagLists.getTagLists(tag, groupBy);
                 if (!forReservation && groupBy != TagType.Operation) {
-                    if (tmp.operations == null || tmp.operations.size() == 0) {
-                        List<Operation> operations = Lists.newArrayList(getOperations(tmp));
+                    if (addOperations) {
+                        Set<Operation> operationsOfTag = operationsByTag.get(tag);
+                        List<Operation> operations = operationsOfTag == null ? Lists.<Operation>newArrayList() : Lists.newArrayList(operationsOfTag);
                         tmp = new TagLists(tmp.accounts, tmp.regions, tmp.zones, tmp.products, operations, tmp.usageTypes, tmp.resourceGroups);
                     }
                     for (Operation.ReservationOperation lentOp: Operation.getLentInstances())
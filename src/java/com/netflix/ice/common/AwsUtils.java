@@ -27,6 +27,7 @@ import com.amazonaws.services.securitytoken.model.AssumeRoleResult;
 import com.amazonaws.services.securitytoken.model.Credentials;
 import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
 import com.amazonaws.services.simpleemail.AmazonSimpleEmailServiceClient;
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.ClientConfiguration;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -58,6 +59,8 @@ public class AwsUtils {
     public static long hourMillis = 3600000L;
 
     private static AmazonS3Client s3Client;
+    private static final S3Downloader downloader = new S3Downloader();
+    private static final S3Uploader uploader = new S3Uploader();
     private static AmazonSimpleEmailServiceClient emailServiceClient;
     private static AmazonSimpleDBClient simpleDBClient;
     private static AWSSecurityTokenServiceClient securityClient;
@@ -109,6 +112,13 @@ public class AwsUtils {
         return s3Client;
     }
 
+    /**
+     * Replaces the client created by init, e.g. with one backed by local storage.
+     */
+    public static void setAmazonS3Client(AmazonS3Client client) {
+        s3Client = client;
+    }
+
     public static AmazonSimpleEmailServiceClient getAmazonSimpleEmailServiceClient() {
         if (emailServiceClient == null)
             emailServiceClient = new AmazonSimpleEmailServiceClient(awsCredentialsProvider, clientConfig);
@@ -231,11 +241,14 @@ public class AwsUtils {
             return null;
     }
 
-    public static void upload(String bucketName, String prefix, File file) {
-        s3Client.putObject(bucketName, prefix + file.getName(), file);
+    /**
+     * Uploads the file unless the object in s3 already has the same content.
+     */
+    public static void upload(String bucketName, String prefix, File file) throws IOException {
+        uploader.upload(s3Client, bucketName, prefix + file.getName(), file);
     }
 
-    public static void upload(String bucketName, String prefix, String localDir, final String filePrefix) {
+    public static void upload(String bucketName, String prefix, String localDir, final String filePrefix) throws IOException {
 
         File dir = new File(localDir);
         File[] files = dir.listFiles(new FilenameFilter() {
@@ -244,7 +257,30 @@ public class AwsUtils {
             }
         });
         for (File file: files)
-            s3Client.putObject(bucketName, prefix + file.getName(), file);
+            upload(bucketName, prefix, file);
+    }
+
+    /**
+     * Uploads the files in the background, in the given order, skipping unchanged ones like upload does. Files must not
+     * be rewritten before awaitUpload returns for them.
+     */
+    public static void uploadAsync(String bucketName, String prefix, List<File> files) {
+        uploader.submit(s3Client, bucketName, prefix, files);
+    }
+
+    /**
+     * Waits until the background upload of the file, if any, is done.
+     */
+    public static void awaitUpload(File file) throws IOException {
+        uploader.await(file);
+    }
+
+    /**
+     * Waits until all background uploads are done.
+     * @throws IOException if any of them failed
+     */
+    public static void awaitUploads() throws IOException {
+        uploader.awaitAll();
     }
 
     public static long getLastModified(String bucketName, String fileKey) {
@@ -333,44 +369,17 @@ public class AwsUtils {
         return download(s3Client, bucketName, fileKey, file);
     }
 
+    /**
+     * Failures are thrown rather than reported as "not downloaded", since callers would go on with a missing or stale
+     * file, and the processor would then overwrite the file in s3 with what it has.
+     * @throws AmazonClientException if the file could not be downloaded
+     */
     private static boolean download(AmazonS3Client s3Client, String bucketName, String fileKey, File file) {
-        do {
-            S3Object s3Object = s3Client.getObject(bucketName, fileKey);
-            InputStream input = s3Object.getObjectContent();
-            long targetSize = s3Object.getObjectMetadata().getContentLength();
-            FileOutputStream output = null;
-
-            boolean downloaded = false;
-            long size = 0;
-            try {
-                output = new FileOutputStream(file);
-                byte buf[]=new byte[1024000];
-                int len;
-                while ((len=input.read(buf)) > 0) {
-                    output.write(buf, 0, len);
-                    size += len;
-                }
-                downloaded = true;
-            }
-            catch (IOException e) {
-                logger.error("error in downloading " + file, e);
-            }
-            finally {
-                if (input != null) try {input.close();} catch (IOException e){}
-                if (output != null) try {output.close();} catch (IOException e){}
-            }
-
-            if (downloaded) {
-                long contentLenth = s3Client.getObjectMetadata(bucketName, fileKey).getContentLength();
-                if (contentLenth != size) {
-                    logger.warn("size does not match contentLenth=" + contentLenth +
-                            " downloadSize=" + size + "targetSize=" + targetSize + " ... re-downlaoding " + fileKey);
-                }
-                else
-                    return true;
-            }
-            try {Thread.sleep(2000L);}catch (Exception e){}
+        try {
+            return downloader.download(s3Client, bucketName, fileKey, file);
+        }
+        catch (IOException e) {
+            throw new AmazonClientException("error in downloading " + fileKey + " to " + file, e);
         }
-        while (true);
     }
 }
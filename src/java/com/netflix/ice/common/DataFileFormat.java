@@ -0,0 +1,270 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+import com.google.common.collect.Lists;
+
+import java.io.*;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Row-by-row access to the usage and cost data files written by processor and read by reader.
+ *
+ * Version 1 files have no header: the number of tag groups, the tag groups, the number of rows, and then for every row
+ * a boolean followed, if true, by a value for every tag group.
+ *
+ * Version 2 files start with a magic number and the version, followed by a deflate compressed stream with the same
+ * tag groups and number of rows. Each row only holds its non-zero values: their count, and for each value the distance
+ * to the previous non-zero column and the bits of the value XOR-ed with the last value written for the same column, all
+ * as variable length integers. Readers detect the version by the magic number, which cannot be mistaken for the tag
+ * group count of a version 1 file in practice.
+ */
+public class DataFileFormat {
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+    public static final int LATEST_VERSION = VERSION_2;
+    // written unless configured otherwise, until all readers understand the latest version
+    public static final int DEFAULT_VERSION = VERSION_1;
+
+    private static final int MAGIC = 0x49434532;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static class Writer {
+        private final int version;
+        private final int numKeys;
+        private final DataOutput out;
+        private final Deflater deflater;
+        private final DeflaterOutputStream deflaterOut;
+        private final long[] lastBits;
+
+        public Writer(DataOutput out, Collection<TagGroup> keys, int num, int version) throws IOException {
+            if (version != VERSION_1 && version != VERSION_2)
+                throw new IllegalArgumentException("unknown data file version " + version);
+
+            this.version = version;
+            this.numKeys = keys.size();
+            if (version == VERSION_2) {
+                out.writeInt(MAGIC);
+                out.writeInt(version);
+                deflater = new Deflater();
+                deflaterOut = new DeflaterOutputStream(toOutputStream(out), deflater, BUFFER_SIZE);
+                this.out = new DataOutputStream(deflaterOut);
+                lastBits = new long[numKeys];
+            }
+            else {
+                deflater = null;
+                deflaterOut = null;
+                this.out = out;
+                lastBits = null;
+            }
+
+            this.out.writeInt(numKeys);
+            for (TagGroup tagGroup: keys) {
+                TagGroup.Serializer.serialize(this.out, tagGroup);
+            }
+            this.out.writeInt(num);
+        }
+
+        /**
+         * Writes one row.
+         * @param count number of non-zero values in the row
+         * @param columns ascending column indexes of the non-zero values
+         * @param values the non-zero values
+         */
+        public void writeRow(int count, int[] columns, double[] values) throws IOException {
+            if (version == VERSION_1) {
+                out.writeBoolean(count > 0);
+                if (count > 0) {
+                    int next = 0;
+                    for (int j = 0; j < numKeys; j++) {
+                        if (next < count && columns[next] == j)
+                            out.writeDouble(values[next++]);
+                        else
+                            out.writeDouble(0);
+                    }
+                }
+            }
+            else {
+                writeVarLong(out, count);
+                int lastColumn = -1;
+                for (int k = 0; k < count; k++) {
+                    int column = columns[k];
+                    long bits = Double.doubleToRawLongBits(values[k]);
+                    writeVarLong(out, column - lastColumn - 1);
+                    writeVarLong(out, bits ^ lastBits[column]);
+                    lastBits[column] = bits;
+                    lastColumn = column;
+                }
+            }
+        }
+
+        /**
+         * Completes the file and releases the compressor. The underlying output is not closed.
+         */
+        public void finish() throws IOException {
+            if (deflaterOut != null) {
+                deflaterOut.finish();
+                deflaterOut.flush();
+                deflater.end();
+            }
+        }
+    }
+
+    public static class Reader {
+        private final int version;
+        private final DataInput in;
+        private final Inflater inflater;
+        private final List<TagGroup> keys;
+        private final int num;
+        private final long[] lastBits;
+
+        public Reader(DataInput in, Config config) throws IOException {
+            int first = in.readInt();
+            if (first == MAGIC) {
+                version = in.readInt();
+                if (version != VERSION_2)
+                    throw new IOException("unknown data file version " + version);
+                inflater = new Inflater();
+                this.in = new DataInputStream(new InflaterInputStream(toInputStream(in), inflater, BUFFER_SIZE));
+                first = this.in.readInt();
+            }
+            else {
+                version = VERSION_1;
+                inflater = null;
+                this.in = in;
+            }
+
+            int numKeys = first;
+            keys = Lists.newArrayList();
+            for (int j = 0; j < numKeys; j++) {
+                keys.add(TagGroup.Serializer.deserialize(config, this.in));
+            }
+            num = this.in.readInt();
+            lastBits = version == VERSION_2 ? new long[numKeys] : null;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public List<TagGroup> getKeys() {
+            return keys;
+        }
+
+        public int getNum() {
+            return num;
+        }
+
+        /**
+         * Reads the next row.
+         * @param columns receives ascending column indexes of the non-zero values, must hold as many entries as keys
+         * @param values receives the non-zero values, must hold as many entries as keys
+         * @return number of non-zero values read
+         */
+        public int readRow(int[] columns, double[] values) throws IOException {
+            int count = 0;
+            if (version == VERSION_1) {
+                if (in.readBoolean()) {
+                    for (int j = 0; j < keys.size(); j++) {
+                        double v = in.readDouble();
+                        if (v != 0) {
+                            columns[count] = j;
+                            values[count++] = v;
+                        }
+                    }
+                }
+            }
+            else {
+                count = (int)readVarLong(in);
+                int column = -1;
+                for (int k = 0; k < count; k++) {
+                    column += (int)readVarLong(in) + 1;
+                    long bits = readVarLong(in) ^ lastBits[column];
+                    lastBits[column] = bits;
+                    columns[k] = column;
+                    values[k] = Double.longBitsToDouble(bits);
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Releases the decompressor. The underlying input is not closed.
+         */
+        public void close() {
+            if (inflater != null)
+                inflater.end();
+        }
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("malformed variable length integer");
+    }
+
+    static OutputStream toOutputStream(final DataOutput out) {
+        if (out instanceof OutputStream)
+            return (OutputStream)out;
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    static InputStream toInputStream(final DataInput in) {
+        if (in instanceof InputStream)
+            return (InputStream)in;
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                try {
+                    return in.readUnsignedByte();
+                }
+                catch (EOFException e) {
+                    return -1;
+                }
+            }
+        };
+    }
+}
@@ -110,6 +110,96 @@ public class IceOptions {
      */
     public static final String MONTHLY_CACHE_SIZE = "ice.monthlycachesize";
 
+    /**
+     * If true, reader converts downloaded data files to a column-major local file and memory-maps it instead of loading
+     * the data on heap. Default is false.
+     */
+    public static final String READER_MMAP = "ice.reader.mmap";
+
+    /**
+     * Smallest number of groups for which reader adds up a group by query in one pass over each data file, instead of
+     * one pass per group. Default is 4.
+     */
+    public static final String READER_GROUPED_SCAN_MIN_GROUPS = "ice.reader.groupedScanMinGroups";
+
+    /**
+     * If set to true, reader loads the totals processor writes next to the data files when ice.processor.rollups is set,
+     * and answers group by queries without filters from them. Default is false, which does not look for them.
+     */
+    public static final String READER_ROLLUPS = "ice.reader.rollups";
+
+    /**
+     * Megabytes of memory reader keeps dashboard query results in, until the data they were computed from changes. 0
+     * disables the cache. Default is 100.
+     */
+    public static final String READER_QUERY_CACHE_MB = "ice.reader.queryCacheMB";
+
+    /**
+     * Number of threads reader looks up the data of different products of a query with. Default is 8.
+     */
+    public static final String READER_QUERY_THREADS = "ice.reader.queryThreads";
+
+    /**
+     * Number of billing files the processor downloads and processes concurrently for a month. Default is 1, which processes
+     * the files one after another.
+     */
+    public static final String PROCESSOR_THREADS = "ice.processor.threads";
+
+    /**
+     * Number of threads that process the line items of a single billing file while it is being read. Default is 1, which
+     * processes the lines on the reading thread. Each thread keeps its own copy of the hourly data until the file is done.
+     */
+    public static final String PROCESSOR_PARSE_THREADS = "ice.processor.parseThreads";
+
+    /**
+     * Version of the usage and cost files written by processor. Default is 1, the old format, which every reader
+     * understands. Set it to 2 for the sparse compressed data format once all readers have been upgraded to a version
+     * that reads it.
+     */
+    public static final String DATA_FILE_VERSION = "ice.processor.dataFileVersion";
+
+    /**
+     * Version of the tag group files written by processor. Default is 1, the old format, which every reader understands.
+     * Set it to 2 for the dictionary encoded tag group format once all readers have been upgraded to a version that
+     * reads it.
+     */
+    public static final String TAGDB_FILE_VERSION = "ice.processor.tagdbFileVersion";
+
+    /**
+     * If set to true, processor keeps a checkpoint per month after archiving it, and the next run of that month reuses
+     * the archived hourly data up to a day before the last processed hour instead of reprocessing the whole month. Line
+     * items ending before the checkpoint are skipped. Default is false.
+     */
+    public static final String PROCESSOR_INCREMENTAL = "ice.processor.incremental";
+
+    /**
+     * If set to true, processor writes totals by account, region, product and operation next to every usage and cost
+     * file, which reader uses for group by queries without filters if ice.reader.rollups is set. Default is false.
+     */
+    public static final String PROCESSOR_ROLLUPS = "ice.processor.rollups";
+
+    /**
+     * Number of products processor archives concurrently at the end of a month. Each of them holds the hourly data of the
+     * product for the previous month while its summaries are computed. Default is 1. Products other than the total are
+     * archived while reservations are still being processed, whatever the number.
+     */
+    public static final String PROCESSOR_ARCHIVE_THREADS = "ice.processor.archiveThreads";
+
+    /**
+     * Megabytes of values the data of one product with resource groups may hold in memory while billing files are
+     * processed. Beyond that, the values are written to files under the local directory. This only bounds memory until
+     * the month is archived: each product is then read back into memory as a whole, since data files are written hour by
+     * hour, so every archive thread still needs the data of one whole product. It helps when the products together do
+     * not fit in memory, not when one of them does not. Default is 0, which keeps all values in memory.
+     */
+    public static final String PROCESSOR_SPILL_MEMORY_MB = "ice.processor.spillMemoryMB";
+
+    /**
+     * Number of threads processor applies reservations with. Tag groups of different regions, zones and usage types are
+     * processed concurrently, with the same results as with one thread. Default is 1.
+     */
+    public static final String PROCESSOR_RESERVATION_THREADS = "ice.processor.reservationThreads";
+
     /**
      * Cost per monitor metric per hour, It's optional.
      */
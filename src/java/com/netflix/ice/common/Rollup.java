@@ -0,0 +1,166 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.ice.tag.Operation;
+import com.netflix.ice.tag.Tag;
+import com.netflix.ice.tag.TagType;
+
+import java.io.*;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.*;
+
+/**
+ * Totals of one data file by the tags of one dimension, written by processor next to the data file so that reader can
+ * answer group by queries without filters from a few rows instead of scanning every tag group.
+ *
+ * Totals by account, region and product leave out lent reserved instances, the same way the dashboard does when it is
+ * not showing reservations. Totals by operation keep every operation.
+ *
+ * The file holds the CRC32 checksum of the data file it was computed from, so reader can tell when the two files are
+ * not of the same run.
+ */
+public class Rollup {
+    public static final List<TagType> DIMENSIONS = Lists.newArrayList(TagType.Account, TagType.Region, TagType.Product, TagType.Operation);
+
+    private static final int MAGIC = 0x49435255;
+    private static final int VERSION = 1;
+
+    private final TagType dimension;
+    private final long dataChecksum;
+    private final int num;
+    private final Map<String, double[]> values;
+
+    public Rollup(TagType dimension, long dataChecksum, int num, Map<String, double[]> values) {
+        this.dimension = dimension;
+        this.dataChecksum = dataChecksum;
+        this.num = num;
+        this.values = values;
+    }
+
+    public TagType getDimension() {
+        return dimension;
+    }
+
+    public long getDataChecksum() {
+        return dataChecksum;
+    }
+
+    public int getNum() {
+        return num;
+    }
+
+    /**
+     * Adds the totals of tag for rows fromRow to fromRow + count - 1 to result starting at resultIndex.
+     */
+    public void sum(Tag tag, int fromRow, double[] result, int resultIndex, int count) {
+        double[] row = values.get(tag.name);
+        if (row == null)
+            return;
+        for (int i = 0; i < count; i++)
+            result[resultIndex + i] += row[fromRow + i];
+    }
+
+    public static String getFileName(String dataFileName, TagType dimension) {
+        return dataFileName + "_by" + dimension;
+    }
+
+    /**
+     * @return the tag of the dimension in tagGroup, or null if the values of tagGroup are not part of the totals
+     */
+    public static Tag getTag(TagGroup tagGroup, TagType dimension) {
+        if (!DIMENSIONS.contains(dimension))
+            throw new IllegalArgumentException("no rollup by " + dimension);
+        if (dimension != TagType.Operation && Operation.getLentInstances().contains(tagGroup.operation))
+            return null;
+        return tagGroup.getTag(dimension);
+    }
+
+    public static long checksum(File file) throws IOException {
+        CheckedInputStream in = new CheckedInputStream(new FileInputStream(file), new CRC32());
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            while (in.read(buffer) >= 0) {
+            }
+            return in.getChecksum().getValue();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    public static class Serializer {
+
+        public static void serialize(DataOutput out, Rollup rollup) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            Deflater deflater = new Deflater();
+            try {
+                DeflaterOutputStream deflaterOut = new DeflaterOutputStream(DataFileFormat.toOutputStream(out), deflater);
+                DataOutputStream dataOut = new DataOutputStream(deflaterOut);
+                dataOut.writeUTF(rollup.dimension.name());
+                dataOut.writeLong(rollup.dataChecksum);
+                dataOut.writeInt(rollup.num);
+                dataOut.writeInt(rollup.values.size());
+                for (Map.Entry<String, double[]> entry: rollup.values.entrySet()) {
+                    dataOut.writeUTF(entry.getKey());
+                    for (int i = 0; i < rollup.num; i++)
+                        dataOut.writeDouble(entry.getValue()[i]);
+                }
+                dataOut.flush();
+                deflaterOut.finish();
+            }
+            finally {
+                deflater.end();
+            }
+        }
+
+        public static Rollup deserialize(DataInput in) throws IOException {
+            if (in.readInt() != MAGIC)
+                throw new IOException("not a rollup file");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("unknown rollup version " + version);
+
+            Inflater inflater = new Inflater();
+            try {
+                DataInputStream dataIn = new DataInputStream(new InflaterInputStream(DataFileFormat.toInputStream(in), inflater));
+                TagType dimension = TagType.valueOf(dataIn.readUTF());
+                long dataChecksum = dataIn.readLong();
+                int num = dataIn.readInt();
+                int size = dataIn.readInt();
+                Map<String, double[]> values = Maps.newHashMap();
+                for (int j = 0; j < size; j++) {
+                    String name = dataIn.readUTF();
+                    double[] row = new double[num];
+                    for (int i = 0; i < num; i++)
+                        row[i] = dataIn.readDouble();
+                    values.put(name, row);
+                }
+                return new Rollup(dimension, dataChecksum, num, values);
+            }
+            finally {
+                inflater.end();
+            }
+        }
+    }
+}
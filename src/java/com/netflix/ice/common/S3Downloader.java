@@ -0,0 +1,249 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Downloads S3 objects to local files.
+ *
+ * Objects larger than one part are fetched as ranged GETs on a shared pool, and each part is written at its offset of a
+ * temporary file through positional FileChannel writes. A part that fails or comes back short is fetched again after a
+ * delay that doubles up to a cap. All parts are requested with the ETag seen at the start, so an object replaced during
+ * the download is started over instead of being stitched from two versions. The temporary file is renamed over the
+ * target once complete, so readers of the old file are not disturbed.
+ *
+ * Concurrent requests for the same object and file share one download: later callers wait on the future of the first.
+ */
+public class S3Downloader {
+    private final static Logger logger = LoggerFactory.getLogger(S3Downloader.class);
+
+    public static final long DEFAULT_PART_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30000;
+
+    private static final long INITIAL_BACKOFF_MILLIS = 250;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final long partSize;
+    private final int maxAttempts;
+    private final long maxBackoffMillis;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Future<Boolean>> downloads = Maps.newConcurrentMap();
+
+    public S3Downloader() {
+        this(DEFAULT_PART_SIZE, DEFAULT_THREADS, DEFAULT_MAX_ATTEMPTS, DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+
+    public S3Downloader(long partSize, int numThreads, int maxAttempts, long maxBackoffMillis) {
+        this.partSize = partSize;
+        this.maxAttempts = maxAttempts;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.executor = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setNameFormat("s3-download-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Downloads the object to file, or waits for a download of the same object to file already in progress.
+     * @return true once the file holds the object
+     */
+    public boolean download(final AmazonS3 s3Client, final String bucketName, final String fileKey, final File file) throws IOException {
+        String downloadKey = bucketName + "/" + fileKey + "|" + file.getAbsolutePath();
+        FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return downloadWithRetries(s3Client, bucketName, fileKey, file);
+            }
+        });
+
+        Future<Boolean> download = downloads.putIfAbsent(downloadKey, task);
+        if (download == null) {
+            download = task;
+            try {
+                task.run();
+            }
+            finally {
+                downloads.remove(downloadKey, task);
+            }
+        }
+        else {
+            logger.info("waiting for download of " + fileKey + " in progress");
+        }
+
+        try {
+            return download.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while downloading " + fileKey, e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new IOException("error downloading " + fileKey, e.getCause());
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private boolean downloadWithRetries(AmazonS3 s3Client, String bucketName, String fileKey, File file) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            ObjectMetadata metadata = s3Client.getObjectMetadata(bucketName, fileKey);
+            try {
+                downloadVersion(s3Client, bucketName, fileKey, metadata.getETag(), metadata.getContentLength(), file);
+                return true;
+            }
+            catch (ObjectChangedException e) {
+                if (attempt >= maxAttempts)
+                    throw new IOException(fileKey + " kept changing while downloading");
+                logger.warn(fileKey + " changed while downloading, starting over");
+            }
+        }
+    }
+
+    private void downloadVersion(final AmazonS3 s3Client, final String bucketName, final String fileKey, final String eTag, long size, File file)
+            throws IOException, InterruptedException {
+
+        File tmpFile = new File(file.getPath() + ".download");
+        RandomAccessFile out = new RandomAccessFile(tmpFile, "rw");
+        boolean done = false;
+        try {
+            out.setLength(size);
+            final FileChannel channel = out.getChannel();
+
+            List<Future<Void>> parts = Lists.newArrayList();
+            for (long start = 0; start < size; start += partSize) {
+                final long partStart = start;
+                final long partEnd = Math.min(size, start + partSize) - 1;
+                parts.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        downloadPart(s3Client, bucketName, fileKey, eTag, partStart, partEnd, channel);
+                        return null;
+                    }
+                }));
+            }
+
+            try {
+                for (Future<Void> part: parts)
+                    part.get();
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof ObjectChangedException)
+                    throw (ObjectChangedException)e.getCause();
+                if (e.getCause() instanceof IOException)
+                    throw (IOException)e.getCause();
+                throw new IOException("error downloading " + fileKey, e.getCause());
+            }
+            finally {
+                for (Future<Void> part: parts)
+                    part.cancel(true);
+            }
+
+            channel.force(false);
+            done = true;
+        }
+        finally {
+            out.close();
+            if (!done && !tmpFile.delete())
+                logger.error("not able to delete " + tmpFile);
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            // renaming over an existing file is not possible on every platform
+            if (!file.delete() || !tmpFile.renameTo(file))
+                throw new IOException("not able to rename " + tmpFile + " to " + file);
+        }
+    }
+
+    private void downloadPart(AmazonS3 s3Client, String bucketName, String fileKey, String eTag, long start, long end, FileChannel channel)
+            throws IOException, InterruptedException {
+
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                GetObjectRequest request = new GetObjectRequest(bucketName, fileKey).withRange(start, end);
+                if (eTag != null)
+                    request.withMatchingETagConstraint(eTag);
+                S3Object s3Object = s3Client.getObject(request);
+                if (s3Object == null)
+                    throw new ObjectChangedException();
+
+                long written = writePart(s3Object, start, end, channel);
+                if (written == end - start + 1)
+                    return;
+                logger.warn("short part of " + fileKey + " at " + start + ": " + written + " of " + (end - start + 1) + " bytes");
+            }
+            catch (ObjectChangedException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                if (attempt >= maxAttempts)
+                    throw new IOException("error downloading " + fileKey + " at " + start, e);
+                logger.warn("error downloading " + fileKey + " at " + start + ", attempt " + attempt, e);
+            }
+
+            if (attempt >= maxAttempts)
+                throw new IOException("not able to download " + fileKey + " at " + start + " after " + attempt + " attempts");
+            Thread.sleep(backoff);
+            backoff = Math.min(maxBackoffMillis, backoff * 2);
+        }
+    }
+
+    private long writePart(S3Object s3Object, long start, long end, FileChannel channel) throws IOException {
+        InputStream input = s3Object.getObjectContent();
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            long position = start;
+            int len;
+            while (position <= end && (len = input.read(buf, 0, (int)Math.min(buf.length, end + 1 - position))) > 0) {
+                ByteBuffer buffer = ByteBuffer.wrap(buf, 0, len);
+                while (buffer.hasRemaining())
+                    position += channel.write(buffer, position);
+            }
+            return position - start;
+        }
+        finally {
+            s3Object.close();
+        }
+    }
+
+    private static class ObjectChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+}
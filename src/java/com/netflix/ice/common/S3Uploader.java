@@ -0,0 +1,297 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Uploads local files to S3, skipping files whose content is the same as the last upload.
+ *
+ * The MD5 of every uploaded file is kept in memory and in the user metadata of the object, so an unchanged file is not
+ * uploaded again, neither by this process nor after a restart. Files larger than one part go up as a multipart upload
+ * whose parts are sent in parallel on a shared pool; a failed part is sent again after a delay that doubles up to a cap.
+ *
+ * Uploads can also be submitted to run in the background, for example while the next file is being written. A file
+ * must not be rewritten before its submitted upload is done, see await(File).
+ */
+public class S3Uploader {
+    private final static Logger logger = LoggerFactory.getLogger(S3Uploader.class);
+
+    public static final String MD5_METADATA = "ice-md5";
+
+    public static final long DEFAULT_PART_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30000;
+
+    private static final long INITIAL_BACKOFF_MILLIS = 250;
+
+    private final long partSize;
+    private final int maxAttempts;
+    private final long maxBackoffMillis;
+    private final ExecutorService fileExecutor;
+    private final ExecutorService partExecutor;
+    private final ConcurrentMap<String, String> uploadedMd5s = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, Future<Void>> pending = Maps.newConcurrentMap();
+
+    public S3Uploader() {
+        this(DEFAULT_PART_SIZE, DEFAULT_THREADS, DEFAULT_MAX_ATTEMPTS, DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+
+    public S3Uploader(long partSize, int numThreads, int maxAttempts, long maxBackoffMillis) {
+        this.partSize = partSize;
+        this.maxAttempts = maxAttempts;
+        this.maxBackoffMillis = maxBackoffMillis;
+        // files wait on their parts, so they get their own threads
+        this.fileExecutor = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setNameFormat("s3-upload-%d").setDaemon(true).build());
+        this.partExecutor = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setNameFormat("s3-upload-part-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Uploads the file to bucketName/key unless the object already has the same content.
+     * @return true if the file was uploaded, false if it was unchanged
+     */
+    public boolean upload(AmazonS3 s3Client, String bucketName, String key, File file) throws IOException {
+        String md5 = Files.hash(file, Hashing.md5()).toString();
+        String objectKey = bucketName + "/" + key;
+
+        if (md5.equals(uploadedMd5s.get(objectKey)) || md5.equals(getUploadedMd5(s3Client, bucketName, key))) {
+            logger.info(file + " unchanged, not uploading to " + objectKey);
+            uploadedMd5s.put(objectKey, md5);
+            return false;
+        }
+
+        // forget the old content first, in case the upload fails after the object was replaced
+        uploadedMd5s.remove(objectKey);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.addUserMetadata(MD5_METADATA, md5);
+        if (file.length() <= partSize)
+            putObject(s3Client, bucketName, key, file, metadata);
+        else
+            multipartUpload(s3Client, bucketName, key, file, metadata);
+        uploadedMd5s.put(objectKey, md5);
+        return true;
+    }
+
+    /**
+     * Uploads the files one after another in the background, each to prefix + its name. Files are uploaded in the given
+     * order, so a file can be made visible only after the files it depends on.
+     */
+    public Future<Void> submit(final AmazonS3 s3Client, final String bucketName, final String prefix, final List<File> files) {
+        final List<Future<Void>> previous = Lists.newArrayList();
+        for (File file: files) {
+            Future<Void> future = pending.get(file.getAbsolutePath());
+            if (future != null)
+                previous.add(future);
+        }
+
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            public Void call() throws Exception {
+                // an earlier upload of the same file has to be done before the file is uploaded again
+                for (Future<Void> future: previous)
+                    getQuietly(future);
+                for (File file: files)
+                    upload(s3Client, bucketName, prefix + file.getName(), file);
+                return null;
+            }
+        });
+        for (File file: files)
+            pending.put(file.getAbsolutePath(), task);
+        fileExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Waits until the submitted upload of the file is done, so it can be rewritten. A failed upload is reported once,
+     * and the file can be submitted again.
+     */
+    public void await(File file) throws IOException {
+        Future<Void> future = pending.get(file.getAbsolutePath());
+        if (future != null) {
+            try {
+                get(future, file.toString());
+            }
+            finally {
+                pending.remove(file.getAbsolutePath(), future);
+            }
+        }
+    }
+
+    /**
+     * Waits until all submitted uploads are done.
+     * @throws IOException if any of them failed
+     */
+    public void awaitAll() throws IOException {
+        IOException error = null;
+        for (String path: Lists.newArrayList(pending.keySet())) {
+            Future<Void> future = pending.get(path);
+            if (future == null)
+                continue;
+            try {
+                get(future, path);
+            }
+            catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+            finally {
+                pending.remove(path, future);
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+    public void shutdown() {
+        fileExecutor.shutdownNow();
+        partExecutor.shutdownNow();
+    }
+
+    private String getUploadedMd5(AmazonS3 s3Client, String bucketName, String key) {
+        try {
+            return s3Client.getObjectMetadata(bucketName, key).getUserMetaDataOf(MD5_METADATA);
+        }
+        catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != 404)
+                throw e;
+            return null;
+        }
+    }
+
+    private void putObject(final AmazonS3 s3Client, final String bucketName, final String key, final File file, final ObjectMetadata metadata)
+            throws IOException {
+        withRetries(key, new Callable<Void>() {
+            public Void call() throws Exception {
+                s3Client.putObject(new PutObjectRequest(bucketName, key, file).withMetadata(metadata));
+                return null;
+            }
+        });
+    }
+
+    private void multipartUpload(final AmazonS3 s3Client, final String bucketName, final String key, final File file, ObjectMetadata metadata)
+            throws IOException {
+
+        final String uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key, metadata)).getUploadId();
+        boolean done = false;
+        List<Future<PartETag>> parts = Lists.newArrayList();
+        try {
+            long size = file.length();
+            int partNumber = 1;
+            for (long start = 0; start < size; start += partSize, partNumber++) {
+                final UploadPartRequest request = new UploadPartRequest()
+                        .withBucketName(bucketName)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withFile(file)
+                        .withFileOffset(start)
+                        .withPartSize(Math.min(partSize, size - start));
+                parts.add(partExecutor.submit(new Callable<PartETag>() {
+                    public PartETag call() throws Exception {
+                        return withRetries(key + " part " + request.getPartNumber(), new Callable<PartETag>() {
+                            public PartETag call() throws Exception {
+                                return s3Client.uploadPart(request).getPartETag();
+                            }
+                        });
+                    }
+                }));
+            }
+
+            List<PartETag> partETags = Lists.newArrayList();
+            for (Future<PartETag> part: parts)
+                partETags.add(get(part, key));
+
+            s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+            done = true;
+        }
+        finally {
+            if (!done) {
+                for (Future<PartETag> part: parts)
+                    part.cancel(true);
+                try {
+                    s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+                }
+                catch (Exception e) {
+                    logger.error("error aborting upload of " + key, e);
+                }
+            }
+        }
+    }
+
+    private <T> T withRetries(String description, Callable<T> callable) throws IOException {
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return callable.call();
+            }
+            catch (Exception e) {
+                if (attempt >= maxAttempts)
+                    throw new IOException("error uploading " + description + " after " + attempt + " attempts", e);
+                logger.warn("error uploading " + description + ", attempt " + attempt, e);
+            }
+
+            try {
+                Thread.sleep(backoff);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while uploading " + description, e);
+            }
+            backoff = Math.min(maxBackoffMillis, backoff * 2);
+        }
+    }
+
+    private static <T> T get(Future<T> future, String description) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while uploading " + description, e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException("error uploading " + description, e.getCause());
+        }
+    }
+
+    private static void getQuietly(Future<Void> future) {
+        try {
+            future.get();
+        }
+        catch (Exception e) {
+            // reported to whoever waits on that upload
+        }
+    }
+}
@@ -39,7 +39,18 @@ public class TagGroup implements Comparable<TagGroup>, Serializable {
     public final Region region;
     public final Zone zone;
     public final ResourceGroup resourceGroup;
+    /**
+     * Dense number of the tag group in the registry of getTagGroup, or -1 if it was created outside the registry.
+     */
+    public final int id;
+    private final int hash;
+
     public TagGroup(Account account, Region region, Zone zone, Product product, Operation operation, UsageType usageType, ResourceGroup resourceGroup) {
+        this(account, region, zone, product, operation, usageType, resourceGroup, -1,
+             hash(account, region, zone, product, operation, usageType, resourceGroup));
+    }
+
+    private TagGroup(Account account, Region region, Zone zone, Product product, Operation operation, UsageType usageType, ResourceGroup resourceGroup, int id, int hash) {
         this.account = account;
         this.region = region;
         this.zone = zone;
@@ -47,6 +58,24 @@ public class TagGroup implements Comparable<TagGroup>, Serializable {
         this.operation = operation;
         this.usageType = usageType;
         this.resourceGroup = resourceGroup;
+        this.id = id;
+        this.hash = hash;
+    }
+
+    /**
+     * @return the tag of the given type, or null if this tag group has none
+     */
+    public Tag getTag(TagType tagType) {
+        switch (tagType) {
+            case Account: return account;
+            case Region: return region;
+            case Zone: return zone;
+            case Product: return product;
+            case Operation: return operation;
+            case UsageType: return usageType;
+            case ResourceGroup: return resourceGroup;
+            default: return null;
+        }
     }
 
     @Override
@@ -79,10 +108,13 @@ public class TagGroup implements Comparable<TagGroup>, Serializable {
 
     @Override
     public boolean equals(Object o) {
+        if (this == o)
+            return true;
         if (o == null)
             return false;
         TagGroup other = (TagGroup)o;
         return
+                this.hash == other.hash &&
                 this.zone == other.zone &&
                 this.account == other.account &&
                 this.region == other.region &&
@@ -94,41 +126,208 @@ public class TagGroup implements Comparable<TagGroup>, Serializable {
 
     @Override
     public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        if (this.zone != null)
-            result = prime * result + this.zone.hashCode();
-        result = prime * result + this.account.hashCode();
-        if (this.region == null || this.product == null) {
-            int iii = 0;
-        }
-        result = prime * result + this.region.hashCode();
-        result = prime * result + this.product.hashCode();
-        result = prime * result + this.operation.hashCode();
-        result = prime * result + this.usageType.hashCode();
-        if (this.resourceGroup != null)
-            result = prime * result + this.resourceGroup.hashCode();
+        return hash;
+    }
 
-        return result;
+    private boolean hasTags(Account account, Region region, Zone zone, Product product, Operation operation, UsageType usageType, ResourceGroup resourceGroup) {
+        return
+                this.zone == zone &&
+                this.account == account &&
+                this.region == region &&
+                this.product == product &&
+                this.operation == operation &&
+                this.usageType == usageType &&
+                this.resourceGroup == resourceGroup;
     }
 
-    private static Map<TagGroup, TagGroup> tagGroups = Maps.newConcurrentMap();
+    /**
+     * Tag groups are equal when they have the same tag objects, so the hash is computed from the ids of the tags.
+     */
+    private static int hash(Account account, Region region, Zone zone, Product product, Operation operation, UsageType usageType, ResourceGroup resourceGroup) {
+        int h = id(account);
+        h = h * 31 + id(region);
+        h = h * 31 + id(zone);
+        h = h * 31 + id(product);
+        h = h * 31 + id(operation);
+        h = h * 31 + id(usageType);
+        h = h * 31 + id(resourceGroup);
+        // spread the bits, the table is indexed by the low ones
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
 
+    private static int id(Tag tag) {
+        return tag == null ? -1 : tag.id;
+    }
+
+    // Registry of the tag groups returned by getTagGroup: an open addressing table which is read without locking.
+    // Tag groups are only added, under the lock, and a new table is published through the volatile field.
+    private static final Object registryLock = new Object();
+    private static volatile TagGroup[] registry = new TagGroup[1024];
+    private static int registrySize = 0;
+
+    /**
+     * Returns the registered tag group with the given tags, registering it first if there is none yet. Looking up a
+     * registered tag group creates no object.
+     */
     public static TagGroup getTagGroup(Account account, Region region, Zone zone, Product product, Operation operation, UsageType usageType, ResourceGroup resourceGroup) {
-        TagGroup newOne = new TagGroup(account, region, zone, product, operation, usageType, resourceGroup);
-        TagGroup oldOne = tagGroups.get(newOne);
-        if (oldOne != null) {
-            return oldOne;
+        int hash = hash(account, region, zone, product, operation, usageType, resourceGroup);
+        TagGroup tagGroup = find(registry, hash, account, region, zone, product, operation, usageType, resourceGroup);
+        if (tagGroup != null)
+            return tagGroup;
+
+        synchronized (registryLock) {
+            TagGroup[] table = registry;
+            tagGroup = find(table, hash, account, region, zone, product, operation, usageType, resourceGroup);
+            if (tagGroup != null)
+                return tagGroup;
+
+            tagGroup = new TagGroup(account, region, zone, product, operation, usageType, resourceGroup, registrySize, hash);
+            if ((registrySize + 1) * 2 > table.length) {
+                TagGroup[] grown = new TagGroup[table.length * 2];
+                for (TagGroup existing: table) {
+                    if (existing != null)
+                        insert(grown, existing);
+                }
+                table = grown;
+            }
+            insert(table, tagGroup);
+            registrySize++;
+            registry = table;
+            return tagGroup;
         }
-        else {
-            tagGroups.put(newOne, newOne);
-            return newOne;
+    }
+
+    /**
+     * @return the registered tag group equal to the given one, registering it if needed
+     */
+    public static TagGroup getTagGroup(TagGroup tagGroup) {
+        if (tagGroup.id >= 0)
+            return tagGroup;
+        return getTagGroup(tagGroup.account, tagGroup.region, tagGroup.zone, tagGroup.product, tagGroup.operation, tagGroup.usageType, tagGroup.resourceGroup);
+    }
+
+    /**
+     * @return the registered tag group equal to the given one, or null if there is none
+     */
+    public static TagGroup findTagGroup(TagGroup tagGroup) {
+        if (tagGroup.id >= 0)
+            return tagGroup;
+        return find(registry, tagGroup.hash, tagGroup.account, tagGroup.region, tagGroup.zone, tagGroup.product, tagGroup.operation, tagGroup.usageType, tagGroup.resourceGroup);
+    }
+
+    private static TagGroup find(TagGroup[] table, int hash, Account account, Region region, Zone zone, Product product, Operation operation, UsageType usageType, ResourceGroup resourceGroup) {
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            TagGroup tagGroup = table[i];
+            if (tagGroup == null)
+                return null;
+            if (tagGroup.hash == hash && tagGroup.hasTags(account, region, zone, product, operation, usageType, resourceGroup))
+                return tagGroup;
         }
     }
 
+    private static void insert(TagGroup[] table, TagGroup tagGroup) {
+        int mask = table.length - 1;
+        int i = tagGroup.hash & mask;
+        while (table[i] != null)
+            i = (i + 1) & mask;
+        table[i] = tagGroup;
+    }
+
     public static class Serializer {
+        /**
+         * Versions of the tag group files, which change independently of the data file versions. Version 1 files write
+         * all tag groups of every month as strings. Version 2 files write a magic number and the version, a string
+         * table for each dimension, the distinct tag groups as indexes into those tables, and then every month as
+         * indexes of tag groups.
+         */
+        public static final int TAGDB_VERSION_1 = 1;
+        public static final int TAGDB_VERSION_2 = 2;
+        public static final int TAGDB_LATEST_VERSION = TAGDB_VERSION_2;
+        // written unless configured otherwise, until all readers understand the latest version
+        public static final int TAGDB_DEFAULT_VERSION = TAGDB_VERSION_1;
+
+        // version 1 files start with their number of months instead, which never gets anywhere near this
+        private static final int DICTIONARY_MAGIC = 0x49435444;
 
         public static void serializeTagGroups(DataOutput out, TreeMap<Long, Collection<TagGroup>> tagGroups) throws IOException {
+            serializeTagGroups(out, tagGroups, TAGDB_DEFAULT_VERSION);
+        }
+
+        public static void serializeTagGroups(DataOutput out, TreeMap<Long, Collection<TagGroup>> tagGroups, int version) throws IOException {
+            if (version == TAGDB_VERSION_1)
+                serializeTagGroupsV1(out, tagGroups);
+            else if (version == TAGDB_VERSION_2)
+                serializeTagGroupsWithDictionary(out, tagGroups);
+            else
+                throw new IllegalArgumentException("unknown tag group file version " + version);
+        }
+
+        private static void serializeTagGroupsWithDictionary(DataOutput out, TreeMap<Long, Collection<TagGroup>> tagGroups) throws IOException {
+            StringTable accounts = new StringTable();
+            StringTable regions = new StringTable();
+            StringTable zones = new StringTable();
+            StringTable products = new StringTable();
+            StringTable operations = new StringTable();
+            StringTable usageTypes = new StringTable();
+            List<UsageType> usageTypeList = Lists.newArrayList();
+            StringTable resourceGroups = new StringTable();
+
+            Map<TagGroup, Integer> ids = Maps.newHashMap();
+            List<int[]> rows = Lists.newArrayList();
+            for (Collection<TagGroup> keys: tagGroups.values()) {
+                for (TagGroup tagGroup: keys) {
+                    if (ids.containsKey(tagGroup))
+                        continue;
+                    ids.put(tagGroup, rows.size());
+                    int usageType = usageTypes.getId(tagGroup.usageType.name);
+                    if (usageType == usageTypeList.size())
+                        usageTypeList.add(tagGroup.usageType);
+                    rows.add(new int[] {
+                        accounts.getId(tagGroup.account.toString()),
+                        regions.getId(tagGroup.region.toString()),
+                        zones.getId(tagGroup.zone == null ? null : tagGroup.zone.toString()),
+                        products.getId(tagGroup.product.toString()),
+                        operations.getId(tagGroup.operation.toString()),
+                        usageType,
+                        resourceGroups.getId(tagGroup.resourceGroup == null ? null : tagGroup.resourceGroup.toString())
+                    });
+                }
+            }
+
+            out.writeInt(DICTIONARY_MAGIC);
+            out.writeInt(TAGDB_VERSION_2);
+            accounts.write(out);
+            regions.write(out);
+            zones.write(out);
+            products.write(out);
+            operations.write(out);
+            out.writeInt(usageTypeList.size());
+            for (UsageType usageType: usageTypeList)
+                UsageType.serialize(out, usageType);
+            resourceGroups.write(out);
+
+            out.writeInt(rows.size());
+            for (int[] row: rows) {
+                for (int id: row)
+                    out.writeInt(id);
+            }
+
+            out.writeInt(tagGroups.size());
+            for (Long monthMilli: tagGroups.keySet()) {
+                out.writeLong(monthMilli);
+                Collection<TagGroup> keys = tagGroups.get(monthMilli);
+                out.writeInt(keys.size());
+                for (TagGroup tagGroup: keys) {
+                    out.writeInt(ids.get(tagGroup));
+                }
+            }
+        }
+
+        private static void serializeTagGroupsV1(DataOutput out, TreeMap<Long, Collection<TagGroup>> tagGroups) throws IOException {
             out.writeInt(tagGroups.size());
             for (Long monthMilli: tagGroups.keySet()) {
                 out.writeLong(monthMilli);
@@ -152,6 +351,11 @@ public class TagGroup implements Comparable<TagGroup>, Serializable {
 
         public static TreeMap<Long, Collection<TagGroup>> deserializeTagGroups(Config config, DataInput in) throws IOException {
             int numCollections = in.readInt();
+            if (numCollections == DICTIONARY_MAGIC)
+                return deserializeTagGroupsWithDictionary(config, in);
+            if (numCollections < 0)
+                throw new IOException("unknown tag group file format");
+
             TreeMap<Long, Collection<TagGroup>> result = Maps.newTreeMap();
             for (int i = 0; i < numCollections; i++) {
                 long monthMilli = in.readLong();
@@ -166,6 +370,78 @@ public class TagGroup implements Comparable<TagGroup>, Serializable {
             return result;
         }
 
+        private static TreeMap<Long, Collection<TagGroup>> deserializeTagGroupsWithDictionary(Config config, DataInput in) throws IOException {
+            int version = in.readInt();
+            if (version != TAGDB_VERSION_2)
+                throw new IOException("unknown tag group file version " + version);
+
+            List<String> strings = StringTable.read(in);
+            Account[] accounts = new Account[strings.size()];
+            for (int i = 0; i < accounts.length; i++)
+                accounts[i] = config.accountService.getAccountByName(strings.get(i));
+
+            strings = StringTable.read(in);
+            Region[] regions = new Region[strings.size()];
+            for (int i = 0; i < regions.length; i++)
+                regions[i] = Region.getRegionByName(strings.get(i));
+
+            List<String> zoneNames = StringTable.read(in);
+            Zone[] zones = new Zone[zoneNames.size()];
+
+            strings = StringTable.read(in);
+            Product[] products = new Product[strings.size()];
+            for (int i = 0; i < products.length; i++)
+                products[i] = config.productService.getProductByName(strings.get(i));
+
+            strings = StringTable.read(in);
+            Operation[] operations = new Operation[strings.size()];
+            for (int i = 0; i < operations.length; i++)
+                operations[i] = Operation.getOperation(strings.get(i));
+
+            UsageType[] usageTypes = new UsageType[in.readInt()];
+            for (int i = 0; i < usageTypes.length; i++)
+                usageTypes[i] = UsageType.deserialize(in);
+
+            strings = StringTable.read(in);
+            ResourceGroup[] resourceGroups = new ResourceGroup[strings.size()];
+            for (int i = 0; i < resourceGroups.length; i++)
+                resourceGroups[i] = ResourceGroup.getResourceGroup(strings.get(i));
+
+            TagGroup[] tagGroups = new TagGroup[in.readInt()];
+            for (int i = 0; i < tagGroups.length; i++) {
+                Account account = accounts[in.readInt()];
+                Region region = regions[in.readInt()];
+                int zoneId = in.readInt();
+                Zone zone = null;
+                if (zoneId >= 0) {
+                    // zones are created with their region, which is only known from the tag group
+                    if (zones[zoneId] == null)
+                        zones[zoneId] = Zone.getZone(zoneNames.get(zoneId), region);
+                    zone = zones[zoneId];
+                }
+                Product product = products[in.readInt()];
+                Operation operation = operations[in.readInt()];
+                UsageType usageType = usageTypes[in.readInt()];
+                int resourceGroupId = in.readInt();
+                ResourceGroup resourceGroup = resourceGroupId < 0 ? null : resourceGroups[resourceGroupId];
+                tagGroups[i] = TagGroup.getTagGroup(account, region, zone, product, operation, usageType, resourceGroup);
+            }
+
+            int numCollections = in.readInt();
+            TreeMap<Long, Collection<TagGroup>> result = Maps.newTreeMap();
+            for (int i = 0; i < numCollections; i++) {
+                long monthMilli = in.readLong();
+                int numKeys = in.readInt();
+                List<TagGroup> keys = Lists.newArrayListWithCapacity(numKeys);
+                for (int j = 0; j < numKeys; j++) {
+                    keys.add(tagGroups[in.readInt()]);
+                }
+                result.put(monthMilli, keys);
+            }
+
+            return result;
+        }
+
         public static TagGroup deserialize(Config config, DataInput in) throws IOException {
             Account account = config.accountService.getAccountByName(in.readUTF());
             Region region = Region.getRegionByName(in.readUTF());
@@ -184,4 +460,38 @@ public class TagGroup implements Comparable<TagGroup>, Serializable {
             return TagGroup.getTagGroup(account, region, zone, product, operation, usageType, resourceGroup);
         }
     }
+
+    private static class StringTable {
+        private final Map<String, Integer> ids = Maps.newHashMap();
+        private final List<String> strings = Lists.newArrayList();
+
+        /**
+         * @return index of the string in the table, adding it if needed, or -1 for null
+         */
+        int getId(String string) {
+            if (string == null)
+                return -1;
+            Integer id = ids.get(string);
+            if (id == null) {
+                id = strings.size();
+                ids.put(string, id);
+                strings.add(string);
+            }
+            return id;
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeInt(strings.size());
+            for (String string: strings)
+                out.writeUTF(string);
+        }
+
+        static List<String> read(DataInput in) throws IOException {
+            int size = in.readInt();
+            List<String> strings = Lists.newArrayListWithCapacity(size);
+            for (int i = 0; i < size; i++)
+                strings.add(in.readUTF());
+            return strings;
+        }
+    }
 }
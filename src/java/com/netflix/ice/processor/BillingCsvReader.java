@@ -0,0 +1,300 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.processor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * CSV reader for billing files, reading records the same way CsvReader does with its defaults: comma delimited, fields
+ * optionally quoted with doubled quotes inside, whitespace around unquoted fields trimmed, empty lines skipped.
+ *
+ * Characters are read through one reusable buffer and the fields of the current record are kept as slices of another
+ * one. Billing files repeat the same few values in most columns (account ids, products, operations, usage types,
+ * zones), so every column keeps the strings it returned, found again by hashing the slice: a repeated value is returned
+ * as the same String object without creating one. Its hash code is cached by the String, which makes the lookups of
+ * accounts, products and tags by name cheap as well. Columns where values hardly repeat, like costs and resource ids,
+ * stop being looked up after a while.
+ */
+class BillingCsvReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    private char[] record = new char[1024];
+    private int recordLength = 0;
+    private int[] fieldStarts = new int[64];
+    private int[] fieldLengths = new int[64];
+    private int numFields = 0;
+
+    private ColumnStrings[] columnStrings = new ColumnStrings[0];
+
+    BillingCsvReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the next record.
+     * @return false at the end of the input
+     */
+    boolean readRecord() throws IOException {
+        while (true) {
+            numFields = 0;
+            recordLength = 0;
+
+            int c = read();
+            if (c < 0)
+                return false;
+            if (c == '\n')
+                continue;
+            if (c == '\r') {
+                skipLineFeed();
+                continue;
+            }
+
+            while (true) {
+                int fieldStart = recordLength;
+                while (c == ' ' || c == '\t')
+                    c = read();
+
+                if (c == '"') {
+                    while (true) {
+                        if (!copyUntilQuote()) {
+                            c = -1;
+                            break;
+                        }
+                        // a doubled quote stands for one quote, anything else ends the field
+                        c = read();
+                        if (c != '"')
+                            break;
+                        append('"');
+                    }
+                    // whatever follows the closing quote up to the delimiter is not part of the field
+                    while (c >= 0 && c != ',' && c != '\n' && c != '\r')
+                        c = read();
+                }
+                else {
+                    if (c >= 0 && c != ',' && c != '\n' && c != '\r') {
+                        append((char)c);
+                        copyUntilDelimiter();
+                        c = read();
+                    }
+                    while (recordLength > fieldStart && (record[recordLength - 1] == ' ' || record[recordLength - 1] == '\t'))
+                        recordLength--;
+                }
+                addField(fieldStart, recordLength - fieldStart);
+
+                if (c == ',') {
+                    c = read();
+                    continue;
+                }
+                if (c == '\r')
+                    skipLineFeed();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the fields of the current record
+     */
+    String[] getValues() {
+        if (columnStrings.length < numFields) {
+            int length = columnStrings.length;
+            columnStrings = Arrays.copyOf(columnStrings, numFields);
+            for (int i = length; i < numFields; i++)
+                columnStrings[i] = new ColumnStrings();
+        }
+
+        String[] values = new String[numFields];
+        for (int i = 0; i < numFields; i++)
+            values[i] = columnStrings[i].get(record, fieldStarts[i], fieldLengths[i]);
+        return values;
+    }
+
+    void close() throws IOException {
+        reader.close();
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill())
+            return -1;
+        return buffer[position++];
+    }
+
+    /**
+     * Copies the characters up to the next quote into the record and consumes the quote.
+     * @return false if the input ended first
+     */
+    private boolean copyUntilQuote() throws IOException {
+        while (true) {
+            if (position == limit && !fill())
+                return false;
+            int i = position;
+            while (i < limit && buffer[i] != '"')
+                i++;
+            append(buffer, position, i - position);
+            position = i;
+            if (i < limit) {
+                position++;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Copies the characters up to the next delimiter or line break into the record, leaving the delimiter unread.
+     */
+    private void copyUntilDelimiter() throws IOException {
+        while (true) {
+            if (position == limit && !fill())
+                return;
+            int i = position;
+            char c;
+            while (i < limit && (c = buffer[i]) != ',' && c != '\n' && c != '\r')
+                i++;
+            append(buffer, position, i - position);
+            position = i;
+            if (i < limit)
+                return;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        limit = reader.read(buffer, 0, buffer.length);
+        position = 0;
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private void skipLineFeed() throws IOException {
+        int c = read();
+        if (c != '\n' && c >= 0)
+            position--;
+    }
+
+    private void append(char c) {
+        if (recordLength == record.length)
+            record = Arrays.copyOf(record, record.length * 2);
+        record[recordLength++] = c;
+    }
+
+    private void append(char[] chars, int start, int length) {
+        if (recordLength + length > record.length)
+            record = Arrays.copyOf(record, Math.max(record.length * 2, recordLength + length));
+        System.arraycopy(chars, start, record, recordLength, length);
+        recordLength += length;
+    }
+
+    private void addField(int start, int length) {
+        if (numFields == fieldStarts.length) {
+            fieldStarts = Arrays.copyOf(fieldStarts, numFields * 2);
+            fieldLengths = Arrays.copyOf(fieldLengths, numFields * 2);
+        }
+        fieldStarts[numFields] = start;
+        fieldLengths[numFields] = length;
+        numFields++;
+    }
+
+    /**
+     * Strings returned for one column, in an open addressing table keyed by the String hash of the characters.
+     */
+    private static class ColumnStrings {
+        private static final int MAX_SIZE = 16 * 1024;
+        private static final int MAX_LENGTH = 128;
+        private static final int CHECK_INTERVAL = 64 * 1024;
+
+        private String[] strings = new String[64];
+        private int size = 0;
+        private boolean enabled = true;
+        private int lookups = 0;
+        private int hits = 0;
+
+        String get(char[] chars, int start, int length) {
+            if (length == 0)
+                return "";
+            if (!enabled || length > MAX_LENGTH)
+                return new String(chars, start, length);
+
+            int hash = 0;
+            for (int i = start; i < start + length; i++)
+                hash = 31 * hash + chars[i];
+
+            int mask = strings.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            String s;
+            while ((s = strings[slot]) != null) {
+                if (s.hashCode() == hash && matches(s, chars, start, length)) {
+                    hits++;
+                    lookups++;
+                    return s;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            s = new String(chars, start, length);
+            if (++lookups == CHECK_INTERVAL) {
+                // values of this column hardly repeat, creating the strings is cheaper than looking them up
+                if (hits < lookups / 2) {
+                    enabled = false;
+                    strings = null;
+                    return s;
+                }
+                lookups = hits = 0;
+            }
+            if (size < MAX_SIZE) {
+                strings[slot] = s;
+                if (++size * 2 > strings.length)
+                    grow();
+            }
+            return s;
+        }
+
+        private static boolean matches(String s, char[] chars, int start, int length) {
+            if (s.length() != length)
+                return false;
+            for (int i = 0; i < length; i++) {
+                if (s.charAt(i) != chars[start + i])
+                    return false;
+            }
+            return true;
+        }
+
+        private void grow() {
+            String[] old = strings;
+            strings = new String[old.length * 2];
+            int mask = strings.length - 1;
+            for (String s: old) {
+                if (s == null)
+                    continue;
+                int hash = s.hashCode();
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while (strings[slot] != null)
+                    slot = (slot + 1) & mask;
+                strings[slot] = s;
+            }
+        }
+    }
+}
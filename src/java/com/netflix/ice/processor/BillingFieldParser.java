@@ -0,0 +1,148 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.processor;
+
+/**
+ * Parsers for the times and numbers of billing file line items, which handle the forms found in billing files without
+ * creating objects, and leave anything else to Joda and Double.parseDouble with the same results.
+ */
+public final class BillingFieldParser {
+    private static final long DAY_MILLIS = 24 * 3600000L;
+
+    // powers of ten up to 22 are exact doubles
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private BillingFieldParser() {
+    }
+
+    /**
+     * Parses a UTC time in the "yyyy-MM-dd HH:mm:ss" or "yyyy/MM/dd HH:mm:ss" format of billing files.
+     * @throws IllegalArgumentException if the time is in neither format
+     */
+    public static long parseMillis(String s) {
+        if (s.length() == 19) {
+            char separator = s.charAt(4);
+            if ((separator == '-' || separator == '/') && s.charAt(7) == separator &&
+                s.charAt(10) == ' ' && s.charAt(13) == ':' && s.charAt(16) == ':') {
+
+                int year = digits(s, 0, 4);
+                int month = digits(s, 5, 2);
+                int day = digits(s, 8, 2);
+                int hour = digits(s, 11, 2);
+                int minute = digits(s, 14, 2);
+                int second = digits(s, 17, 2);
+                if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= daysInMonth(year, month) &&
+                    hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60) {
+                    return daysFromEpoch(year, month, day) * DAY_MILLIS + ((hour * 60 + minute) * 60 + second) * 1000L;
+                }
+            }
+        }
+
+        try {
+            return LineItemProcessor.amazonBillingDateFormat.parseMillis(s);
+        }
+        catch (IllegalArgumentException e) {
+            return LineItemProcessor.amazonBillingDateFormat2.parseMillis(s);
+        }
+    }
+
+    /**
+     * Parses a number the way Double.parseDouble does. Plain decimals of up to 15 digits, which is what billing files
+     * hold, are computed directly: the digits and the power of ten are both exact doubles, so one division gives the
+     * correctly rounded result.
+     * @throws NumberFormatException if the string is not a number
+     */
+    public static double parseDouble(String s) {
+        int length = s.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (s.charAt(0) == '-' || s.charAt(0) == '+')) {
+            negative = s.charAt(0) == '-';
+            i++;
+        }
+
+        long digits = 0;
+        int numDigits = 0;
+        boolean hasDigits = false;
+        int fractionDigits = -1;
+        for (; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                // leading zeros don't count towards the precision
+                if (numDigits > 0 || c != '0') {
+                    if (++numDigits > 15)
+                        return Double.parseDouble(s);
+                }
+                hasDigits = true;
+                digits = digits * 10 + (c - '0');
+                if (fractionDigits >= 0)
+                    fractionDigits++;
+            }
+            else if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            }
+            else {
+                return Double.parseDouble(s);
+            }
+        }
+
+        // no digit at all, like "", "-" or "."
+        if (!hasDigits || fractionDigits >= POWERS_OF_TEN.length)
+            return Double.parseDouble(s);
+
+        double value = fractionDigits > 0 ? digits / POWERS_OF_TEN[fractionDigits] : digits;
+        return negative ? -value : value;
+    }
+
+    private static int digits(String s, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2: return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4: case 6: case 9: case 11: return 30;
+            default: return 31;
+        }
+    }
+
+    /**
+     * Days from 1970-01-01 to the given date of the proleptic Gregorian calendar.
+     */
+    private static long daysFromEpoch(int year, int month, int day) {
+        // count years from March, so the leap day is the last day of the year
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
@@ -22,15 +22,15 @@ import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.simpleemail.AmazonSimpleEmailServiceClient;
 import com.amazonaws.services.simpleemail.model.*;
-import com.csvreader.CsvReader;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.netflix.ice.common.*;
-import com.netflix.ice.tag.Account;
 import com.netflix.ice.tag.Operation;
 import com.netflix.ice.tag.Product;
 import com.netflix.ice.tag.Zone;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
@@ -43,17 +43,19 @@ import org.joda.time.Weeks;
 import java.io.*;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Class to process billing files and produce tag, usage, cost output files for reader/UI.
  */
 public class BillingFileProcessor extends Poller {
 
-    private static Map<String, Double> ondemandRate = Maps.newHashMap();
+    private static final int LINE_BATCH_SIZE = 1000;
+    private static Map<String, Double> ondemandRate = Maps.newConcurrentMap();
     private ProcessorConfig config = ProcessorConfig.getInstance();
     private Long startMilli;
     private Long endMilli;
-    private boolean processingMonitor;
+    private long checkpointMilli;
     private Map<Product, ReadWriteData> usageDataByProduct;
     private Map<Product, ReadWriteData> costDataByProduct;
     private Double ondemandThreshold;
@@ -166,27 +168,33 @@ public class BillingFileProcessor extends Poller {
             }
 
             long processTime = new DateTime(DateTimeZone.UTC).getMillis();
-            for (BillingFile billingFile: filesToProcess.get(dataTime)) {
-
-                S3ObjectSummary objectSummary = billingFile.s3ObjectSummary;
-                String fileKey = objectSummary.getKey();
-
-                File file = new File(config.localDir, fileKey.substring(billingFile.prefix.length()));
-                logger.info("trying to download " + fileKey + "...");
-                boolean downloaded = AwsUtils.downloadFileIfChangedSince(objectSummary.getBucketName(), billingFile.region, billingFile.prefix, file, lastProcessed,
-                        billingFile.accountId, billingFile.accessRoleName, billingFile.externalId);
-                if (downloaded)
-                    logger.info("downloaded " + fileKey);
-                else {
-                    logger.info("file already downloaded " + fileKey + "...");
-                }
+            String month = AwsUtils.monthDateFormat.print(dataTime);
+            List<BillingFile> billingFiles = filesToProcess.get(dataTime);
+            List<DelayedItems> delayedItems = Lists.newArrayList();
+
+            ProcessingCheckpoint checkpoint = config.incrementalProcessing ? getCheckpoint(month, billingFiles) : null;
+            checkpointMilli = checkpoint == null ? 0 : checkpoint.getFromMilli();
+            if (checkpoint != null)
+                logger.info("processing " + month + " from checkpoint " + AwsUtils.dateFormatter.print(checkpointMilli));
+
+            hasTags = processBillingFiles(billingFiles, lastProcessed, delayedItems);
+
+            if (checkpoint != null && !checkpoint.hasSameDelayedItemsAfter(config, checkpointMilli, delayedItems)) {
+                logger.info("delayed line items changed since checkpoint, processing all of " + month);
+                checkpoint = null;
+                checkpointMilli = 0;
+                endMilli = startMilli;
+                init();
+                delayedItems.clear();
+                hasTags = processBillingFiles(billingFiles, lastProcessed, delayedItems);
+            }
+            if (checkpoint != null)
+                delayedItems.addAll(0, checkpoint.getDelayedItemsBefore(config, checkpointMilli));
 
-                logger.info("processing " + fileKey + "...");
-                boolean withTags = fileKey.contains("with-resources-and-tags");
-                hasTags = hasTags || withTags;
-                processingMonitor = false;
-                processBillingZipFile(file, withTags);
-                logger.info("done processing " + fileKey);
+            if (delayedItems.size() > 0) {
+                FileProcessor delayedProcessor = new FileProcessor(usageDataByProduct, costDataByProduct, false, false);
+                delayedProcessor.processDelayedItems(delayedItems);
+                endMilli = Math.max(endMilli, delayedProcessor.endMilli);
             }
 
             if (monitorFilesToProcess.get(dataTime) != null) {
@@ -206,8 +214,7 @@ public class BillingFileProcessor extends Poller {
                             logger.warn(monitorFile + "already downloaded...");
                         FileInputStream in = new FileInputStream(monitorFile);
                         try {
-                            processingMonitor = true;
-                            processBillingFile(monitorFile.getName(), in, true);
+                            new FileProcessor(usageDataByProduct, costDataByProduct, true, false).processBillingFile(monitorFile.getName(), in, true);
                         }
                         catch (Exception e) {
                             logger.error("Error processing " + monitorFile, e);
@@ -219,24 +226,47 @@ public class BillingFileProcessor extends Poller {
                 }
             }
 
+            int fromHour = 0;
+            if (checkpoint != null) {
+                fromHour = (int) ((checkpointMilli - startMilli)/3600000L);
+                restoreArchivedData(month, checkpoint, fromHour);
+                endMilli = Math.max(endMilli, checkpointMilli);
+            }
+
             if (dataTime.equals(filesToProcess.lastKey())) {
                 int hours = (int) ((endMilli - startMilli)/3600000L);
                 logger.info("cut hours to " + hours);
                 cutData(hours);
             }
 
-            // now get reservation capacity to calculate upfront and un-used cost
-            for (Ec2InstanceReservationPrice.ReservationUtilization utilization: Ec2InstanceReservationPrice.ReservationUtilization.values())
-                processReservations(utilization);
-
-            if (hasTags && config.resourceService != null)
-                config.resourceService.commit();
-
             logger.info("archiving results for " + dataTime + "...");
-            archive();
+            ArchivePipeline archivePipeline = new ArchivePipeline();
+            try {
+                // reservations only change the total, so the other products are archived meanwhile
+                Set<Product> products = Sets.newHashSet(usageDataByProduct.keySet());
+                products.addAll(costDataByProduct.keySet());
+                products.remove(null);
+                for (Product product: products)
+                    archivePipeline.submit(product);
+
+                // now get reservation capacity to calculate upfront and un-used cost
+                new ReservationProcessor(config.reservationService, config.accountService, startMilli, config.reservationThreads)
+                        .process(usageDataByProduct.get(null), costDataByProduct.get(null), fromHour);
+
+                if (hasTags && config.resourceService != null)
+                    config.resourceService.commit();
+
+                archivePipeline.submit(null);
+                archivePipeline.finish();
+            }
+            finally {
+                archivePipeline.shutdown();
+            }
             logger.info("done archiving " + dataTime);
 
             updateProcessTime(AwsUtils.monthDateFormat.print(dataTime), processTime);
+            if (config.incrementalProcessing)
+                saveCheckpoint(month, billingFiles, delayedItems);
             if (dataTime.equals(filesToProcess.lastKey())) {
                 sendOndemandCostAlert();
             }
@@ -245,156 +275,178 @@ public class BillingFileProcessor extends Poller {
         logger.info("AWS usage processed.");
     }
 
-    private void borrow(int i, long time,
-                        Map<TagGroup, Double> usageMap,
-                        Map<TagGroup, Double> costMap,
-                        List<Account> fromAccounts,
-                        TagGroup tagGroup,
-                        Ec2InstanceReservationPrice.ReservationUtilization utilization,
-                        boolean forBonus) {
-
-        Double existing = usageMap.get(tagGroup);
-
-        if (existing != null && config.accountService.externalMappingExist(tagGroup.account, tagGroup.zone) && fromAccounts != null) {
-
-            for (Account from: fromAccounts) {
-                if (existing <= 0)
-                    break;
-
-                TagGroup unusedTagGroup = new TagGroup(from, tagGroup.region, tagGroup.zone, tagGroup.product, Operation.getUnusedInstances(utilization), tagGroup.usageType, null);
-                Double unused = usageMap.get(unusedTagGroup);
-
-                if (unused != null && unused > 0) {
-                    double hourlyCost = costMap.get(unusedTagGroup) / unused;
-
-                    double reservedBorrowed = Math.min(existing, unused);
-                    double reservedUnused = unused - reservedBorrowed;
-
-                    existing -= reservedBorrowed;
-
-                    TagGroup borrowedTagGroup = new TagGroup(tagGroup.account, tagGroup.region, tagGroup.zone, tagGroup.product, Operation.getBorrowedInstances(utilization), tagGroup.usageType, null);
-                    TagGroup lentTagGroup = new TagGroup(from, tagGroup.region, tagGroup.zone, tagGroup.product, Operation.getLentInstances(utilization), tagGroup.usageType, null);
-
-                    Double existingLent = usageMap.get(lentTagGroup);
-                    double reservedLent = existingLent == null ? reservedBorrowed : reservedBorrowed + existingLent;
-                    Double existingBorrowed = usageMap.get(borrowedTagGroup);
-                    reservedBorrowed = existingBorrowed == null ? reservedBorrowed : reservedBorrowed + existingBorrowed;
-
-                    usageMap.put(borrowedTagGroup, reservedBorrowed);
-                    costMap.put(borrowedTagGroup, reservedBorrowed * hourlyCost);
-                    usageMap.put(lentTagGroup, reservedLent);
-                    costMap.put(lentTagGroup, reservedLent * hourlyCost);
-                    usageMap.put(tagGroup, existing);
-                    costMap.put(tagGroup, existing * hourlyCost);
-
-                    usageMap.put(unusedTagGroup, reservedUnused);
-                    costMap.put(unusedTagGroup, reservedUnused * hourlyCost);
-                }
-            }
+    /**
+     * Processes the billing files of one month into the usage and cost data. Delayed line items which are deferred to
+     * the end of the month are added to the given list.
+     * @return true if any of the files has resources and tags
+     */
+    private boolean processBillingFiles(List<BillingFile> billingFiles, long lastProcessed, List<DelayedItems> delayedItems) throws Exception {
+        if (config.processorThreads > 1 && billingFiles.size() > 1 && config.randomizer == null)
+            return processBillingFilesInParallel(billingFiles, lastProcessed, delayedItems);
+
+        boolean hasTags = false;
+        for (BillingFile billingFile: billingFiles) {
+
+            String fileKey = billingFile.s3ObjectSummary.getKey();
+            File file = downloadBillingFile(billingFile, lastProcessed);
+
+            logger.info("processing " + fileKey + "...");
+            boolean withTags = fileKey.contains("with-resources-and-tags");
+            hasTags = hasTags || withTags;
+            FileProcessor fileProcessor = new FileProcessor(usageDataByProduct, costDataByProduct, false, config.incrementalProcessing);
+            fileProcessor.processBillingZipFile(file, withTags);
+            endMilli = Math.max(endMilli, fileProcessor.endMilli);
+            delayedItems.addAll(fileProcessor.delayedItems);
+            logger.info("done processing " + fileKey);
         }
+        return hasTags;
+    }
 
-        // the rest is bonus
-        if (existing != null && existing > 0 && !forBonus) {
-            ReservationService.ReservationInfo reservation = config.reservationService.getReservation(time, tagGroup, utilization);
-            TagGroup bonusTagGroup = new TagGroup(tagGroup.account, tagGroup.region, tagGroup.zone, tagGroup.product, Operation.getBonusReservedInstances(utilization), tagGroup.usageType, null);
-            usageMap.put(bonusTagGroup, existing);
-            costMap.put(bonusTagGroup, existing * reservation.reservationHourlyCost);
-
-            usageMap.remove(tagGroup);
-            costMap.remove(tagGroup);
+    private File downloadBillingFile(BillingFile billingFile, long lastProcessed) {
+        S3ObjectSummary objectSummary = billingFile.s3ObjectSummary;
+        String fileKey = objectSummary.getKey();
+
+        File file = new File(config.localDir, fileKey.substring(billingFile.prefix.length()));
+        logger.info("trying to download " + fileKey + "...");
+        boolean downloaded = AwsUtils.downloadFileIfChangedSince(objectSummary.getBucketName(), billingFile.region, billingFile.prefix, file, lastProcessed,
+                billingFile.accountId, billingFile.accessRoleName, billingFile.externalId);
+        if (downloaded)
+            logger.info("downloaded " + fileKey);
+        else {
+            logger.info("file already downloaded " + fileKey + "...");
         }
+        return file;
     }
 
-    private void processReservations(Ec2InstanceReservationPrice.ReservationUtilization utilization) {
-
-        if (config.reservationService.getTagGroups(utilization).size() == 0)
-            return;
+    /**
+     * Downloads and processes billing files of one month concurrently. Each file is processed into its own data, and the
+     * results are merged in the order of the given list once all files are done, so the output does not depend on which
+     * file finishes first. Delayed line items are added to the given list, to be processed against the data of the whole
+     * month.
+     * @return true if any of the files has resources and tags
+     */
+    private boolean processBillingFilesInParallel(List<BillingFile> billingFiles, final long lastProcessed, List<DelayedItems> delayedItems) throws Exception {
 
-        ReadWriteData usageData = usageDataByProduct.get(null);
-        ReadWriteData costData = costDataByProduct.get(null);
+        int numThreads = Math.min(config.processorThreads, billingFiles.size());
+        logger.info("processing " + billingFiles.size() + " billing files with " + numThreads + " threads...");
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setNameFormat("billing-file-processor-%d").setDaemon(true).build());
 
-        Map<Account, List<Account>> reservationAccounts = config.accountService.getReservationAccounts();
-        Set<Account> reservationOwners = reservationAccounts.keySet();
-        Map<Account, List<Account>> reservationBorrowers = Maps.newHashMap();
-        for (Account account: reservationAccounts.keySet()) {
-            List<Account> list = reservationAccounts.get(account);
-            for (Account borrowingAccount: list) {
-                if (borrowingAccount.name.equals(account.name))
-                    continue;
-                List<Account> from = reservationBorrowers.get(borrowingAccount);
-                if (from == null) {
-                    from = Lists.newArrayList();
-                    reservationBorrowers.put(borrowingAccount, from);
-                }
-                from.add(account);
+        try {
+            List<Future<FileProcessor>> futures = Lists.newArrayList();
+            for (final BillingFile billingFile: billingFiles) {
+                futures.add(executor.submit(new Callable<FileProcessor>() {
+                    public FileProcessor call() throws Exception {
+                        String fileKey = billingFile.s3ObjectSummary.getKey();
+                        File file = downloadBillingFile(billingFile, lastProcessed);
+
+                        logger.info("processing " + fileKey + "...");
+                        FileProcessor fileProcessor = new FileProcessor(newDataByProduct(), newDataByProduct(), false, true);
+                        fileProcessor.processBillingZipFile(file, fileKey.contains("with-resources-and-tags"));
+                        logger.info("done processing " + fileKey);
+                        return fileProcessor;
+                    }
+                }));
             }
-        }
-
-        // first mark owner accounts
-        Set<TagGroup> toMarkOwners = Sets.newTreeSet();
-        for (TagGroup tagGroup: config.reservationService.getTagGroups(utilization)) {
-
-            for (int i = 0; i < usageData.getNum(); i++) {
-
-                Map<TagGroup, Double> usageMap = usageData.getData(i);
-                Map<TagGroup, Double> costMap = costData.getData(i);
-
-                Double existing = usageMap.get(tagGroup);
-                double value = existing == null ? 0 : existing;
-                ReservationService.ReservationInfo reservation = config.reservationService.getReservation(startMilli + i * AwsUtils.hourMillis, tagGroup, utilization);
-                double reservedUsed = Math.min(value, reservation.capacity);
-                double reservedUnused = reservation.capacity - reservedUsed;
-                double bonusReserved = value > reservation.capacity ? value - reservation.capacity : 0;
 
-                if (reservedUsed > 0 || existing != null) {
-                    usageMap.put(tagGroup, reservedUsed);
-                    costMap.put(tagGroup, reservedUsed * reservation.reservationHourlyCost);
-                }
+            boolean hasTags = false;
+            for (Future<FileProcessor> future: futures) {
+                FileProcessor fileProcessor = getResult(future);
+                mergeDataByProduct(usageDataByProduct, fileProcessor.usageDataByProduct);
+                mergeDataByProduct(costDataByProduct, fileProcessor.costDataByProduct);
+                endMilli = Math.max(endMilli, fileProcessor.endMilli);
+                hasTags = hasTags || fileProcessor.withTags;
+                delayedItems.addAll(fileProcessor.delayedItems);
+            }
 
-                if (reservedUnused > 0) {
-                    TagGroup unusedTagGroup = new TagGroup(tagGroup.account, tagGroup.region, tagGroup.zone, tagGroup.product, Operation.getUnusedInstances(utilization), tagGroup.usageType, null);
-                    usageMap.put(unusedTagGroup, reservedUnused);
-                    costMap.put(unusedTagGroup, reservedUnused * reservation.reservationHourlyCost);
-                }
+            return hasTags;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
 
-                if (bonusReserved > 0) {
-                    TagGroup bonusTagGroup = new TagGroup(tagGroup.account, tagGroup.region, tagGroup.zone, tagGroup.product, Operation.getBonusReservedInstances(utilization), tagGroup.usageType, null);
-                    usageMap.put(bonusTagGroup, bonusReserved);
-                    costMap.put(bonusTagGroup, bonusReserved * reservation.reservationHourlyCost);
-                }
+    private static <T> T getResult(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception)e.getCause();
+            throw e;
+        }
+    }
 
-                if (reservation.capacity > 0) {
-                    TagGroup upfrontTagGroup = new TagGroup(tagGroup.account, tagGroup.region, tagGroup.zone, tagGroup.product, Operation.getUpfrontAmortized(utilization), tagGroup.usageType, null);
-                    costMap.put(upfrontTagGroup, reservation.capacity * reservation.upfrontAmortized);
-                }
-            }
+    private Map<Product, ReadWriteData> newDataByProduct() {
+        Map<Product, ReadWriteData> dataByProduct = new HashMap<Product, ReadWriteData>();
+        dataByProduct.put(null, new ReadWriteData());
+        return dataByProduct;
+    }
 
-            toMarkOwners.add(new TagGroup(tagGroup.account, tagGroup.region, tagGroup.zone, tagGroup.product, Operation.getReservedInstances(utilization), tagGroup.usageType, null));
+    private void mergeDataByProduct(Map<Product, ReadWriteData> to, Map<Product, ReadWriteData> from) {
+        for (Map.Entry<Product, ReadWriteData> entry: from.entrySet()) {
+            ReadWriteData data = to.get(entry.getKey());
+            if (data == null)
+                to.put(entry.getKey(), entry.getValue());
+            else
+                data.merge(entry.getValue());
         }
+    }
 
-        // now mark borrowing accounts
-        Set<TagGroup> toMarkBorrowing = Sets.newTreeSet();
-        for (TagGroup tagGroup: usageData.getTagGroups()) {
-            if (tagGroup.resourceGroup == null &&
-                tagGroup.product == Product.ec2_instance &&
-                (tagGroup.operation == Operation.getReservedInstances(utilization) && !toMarkOwners.contains(tagGroup) ||
-                 tagGroup.operation == Operation.getBonusReservedInstances(utilization))) {
+    /**
+     * Returns the checkpoint of the month if the month can be processed from it, or null.
+     */
+    private ProcessingCheckpoint getCheckpoint(String month, List<BillingFile> billingFiles) {
+        ProcessingCheckpoint checkpoint = ProcessingCheckpoint.load(config, month);
+        if (checkpoint == null)
+            return null;
+        if (!checkpoint.billingFileKeys.equals(getBillingFileKeys(billingFiles))) {
+            logger.info("billing files of " + month + " changed since checkpoint");
+            return null;
+        }
+        if (checkpoint.getFromMilli() <= startMilli)
+            return null;
+        return checkpoint;
+    }
 
-                toMarkBorrowing.add(tagGroup);
-            }
+    private void saveCheckpoint(String month, List<BillingFile> billingFiles, List<DelayedItems> delayedItems) throws IOException {
+        Set<String> products = Sets.newTreeSet();
+        for (Product product: Sets.union(usageDataByProduct.keySet(), costDataByProduct.keySet())) {
+            if (product != null)
+                products.add(product.name);
         }
-        for (TagGroup tagGroup: toMarkBorrowing) {
-            for (int i = 0; i < usageData.getNum(); i++) {
+        new ProcessingCheckpoint(endMilli, getBillingFileKeys(billingFiles), Lists.newArrayList(products), delayedItems).save(config, month);
+    }
 
-                Map<TagGroup, Double> usageMap = usageData.getData(i);
-                Map<TagGroup, Double> costMap = costData.getData(i);
+    private List<String> getBillingFileKeys(List<BillingFile> billingFiles) {
+        List<String> keys = Lists.newArrayList();
+        for (BillingFile billingFile: billingFiles)
+            keys.add(billingFile.s3ObjectSummary.getBucketName() + "/" + billingFile.s3ObjectSummary.getKey());
+        return keys;
+    }
 
-                borrow(i, startMilli + i * AwsUtils.hourMillis, usageMap, costMap,
-                       reservationBorrowers.get(tagGroup.account), tagGroup, utilization, reservationOwners.contains(tagGroup.account));
-            }
+    /**
+     * Puts the archived hourly data of the month before fromHour under the data processed since the checkpoint.
+     */
+    private void restoreArchivedData(String month, ProcessingCheckpoint checkpoint, int fromHour) throws Exception {
+        Set<Product> products = Sets.newHashSet(usageDataByProduct.keySet());
+        products.addAll(costDataByProduct.keySet());
+        for (String name: checkpoint.products)
+            products.add(config.productService.getProductByName(name));
+
+        for (Product product: products) {
+            usageDataByProduct.put(product, restoreArchivedData("usage_", month, product, fromHour, usageDataByProduct.get(product)));
+            costDataByProduct.put(product, restoreArchivedData("cost_", month, product, fromHour, costDataByProduct.get(product)));
         }
     }
 
+    private ReadWriteData restoreArchivedData(String prefix, String month, Product product, int fromHour, ReadWriteData data) throws Exception {
+        String prodName = product == null ? "all" : product.s3Name;
+        ReadWriteData archived = new DataWriter(prefix + "hourly_" + prodName + "_" + month, true).getData();
+        archived.replaceFrom(fromHour, data == null ? new ReadWriteData() : data);
+        return archived;
+    }
+
     private void cutData(int hours) {
         for (ReadWriteData data: usageDataByProduct.values()) {
             data.cutData(hours);
@@ -404,218 +456,235 @@ public class BillingFileProcessor extends Poller {
         }
     }
 
-    private void archive() throws Exception {
-
-        logger.info("archiving tag data...");
-
-        for (Product product: costDataByProduct.keySet()) {
-            TagGroupWriter writer = new TagGroupWriter(product == null ? "all" : product.name);
-            writer.archive(startMilli, costDataByProduct.get(product).getTagGroups());
+    /**
+     * Archives the products of the month on config.archiveThreads workers. A worker archives a whole product: its tag
+     * groups, its daily, weekly and monthly summaries and its hourly data, while the uploads of the files it wrote go on
+     * in the background. Data of a product must not change once it is submitted.
+     *
+     * The first failure stops the pipeline: products not started yet are dropped, running ones are interrupted, and
+     * finish() throws the failure after all workers are done and the files they wrote are uploaded.
+     */
+    private class ArchivePipeline {
+        private final ExecutorService executor;
+        private final CompletionService<Void> completionService;
+        private int numSubmitted = 0;
+
+        ArchivePipeline() {
+            executor = Executors.newFixedThreadPool(Math.max(1, config.archiveThreads),
+                    new ThreadFactoryBuilder().setNameFormat("archive-%d").setDaemon(true).build());
+            completionService = new ExecutorCompletionService<Void>(executor);
         }
 
-        logger.info("archiving summary data...");
-
-        archiveSummary(usageDataByProduct, "usage_");
-        archiveSummary(costDataByProduct, "cost_");
+        void submit(final Product product) {
+            final ReadWriteData usageData = usageDataByProduct.get(product);
+            final ReadWriteData costData = costDataByProduct.get(product);
+            completionService.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    archive(product, usageData, costData);
+                    return null;
+                }
+            });
+            numSubmitted++;
+        }
 
-        logger.info("archiving hourly data...");
+        /**
+         * Waits until all submitted products are archived and uploaded.
+         */
+        void finish() throws Exception {
+            try {
+                for (int i = 0; i < numSubmitted; i++)
+                    getResult(completionService.take());
+            }
+            catch (Exception e) {
+                shutdown();
+                throw e;
+            }
 
-        archiveHourly(usageDataByProduct, "usage_");
-        archiveHourly(costDataByProduct, "cost_");
+            // files are uploaded while the next ones are written; the month is not done before all of them are in s3
+            logger.info("waiting for uploads...");
+            AwsUtils.awaitUploads();
+        }
 
-        logger.info("archiving data done.");
-    }
+        /**
+         * Stops the workers and waits for them and for the uploads of the files they wrote, so that no file of the month
+         * is written after this returns. Errors of those uploads are only logged, the failure that stopped the pipeline
+         * is the one thrown.
+         */
+        void shutdown() throws InterruptedException {
+            executor.shutdownNow();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+                logger.info("waiting for archive workers to stop...");
 
-    private void archiveHourly(Map<Product, ReadWriteData> dataMap, String prefix) throws Exception {
-        DateTime monthDateTime = new DateTime(startMilli, DateTimeZone.UTC);
-        for (Product product: dataMap.keySet()) {
-            String prodName = product == null ? "all" : product.s3Name;
-            DataWriter writer = new DataWriter(prefix + "hourly_" + prodName + "_" + AwsUtils.monthDateFormat.print(monthDateTime), false);
-            writer.archive(dataMap.get(product));
+            try {
+                AwsUtils.awaitUploads();
+            }
+            catch (IOException e) {
+                logger.error("error uploading archived files", e);
+            }
         }
     }
 
-    private void addValue(List<Map<TagGroup, Double>> list, int index, TagGroup tagGroup, double v) {
-        Map<TagGroup, Double> map = ReadWriteData.getCreateData(list, index);
-        Double existedV = map.get(tagGroup);
-        map.put(tagGroup, existedV == null ? v : existedV + v);
-    }
+    private void archive(Product product, ReadWriteData usageData, ReadWriteData costData) throws Exception {
+        String prodName = product == null ? "all" : product.s3Name;
+        logger.info("archiving " + prodName + "...");
 
+        if (costData != null) {
+            TagGroupWriter writer = new TagGroupWriter(product == null ? "all" : product.name);
+            writer.archive(startMilli, costData.getTagGroups());
+        }
 
-    private void archiveSummary(Map<Product, ReadWriteData> dataMap, String prefix) throws Exception {
+        if (usageData != null)
+            archiveSummary(prodName, usageData, "usage_");
+        if (costData != null)
+            archiveSummary(prodName, costData, "cost_");
 
-        DateTime monthDateTime = new DateTime(startMilli, DateTimeZone.UTC);
+        if (usageData != null) {
+            archiveHourly(prodName, usageData, "usage_");
+            archiveTail(prodName, usageData, "usage_", new DateTime(startMilli, DateTimeZone.UTC));
+        }
+        if (costData != null) {
+            archiveHourly(prodName, costData, "cost_");
+            archiveTail(prodName, costData, "cost_", new DateTime(startMilli, DateTimeZone.UTC));
+        }
 
-        for (Product product: dataMap.keySet()) {
-
-            String prodName = product == null ? "all" : product.s3Name;
-            ReadWriteData data = dataMap.get(product);
-            Collection<TagGroup> tagGroups = data.getTagGroups();
-
-            // init daily, weekly and monthly
-            List<Map<TagGroup, Double>> daily = Lists.newArrayList();
-            List<Map<TagGroup, Double>> weekly = Lists.newArrayList();
-            List<Map<TagGroup, Double>> monthly = Lists.newArrayList();
-
-            // get last month data
-            ReadWriteData lastMonthData = new DataWriter(prefix + "hourly_" + prodName + "_" + AwsUtils.monthDateFormat.print(monthDateTime.minusMonths(1)), true).getData();
-
-            // aggregate to daily, weekly and monthly
-            int dayOfWeek = monthDateTime.getDayOfWeek();
-            int daysFromLastMonth = dayOfWeek - 1;
-            int lastMonthNumHours = monthDateTime.minusMonths(1).dayOfMonth().getMaximumValue() * 24;
-            for (int hour = 0 - daysFromLastMonth * 24; hour < data.getNum(); hour++) {
-                if (hour < 0) {
-                    // handle data from last month, add to weekly
-                    Map<TagGroup, Double> prevData = lastMonthData.getData(lastMonthNumHours + hour);
-                    for (TagGroup tagGroup: tagGroups) {
-                        Double v = prevData.get(tagGroup);
-                        if (v != null && v != 0) {
-                            addValue(weekly, 0, tagGroup, v);
-                        }
-                    }
-                }
-                else {
-                    // this month, add to weekly, monthly and daily
-                    Map<TagGroup, Double> map = data.getData(hour);
-
-                    for (TagGroup tagGroup: tagGroups) {
-                        Double v = map.get(tagGroup);
-                        if (v != null && v != 0) {
-                            addValue(monthly, 0, tagGroup, v);
-                            addValue(daily, hour/24, tagGroup, v);
-                            addValue(weekly, (hour + daysFromLastMonth*24) / 24/7, tagGroup, v);
-                        }
-                    }
-                }
-            }
+        // data which spills was merged back into memory to be archived, and nothing reads it afterwards
+        if (usageData != null && usageData.spills())
+            usageData.clear();
+        if (costData != null && costData.spills())
+            costData.clear();
 
-            // archive daily
-            int year = monthDateTime.getYear();
-            DataWriter writer = new DataWriter(prefix + "daily_" + prodName + "_" + year, true);
-            ReadWriteData dailyData = writer.getData();
-            dailyData.setData(daily, monthDateTime.getDayOfYear() -1, false);
-            writer.archive();
-
-            // archive monthly
-            writer = new DataWriter(prefix + "monthly_" + prodName, true);
-            ReadWriteData monthlyData = writer.getData();
-            monthlyData.setData(monthly, Months.monthsBetween(config.startDate, monthDateTime).getMonths(), false);
-            writer.archive();
-
-            // archive weekly
-            writer = new DataWriter(prefix + "weekly_" + prodName, true);
-            ReadWriteData weeklyData = writer.getData();
-            DateTime weekStart = monthDateTime.withDayOfWeek(1);
-            int index;
-            if (!weekStart.isAfter(config.startDate))
-                index = 0;
-            else
-                index = Weeks.weeksBetween(config.startDate, weekStart).getWeeks() + (config.startDate.dayOfWeek() == weekStart.dayOfWeek() ? 0 : 1);
-            weeklyData.setData(weekly, index, true);
-            writer.archive();
-        }
+        logger.info("done archiving " + prodName);
     }
 
-    private void init() {
-        usageDataByProduct = new HashMap<Product, ReadWriteData>();
-        costDataByProduct = new HashMap<Product, ReadWriteData>();
-        usageDataByProduct.put(null, new ReadWriteData());
-        costDataByProduct.put(null, new ReadWriteData());
+    private void archiveHourly(String prodName, ReadWriteData data, String prefix) throws Exception {
+        DateTime monthDateTime = new DateTime(startMilli, DateTimeZone.UTC);
+        DataWriter writer = new DataWriter(prefix + "hourly_" + prodName + "_" + AwsUtils.monthDateFormat.print(monthDateTime), false);
+        writer.archive(data);
     }
 
-    private void processBillingZipFile(File file, boolean withTags) throws IOException {
-
-        InputStream input = new FileInputStream(file);
-        ZipArchiveInputStream zipInput = new ZipArchiveInputStream(input);
-
-        try {
-            ArchiveEntry entry;
-            while ((entry = zipInput.getNextEntry()) != null) {
-                if (entry.isDirectory())
-                    continue;
-
-                processBillingFile(entry.getName(), zipInput, withTags);
-            }
-        }
-        catch (IOException e) {
-            if (e.getMessage().equals("Stream closed"))
-                logger.info("reached end of file.");
-            else
-                logger.error("Error processing " + file, e);
-        }
-        finally {
-            try {
-                zipInput.close();
-            } catch (IOException e) {
-                logger.error("Error closing " + file, e);
-            }
-            try {
-                input.close();
-            }
-            catch (IOException e1) {
-                logger.error("Cannot close input for " + file, e1);
+    /**
+     * Writes the totals of the last days of the month which fall in the first week of the next month, so that the
+     * summaries of the next month are computed without the hourly data of this month. The totals are added up hour by
+     * hour in the same order as the summaries add them.
+     */
+    private ReadWriteData archiveTail(String prodName, ReadWriteData data, String prefix, DateTime monthDateTime) throws Exception {
+        int numHours = monthDateTime.dayOfMonth().getMaximumValue() * 24;
+        int daysToNextMonth = monthDateTime.plusMonths(1).getDayOfWeek() - 1;
+        Collection<TagGroup> tagGroups = data.getTagGroups();
+
+        ReadWriteData tail = new ReadWriteData();
+        tail.getData(0);
+        for (int hour = numHours - daysToNextMonth * 24; hour < Math.min(numHours, data.getNum()); hour++) {
+            Map<TagGroup, Double> map = data.getData(hour);
+            for (TagGroup tagGroup: tagGroups) {
+                Double v = map.get(tagGroup);
+                if (v != null && v != 0)
+                    tail.add(0, tagGroup, v);
             }
         }
+
+        DataWriter writer = new DataWriter(getTailName(prodName, prefix, monthDateTime), false);
+        writer.archive(tail, false);
+        return tail;
     }
 
-    private void processBillingFile(String fileName, InputStream tempIn, boolean withTags) {
+    /**
+     * Returns the totals of the last days of the previous month which fall in the first week of the month. They are
+     * computed from the hourly data of the previous month only if it was archived before tails were written.
+     */
+    private Map<TagGroup, Double> getLastMonthTail(String prodName, String prefix, DateTime monthDateTime) throws Exception {
+        DateTime lastMonthDateTime = monthDateTime.minusMonths(1);
+        ReadWriteData tail = new DataWriter(getTailName(prodName, prefix, lastMonthDateTime), true).getData();
+        if (tail.getNum() == 0) {
+            logger.info("no tail of " + prefix + prodName + " for " + AwsUtils.monthDateFormat.print(lastMonthDateTime) + ", reading hourly data");
+            ReadWriteData lastMonthData = new DataWriter(prefix + "hourly_" + prodName + "_" + AwsUtils.monthDateFormat.print(lastMonthDateTime), true).getData();
+            tail = archiveTail(prodName, lastMonthData, prefix, lastMonthDateTime);
+        }
+        return tail.getData(0);
+    }
 
-        CsvReader reader = new CsvReader(new InputStreamReader(tempIn), ',');
+    private static String getTailName(String prodName, String prefix, DateTime monthDateTime) {
+        return prefix + "tail_" + prodName + "_" + AwsUtils.monthDateFormat.print(monthDateTime);
+    }
 
-        long lineNumber = 0;
-        List<String[]> delayedItems = Lists.newArrayList();
-        try {
-            reader.readRecord();
-            String[] headers = reader.getValues();
+    private void addValue(List<Map<TagGroup, Double>> list, int index, TagGroup tagGroup, double v) {
+        Map<TagGroup, Double> map = ReadWriteData.getCreateData(list, index);
+        Double existedV = map.get(tagGroup);
+        map.put(tagGroup, existedV == null ? v : existedV + v);
+    }
 
-            config.lineItemProcessor.initIndexes(config, withTags, headers);
 
-            while (reader.readRecord()) {
-                String[] items = reader.getValues();
-                try {
-                    processOneLine(delayedItems, items);
-                }
-                catch (Exception e) {
-                    logger.error(StringUtils.join(items, ","), e);
-                }
-                lineNumber++;
+    private void archiveSummary(String prodName, ReadWriteData data, String prefix) throws Exception {
 
-                if (lineNumber % 500000 == 0) {
-                    logger.info("processed " + lineNumber + " lines...");
+        DateTime monthDateTime = new DateTime(startMilli, DateTimeZone.UTC);
+        Collection<TagGroup> tagGroups = data.getTagGroups();
+
+        // init daily, weekly and monthly
+        List<Map<TagGroup, Double>> daily = Lists.newArrayList();
+        List<Map<TagGroup, Double>> weekly = Lists.newArrayList();
+        List<Map<TagGroup, Double>> monthly = Lists.newArrayList();
+
+        // aggregate to daily, weekly and monthly
+        int dayOfWeek = monthDateTime.getDayOfWeek();
+        int daysFromLastMonth = dayOfWeek - 1;
+        if (daysFromLastMonth > 0) {
+            // handle data from last month, add to weekly
+            Map<TagGroup, Double> lastMonthTail = getLastMonthTail(prodName, prefix, monthDateTime);
+            for (TagGroup tagGroup: tagGroups) {
+                Double v = lastMonthTail.get(tagGroup);
+                if (v != null) {
+                    addValue(weekly, 0, tagGroup, v);
                 }
-//                if (lineNumber == 40000000) {//100000000      //
-//                    break;
-//                }
             }
         }
-        catch (IOException e ) {
-            logger.error("Error processing " + fileName + " at line " + lineNumber, e);
-        }
-        finally {
-            try {
-                reader.close();
-            }
-            catch (Exception e) {
-                logger.error("Cannot close BufferedReader...", e);
+        for (int hour = 0; hour < data.getNum(); hour++) {
+            // this month, add to weekly, monthly and daily
+            Map<TagGroup, Double> map = data.getData(hour);
+
+            for (TagGroup tagGroup: tagGroups) {
+                Double v = map.get(tagGroup);
+                if (v != null && v != 0) {
+                    addValue(monthly, 0, tagGroup, v);
+                    addValue(daily, hour/24, tagGroup, v);
+                    addValue(weekly, (hour + daysFromLastMonth*24) / 24/7, tagGroup, v);
+                }
             }
         }
 
-        for (String[] items: delayedItems) {
-            processOneLine(null, items);
-        }
+        // archive daily
+        int year = monthDateTime.getYear();
+        DataWriter writer = new DataWriter(prefix + "daily_" + prodName + "_" + year, true);
+        ReadWriteData dailyData = writer.getData();
+        dailyData.setData(daily, monthDateTime.getDayOfYear() -1, false);
+        writer.archive();
+
+        // archive monthly
+        writer = new DataWriter(prefix + "monthly_" + prodName, true);
+        ReadWriteData monthlyData = writer.getData();
+        monthlyData.setData(monthly, Months.monthsBetween(config.startDate, monthDateTime).getMonths(), false);
+        writer.archive();
+
+        // archive weekly
+        writer = new DataWriter(prefix + "weekly_" + prodName, true);
+        ReadWriteData weeklyData = writer.getData();
+        DateTime weekStart = monthDateTime.withDayOfWeek(1);
+        int index;
+        if (!weekStart.isAfter(config.startDate))
+            index = 0;
+        else
+            index = Weeks.weeksBetween(config.startDate, weekStart).getWeeks() + (config.startDate.dayOfWeek() == weekStart.dayOfWeek() ? 0 : 1);
+        weeklyData.setData(weekly, index, true);
+        writer.archive();
     }
 
-    private void processOneLine(List<String[]> delayedItems, String[] items) {
-
-        LineItemProcessor.Result result = config.lineItemProcessor.process(startMilli, delayedItems == null, config, items, usageDataByProduct, costDataByProduct, ondemandRate);
+    private void init() {
+        // files spilled by data which is dropped now, or left behind by a previous process
+        FileUtils.deleteQuietly(ReadWriteData.getSpillDir(config));
 
-        if (result == LineItemProcessor.Result.delay) {
-            delayedItems.add(items);
-        }
-        else if (result == LineItemProcessor.Result.hourly && !processingMonitor) {
-            endMilli = Math.max(endMilli, config.lineItemProcessor.getEndMillis(items));
-        }
+        usageDataByProduct = new HashMap<Product, ReadWriteData>();
+        costDataByProduct = new HashMap<Product, ReadWriteData>();
+        usageDataByProduct.put(null, new ReadWriteData());
+        costDataByProduct.put(null, new ReadWriteData());
     }
 
     private Map<Long, Map<Ec2InstanceReservationPrice.Key, Double>> getOndemandCosts(long fromMillis) {
@@ -740,6 +809,296 @@ public class BillingFileProcessor extends Poller {
         }
     }
 
+    /**
+     * Processes billing files into the given usage and cost data. When delayed line items are deferred, they are kept
+     * together with the header of their file instead of being processed at the end of each file.
+     */
+    private class FileProcessor {
+        final Map<Product, ReadWriteData> usageDataByProduct;
+        final Map<Product, ReadWriteData> costDataByProduct;
+        final boolean processingMonitor;
+        final boolean deferDelayedItems;
+        final List<DelayedItems> delayedItems = Lists.newArrayList();
+        long endMilli = startMilli;
+        boolean withTags;
+
+        FileProcessor(Map<Product, ReadWriteData> usageDataByProduct, Map<Product, ReadWriteData> costDataByProduct,
+                      boolean processingMonitor, boolean deferDelayedItems) {
+            this.usageDataByProduct = usageDataByProduct;
+            this.costDataByProduct = costDataByProduct;
+            this.processingMonitor = processingMonitor;
+            this.deferDelayedItems = deferDelayedItems;
+        }
+
+        private void processBillingZipFile(File file, boolean withTags) throws Exception {
+
+            this.withTags = this.withTags || withTags;
+
+            InputStream input = new FileInputStream(file);
+            ZipArchiveInputStream zipInput = new ZipArchiveInputStream(input);
+
+            try {
+                ArchiveEntry entry;
+                while ((entry = zipInput.getNextEntry()) != null) {
+                    if (entry.isDirectory())
+                        continue;
+
+                    processBillingFile(entry.getName(), zipInput, withTags);
+                }
+            }
+            catch (IOException e) {
+                if (e.getMessage().equals("Stream closed"))
+                    logger.info("reached end of file.");
+                else
+                    logger.error("Error processing " + file, e);
+            }
+            finally {
+                try {
+                    zipInput.close();
+                } catch (IOException e) {
+                    logger.error("Error closing " + file, e);
+                }
+                try {
+                    input.close();
+                }
+                catch (IOException e1) {
+                    logger.error("Cannot close input for " + file, e1);
+                }
+            }
+        }
+
+        private void processBillingFile(String fileName, InputStream tempIn, boolean withTags) throws Exception {
+
+            BillingCsvReader reader = new BillingCsvReader(new InputStreamReader(tempIn));
+
+            long lineNumber = 0;
+            List<String[]> delayedItems = Lists.newArrayList();
+            String[] headers = null;
+            try {
+                reader.readRecord();
+                headers = reader.getValues();
+
+                config.lineItemProcessor.initIndexes(config, withTags, headers);
+
+                if (config.processorParseThreads > 1 && config.randomizer == null && !processingMonitor) {
+                    processRecordsInParallel(fileName, reader, withTags, headers, delayedItems);
+                }
+                else {
+                    while (reader.readRecord()) {
+                        String[] items = reader.getValues();
+                        try {
+                            processOneLine(delayedItems, items);
+                        }
+                        catch (Exception e) {
+                            logger.error(StringUtils.join(items, ","), e);
+                        }
+                        lineNumber++;
+
+                        if (lineNumber % 500000 == 0) {
+                            logger.info("processed " + lineNumber + " lines...");
+                        }
+        //                if (lineNumber == 40000000) {//100000000      //
+        //                    break;
+        //                }
+                    }
+                }
+            }
+            catch (IOException e ) {
+                logger.error("Error processing " + fileName + " at line " + lineNumber, e);
+            }
+            finally {
+                try {
+                    reader.close();
+                }
+                catch (Exception e) {
+                    logger.error("Cannot close BufferedReader...", e);
+                }
+            }
+
+            if (deferDelayedItems) {
+                if (delayedItems.size() > 0)
+                    this.delayedItems.add(new DelayedItems(withTags, headers, delayedItems));
+            }
+            else {
+                for (String[] items: delayedItems) {
+                    processOneLine(null, items);
+                }
+            }
+        }
+
+        /**
+         * Reads records on the calling thread and hands them in batches to a pool of workers, each of which processes
+         * its lines into its own usage and cost data. Worker data is merged into this processor's data at the end, and
+         * delayed line items are returned in file order.
+         */
+        private void processRecordsInParallel(String fileName, BillingCsvReader reader, boolean withTags, String[] headers, List<String[]> delayedItems) throws Exception {
+
+            int numWorkers = config.processorParseThreads;
+            BlockingQueue<LineBatch> queue = new ArrayBlockingQueue<LineBatch>(numWorkers * 2);
+            ExecutorService executor = Executors.newFixedThreadPool(numWorkers,
+                    new ThreadFactoryBuilder().setNameFormat("billing-line-processor-%d").setDaemon(true).build());
+
+            try {
+                List<Future<LineWorker>> futures = Lists.newArrayList();
+                for (int i = 0; i < numWorkers; i++)
+                    futures.add(executor.submit(new LineWorker(queue, withTags, headers)));
+
+                long lineNumber = 0;
+                List<String[]> batch = Lists.newArrayListWithCapacity(LINE_BATCH_SIZE);
+                try {
+                    while (reader.readRecord()) {
+                        batch.add(reader.getValues());
+                        lineNumber++;
+
+                        if (batch.size() == LINE_BATCH_SIZE) {
+                            putBatch(queue, futures, new LineBatch(lineNumber - batch.size(), batch));
+                            batch = Lists.newArrayListWithCapacity(LINE_BATCH_SIZE);
+                        }
+                        if (lineNumber % 500000 == 0) {
+                            logger.info("read " + lineNumber + " lines...");
+                        }
+                    }
+                }
+                catch (IOException e) {
+                    logger.error("Error processing " + fileName + " at line " + lineNumber, e);
+                }
+                if (batch.size() > 0)
+                    putBatch(queue, futures, new LineBatch(lineNumber - batch.size(), batch));
+                for (int i = 0; i < numWorkers; i++)
+                    putBatch(queue, futures, LineBatch.END);
+
+                TreeMap<Long, List<String[]>> delayedItemsByLine = Maps.newTreeMap();
+                for (Future<LineWorker> future: futures) {
+                    LineWorker worker = getResult(future);
+                    mergeDataByProduct(usageDataByProduct, worker.shard.usageDataByProduct);
+                    mergeDataByProduct(costDataByProduct, worker.shard.costDataByProduct);
+                    endMilli = Math.max(endMilli, worker.shard.endMilli);
+                    delayedItemsByLine.putAll(worker.delayedItemsByLine);
+                }
+                for (List<String[]> items: delayedItemsByLine.values())
+                    delayedItems.addAll(items);
+
+                logger.info("processed " + lineNumber + " lines with " + numWorkers + " threads");
+            }
+            finally {
+                executor.shutdownNow();
+            }
+        }
+
+        private void putBatch(BlockingQueue<LineBatch> queue, List<Future<LineWorker>> workers, LineBatch batch) throws Exception {
+            while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+                // a worker only finishes before the end of the file if it failed, in which case nobody may drain the queue
+                for (Future<LineWorker> worker: workers) {
+                    if (worker.isDone())
+                        getResult(worker);
+                }
+            }
+        }
+
+        private void processDelayedItems(List<DelayedItems> delayedItemsList) {
+            for (DelayedItems delayed: delayedItemsList) {
+                config.lineItemProcessor.initIndexes(config, delayed.withTags, delayed.headers);
+                for (String[] items: delayed.items) {
+                    try {
+                        processOneLine(null, items);
+                    }
+                    catch (Exception e) {
+                        logger.error(StringUtils.join(items, ","), e);
+                    }
+                }
+            }
+        }
+
+        private void processOneLine(List<String[]> delayedItems, String[] items) {
+
+            if (delayedItems != null && checkpointMilli > 0 && !processingMonitor && endsBeforeCheckpoint(items))
+                return;
+
+            LineItemProcessor.Result result = config.lineItemProcessor.process(startMilli, delayedItems == null, config, items, usageDataByProduct, costDataByProduct, ondemandRate);
+
+            if (result == LineItemProcessor.Result.delay) {
+                delayedItems.add(items);
+            }
+            else if (result == LineItemProcessor.Result.hourly && !processingMonitor) {
+                endMilli = Math.max(endMilli, config.lineItemProcessor.getEndMillis(items));
+            }
+        }
+
+        /**
+         * Lines ending before the checkpoint are already in the archived hourly data. Lines whose end time cannot be
+         * read are left to the line item processor.
+         */
+        private boolean endsBeforeCheckpoint(String[] items) {
+            try {
+                return config.lineItemProcessor.getEndMillis(items) <= checkpointMilli;
+            }
+            catch (RuntimeException e) {
+                return false;
+            }
+        }
+    }
+
+    private class LineWorker implements Callable<LineWorker> {
+        final BlockingQueue<LineBatch> queue;
+        final boolean withTags;
+        final String[] headers;
+        final FileProcessor shard = new FileProcessor(newDataByProduct(), newDataByProduct(), false, false);
+        final Map<Long, List<String[]>> delayedItemsByLine = Maps.newHashMap();
+
+        LineWorker(BlockingQueue<LineBatch> queue, boolean withTags, String[] headers) {
+            this.queue = queue;
+            this.withTags = withTags;
+            this.headers = headers;
+        }
+
+        public LineWorker call() throws Exception {
+            config.lineItemProcessor.initIndexes(config, withTags, headers);
+
+            while (true) {
+                LineBatch batch = queue.take();
+                if (batch == LineBatch.END)
+                    break;
+
+                List<String[]> delayedItems = Lists.newArrayList();
+                for (String[] items: batch.items) {
+                    try {
+                        shard.processOneLine(delayedItems, items);
+                    }
+                    catch (Exception e) {
+                        logger.error(StringUtils.join(items, ","), e);
+                    }
+                }
+                if (delayedItems.size() > 0)
+                    delayedItemsByLine.put(batch.firstLine, delayedItems);
+            }
+            return this;
+        }
+    }
+
+    private static class LineBatch {
+        static final LineBatch END = new LineBatch(-1, Collections.<String[]>emptyList());
+
+        final long firstLine;
+        final List<String[]> items;
+
+        LineBatch(long firstLine, List<String[]> items) {
+            this.firstLine = firstLine;
+            this.items = items;
+        }
+    }
+
+    static class DelayedItems {
+        final boolean withTags;
+        final String[] headers;
+        final List<String[]> items;
+
+        DelayedItems(boolean withTags, String[] headers, List<String[]> items) {
+            this.withTags = withTags;
+            this.headers = headers;
+            this.items = items;
+        }
+    }
+
     private class BillingFile {
         final S3ObjectSummary s3ObjectSummary;
         final String region;
@@ -17,15 +17,23 @@
  */
 package com.netflix.ice.processor;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.netflix.ice.common.AwsUtils;
+import com.netflix.ice.common.Rollup;
 import com.netflix.ice.common.TagGroup;
 import com.netflix.ice.tag.Tag;
+import com.netflix.ice.tag.TagType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 public class DataWriter {
     private final static Logger logger = LoggerFactory.getLogger(DataWriter.class);
@@ -47,7 +55,7 @@ public class DataWriter {
         }
 
         if (file.exists()) {
-            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
             try {
                 data = ReadWriteData.Serializer.deserialize(in);
             }
@@ -69,17 +77,62 @@ public class DataWriter {
     }
 
     void archive(ReadWriteData data) throws IOException {
+        archive(data, config.writeRollups);
+    }
+
+    void archive(ReadWriteData data, boolean withRollups) throws IOException {
 
-        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        // the last upload of this file may still be reading it
+        AwsUtils.awaitUpload(file);
+
+        CRC32 checksum = new CRC32();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(new FileOutputStream(file), checksum)));
         try {
-            ReadWriteData.Serializer.serialize(out, data);
+            ReadWriteData.Serializer.serialize(out, data, config.dataFileVersion);
         }
         finally {
             out.close();
         }
 
-        logger.info(this.dbName + " uploading to s3...");
-        AwsUtils.upload(config.workS3BucketName, config.workS3BucketPrefix, config.localDir, dbName);
-        logger.info(this.dbName + " uploading done.");
+        // rollups go first, so a reader never finds a data file newer than its rollups
+        List<File> files = Lists.newArrayList();
+        if (withRollups)
+            files.addAll(archiveRollups(data, checksum.getValue()));
+        files.add(file);
+
+        logger.info(this.dbName + " uploading to s3 in background...");
+        AwsUtils.uploadAsync(config.workS3BucketName, config.workS3BucketPrefix, files);
+    }
+
+    private List<File> archiveRollups(ReadWriteData data, long dataChecksum) throws IOException {
+        Collection<TagGroup> tagGroups = data.getTagGroups();
+        List<File> rollupFiles = Lists.newArrayList();
+
+        for (TagType dimension: Rollup.DIMENSIONS) {
+            Map<String, double[]> values = Maps.newHashMap();
+            for (TagGroup tagGroup: tagGroups) {
+                Tag tag = Rollup.getTag(tagGroup, dimension);
+                if (tag == null)
+                    continue;
+                double[] row = values.get(tag.name);
+                if (row == null) {
+                    row = new double[data.getNum()];
+                    values.put(tag.name, row);
+                }
+                data.addValues(tagGroup, row);
+            }
+
+            File rollupFile = new File(config.localDir, Rollup.getFileName(dbName, dimension));
+            AwsUtils.awaitUpload(rollupFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(rollupFile)));
+            try {
+                Rollup.Serializer.serialize(out, new Rollup(dimension, dataChecksum, data.getNum(), values));
+            }
+            finally {
+                out.close();
+            }
+            rollupFiles.add(rollupFile);
+        }
+        return rollupFiles;
     }
 }
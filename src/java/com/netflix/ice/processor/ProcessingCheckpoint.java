@@ -0,0 +1,200 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.processor;
+
+import com.google.common.collect.Lists;
+import com.netflix.ice.common.AwsUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * State of the last archived run of one month, used to process only what is new in the next run of the same month.
+ *
+ * The archived hourly data is taken as final up to the start of the day before the last processed hour. Line items
+ * ending before that are skipped by the next run, except delayed line items: they are spread over the whole month, so
+ * they are kept here and processed again every time. If the delayed line items after the checkpoint are not the same as
+ * in the last run, the month has to be processed from scratch.
+ */
+class ProcessingCheckpoint {
+    private final static Logger logger = LoggerFactory.getLogger(ProcessingCheckpoint.class);
+    private static final int VERSION = 1;
+
+    final long endMilli;
+    final List<String> billingFileKeys;
+    final List<String> products;
+    final List<BillingFileProcessor.DelayedItems> delayedItems;
+
+    ProcessingCheckpoint(long endMilli, List<String> billingFileKeys, List<String> products, List<BillingFileProcessor.DelayedItems> delayedItems) {
+        this.endMilli = endMilli;
+        this.billingFileKeys = billingFileKeys;
+        this.products = products;
+        this.delayedItems = delayedItems;
+    }
+
+    /**
+     * Start of the first hour to be processed again. Everything before it is taken from the archived hourly data.
+     */
+    long getFromMilli() {
+        return new DateTime(endMilli, DateTimeZone.UTC).minusDays(1).withMillisOfDay(0).getMillis();
+    }
+
+    /**
+     * Delayed line items of the last run which end before the checkpoint. Their lines are skipped by the current run.
+     */
+    List<BillingFileProcessor.DelayedItems> getDelayedItemsBefore(ProcessorConfig config, long fromMilli) {
+        return filterDelayedItems(config, fromMilli, true);
+    }
+
+    /**
+     * Checks that the current run found the same delayed line items after the checkpoint as the last run.
+     */
+    boolean hasSameDelayedItemsAfter(ProcessorConfig config, long fromMilli, List<BillingFileProcessor.DelayedItems> current) {
+        List<String[]> expected = flatten(filterDelayedItems(config, fromMilli, false));
+        List<String[]> actual = flatten(current);
+        if (expected.size() != actual.size())
+            return false;
+        for (int i = 0; i < expected.size(); i++) {
+            if (!Arrays.equals(expected.get(i), actual.get(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private List<BillingFileProcessor.DelayedItems> filterDelayedItems(ProcessorConfig config, long fromMilli, boolean before) {
+        List<BillingFileProcessor.DelayedItems> result = Lists.newArrayList();
+        for (BillingFileProcessor.DelayedItems delayed: delayedItems) {
+            config.lineItemProcessor.initIndexes(config, delayed.withTags, delayed.headers);
+            List<String[]> items = Lists.newArrayList();
+            for (String[] item: delayed.items) {
+                if ((config.lineItemProcessor.getEndMillis(item) <= fromMilli) == before)
+                    items.add(item);
+            }
+            if (items.size() > 0)
+                result.add(new BillingFileProcessor.DelayedItems(delayed.withTags, delayed.headers, items));
+        }
+        return result;
+    }
+
+    private static List<String[]> flatten(List<BillingFileProcessor.DelayedItems> delayedItems) {
+        List<String[]> result = Lists.newArrayList();
+        for (BillingFileProcessor.DelayedItems delayed: delayedItems)
+            result.addAll(delayed.items);
+        return result;
+    }
+
+    private static String getFileName(String month) {
+        return "checkpoint_" + month;
+    }
+
+    /**
+     * Loads the checkpoint of the given month, or returns null if there is none.
+     */
+    static ProcessingCheckpoint load(ProcessorConfig config, String month) {
+        File file = new File(config.localDir, getFileName(month));
+        try {
+            AwsUtils.downloadFileIfNotExist(config.workS3BucketName, config.workS3BucketPrefix, file);
+            if (!file.exists())
+                return null;
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                return Serializer.deserialize(in);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (Exception e) {
+            logger.error("Error loading checkpoint " + file, e);
+            return null;
+        }
+    }
+
+    void save(ProcessorConfig config, String month) throws IOException {
+        File file = new File(config.localDir, getFileName(month));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            Serializer.serialize(out, this);
+        }
+        finally {
+            out.close();
+        }
+        logger.info(file + " uploading to s3...");
+        AwsUtils.upload(config.workS3BucketName, config.workS3BucketPrefix, file);
+        logger.info(file + " uploading done.");
+    }
+
+    static class Serializer {
+        static void serialize(DataOutput out, ProcessingCheckpoint checkpoint) throws IOException {
+            out.writeInt(VERSION);
+            out.writeLong(checkpoint.endMilli);
+            writeStrings(out, checkpoint.billingFileKeys);
+            writeStrings(out, checkpoint.products);
+            out.writeInt(checkpoint.delayedItems.size());
+            for (BillingFileProcessor.DelayedItems delayed: checkpoint.delayedItems) {
+                out.writeBoolean(delayed.withTags);
+                writeStrings(out, Arrays.asList(delayed.headers));
+                out.writeInt(delayed.items.size());
+                for (String[] items: delayed.items)
+                    writeStrings(out, Arrays.asList(items));
+            }
+        }
+
+        static ProcessingCheckpoint deserialize(DataInput in) throws IOException {
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("unknown checkpoint version " + version);
+
+            long endMilli = in.readLong();
+            List<String> billingFileKeys = readStrings(in);
+            List<String> products = readStrings(in);
+            int size = in.readInt();
+            List<BillingFileProcessor.DelayedItems> delayedItems = Lists.newArrayList();
+            for (int i = 0; i < size; i++) {
+                boolean withTags = in.readBoolean();
+                String[] headers = readStrings(in).toArray(new String[0]);
+                int numItems = in.readInt();
+                List<String[]> items = Lists.newArrayList();
+                for (int j = 0; j < numItems; j++)
+                    items.add(readStrings(in).toArray(new String[0]));
+                delayedItems.add(new BillingFileProcessor.DelayedItems(withTags, headers, items));
+            }
+            return new ProcessingCheckpoint(endMilli, billingFileKeys, products, delayedItems);
+        }
+
+        private static void writeStrings(DataOutput out, List<String> strings) throws IOException {
+            out.writeInt(strings.size());
+            for (String s: strings)
+                out.writeUTF(s == null ? "" : s);
+        }
+
+        private static List<String> readStrings(DataInput in) throws IOException {
+            int size = in.readInt();
+            List<String> strings = Lists.newArrayList();
+            for (int i = 0; i < size; i++)
+                strings.add(in.readUTF());
+            return strings;
+        }
+    }
+}
@@ -43,6 +43,15 @@ public class ProcessorConfig extends Config {
     public final Randomizer randomizer;
     public final double costPerMonitorMetricPerHour;
     public final boolean useBlended;
+    public final int processorThreads;
+    public final int processorParseThreads;
+    public final int dataFileVersion;
+    public final int tagdbFileVersion;
+    public final boolean incrementalProcessing;
+    public final boolean writeRollups;
+    public final int archiveThreads;
+    public final int spillMemoryMB;
+    public final int reservationThreads;
 
     public final String useCostForResourceGroup;
 
@@ -91,6 +100,15 @@ public class ProcessorConfig extends Config {
         useBlended = properties.getProperty(IceOptions.USE_BLENDED) == null ? false : Boolean.parseBoolean(properties.getProperty(IceOptions.USE_BLENDED));
 
         useCostForResourceGroup = properties.getProperty(IceOptions.RESOURCE_GROUP_COST, "modeled");
+        processorThreads = Integer.parseInt(properties.getProperty(IceOptions.PROCESSOR_THREADS, "1"));
+        processorParseThreads = Integer.parseInt(properties.getProperty(IceOptions.PROCESSOR_PARSE_THREADS, "1"));
+        dataFileVersion = Integer.parseInt(properties.getProperty(IceOptions.DATA_FILE_VERSION, "" + DataFileFormat.DEFAULT_VERSION));
+        tagdbFileVersion = Integer.parseInt(properties.getProperty(IceOptions.TAGDB_FILE_VERSION, "" + TagGroup.Serializer.TAGDB_DEFAULT_VERSION));
+        incrementalProcessing = Boolean.parseBoolean(properties.getProperty(IceOptions.PROCESSOR_INCREMENTAL, "false"));
+        writeRollups = Boolean.parseBoolean(properties.getProperty(IceOptions.PROCESSOR_ROLLUPS, "false"));
+        archiveThreads = Integer.parseInt(properties.getProperty(IceOptions.PROCESSOR_ARCHIVE_THREADS, "1"));
+        spillMemoryMB = Integer.parseInt(properties.getProperty(IceOptions.PROCESSOR_SPILL_MEMORY_MB, "0"));
+        reservationThreads = Integer.parseInt(properties.getProperty(IceOptions.PROCESSOR_RESERVATION_THREADS, "1"));
 
         ProcessorConfig.instance = this;
 
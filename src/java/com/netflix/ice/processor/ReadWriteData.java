@@ -20,64 +20,236 @@ package com.netflix.ice.processor;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.netflix.ice.common.DataFileFormat;
 import com.netflix.ice.common.TagGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.DataInput;
-import java.io.DataOutput;
-import java.io.IOException;
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.io.*;
+import java.util.*;
 
+/**
+ * Hourly values per tag group. Values are kept in columns: each tag group is mapped once to a dense id, and the id
+ * indexes the column holding the values of that tag group across hours. A column starts sparse, as the sorted hours
+ * of its values and the values, and turns into a double[] indexed by hour once it has values for a third of the hours
+ * it spans. Tag groups with a few values in a month, such as most resource groups, take a few bytes per value rather
+ * than a whole month of doubles. Hours without a value hold NaN.
+ *
+ * Data created with a memory limit spills: when its columns take more than the limit while values are added, they are
+ * written to a local file sorted by tag group and dropped from memory. Values added later start new columns. Anything
+ * other than adding values first merges the spilled files back into memory, reading them side by side in tag group
+ * order and adding up the values of each tag group in the order they were spilled. Archiving is such an access, so the
+ * whole data is in memory again when it is written.
+ */
 public class ReadWriteData {
-    private List<Map<TagGroup, Double>> data;
+    private final static Logger logger = LoggerFactory.getLogger(ReadWriteData.class);
+
+    // estimated bytes of a column besides its values: the column and array headers, its tag group entry and its id
+    private static final int COLUMN_OVERHEAD = 80;
+
+    private ColumnIndex ids = new ColumnIndex();
+    private List<TagGroup> tagGroups = Lists.newArrayList();
+    private List<Column> columns = Lists.newArrayList();
+    private int num;
+    // number of values in memory of each hour, so the size of an hour is known without going through the columns
+    private int[] hourSizes = new int[0];
+
+    private final File spillDir;
+    private final long maxMemoryBytes;
+    private long memoryBytes = 0;
+    private List<SpillFile> spillFiles = Lists.newArrayList();
 
     public ReadWriteData() {
-        data = Lists.newArrayList();
+        this(null, 0);
+    }
+
+    /**
+     * Creates data which spills its values to files in spillDir when they take more than maxMemoryBytes.
+     */
+    public ReadWriteData(File spillDir, long maxMemoryBytes) {
+        this.spillDir = spillDir;
+        this.maxMemoryBytes = maxMemoryBytes;
     }
 
-    private ReadWriteData(List<Map<TagGroup, Double>> data) {
-        this.data = data;
+    /**
+     * Creates the data of one product, which spills if IceOptions.PROCESSOR_SPILL_MEMORY_MB is set.
+     */
+    public static ReadWriteData newProductData(ProcessorConfig config) {
+        if (config.spillMemoryMB <= 0)
+            return new ReadWriteData();
+        return new ReadWriteData(getSpillDir(config), config.spillMemoryMB * 1024L * 1024L);
+    }
+
+    static File getSpillDir(ProcessorConfig config) {
+        return new File(config.localDir, "spill");
+    }
+
+    boolean spills() {
+        return maxMemoryBytes > 0;
     }
 
     public int getNum() {
-        return data.size();
+        return num;
     }
 
     void cutData(int num) {
-        if (data.size() > num)
-            data = data.subList(0, num);
+        if (this.num > num) {
+            for (SpillFile spillFile: spillFiles)
+                spillFile.num = Math.min(spillFile.num, num);
+            for (Column column: columns)
+                column.clear(num, this.num);
+            if (hourSizes.length > num)
+                Arrays.fill(hourSizes, num, Math.min(hourSizes.length, this.num), 0);
+            this.num = num;
+        }
     }
 
+    /**
+     * Returns a map view of hour i. The view reads and writes through to the columns. Its size is kept up to date, but
+     * going through its entries goes through the columns of all tag groups.
+     */
     public Map<TagGroup, Double> getData(int i) {
-        return getCreateData(data, i);
+        ensureNum(i + 1);
+        return new HourMap(i);
+    }
+
+    /**
+     * Adds value to the value of tagGroup at hour i.
+     */
+    public void add(int i, TagGroup tagGroup, double value) {
+        if (maxMemoryBytes > 0 && memoryBytes > maxMemoryBytes)
+            spill();
+        ensureNum(i + 1);
+        Column column = columns.get(getCreateId(tagGroup));
+        long bytes = column.getBytes();
+        hourSizes[i] += column.add(i, value);
+        memoryBytes += column.getBytes() - bytes;
+    }
+
+    /**
+     * Sets the value of tagGroup at hour i.
+     */
+    public void put(int i, TagGroup tagGroup, double value) {
+        unspill();
+        ensureNum(i + 1);
+        setValue(columns.get(getCreateId(tagGroup)), i, value);
     }
 
     void setData(List<Map<TagGroup, Double>> newData, int startIndex, boolean merge) {
+        unspill();
         for (int i = 0; i < newData.size(); i++) {
             int index = startIndex + i;
+            ensureNum(index + 1);
 
-            if (index > data.size()) {
-                getCreateData(data, index-1);
+            if (!merge)
+                clearHour(index);
+            for (Map.Entry<TagGroup, Double> entry: newData.get(i).entrySet()) {
+                put(index, entry.getKey(), entry.getValue());
             }
-            if (index >= data.size()) {
-                data.add(newData.get(i));
+        }
+    }
+
+    /**
+     * Adds all values of other data to this data, hour by hour.
+     */
+    void merge(ReadWriteData other) {
+        // spilled files of the other data are added up with the files of this data, unless this data does not spill
+        if (maxMemoryBytes > 0) {
+            spillFiles.addAll(other.spillFiles);
+            other.spillFiles = Lists.newArrayList();
+        }
+        else {
+            other.unspill();
+        }
+
+        ensureNum(other.num);
+        for (int id = 0; id < other.columns.size(); id++) {
+            Column otherColumn = other.columns.get(id);
+            TagGroup tagGroup = other.tagGroups.get(id);
+            for (int k = 0; k < otherColumn.entries(); k++) {
+                int i = otherColumn.hour(k);
+                if (i >= other.num)
+                    break;
+                double v = otherColumn.value(k);
+                if (!Double.isNaN(v))
+                    add(i, tagGroup, v);
             }
-            else {
-                if (merge) {
-                    Map<TagGroup, Double> existed = data.get(index);
-                    for (Map.Entry<TagGroup, Double> entry: newData.get(i).entrySet()) {
-                        existed.put(entry.getKey(), entry.getValue());
-                    }
-                }
-                else {
-                    data.set(index, newData.get(i));
-                }
+        }
+    }
+
+    /**
+     * Replaces the values from hour fromHour on with the values of other data. Values before fromHour are kept.
+     */
+    void replaceFrom(int fromHour, ReadWriteData other) {
+        unspill();
+        other.unspill();
+        cutData(fromHour);
+        ensureNum(Math.max(fromHour, other.num));
+        for (int id = 0; id < other.columns.size(); id++) {
+            Column otherColumn = other.columns.get(id);
+            TagGroup tagGroup = other.tagGroups.get(id);
+            for (int k = 0; k < otherColumn.entries(); k++) {
+                int i = otherColumn.hour(k);
+                if (i >= other.num)
+                    break;
+                double v = otherColumn.value(k);
+                if (i >= fromHour && !Double.isNaN(v))
+                    put(i, tagGroup, v);
             }
         }
     }
 
+    /**
+     * Adds the values of tagGroup to result, hour by hour. Hours without a value add nothing.
+     */
+    void addValues(TagGroup tagGroup, double[] result) {
+        unspill();
+        int id = getId(tagGroup);
+        if (id < 0)
+            return;
+        Column column = columns.get(id);
+        int length = Math.min(num, result.length);
+        for (int k = 0; k < column.entries(); k++) {
+            int i = column.hour(k);
+            if (i >= length)
+                break;
+            double v = column.value(k);
+            if (!Double.isNaN(v))
+                result[i] += v;
+        }
+    }
+
+    /**
+     * Sets the values of tagGroup to the values of other data, clearing the hours where other data has none.
+     */
+    void putValues(TagGroup tagGroup, ReadWriteData other) {
+        unspill();
+        other.unspill();
+        ensureNum(other.num);
+        int otherId = other.getId(tagGroup);
+        if (otherId < 0) {
+            int id = getId(tagGroup);
+            if (id >= 0) {
+                for (int i = 0; i < other.num; i++)
+                    setValue(columns.get(id), i, Double.NaN);
+            }
+            return;
+        }
+
+        Column otherColumn = other.columns.get(otherId);
+        Column column = columns.get(getCreateId(tagGroup));
+        for (int i = 0; i < other.num; i++)
+            setValue(column, i, otherColumn.get(i));
+    }
+
+    /**
+     * @return the tag groups which have or had a value, including those whose values were all removed
+     */
+    Collection<TagGroup> getColumnTagGroups() {
+        unspill();
+        return Lists.newArrayList(tagGroups);
+    }
+
     static Map<TagGroup, Double> getCreateData(List<Map<TagGroup, Double>> data, int i) {
         if (i >= data.size()) {
             for (int j = data.size(); j <= i; j++) {
@@ -88,62 +260,683 @@ public class ReadWriteData {
     }
 
     public Collection<TagGroup> getTagGroups() {
+        unspill();
         Set<TagGroup> keys = Sets.newTreeSet();
 
-        for (Map<TagGroup, Double> map: data) {
-            keys.addAll(map.keySet());
+        for (int id = 0; id < columns.size(); id++) {
+            if (columns.get(id).hasValues(num))
+                keys.add(tagGroups.get(id));
         }
 
         return keys;
     }
 
+    private void ensureNum(int num) {
+        if (this.num < num)
+            this.num = num;
+        if (hourSizes.length < num)
+            hourSizes = Arrays.copyOf(hourSizes, Math.max(num, hourSizes.length * 2));
+    }
+
+    /**
+     * Sets a value of column, keeping count of the values of its hour and of the memory taken.
+     */
+    private void setValue(Column column, int i, double value) {
+        long bytes = column.getBytes();
+        hourSizes[i] += column.set(i, value);
+        memoryBytes += column.getBytes() - bytes;
+    }
+
+    /**
+     * Counts the values of each hour and the memory taken again, after the columns were replaced.
+     */
+    private void recount() {
+        hourSizes = new int[num];
+        memoryBytes = 0;
+        for (Column column: columns) {
+            memoryBytes += COLUMN_OVERHEAD + column.getBytes();
+            for (int k = 0; k < column.entries(); k++) {
+                int i = column.hour(k);
+                if (i >= num)
+                    break;
+                if (!Double.isNaN(column.value(k)))
+                    hourSizes[i]++;
+            }
+        }
+    }
+
+    private int getId(Object key) {
+        if (!(key instanceof TagGroup))
+            return -1;
+        TagGroup tagGroup = TagGroup.findTagGroup((TagGroup)key);
+        return tagGroup == null ? -1 : ids.get(tagGroup.id);
+    }
+
+    private int getCreateId(TagGroup tagGroup) {
+        tagGroup = TagGroup.getTagGroup(tagGroup);
+        int id = ids.get(tagGroup.id);
+        if (id < 0) {
+            id = tagGroups.size();
+            ids.put(tagGroup.id, id);
+            tagGroups.add(tagGroup);
+            Column column = new Column();
+            columns.add(column);
+            memoryBytes += COLUMN_OVERHEAD + column.getBytes();
+        }
+        return id;
+    }
+
+    private double getValue(int id, int i) {
+        return columns.get(id).get(i);
+    }
+
+    private int getHourSize(int i) {
+        return i < hourSizes.length ? hourSizes[i] : 0;
+    }
+
+    private void clearHour(int i) {
+        for (Column column: columns)
+            column.set(i, Double.NaN);
+        if (i < hourSizes.length)
+            hourSizes[i] = 0;
+    }
+
+    private static double[] newColumn(int capacity) {
+        double[] column = new double[capacity];
+        Arrays.fill(column, Double.NaN);
+        return column;
+    }
+
+    /**
+     * Writes the columns to a new spill file and drops them from memory.
+     */
+    private void spill() {
+        Integer[] order = new Integer[columns.size()];
+        for (int id = 0; id < order.length; id++)
+            order[id] = id;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer id1, Integer id2) {
+                return tagGroups.get(id1).compareTo(tagGroups.get(id2));
+            }
+        });
+
+        File file = null;
+        try {
+            spillDir.mkdirs();
+            file = File.createTempFile("data", ".spill", spillDir);
+            List<TagGroup> spilledTagGroups = Lists.newArrayList();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                for (int id: order) {
+                    Column column = columns.get(id);
+                    int count = column.count(num);
+                    if (count == 0)
+                        continue;
+
+                    spilledTagGroups.add(tagGroups.get(id));
+                    out.writeInt(count);
+                    for (int k = 0; k < column.entries(); k++) {
+                        int i = column.hour(k);
+                        if (i >= num)
+                            break;
+                        if (!Double.isNaN(column.value(k))) {
+                            out.writeInt(i);
+                            out.writeDouble(column.value(k));
+                        }
+                    }
+                }
+            }
+            finally {
+                out.close();
+            }
+
+            logger.info("spilled " + spilledTagGroups.size() + " tag groups to " + file);
+            spillFiles.add(new SpillFile(file, spilledTagGroups.toArray(new TagGroup[spilledTagGroups.size()]), num));
+        }
+        catch (IOException e) {
+            if (file != null)
+                file.delete();
+            throw new RuntimeException("error spilling data to " + spillDir, e);
+        }
+
+        ids = new ColumnIndex();
+        tagGroups = Lists.newArrayList();
+        columns = Lists.newArrayList();
+        memoryBytes = 0;
+        hourSizes = new int[0];
+    }
+
+    /**
+     * Merges the spilled files back into memory. The files are read side by side in tag group order, and the values of
+     * a tag group are added up in the order the files were spilled, followed by the values added since the last spill.
+     */
+    private void unspill() {
+        if (spillFiles.isEmpty())
+            return;
+
+        List<SpillFile> files = spillFiles;
+        ColumnIndex recentIds = ids;
+        List<TagGroup> recentTagGroups = tagGroups;
+        List<Column> recentColumns = columns;
+        spillFiles = Lists.newArrayList();
+        ids = new ColumnIndex();
+        tagGroups = Lists.newArrayList();
+        columns = Lists.newArrayList();
+
+        List<SpillReader> openReaders = Lists.newArrayList();
+        PriorityQueue<SpillReader> readers = new PriorityQueue<SpillReader>();
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                SpillReader reader = new SpillReader(files.get(i), i);
+                openReaders.add(reader);
+                if (reader.next())
+                    readers.add(reader);
+            }
+
+            while (!readers.isEmpty()) {
+                TagGroup tagGroup = readers.peek().tagGroup;
+                Column column = columns.get(getCreateId(tagGroup));
+                while (!readers.isEmpty() && readers.peek().tagGroup == tagGroup) {
+                    SpillReader reader = readers.poll();
+                    reader.addTo(column, num);
+                    if (reader.next())
+                        readers.add(reader);
+                }
+
+                int recentId = recentIds.get(tagGroup.id);
+                if (recentId >= 0)
+                    addColumn(recentColumns.get(recentId), column);
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("error reading spilled data", e);
+        }
+        finally {
+            for (SpillReader reader: openReaders)
+                reader.close();
+            for (SpillFile file: files)
+                file.file.delete();
+        }
+
+        // tag groups which were not spilled
+        for (int recentId = 0; recentId < recentTagGroups.size(); recentId++) {
+            TagGroup tagGroup = recentTagGroups.get(recentId);
+            if (ids.get(tagGroup.id) < 0)
+                columns.set(getCreateId(tagGroup), recentColumns.get(recentId));
+        }
+        recount();
+    }
+
+    private void addColumn(Column from, Column to) {
+        for (int k = 0; k < from.entries(); k++) {
+            int i = from.hour(k);
+            if (i >= num)
+                break;
+            if (!Double.isNaN(from.value(k)))
+                to.add(i, from.value(k));
+        }
+    }
+
+    /**
+     * Drops all values, including the spilled ones.
+     */
+    void clear() {
+        for (SpillFile file: spillFiles)
+            file.file.delete();
+        spillFiles = Lists.newArrayList();
+        ids = new ColumnIndex();
+        tagGroups = Lists.newArrayList();
+        columns = Lists.newArrayList();
+        memoryBytes = 0;
+        hourSizes = new int[0];
+    }
+
+    /**
+     * A spilled file: for each of its tag groups, in order, the number of values followed by the hour and the value of
+     * each. Hours from num on were cut after the file was written.
+     */
+    private static class SpillFile {
+        final File file;
+        final TagGroup[] tagGroups;
+        int num;
+
+        SpillFile(File file, TagGroup[] tagGroups, int num) {
+            this.file = file;
+            this.tagGroups = tagGroups;
+            this.num = num;
+        }
+    }
+
+    private static class SpillReader implements Comparable<SpillReader> {
+        private final SpillFile spillFile;
+        private final int order;
+        private final DataInputStream in;
+        private int index = -1;
+        TagGroup tagGroup;
+
+        SpillReader(SpillFile spillFile, int order) throws IOException {
+            this.spillFile = spillFile;
+            this.order = order;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile.file)));
+        }
+
+        boolean next() {
+            if (++index >= spillFile.tagGroups.length)
+                return false;
+            tagGroup = spillFile.tagGroups[index];
+            return true;
+        }
+
+        void addTo(Column column, int num) throws IOException {
+            int count = in.readInt();
+            for (int j = 0; j < count; j++) {
+                int i = in.readInt();
+                double value = in.readDouble();
+                if (i < spillFile.num && i < num)
+                    column.add(i, value);
+            }
+        }
+
+        void close() {
+            try {
+                in.close();
+            }
+            catch (IOException e) {
+                logger.error("error closing " + spillFile.file, e);
+            }
+        }
+
+        public int compareTo(SpillReader other) {
+            int result = tagGroup.compareTo(other.tagGroup);
+            return result != 0 ? result : order - other.order;
+        }
+    }
+
+    /**
+     * Values of one tag group by hour. A sparse column holds the hours of its values sorted in hours, and the values at
+     * the same positions in values. A dense column has no hours, and values is indexed by hour. Either way the entries
+     * of a column go by increasing hour, and hours without a value may hold NaN.
+     */
+    private static final class Column {
+        private static final int SPARSE_CAPACITY = 4;
+        private static final int DENSE_CAPACITY = 32;
+
+        private int[] hours = new int[SPARSE_CAPACITY];
+        private double[] values = new double[SPARSE_CAPACITY];
+        private int size = 0;
+
+        int entries() {
+            return hours == null ? values.length : size;
+        }
+
+        int hour(int k) {
+            return hours == null ? k : hours[k];
+        }
+
+        double value(int k) {
+            return values[k];
+        }
+
+        double get(int i) {
+            if (hours == null)
+                return i < values.length ? values[i] : Double.NaN;
+            int k = find(i);
+            return k >= 0 ? values[k] : Double.NaN;
+        }
+
+        /**
+         * Sets the value of hour i, or removes it if value is NaN.
+         * @return 1 if hour i gets a value it did not have, -1 if it loses its value, 0 otherwise
+         */
+        int set(int i, double value) {
+            boolean has = !Double.isNaN(value);
+            if (hours == null) {
+                if (i >= values.length) {
+                    if (!has)
+                        return 0;
+                    grow(i);
+                }
+                boolean had = !Double.isNaN(values[i]);
+                values[i] = value;
+                return (has ? 1 : 0) - (had ? 1 : 0);
+            }
+
+            int k = find(i);
+            if (k >= 0) {
+                if (has) {
+                    values[k] = value;
+                    return 0;
+                }
+                System.arraycopy(hours, k + 1, hours, k, size - k - 1);
+                System.arraycopy(values, k + 1, values, k, size - k - 1);
+                size--;
+                return -1;
+            }
+            if (!has)
+                return 0;
+            insert(-k - 1, i, value);
+            return 1;
+        }
+
+        /**
+         * Adds value to the value of hour i, or sets it if hour i has none.
+         * @return 1 if hour i had no value, 0 otherwise
+         */
+        int add(int i, double value) {
+            if (hours == null) {
+                if (i >= values.length)
+                    grow(i);
+                double v = values[i];
+                values[i] = Double.isNaN(v) ? value : v + value;
+                return Double.isNaN(v) ? 1 : 0;
+            }
+
+            int k = find(i);
+            if (k >= 0) {
+                double v = values[k];
+                values[k] = Double.isNaN(v) ? value : v + value;
+                return 0;
+            }
+            insert(-k - 1, i, value);
+            return 1;
+        }
+
+        int count(int num) {
+            int count = 0;
+            for (int k = 0; k < entries() && hour(k) < num; k++) {
+                if (!Double.isNaN(values[k]))
+                    count++;
+            }
+            return count;
+        }
+
+        boolean hasValues(int num) {
+            for (int k = 0; k < entries() && hour(k) < num; k++) {
+                if (!Double.isNaN(values[k]))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Removes the values of hours from to to - 1.
+         */
+        void clear(int from, int to) {
+            if (hours == null) {
+                if (from < values.length)
+                    Arrays.fill(values, from, Math.min(to, values.length), Double.NaN);
+                return;
+            }
+            int start = find(from);
+            start = start >= 0 ? start : -start - 1;
+            int end = find(to);
+            end = end >= 0 ? end : -end - 1;
+            System.arraycopy(hours, end, hours, start, size - end);
+            System.arraycopy(values, end, values, start, size - end);
+            size -= end - start;
+        }
+
+        long getBytes() {
+            return hours == null ? 8L * values.length : 12L * values.length;
+        }
+
+        private int find(int i) {
+            // values mostly come in hour order
+            if (size > 0 && hours[size - 1] <= i)
+                return hours[size - 1] == i ? size - 1 : -size - 1;
+            return Arrays.binarySearch(hours, 0, size, i);
+        }
+
+        private void insert(int k, int i, double value) {
+            if (size == hours.length) {
+                hours = Arrays.copyOf(hours, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            System.arraycopy(hours, k, hours, k + 1, size - k);
+            System.arraycopy(values, k, values, k + 1, size - k);
+            hours[k] = i;
+            values[k] = value;
+            size++;
+
+            // a double per hour takes less than an hour and a double per value from here on
+            if (size * 3 > hours[size - 1] + 1) {
+                double[] dense = newColumn(Math.max(DENSE_CAPACITY, hours[size - 1] + 1));
+                for (int j = 0; j < size; j++)
+                    dense[hours[j]] = values[j];
+                hours = null;
+                values = dense;
+                size = 0;
+            }
+        }
+
+        private void grow(int i) {
+            int length = values.length;
+            values = Arrays.copyOf(values, Math.max(i + 1, length * 2));
+            Arrays.fill(values, length, values.length, Double.NaN);
+        }
+    }
+
+    private class HourMap extends AbstractMap<TagGroup, Double> {
+        private final int hour;
+
+        HourMap(int hour) {
+            this.hour = hour;
+        }
+
+        @Override
+        public Double get(Object key) {
+            unspill();
+            int id = getId(key);
+            if (id < 0)
+                return null;
+            double v = getValue(id, hour);
+            return Double.isNaN(v) ? null : v;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Double put(TagGroup key, Double value) {
+            Double existed = get(key);
+            ReadWriteData.this.put(hour, key, value);
+            return existed;
+        }
+
+        @Override
+        public Double remove(Object key) {
+            unspill();
+            Double existed = get(key);
+            if (existed != null)
+                setValue(columns.get(getId(key)), hour, Double.NaN);
+            return existed;
+        }
+
+        @Override
+        public int size() {
+            unspill();
+            return getHourSize(hour);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+
+        @Override
+        public Set<Entry<TagGroup, Double>> entrySet() {
+            return new AbstractSet<Entry<TagGroup, Double>>() {
+                @Override
+                public Iterator<Entry<TagGroup, Double>> iterator() {
+                    unspill();
+                    return new Iterator<Entry<TagGroup, Double>>() {
+                        // stops going through the columns once all values of the hour were found
+                        private int remaining = getHourSize(hour);
+                        private int next = advance(0);
+                        private int last = -1;
+
+                        private int advance(int id) {
+                            if (remaining == 0)
+                                return columns.size();
+                            while (id < columns.size() && Double.isNaN(getValue(id, hour)))
+                                id++;
+                            return id;
+                        }
+
+                        public boolean hasNext() {
+                            return next < columns.size();
+                        }
+
+                        public Entry<TagGroup, Double> next() {
+                            if (!hasNext())
+                                throw new NoSuchElementException();
+                            last = next;
+                            remaining--;
+                            next = advance(next + 1);
+                            return new SimpleImmutableEntry<TagGroup, Double>(tagGroups.get(last), getValue(last, hour));
+                        }
+
+                        public void remove() {
+                            if (last < 0)
+                                throw new IllegalStateException();
+                            setValue(columns.get(last), hour, Double.NaN);
+                            last = -1;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return HourMap.this.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * Column ids by registry id of the tag group, in an open addressing table of ints, so that finding the column of a
+     * tag group neither boxes nor hashes objects.
+     */
+    private static class ColumnIndex {
+        private int[] keys = newKeys(64);
+        private int[] values = new int[64];
+        private int size = 0;
+
+        int get(int key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+                if (keys[i] == key)
+                    return values[i];
+                if (keys[i] < 0)
+                    return -1;
+            }
+        }
+
+        void put(int key, int value) {
+            if ((size + 1) * 2 > keys.length) {
+                int[] oldKeys = keys;
+                int[] oldValues = values;
+                keys = newKeys(oldKeys.length * 2);
+                values = new int[oldKeys.length * 2];
+                size = 0;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] >= 0)
+                        put(oldKeys[i], oldValues[i]);
+                }
+            }
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] >= 0 && keys[i] != key)
+                i = (i + 1) & mask;
+            if (keys[i] < 0)
+                size++;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        private static int slot(int key, int mask) {
+            return (key * 0x9e3779b9 >>> 16 ^ key) & mask;
+        }
+
+        private static int[] newKeys(int capacity) {
+            int[] keys = new int[capacity];
+            Arrays.fill(keys, -1);
+            return keys;
+        }
+    }
+
     public static class Serializer {
         public static void serialize(DataOutput out, ReadWriteData data) throws IOException {
+            serialize(out, data, DataFileFormat.DEFAULT_VERSION);
+        }
+
+        public static void serialize(DataOutput out, ReadWriteData data, int version) throws IOException {
 
             Collection<TagGroup> keys = data.getTagGroups();
-            out.writeInt(keys.size());
+            Column[] keyColumns = new Column[keys.size()];
+            int j = 0;
             for (TagGroup tagGroup: keys) {
-                TagGroup.Serializer.serialize(out, tagGroup);
+                keyColumns[j++] = data.columns.get(data.getId(tagGroup));
             }
 
-            out.writeInt(data.data.size());
-            for (int i = 0; i < data.data.size(); i++) {
-                Map<TagGroup, Double> map = data.getData(i);
-                out.writeBoolean(map.size() > 0);
-                if (map.size() > 0) {
-                    for (TagGroup tagGroup: keys) {
-                        Double v = map.get(tagGroup);
-                        out.writeDouble(v == null ? 0 : v);
+            DataFileFormat.Writer writer = new DataFileFormat.Writer(out, keys, data.num, version);
+            // position of each column at the current row, as entries go by increasing hour
+            int[] positions = new int[keyColumns.length];
+            int[] columns = new int[keyColumns.length];
+            double[] values = new double[keyColumns.length];
+            for (int i = 0; i < data.num; i++) {
+                int count = 0;
+                for (j = 0; j < keyColumns.length; j++) {
+                    Column column = keyColumns[j];
+                    int k = positions[j];
+                    while (k < column.entries() && column.hour(k) < i)
+                        k++;
+                    positions[j] = k;
+                    if (k == column.entries() || column.hour(k) != i)
+                        continue;
+                    double v = column.value(k);
+                    if (!Double.isNaN(v) && v != 0) {
+                        columns[count] = j;
+                        values[count++] = v;
                     }
                 }
+                writer.writeRow(count, columns, values);
             }
+            writer.finish();
         }
 
         public static ReadWriteData deserialize(DataInput in) throws IOException {
 
-            int numKeys = in.readInt();
-            List<TagGroup> keys = Lists.newArrayList();
-            for (int j = 0; j < numKeys; j++) {
-                keys.add(TagGroup.Serializer.deserialize(ProcessorConfig.getInstance(), in));
-            }
-
-            List<Map<TagGroup, Double>> data = Lists.newArrayList();
-            int num = in.readInt();
-            for (int i = 0; i < num; i++)  {
-                Map<TagGroup, Double> map = Maps.newHashMap();
-                boolean hasData = in.readBoolean();
-                if (hasData) {
-                    for (int j = 0; j < keys.size(); j++) {
-                        double v = in.readDouble();
-                        if (v != 0) {
-                            map.put(keys.get(j), v);
-                        }
+            DataFileFormat.Reader reader = new DataFileFormat.Reader(in, ProcessorConfig.getInstance());
+            try {
+                List<TagGroup> keys = reader.getKeys();
+                int numKeys = keys.size();
+                int num = reader.getNum();
+
+                ReadWriteData data = new ReadWriteData();
+                Column[] columns = new Column[numKeys];
+                for (int j = 0; j < numKeys; j++) {
+                    columns[j] = data.columns.get(data.getCreateId(keys.get(j)));
+                }
+
+                int[] rowColumns = new int[numKeys];
+                double[] rowValues = new double[numKeys];
+                for (int i = 0; i < num; i++)  {
+                    int count = reader.readRow(rowColumns, rowValues);
+                    for (int k = 0; k < count; k++) {
+                        columns[rowColumns[k]].set(i, rowValues[k]);
                     }
                 }
-                data.add(map);
-            }
+                data.num = num;
+                data.recount();
 
-            return new ReadWriteData(data);
+                return data;
+            }
+            finally {
+                reader.close();
+            }
         }
     }
 }
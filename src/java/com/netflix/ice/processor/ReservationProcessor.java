@@ -0,0 +1,363 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.processor;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.ice.common.AccountService;
+import com.netflix.ice.common.AwsUtils;
+import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.tag.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Applies reservations to the total usage and cost of a month: reserved usage up to the capacity of the reservations of
+ * its account, unused capacity, bonus usage beyond the capacity, amortized upfront cost, and usage borrowed from the
+ * unused capacity of other accounts.
+ *
+ * Everything a reservation tag group reads or writes has the same region, zone, product and usage type, only the
+ * account and the operation differ. The tag groups are therefore split into partitions by those four tags, and with
+ * more than one thread the partitions are processed concurrently, each on its own copy of its tag groups which is
+ * written back once all are done. Within a partition the tag groups and hours are processed in the same order as they
+ * are with one thread, so the results are the same.
+ */
+class ReservationProcessor {
+    private final static Logger logger = LoggerFactory.getLogger(ReservationProcessor.class);
+
+    private final ReservationService reservationService;
+    private final AccountService accountService;
+    private final long startMilli;
+    private final int numThreads;
+
+    private final Set<Account> reservationOwners;
+    private final Map<Account, List<Account>> reservationBorrowers = Maps.newHashMap();
+
+    ReservationProcessor(ReservationService reservationService, AccountService accountService, long startMilli, int numThreads) {
+        this.reservationService = reservationService;
+        this.accountService = accountService;
+        this.startMilli = startMilli;
+        this.numThreads = numThreads;
+
+        Map<Account, List<Account>> reservationAccounts = accountService.getReservationAccounts();
+        reservationOwners = reservationAccounts.keySet();
+        for (Account account: reservationAccounts.keySet()) {
+            List<Account> list = reservationAccounts.get(account);
+            for (Account borrowingAccount: list) {
+                if (borrowingAccount.name.equals(account.name))
+                    continue;
+                List<Account> from = reservationBorrowers.get(borrowingAccount);
+                if (from == null) {
+                    from = Lists.newArrayList();
+                    reservationBorrowers.put(borrowingAccount, from);
+                }
+                from.add(account);
+            }
+        }
+    }
+
+    /**
+     * Processes the reservations of every utilization which has any, from hour fromHour on.
+     */
+    void process(ReadWriteData usageData, ReadWriteData costData, int fromHour) throws Exception {
+        List<Ec2InstanceReservationPrice.ReservationUtilization> utilizations = Lists.newArrayList();
+        for (Ec2InstanceReservationPrice.ReservationUtilization utilization: Ec2InstanceReservationPrice.ReservationUtilization.values()) {
+            if (reservationService.getTagGroups(utilization).size() > 0)
+                utilizations.add(utilization);
+        }
+
+        if (numThreads <= 1) {
+            for (Ec2InstanceReservationPrice.ReservationUtilization utilization: utilizations)
+                processReservations(usageData, costData, reservationService.getTagGroups(utilization), utilization, fromHour);
+        }
+        else {
+            processInParallel(usageData, costData, utilizations, fromHour);
+        }
+    }
+
+    private void processInParallel(ReadWriteData usageData, ReadWriteData costData,
+                                   final List<Ec2InstanceReservationPrice.ReservationUtilization> utilizations, final int fromHour) throws Exception {
+
+        // partitions with reservations or with usage which may borrow
+        final Map<PartitionKey, Partition> partitions = Maps.newLinkedHashMap();
+        for (Ec2InstanceReservationPrice.ReservationUtilization utilization: utilizations) {
+            for (TagGroup tagGroup: reservationService.getTagGroups(utilization))
+                getCreatePartition(partitions, tagGroup).addReservationTagGroup(utilization, tagGroup);
+        }
+        Collection<TagGroup> usageTagGroups = usageData.getTagGroups();
+        for (TagGroup tagGroup: usageTagGroups) {
+            if (tagGroup.resourceGroup != null || tagGroup.product != Product.ec2_instance)
+                continue;
+            for (Ec2InstanceReservationPrice.ReservationUtilization utilization: utilizations) {
+                if (tagGroup.operation == Operation.getReservedInstances(utilization) || tagGroup.operation == Operation.getBonusReservedInstances(utilization)) {
+                    getCreatePartition(partitions, tagGroup);
+                    break;
+                }
+            }
+        }
+
+        // copies of the tag groups of every partition, which the workers change without locking. The hours to process
+        // are those of the usage data, whether or not a partition has usage.
+        int num = usageData.getNum();
+        for (Partition partition: partitions.values()) {
+            if (num > 0)
+                partition.usageData.getData(num - 1);
+        }
+        for (TagGroup tagGroup: usageTagGroups) {
+            Partition partition = tagGroup.resourceGroup == null ? partitions.get(new PartitionKey(tagGroup)) : null;
+            if (partition != null)
+                partition.usageData.putValues(tagGroup, usageData);
+        }
+        for (TagGroup tagGroup: costData.getTagGroups()) {
+            Partition partition = tagGroup.resourceGroup == null ? partitions.get(new PartitionKey(tagGroup)) : null;
+            if (partition != null)
+                partition.costData.putValues(tagGroup, costData);
+        }
+
+        logger.info("processing reservations of " + partitions.size() + " partitions with " + numThreads + " threads...");
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setNameFormat("reservation-processor-%d").setDaemon(true).build());
+        try {
+            List<Future<Void>> futures = Lists.newArrayList();
+            for (final Partition partition: partitions.values()) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        for (Ec2InstanceReservationPrice.ReservationUtilization utilization: utilizations)
+                            processReservations(partition.usageData, partition.costData, partition.getReservationTagGroups(utilization), utilization, fromHour);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future: futures) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception)
+                        throw (Exception)e.getCause();
+                    throw e;
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        // tag groups a worker cleared have no value in the copy and are cleared here too
+        for (Partition partition: partitions.values()) {
+            for (TagGroup tagGroup: partition.usageData.getColumnTagGroups())
+                usageData.putValues(tagGroup, partition.usageData);
+            for (TagGroup tagGroup: partition.costData.getColumnTagGroups())
+                costData.putValues(tagGroup, partition.costData);
+        }
+        // the cost data has every processed hour, as it has when processed with one thread
+        if (num > fromHour)
+            costData.getData(num - 1);
+    }
+
+    private Partition getCreatePartition(Map<PartitionKey, Partition> partitions, TagGroup tagGroup) {
+        PartitionKey key = new PartitionKey(tagGroup);
+        Partition partition = partitions.get(key);
+        if (partition == null) {
+            partition = new Partition();
+            partitions.put(key, partition);
+        }
+        return partition;
+    }
+
+    private void processReservations(ReadWriteData usageData, ReadWriteData costData, Collection<TagGroup> reservationTagGroups,
+                                     Ec2InstanceReservationPrice.ReservationUtilization utilization, int fromHour) {
+
+        // first mark owner accounts
+        Set<TagGroup> toMarkOwners = Sets.newTreeSet();
+        for (TagGroup tagGroup: reservationTagGroups) {
+
+            for (int i = fromHour; i < usageData.getNum(); i++) {
+
+                Map<TagGroup, Double> usageMap = usageData.getData(i);
+                Map<TagGroup, Double> costMap = costData.getData(i);
+
+                Double existing = usageMap.get(tagGroup);
+                double value = existing == null ? 0 : existing;
+                ReservationService.ReservationInfo reservation = reservationService.getReservation(startMilli + i * AwsUtils.hourMillis, tagGroup, utilization);
+                double reservedUsed = Math.min(value, reservation.capacity);
+                double reservedUnused = reservation.capacity - reservedUsed;
+                double bonusReserved = value > reservation.capacity ? value - reservation.capacity : 0;
+
+                if (reservedUsed > 0 || existing != null) {
+                    usageMap.put(tagGroup, reservedUsed);
+                    costMap.put(tagGroup, reservedUsed * reservation.reservationHourlyCost);
+                }
+
+                if (reservedUnused > 0) {
+                    TagGroup unusedTagGroup = TagGroup.getTagGroup(tagGroup.account, tagGroup.region, tagGroup.zone, tagGroup.product, Operation.getUnusedInstances(utilization), tagGroup.usageType, null);
+                    usageMap.put(unusedTagGroup, reservedUnused);
+                    costMap.put(unusedTagGroup, reservedUnused * reservation.reservationHourlyCost);
+                }
+
+                if (bonusReserved > 0) {
+                    TagGroup bonusTagGroup = TagGroup.getTagGroup(tagGroup.account, tagGroup.region, tagGroup.zone, tagGroup.product, Operation.getBonusReservedInstances(utilization), tagGroup.usageType, null);
+                    usageMap.put(bonusTagGroup, bonusReserved);
+                    costMap.put(bonusTagGroup, bonusReserved * reservation.reservationHourlyCost);
+                }
+
+                if (reservation.capacity > 0) {
+                    TagGroup upfrontTagGroup = TagGroup.getTagGroup(tagGroup.account, tagGroup.region, tagGroup.zone, tagGroup.product, Operation.getUpfrontAmortized(utilization), tagGroup.usageType, null);
+                    costMap.put(upfrontTagGroup, reservation.capacity * reservation.upfrontAmortized);
+                }
+            }
+
+            toMarkOwners.add(TagGroup.getTagGroup(tagGroup.account, tagGroup.region, tagGroup.zone, tagGroup.product, Operation.getReservedInstances(utilization), tagGroup.usageType, null));
+        }
+
+        // now mark borrowing accounts
+        Set<TagGroup> toMarkBorrowing = Sets.newTreeSet();
+        for (TagGroup tagGroup: usageData.getTagGroups()) {
+            if (tagGroup.resourceGroup == null &&
+                tagGroup.product == Product.ec2_instance &&
+                (tagGroup.operation == Operation.getReservedInstances(utilization) && !toMarkOwners.contains(tagGroup) ||
+                 tagGroup.operation == Operation.getBonusReservedInstances(utilization))) {
+
+                toMarkBorrowing.add(tagGroup);
+            }
+        }
+        for (TagGroup tagGroup: toMarkBorrowing) {
+            for (int i = fromHour; i < usageData.getNum(); i++) {
+
+                Map<TagGroup, Double> usageMap = usageData.getData(i);
+                Map<TagGroup, Double> costMap = costData.getData(i);
+
+                borrow(i, startMilli + i * AwsUtils.hourMillis, usageMap, costMap,
+                       reservationBorrowers.get(tagGroup.account), tagGroup, utilization, reservationOwners.contains(tagGroup.account));
+            }
+        }
+    }
+
+    private void borrow(int i, long time,
+                        Map<TagGroup, Double> usageMap,
+                        Map<TagGroup, Double> costMap,
+                        List<Account> fromAccounts,
+                        TagGroup tagGroup,
+                        Ec2InstanceReservationPrice.ReservationUtilization utilization,
+                        boolean forBonus) {
+
+        Double existing = usageMap.get(tagGroup);
+
+        if (existing != null && accountService.externalMappingExist(tagGroup.account, tagGroup.zone) && fromAccounts != null) {
+
+            for (Account from: fromAccounts) {
+                if (existing <= 0)
+                    break;
+
+                TagGroup unusedTagGroup = TagGroup.getTagGroup(from, tagGroup.region, tagGroup.zone, tagGroup.product, Operation.getUnusedInstances(utilization), tagGroup.usageType, null);
+                Double unused = usageMap.get(unusedTagGroup);
+
+                if (unused != null && unused > 0) {
+                    double hourlyCost = costMap.get(unusedTagGroup) / unused;
+
+                    double reservedBorrowed = Math.min(existing, unused);
+                    double reservedUnused = unused - reservedBorrowed;
+
+                    existing -= reservedBorrowed;
+
+                    TagGroup borrowedTagGroup = TagGroup.getTagGroup(tagGroup.account, tagGroup.region, tagGroup.zone, tagGroup.product, Operation.getBorrowedInstances(utilization), tagGroup.usageType, null);
+                    TagGroup lentTagGroup = TagGroup.getTagGroup(from, tagGroup.region, tagGroup.zone, tagGroup.product, Operation.getLentInstances(utilization), tagGroup.usageType, null);
+
+                    Double existingLent = usageMap.get(lentTagGroup);
+                    double reservedLent = existingLent == null ? reservedBorrowed : reservedBorrowed + existingLent;
+                    Double existingBorrowed = usageMap.get(borrowedTagGroup);
+                    reservedBorrowed = existingBorrowed == null ? reservedBorrowed : reservedBorrowed + existingBorrowed;
+
+                    usageMap.put(borrowedTagGroup, reservedBorrowed);
+                    costMap.put(borrowedTagGroup, reservedBorrowed * hourlyCost);
+                    usageMap.put(lentTagGroup, reservedLent);
+                    costMap.put(lentTagGroup, reservedLent * hourlyCost);
+                    usageMap.put(tagGroup, existing);
+                    costMap.put(tagGroup, existing * hourlyCost);
+
+                    usageMap.put(unusedTagGroup, reservedUnused);
+                    costMap.put(unusedTagGroup, reservedUnused * hourlyCost);
+                }
+            }
+        }
+
+        // the rest is bonus
+        if (existing != null && existing > 0 && !forBonus) {
+            ReservationService.ReservationInfo reservation = reservationService.getReservation(time, tagGroup, utilization);
+            TagGroup bonusTagGroup = TagGroup.getTagGroup(tagGroup.account, tagGroup.region, tagGroup.zone, tagGroup.product, Operation.getBonusReservedInstances(utilization), tagGroup.usageType, null);
+            usageMap.put(bonusTagGroup, existing);
+            costMap.put(bonusTagGroup, existing * reservation.reservationHourlyCost);
+
+            usageMap.remove(tagGroup);
+            costMap.remove(tagGroup);
+        }
+    }
+
+    private static class PartitionKey {
+        private final Region region;
+        private final Zone zone;
+        private final Product product;
+        private final UsageType usageType;
+
+        PartitionKey(TagGroup tagGroup) {
+            this.region = tagGroup.region;
+            this.zone = tagGroup.zone;
+            this.product = tagGroup.product;
+            this.usageType = tagGroup.usageType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PartitionKey))
+                return false;
+            PartitionKey other = (PartitionKey)o;
+            return region == other.region && zone == other.zone && product == other.product && usageType == other.usageType;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] {region, zone, product, usageType});
+        }
+    }
+
+    private static class Partition {
+        final ReadWriteData usageData = new ReadWriteData();
+        final ReadWriteData costData = new ReadWriteData();
+        // reservation tag groups in the order of the reservation service
+        private final Map<Ec2InstanceReservationPrice.ReservationUtilization, List<TagGroup>> reservationTagGroups = Maps.newHashMap();
+
+        void addReservationTagGroup(Ec2InstanceReservationPrice.ReservationUtilization utilization, TagGroup tagGroup) {
+            List<TagGroup> tagGroups = reservationTagGroups.get(utilization);
+            if (tagGroups == null) {
+                tagGroups = Lists.newArrayList();
+                reservationTagGroups.put(utilization, tagGroups);
+            }
+            tagGroups.add(tagGroup);
+        }
+
+        List<TagGroup> getReservationTagGroups(Ec2InstanceReservationPrice.ReservationUtilization utilization) {
+            List<TagGroup> tagGroups = reservationTagGroups.get(utilization);
+            return tagGroups == null ? Collections.<TagGroup>emptyList() : tagGroups;
+        }
+    }
+}
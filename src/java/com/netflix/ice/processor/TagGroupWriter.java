@@ -17,6 +17,7 @@
  */
 package com.netflix.ice.processor;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.netflix.ice.common.AwsUtils;
 import com.netflix.ice.common.TagGroup;
@@ -46,7 +47,7 @@ public class TagGroupWriter {
         AwsUtils.downloadFileIfNotExist(config.workS3BucketName, config.workS3BucketPrefix, file);
 
         if (file.exists()) {
-            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
             try {
                 tagGroups = TagGroup.Serializer.deserializeTagGroups(config, in);
             }
@@ -63,16 +64,18 @@ public class TagGroupWriter {
     void archive(Long monthMilli,Collection<TagGroup> tagGroups) throws IOException {
         this.tagGroups.put(monthMilli, tagGroups);
 
-        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        // the last upload of this file may still be reading it
+        AwsUtils.awaitUpload(file);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
         try {
-            TagGroup.Serializer.serializeTagGroups(out, this.tagGroups);
+            TagGroup.Serializer.serializeTagGroups(out, this.tagGroups, config.tagdbFileVersion);
         }
         finally {
             out.close();
         }
 
-        logger.info(dbName + " uploading to s3...");
-        AwsUtils.upload(config.workS3BucketName, config.workS3BucketPrefix, config.localDir, dbName);
-        logger.info(dbName + " uploading done.");
+        logger.info(dbName + " uploading to s3 in background...");
+        AwsUtils.uploadAsync(config.workS3BucketName, config.workS3BucketPrefix, Lists.newArrayList(file));
     }
 }
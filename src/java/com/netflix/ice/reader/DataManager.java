@@ -17,6 +17,8 @@
  */
 package com.netflix.ice.reader;
 
+import com.google.common.collect.Multimap;
+import com.netflix.ice.tag.ResourceGroup;
 import com.netflix.ice.tag.Tag;
 import com.netflix.ice.tag.TagType;
 import org.joda.time.DateTime;
@@ -27,7 +29,7 @@ import java.util.Map;
 /**
  * Interface to feed data to UI.
  */
-public interface DataManager {
+public interface DataManager extends Generational {
 
     /**
      * Get map of data.
@@ -40,6 +42,16 @@ public interface DataManager {
      */
     Map<Tag, double[]> getData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, boolean forReservation);
 
+    /**
+     * Get data of all application groups in one pass over the data. The data of an application group adds up the tag
+     * groups matching tagLists whose resource group belongs to it.
+     * @param interval
+     * @param tagLists
+     * @param applicationGroups application groups of each resource group
+     * @return data by application group, with zeros for groups without data
+     */
+    Map<Tag, double[]> getApplicationGroupData(Interval interval, TagLists tagLists, Multimap<ResourceGroup, Tag> applicationGroups);
+
     /**
      * Get data length.
      * @param start
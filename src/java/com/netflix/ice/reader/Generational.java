@@ -0,0 +1,31 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.reader;
+
+/**
+ * Source of data for UI which can tell when its data changed.
+ */
+public interface Generational {
+
+    /**
+     * Get generation of data. It changes whenever the data may have changed, for example after a newer file is
+     * downloaded.
+     * @return generation
+     */
+    long getGeneration();
+}
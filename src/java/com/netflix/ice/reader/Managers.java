@@ -25,7 +25,7 @@ import java.util.Collection;
 /**
  * Interface to manager all TagGroupManager and DataManager instances for different products
  */
-public interface Managers {
+public interface Managers extends Generational {
 
     void init();
 
@@ -0,0 +1,267 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.reader;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.ice.common.DataFileFormat;
+import com.netflix.ice.common.TagGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * ReadOnlyData backed by a memory-mapped local file instead of a heap matrix. The file has a fixed header, the tag
+ * group dictionary, and then the values column-major: all rows of the first tag group, then all rows of the second,
+ * and so on. Columns are split into several mappings when they do not fit in one.
+ *
+ * The mapped file is derived from a downloaded data file and named after its last modified time, so a newly downloaded
+ * file gets a new mapped file while queries may still read the old one.
+ */
+public class MappedReadOnlyData extends ReadOnlyData {
+    private static final Logger logger = LoggerFactory.getLogger(MappedReadOnlyData.class);
+
+    private static final int MAGIC = 0x4943454d;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final String SUFFIX = ".mapped";
+
+    // one lock per data file, so converting one file does not hold up loading the others
+    private static final ConcurrentMap<String, Object> locks = Maps.newConcurrentMap();
+
+    private final int num;
+    private final int columnsPerSegment;
+    private final DoubleBuffer[] segments;
+
+    private MappedReadOnlyData(int num, List<TagGroup> tagGroups, int columnsPerSegment, DoubleBuffer[] segments) {
+        super(null, tagGroups);
+        this.num = num;
+        this.columnsPerSegment = columnsPerSegment;
+        this.segments = segments;
+    }
+
+    @Override
+    public double[] getData(int i) {
+        int numColumns = getTagGroups().size();
+        double[] row = new double[numColumns];
+        for (int column = 0; column < numColumns; column++)
+            row[column] = get(i, column);
+        return row;
+    }
+
+    @Override
+    public int getNum() {
+        return num;
+    }
+
+    @Override
+    public void sum(int[] columns, int fromRow, double[] result, int resultIndex, int count) {
+        for (int column: columns) {
+            DoubleBuffer segment = segments[column / columnsPerSegment];
+            int offset = (column % columnsPerSegment) * num + fromRow;
+            for (int i = 0; i < count; i++)
+                result[resultIndex + i] += segment.get(offset + i);
+        }
+    }
+
+    @Override
+    public void sumByGroup(int[] columnToGroup, int fromRow, double[][] result, int resultIndex, int count) {
+        // columns are contiguous here, so each column is added to its group in one run
+        for (int column = 0; column < columnToGroup.length; column++) {
+            int group = columnToGroup[column];
+            if (group < 0)
+                continue;
+            DoubleBuffer segment = segments[column / columnsPerSegment];
+            int offset = (column % columnsPerSegment) * num + fromRow;
+            double[] groupResult = result[group];
+            for (int i = 0; i < count; i++)
+                groupResult[resultIndex + i] += segment.get(offset + i);
+        }
+    }
+
+    @Override
+    public void sumByGroups(int[][] columnToGroups, int fromRow, double[][] result, int resultIndex, int count) {
+        for (int column = 0; column < columnToGroups.length; column++) {
+            int[] groups = columnToGroups[column];
+            if (groups == null)
+                continue;
+            DoubleBuffer segment = segments[column / columnsPerSegment];
+            int offset = (column % columnsPerSegment) * num + fromRow;
+            for (int group: groups) {
+                double[] groupResult = result[group];
+                for (int i = 0; i < count; i++)
+                    groupResult[resultIndex + i] += segment.get(offset + i);
+            }
+        }
+    }
+
+    private double get(int row, int column) {
+        return segments[column / columnsPerSegment].get((column % columnsPerSegment) * num + row);
+    }
+
+    /**
+     * Maps the data of the given downloaded data file. The file is converted to the mapped layout first if that has not
+     * been done for this version of the file yet.
+     */
+    public static ReadOnlyData load(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        Object lock = locks.get(path);
+        if (lock == null) {
+            locks.putIfAbsent(path, new Object());
+            lock = locks.get(path);
+        }
+
+        synchronized (lock) {
+            if (!file.exists())
+                throw new FileNotFoundException(file.toString());
+
+            File mappedFile = new File(file.getParentFile(), file.getName() + "." + file.lastModified() + SUFFIX);
+            if (!mappedFile.exists()) {
+                convert(file, mappedFile);
+                deleteStaleFiles(file, mappedFile);
+            }
+            return map(mappedFile);
+        }
+    }
+
+    private static void convert(File file, File mappedFile) throws IOException {
+        logger.info("converting " + file + " to " + mappedFile);
+        File tmpFile = new File(mappedFile.getPath() + ".tmp");
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        DataFileFormat.Reader reader = null;
+        RandomAccessFile out = null;
+        boolean done = false;
+        try {
+            reader = new DataFileFormat.Reader(in, ReaderConfig.getInstance());
+            int numKeys = reader.getKeys().size();
+            ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+            DataOutputStream dictionaryOut = new DataOutputStream(dictionary);
+            for (TagGroup tagGroup: reader.getKeys()) {
+                TagGroup.Serializer.serialize(dictionaryOut, tagGroup);
+            }
+            dictionaryOut.flush();
+            int num = reader.getNum();
+
+            long dataOffset = (HEADER_SIZE + dictionary.size() + 7) / 8 * 8;
+            out = new RandomAccessFile(tmpFile, "rw");
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(num);
+            out.writeInt(numKeys);
+            out.writeLong(dataOffset);
+            out.write(dictionary.toByteArray());
+            out.setLength(dataOffset + (long)num * numKeys * 8);
+
+            int columnsPerSegment = getColumnsPerSegment(num, numKeys);
+            DoubleBuffer[] segments = mapSegments(out.getChannel(), FileChannel.MapMode.READ_WRITE, dataOffset, num, numKeys, columnsPerSegment);
+            int[] columns = new int[numKeys];
+            double[] values = new double[numKeys];
+            for (int i = 0; i < num; i++) {
+                int count = reader.readRow(columns, values);
+                for (int k = 0; k < count; k++) {
+                    int j = columns[k];
+                    segments[j / columnsPerSegment].put((j % columnsPerSegment) * num + i, values[k]);
+                }
+            }
+            out.getChannel().force(false);
+            done = true;
+        }
+        finally {
+            if (reader != null)
+                reader.close();
+            in.close();
+            if (out != null)
+                out.close();
+            if (!done && !tmpFile.delete())
+                logger.error("not able to delete " + tmpFile);
+        }
+
+        if (!tmpFile.renameTo(mappedFile))
+            throw new IOException("not able to rename " + tmpFile + " to " + mappedFile);
+    }
+
+    private static ReadOnlyData map(File mappedFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mappedFile)));
+        int num;
+        int numKeys;
+        long dataOffset;
+        List<TagGroup> keys = Lists.newArrayList();
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("unknown format of " + mappedFile);
+            num = in.readInt();
+            numKeys = in.readInt();
+            dataOffset = in.readLong();
+            for (int j = 0; j < numKeys; j++) {
+                keys.add(TagGroup.Serializer.deserialize(ReaderConfig.getInstance(), in));
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        RandomAccessFile file = new RandomAccessFile(mappedFile, "r");
+        try {
+            int columnsPerSegment = getColumnsPerSegment(num, numKeys);
+            DoubleBuffer[] segments = mapSegments(file.getChannel(), FileChannel.MapMode.READ_ONLY, dataOffset, num, numKeys, columnsPerSegment);
+            return new MappedReadOnlyData(num, keys, columnsPerSegment, segments);
+        }
+        finally {
+            // mappings stay valid after the channel is closed
+            file.close();
+        }
+    }
+
+    private static int getColumnsPerSegment(int num, int numKeys) {
+        if (num == 0)
+            return Math.max(numKeys, 1);
+        return Math.max(1, Integer.MAX_VALUE / (num * 8));
+    }
+
+    private static DoubleBuffer[] mapSegments(FileChannel channel, FileChannel.MapMode mode, long dataOffset, int num, int numKeys, int columnsPerSegment) throws IOException {
+        int numSegments = num == 0 ? 0 : (numKeys + columnsPerSegment - 1) / columnsPerSegment;
+        DoubleBuffer[] segments = new DoubleBuffer[numSegments];
+        for (int s = 0; s < numSegments; s++) {
+            int columns = Math.min(columnsPerSegment, numKeys - s * columnsPerSegment);
+            long position = dataOffset + (long)s * columnsPerSegment * num * 8;
+            segments[s] = channel.map(mode, position, (long)columns * num * 8).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        }
+        return segments;
+    }
+
+    private static void deleteStaleFiles(File file, File mappedFile) {
+        File[] files = file.getParentFile().listFiles();
+        if (files == null)
+            return;
+        for (File stale: files) {
+            String name = stale.getName();
+            if (name.startsWith(file.getName() + ".") && name.endsWith(SUFFIX) && !name.equals(mappedFile.getName())) {
+                // readers still holding the old mapping keep working after the file is unlinked
+                if (!stale.delete())
+                    logger.error("not able to delete " + stale);
+            }
+        }
+    }
+}
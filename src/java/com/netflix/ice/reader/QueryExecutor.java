@@ -0,0 +1,108 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.reader;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.ice.tag.Tag;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Runs the data lookups of a query, typically one DataManager.getData call per product, on a pool of threads shared by
+ * all queries. Each lookup returns its own partial result, and the partial results are added up by the querying thread
+ * in the order of the lookups, so the sums are the same as when the lookups run one after the other.
+ */
+public class QueryExecutor {
+    private final ExecutorService pool;
+
+    /**
+     * @param numThreads size of the pool. With 1 or less, lookups run in the querying thread.
+     */
+    public QueryExecutor(int numThreads) {
+        this.pool = numThreads <= 1 ? null :
+            Executors.newFixedThreadPool(numThreads, new ThreadFactoryBuilder().setNameFormat("query-executor-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Runs lookups and adds up their results by tag. Arrays of the partial results are reused in the sum.
+     * @return sum of the results, sorted by tag
+     */
+    public Map<Tag, double[]> sum(Collection<? extends Callable<Map<Tag, double[]>>> lookups) {
+        Map<Tag, double[]> result = Maps.newTreeMap();
+
+        if (pool == null) {
+            for (Callable<Map<Tag, double[]>> lookup: lookups) {
+                try {
+                    merge(lookup.call(), result);
+                }
+                catch (Exception e) {
+                    throw Throwables.propagate(e);
+                }
+            }
+            return result;
+        }
+
+        List<Future<Map<Tag, double[]>>> futures = Lists.newArrayList();
+        try {
+            for (Callable<Map<Tag, double[]>> lookup: lookups)
+                futures.add(pool.submit(lookup));
+            for (Future<Map<Tag, double[]>> future: futures)
+                merge(future.get(), result);
+        }
+        catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+        finally {
+            // lookups left after a failure are not needed
+            for (Future<Map<Tag, double[]>> future: futures)
+                future.cancel(true);
+        }
+        return result;
+    }
+
+    public void shutdown() {
+        if (pool != null)
+            pool.shutdownNow();
+    }
+
+    private static void merge(Map<Tag, double[]> from, Map<Tag, double[]> to) {
+        if (from == null)
+            return;
+        for (Map.Entry<Tag, double[]> entry: from.entrySet()) {
+            double[] values = to.get(entry.getKey());
+            if (values == null) {
+                to.put(entry.getKey(), entry.getValue());
+            }
+            else {
+                double[] newValues = entry.getValue();
+                for (int i = 0; i < newValues.length; i++)
+                    values[i] += newValues[i];
+            }
+        }
+    }
+}
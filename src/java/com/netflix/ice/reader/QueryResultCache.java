@@ -0,0 +1,184 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.reader;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.netflix.ice.tag.Tag;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Results of data queries, kept until the data they were computed from changes.
+ *
+ * A result is looked up by a canonical form of its query, and remembers the generations of the managers it read. It is
+ * computed again once any of them has a newer generation. Results are weighed by the memory taken by their values, and
+ * concurrent lookups of the same missing result wait for a single computation.
+ */
+public class QueryResultCache {
+    private final Cache<String, Entry> cache;
+
+    public QueryResultCache(long maxWeightBytes) {
+        cache = CacheBuilder.newBuilder()
+            .maximumWeight(maxWeightBytes)
+            .weigher(new Weigher<String, Entry>() {
+                public int weigh(String key, Entry entry) {
+                    return (int)Math.min(Integer.MAX_VALUE, 2L * key.length() + entry.weight);
+                }
+            })
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * Computes a query result, adding the managers it reads to generations before reading them.
+     */
+    public interface Loader {
+        Map<String, Object> load(Generations generations) throws Exception;
+    }
+
+    /**
+     * Generations of the managers a result was computed from.
+     */
+    public static class Generations {
+        private final Map<Generational, Long> generations = new IdentityHashMap<Generational, Long>();
+
+        /**
+         * Adds manager, if not null, with its current generation.
+         * @return manager
+         */
+        public synchronized <T extends Generational> T add(T manager) {
+            if (manager != null && !generations.containsKey(manager))
+                generations.put(manager, manager.getGeneration());
+            return manager;
+        }
+
+        synchronized boolean isCurrent() {
+            for (Map.Entry<Generational, Long> entry: generations.entrySet()) {
+                if (entry.getKey().getGeneration() != entry.getValue())
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Gets the result of a query, computing it with loader if it is missing or computed from older data.
+     * @param key canonical form of the query, see getKey
+     */
+    public Map<String, Object> get(String key, final Loader loader) {
+        while (true) {
+            final Generations generations = new Generations();
+            Entry entry;
+            try {
+                entry = cache.get(key, new Callable<Entry>() {
+                    public Entry call() throws Exception {
+                        Map<String, Object> result = loader.load(generations);
+                        return new Entry(result, generations, weigh(result));
+                    }
+                });
+            }
+            catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+            catch (UncheckedExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+
+            // a result computed by this call is returned even if the data changed meanwhile
+            if (entry.generations == generations || entry.generations.isCurrent())
+                return entry.result;
+            cache.asMap().remove(key, entry);
+        }
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * @return canonical form of a query made of parts. Collections are sorted by the string form of their elements,
+     * so filters listing the same tags in another order give the same key.
+     */
+    public static String getKey(Object... parts) {
+        StringBuilder result = new StringBuilder();
+        for (Object part: parts) {
+            if (result.length() > 0)
+                result.append('|');
+            if (part instanceof Collection) {
+                List<String> strings = Lists.newArrayList();
+                for (Object element: (Collection<?>)part)
+                    strings.add(String.valueOf(element));
+                Collections.sort(strings);
+                result.append(strings);
+            }
+            else {
+                result.append(part);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return rough number of bytes taken by value. Tags are shared with the rest of the reader and weigh nothing.
+     */
+    static long weigh(Object value) {
+        if (value == null || value instanceof Tag)
+            return 0;
+        if (value instanceof double[])
+            return 16 + 8L * ((double[])value).length;
+        if (value instanceof Map) {
+            long result = 48;
+            for (Map.Entry<?, ?> entry: ((Map<?, ?>)value).entrySet())
+                result += 32 + weigh(entry.getKey()) + weigh(entry.getValue());
+            return result;
+        }
+        if (value instanceof Collection) {
+            long result = 24;
+            for (Object element: (Collection<?>)value)
+                result += 8 + weigh(element);
+            return result;
+        }
+        if (value instanceof CharSequence)
+            return 40 + 2L * ((CharSequence)value).length();
+        return 16;
+    }
+
+    private static class Entry {
+        final Map<String, Object> result;
+        final Generations generations;
+        final long weight;
+
+        Entry(Map<String, Object> result, Generations generations, long weight) {
+            this.result = result;
+            this.generations = generations;
+            this.weight = weight;
+        }
+    }
+}
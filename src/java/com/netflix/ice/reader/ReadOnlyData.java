@@ -17,17 +17,23 @@
  */
 package com.netflix.ice.reader;
 
-import com.google.common.collect.Lists;
+import com.netflix.ice.common.DataFileFormat;
+import com.netflix.ice.common.Rollup;
 import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.tag.TagType;
 
 import java.io.DataInput;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 public class ReadOnlyData {
     double[][] data;
     private Collection<TagGroup> tagGroups;
+    private Map<TagType, Rollup> rollups = Collections.emptyMap();
+    private volatile TagGroupIndex index;
 
     public ReadOnlyData(double[][] data, Collection<TagGroup> tagGroups) {
         this.data = data;
@@ -42,36 +48,108 @@ public class ReadOnlyData {
         return data.length;
     }
 
+    /**
+     * Adds up the given columns of rows fromRow to fromRow + count - 1, and adds the sums to result starting at
+     * resultIndex.
+     */
+    public void sum(int[] columns, int fromRow, double[] result, int resultIndex, int count) {
+        for (int i = 0; i < count; i++) {
+            double[] row = data[fromRow + i];
+            for (int column: columns)
+                result[resultIndex + i] += row[column];
+        }
+    }
+
+    /**
+     * Adds up rows fromRow to fromRow + count - 1 by group in a single pass over each row. Column j is added to
+     * result[columnToGroup[j]] starting at resultIndex, or left out if columnToGroup[j] is negative.
+     */
+    public void sumByGroup(int[] columnToGroup, int fromRow, double[][] result, int resultIndex, int count) {
+        for (int i = 0; i < count; i++) {
+            double[] row = data[fromRow + i];
+            int index = resultIndex + i;
+            for (int column = 0; column < columnToGroup.length; column++) {
+                int group = columnToGroup[column];
+                if (group >= 0)
+                    result[group][index] += row[column];
+            }
+        }
+    }
+
+    /**
+     * Like sumByGroup, for columns belonging to any number of groups. Column j is added to each of the groups in
+     * columnToGroups[j], or left out if that is null.
+     */
+    public void sumByGroups(int[][] columnToGroups, int fromRow, double[][] result, int resultIndex, int count) {
+        for (int i = 0; i < count; i++) {
+            double[] row = data[fromRow + i];
+            int index = resultIndex + i;
+            for (int column = 0; column < columnToGroups.length; column++) {
+                int[] groups = columnToGroups[column];
+                if (groups == null)
+                    continue;
+                for (int group: groups)
+                    result[group][index] += row[column];
+            }
+        }
+    }
+
     public Collection<TagGroup> getTagGroups() {
         return tagGroups;
     }
 
+    /**
+     * @return index of the tag groups by column, built on first use
+     */
+    public TagGroupIndex getIndex() {
+        TagGroupIndex result = index;
+        if (result == null) {
+            synchronized (this) {
+                result = index;
+                if (result == null) {
+                    result = new TagGroupIndex(tagGroups);
+                    index = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return totals of this data by the given dimension, or null if there are none
+     */
+    public Rollup getRollup(TagType dimension) {
+        return rollups.get(dimension);
+    }
+
+    public void setRollups(Map<TagType, Rollup> rollups) {
+        this.rollups = rollups;
+    }
+
     public static class Serializer {
 
         public static ReadOnlyData deserialize(DataInput in) throws IOException {
 
-            int numKeys = in.readInt();
-            List<TagGroup> keys = Lists.newArrayList();
-            for (int j = 0; j < numKeys; j++) {
-                keys.add(TagGroup.Serializer.deserialize(ReaderConfig.getInstance(), in));
-            }
-
-            int num = in.readInt();
-            double[][] data = new double[num][];
-            for (int i = 0; i < num; i++)  {
-                data[i] = new double[keys.size()];
-                boolean hasData = in.readBoolean();
-                if (hasData) {
-                    for (int j = 0; j < keys.size(); j++) {
-                        double v = in.readDouble();
-                        if (v != 0) {
-                            data[i][j] = v;
-                        }
+            DataFileFormat.Reader reader = new DataFileFormat.Reader(in, ReaderConfig.getInstance());
+            try {
+                List<TagGroup> keys = reader.getKeys();
+                int num = reader.getNum();
+                int[] columns = new int[keys.size()];
+                double[] values = new double[keys.size()];
+                double[][] data = new double[num][];
+                for (int i = 0; i < num; i++)  {
+                    data[i] = new double[keys.size()];
+                    int count = reader.readRow(columns, values);
+                    for (int k = 0; k < count; k++) {
+                        data[i][columns[k]] = values[k];
                     }
                 }
-            }
 
-            return new ReadOnlyData(data, keys);
+                return new ReadOnlyData(data, keys);
+            }
+            finally {
+                reader.close();
+            }
         }
     }
 }
@@ -47,6 +47,11 @@ public class ReaderConfig extends Config {
     public final BasicWeeklyCostEmailService costEmailService;
     public final Managers managers;
     public final int monthlyCacheSize;
+    public final boolean mmapData;
+    public final int groupedScanMinGroups;
+    public final boolean useRollups;
+    public final QueryResultCache queryResultCache;
+    public final QueryExecutor queryExecutor;
 
     /**
      *
@@ -80,6 +85,12 @@ public class ReaderConfig extends Config {
         this.throughputMetricService = throughputMetricService;
         this.costEmailService = costEmailService;
         this.monthlyCacheSize = Integer.parseInt(properties.getProperty(IceOptions.MONTHLY_CACHE_SIZE, "12"));
+        this.mmapData = Boolean.parseBoolean(properties.getProperty(IceOptions.READER_MMAP, "false"));
+        this.groupedScanMinGroups = Integer.parseInt(properties.getProperty(IceOptions.READER_GROUPED_SCAN_MIN_GROUPS, "4"));
+        this.useRollups = Boolean.parseBoolean(properties.getProperty(IceOptions.READER_ROLLUPS, "false"));
+        int queryCacheMB = Integer.parseInt(properties.getProperty(IceOptions.READER_QUERY_CACHE_MB, "100"));
+        this.queryResultCache = queryCacheMB > 0 ? new QueryResultCache(queryCacheMB * 1024L * 1024L) : null;
+        this.queryExecutor = new QueryExecutor(Integer.parseInt(properties.getProperty(IceOptions.READER_QUERY_THREADS, "8")));
 
         ReaderConfig.instance = this;
 
@@ -134,6 +145,7 @@ public class ReaderConfig extends Config {
         logger.info("Shutting down...");
 
         instance.managers.shutdown();
+        instance.queryExecutor.shutdown();
         if (instance.costEmailService != null)
             instance.costEmailService.shutdown();
     }
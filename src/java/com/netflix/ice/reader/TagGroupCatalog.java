@@ -0,0 +1,257 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.reader;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.tag.Tag;
+import com.netflix.ice.tag.TagType;
+
+import java.util.*;
+
+/**
+ * Catalog of the tags of each dimension found in a fixed list of tag groups, typically those of one month.
+ *
+ * The distinct values of a dimension are kept sorted, and the tag groups refer to them by position. For each pair of
+ * dimensions it also keeps the values of one dimension occurring with each value of the other, so the values matching
+ * a filter on a single dimension are a union of a few precomputed lists. Filters on several dimensions, or matching tag
+ * groups without a tag through null, go through the TagGroupIndex, and only the positions of the values of the matching
+ * tag groups are collected.
+ */
+public class TagGroupCatalog {
+    private static final TagType[] DIMENSIONS = {
+        TagType.Account, TagType.Region, TagType.Zone, TagType.Product, TagType.Operation, TagType.UsageType, TagType.ResourceGroup
+    };
+
+    private final TagGroupIndex index;
+    private final Set<TagType> dimensions;
+    private final Map<TagType, Tag[]> values = new EnumMap<TagType, Tag[]>(TagType.class);
+    private final Map<TagType, Map<Tag, Integer>> valueIds = new EnumMap<TagType, Map<Tag, Integer>>(TagType.class);
+    /**
+     * For each dimension, the position in values of the tag of each tag group, or -1 if the tag is null
+     */
+    private final Map<TagType, int[]> tagGroupValueIds = new EnumMap<TagType, int[]>(TagType.class);
+    /**
+     * For each catalogued dimension and each other dimension, the sorted positions of the values of the first occurring
+     * with each value of the second
+     */
+    private final Map<TagType, Map<TagType, int[][]>> cooccurrences = new EnumMap<TagType, Map<TagType, int[][]>>(TagType.class);
+
+    /**
+     * @param tagGroups tag groups of the catalog
+     * @param dimensions dimensions whose values are looked up, the others can only be filtered on
+     */
+    public TagGroupCatalog(Collection<TagGroup> tagGroups, TagType... dimensions) {
+        this.index = new TagGroupIndex(tagGroups);
+        this.dimensions = dimensions.length == 0 ? EnumSet.noneOf(TagType.class) : EnumSet.copyOf(Arrays.asList(dimensions));
+
+        for (TagType dimension: DIMENSIONS) {
+            Set<Tag> distinct = Sets.newHashSet();
+            for (int i = 0; i < index.size(); i++) {
+                Tag tag = index.get(i).getTag(dimension);
+                if (tag != null)
+                    distinct.add(tag);
+            }
+            Tag[] sorted = distinct.toArray(new Tag[distinct.size()]);
+            Arrays.sort(sorted);
+
+            Map<Tag, Integer> ids = Maps.newHashMap();
+            for (int i = 0; i < sorted.length; i++)
+                ids.put(sorted[i], i);
+            int[] tagGroupIds = new int[index.size()];
+            for (int i = 0; i < index.size(); i++) {
+                Tag tag = index.get(i).getTag(dimension);
+                tagGroupIds[i] = tag == null ? -1 : ids.get(tag);
+            }
+
+            values.put(dimension, sorted);
+            valueIds.put(dimension, ids);
+            tagGroupValueIds.put(dimension, tagGroupIds);
+        }
+
+        for (TagType dimension: this.dimensions) {
+            Map<TagType, int[][]> byFilter = new EnumMap<TagType, int[][]>(TagType.class);
+            for (TagType filter: DIMENSIONS) {
+                if (filter != dimension)
+                    byFilter.put(filter, buildCooccurrences(filter, dimension));
+            }
+            cooccurrences.put(dimension, byFilter);
+        }
+    }
+
+    private int[][] buildCooccurrences(TagType filter, TagType dimension) {
+        int[] filterIds = tagGroupValueIds.get(filter);
+        int[] dimensionIds = tagGroupValueIds.get(dimension);
+        BitSet[] bitSets = new BitSet[values.get(filter).length];
+        for (int i = 0; i < filterIds.length; i++) {
+            if (filterIds[i] < 0 || dimensionIds[i] < 0)
+                continue;
+            if (bitSets[filterIds[i]] == null)
+                bitSets[filterIds[i]] = new BitSet();
+            bitSets[filterIds[i]].set(dimensionIds[i]);
+        }
+
+        int[][] result = new int[bitSets.length][];
+        for (int i = 0; i < bitSets.length; i++) {
+            BitSet bitSet = bitSets[i] == null ? new BitSet() : bitSets[i];
+            result[i] = new int[bitSet.cardinality()];
+            int j = 0;
+            for (int k = bitSet.nextSetBit(0); k >= 0; k = bitSet.nextSetBit(k + 1))
+                result[i][j++] = k;
+        }
+        return result;
+    }
+
+    /**
+     * Adds to result the non-null values of dimension in the tag groups matching tagLists, in sorted order.
+     * @param dimension one of the catalogued dimensions
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Tag> void addValues(TagType dimension, TagLists tagLists, Collection<T> result) {
+        if (!dimensions.contains(dimension))
+            throw new IllegalArgumentException(dimension + " is not catalogued");
+
+        Tag[] dimensionValues = values.get(dimension);
+        BitSet found = getValueIds(dimension, tagLists);
+        for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1))
+            result.add((T)dimensionValues[i]);
+    }
+
+    /**
+     * Adds to the set of each value of groupBy the values of dimension occurring with it in the tag groups matching
+     * tagLists. Tag groups without a groupBy or dimension tag are skipped. When tagLists filters on nothing but groupBy,
+     * the values come from the co-occurrence lists of dimension, otherwise from one pass over the matching tag groups.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Tag> void addValuesByGroup(TagType groupBy, TagType dimension, TagLists tagLists, Map<Tag, Set<T>> result) {
+        BitSet[] found = new BitSet[values.get(groupBy).length];
+
+        boolean otherFilters = false;
+        for (TagType type: DIMENSIONS) {
+            List<? extends Tag> tags = getTags(tagLists, type);
+            if (type != groupBy && tags != null && tags.size() > 0)
+                otherFilters = true;
+        }
+
+        if (!otherFilters && dimensions.contains(dimension) && groupBy != dimension) {
+            int[][] byGroupValue = cooccurrences.get(dimension).get(groupBy);
+            List<? extends Tag> groupTags = getTags(tagLists, groupBy);
+            BitSet groupIds = new BitSet(found.length);
+            if (groupTags == null || groupTags.size() == 0)
+                groupIds.set(0, found.length);
+            else
+                addIds(groupBy, groupTags, groupIds);
+            for (int i = groupIds.nextSetBit(0); i >= 0; i = groupIds.nextSetBit(i + 1)) {
+                if (byGroupValue[i].length == 0)
+                    continue;
+                found[i] = new BitSet();
+                for (int id: byGroupValue[i])
+                    found[i].set(id);
+            }
+        }
+        else {
+            int[] groupIds = tagGroupValueIds.get(groupBy);
+            int[] ids = tagGroupValueIds.get(dimension);
+            BitSet matches = index.getMatches(tagLists);
+            for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+                if (groupIds[i] < 0 || ids[i] < 0)
+                    continue;
+                if (found[groupIds[i]] == null)
+                    found[groupIds[i]] = new BitSet();
+                found[groupIds[i]].set(ids[i]);
+            }
+        }
+
+        Tag[] groupValues = values.get(groupBy);
+        Tag[] dimensionValues = values.get(dimension);
+        for (int i = 0; i < found.length; i++) {
+            if (found[i] == null)
+                continue;
+            Set<T> set = result.get(groupValues[i]);
+            if (set == null) {
+                set = Sets.newTreeSet();
+                result.put(groupValues[i], set);
+            }
+            for (int j = found[i].nextSetBit(0); j >= 0; j = found[i].nextSetBit(j + 1))
+                set.add((T)dimensionValues[j]);
+        }
+    }
+
+    private BitSet getValueIds(TagType dimension, TagLists tagLists) {
+        TagType filter = null;
+        int numFilters = 0;
+        boolean nullFilter = false;
+        for (TagType type: DIMENSIONS) {
+            List<? extends Tag> tags = getTags(tagLists, type);
+            if (tags != null && tags.size() > 0) {
+                filter = type;
+                numFilters++;
+                nullFilter |= tags.contains(null);
+            }
+        }
+
+        BitSet result = new BitSet(values.get(dimension).length);
+        if (numFilters == 0) {
+            result.set(0, values.get(dimension).length);
+        }
+        else if (numFilters == 1 && filter == dimension && !nullFilter) {
+            addIds(dimension, getTags(tagLists, filter), result);
+        }
+        else if (numFilters == 1 && !nullFilter) {
+            int[][] byFilterValue = cooccurrences.get(dimension).get(filter);
+            BitSet filterIds = new BitSet();
+            addIds(filter, getTags(tagLists, filter), filterIds);
+            for (int i = filterIds.nextSetBit(0); i >= 0; i = filterIds.nextSetBit(i + 1)) {
+                for (int id: byFilterValue[i])
+                    result.set(id);
+            }
+        }
+        else {
+            int[] ids = tagGroupValueIds.get(dimension);
+            BitSet matches = index.getMatches(tagLists);
+            for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+                if (ids[i] >= 0)
+                    result.set(ids[i]);
+            }
+        }
+        return result;
+    }
+
+    private void addIds(TagType dimension, List<? extends Tag> tags, BitSet result) {
+        Map<Tag, Integer> ids = valueIds.get(dimension);
+        for (Tag tag: tags) {
+            Integer id = tag == null ? null : ids.get(tag);
+            if (id != null)
+                result.set(id);
+        }
+    }
+
+    private static List<? extends Tag> getTags(TagLists tagLists, TagType dimension) {
+        switch (dimension) {
+            case Account: return tagLists.accounts;
+            case Region: return tagLists.regions;
+            case Zone: return tagLists.zones;
+            case Product: return tagLists.products;
+            case Operation: return tagLists.operations;
+            case UsageType: return tagLists.usageTypes;
+            case ResourceGroup: return tagLists.resourceGroups;
+            default: return null;
+        }
+    }
+}
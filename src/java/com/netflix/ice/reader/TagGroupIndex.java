@@ -0,0 +1,140 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.reader;
+
+import com.google.common.collect.Maps;
+import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.tag.Tag;
+import com.netflix.ice.tag.TagType;
+
+import java.util.*;
+
+/**
+ * Inverted index over a fixed list of tag groups. For every tag of every dimension it keeps the positions of the tag
+ * groups having that tag, so the tag groups matching a TagLists are found by intersecting one union of positions per
+ * filtered dimension instead of checking each tag group against each list.
+ *
+ * Positions of a tag are kept as a BitSet when the tag is common, and as a sorted int[] otherwise, so that the many rare
+ * tags of a dimension do not each take a bit per tag group. Tag groups without a tag of a dimension are indexed under
+ * null, since TagLists matches them when its list for that dimension contains null.
+ */
+public class TagGroupIndex {
+    private static final TagType[] DIMENSIONS = {
+        TagType.Account, TagType.Region, TagType.Zone, TagType.Product, TagType.Operation, TagType.UsageType, TagType.ResourceGroup
+    };
+
+    private final TagGroup[] tagGroups;
+    private final Map<TagType, Map<Tag, Object>> positions = new EnumMap<TagType, Map<Tag, Object>>(TagType.class);
+
+    public TagGroupIndex(Collection<TagGroup> tagGroups) {
+        this.tagGroups = tagGroups.toArray(new TagGroup[tagGroups.size()]);
+
+        for (TagType dimension: DIMENSIONS) {
+            Map<Tag, int[]> counts = Maps.newHashMap();
+            for (TagGroup tagGroup: this.tagGroups) {
+                Tag tag = tagGroup.getTag(dimension);
+                int[] count = counts.get(tag);
+                if (count == null) {
+                    count = new int[1];
+                    counts.put(tag, count);
+                }
+                count[0]++;
+            }
+
+            Map<Tag, int[]> lists = Maps.newHashMap();
+            for (Map.Entry<Tag, int[]> entry: counts.entrySet())
+                lists.put(entry.getKey(), new int[entry.getValue()[0]]);
+            for (int[] count: counts.values())
+                count[0] = 0;
+            for (int i = 0; i < this.tagGroups.length; i++) {
+                Tag tag = this.tagGroups[i].getTag(dimension);
+                lists.get(tag)[counts.get(tag)[0]++] = i;
+            }
+
+            Map<Tag, Object> dimensionPositions = Maps.newHashMap();
+            for (Map.Entry<Tag, int[]> entry: lists.entrySet()) {
+                int[] list = entry.getValue();
+                // a BitSet takes one bit per tag group, a list 32 bits per position
+                if (list.length > this.tagGroups.length / 32) {
+                    BitSet bitSet = new BitSet(this.tagGroups.length);
+                    for (int i: list)
+                        bitSet.set(i);
+                    dimensionPositions.put(entry.getKey(), bitSet);
+                }
+                else {
+                    dimensionPositions.put(entry.getKey(), list);
+                }
+            }
+            positions.put(dimension, dimensionPositions);
+        }
+    }
+
+    public int size() {
+        return tagGroups.length;
+    }
+
+    public TagGroup get(int i) {
+        return tagGroups[i];
+    }
+
+    /**
+     * @return positions of the tag groups matching tagLists, the same ones TagLists.contains(TagGroup) accepts
+     */
+    public BitSet getMatches(TagLists tagLists) {
+        BitSet result = new BitSet(tagGroups.length);
+        result.set(0, tagGroups.length);
+
+        retain(result, TagType.Account, tagLists.accounts);
+        retain(result, TagType.Region, tagLists.regions);
+        retain(result, TagType.Zone, tagLists.zones);
+        retain(result, TagType.Product, tagLists.products);
+        retain(result, TagType.Operation, tagLists.operations);
+        retain(result, TagType.UsageType, tagLists.usageTypes);
+        retain(result, TagType.ResourceGroup, tagLists.resourceGroups);
+
+        return result;
+    }
+
+    /**
+     * Adds the tag groups matching tagLists to result, in index order.
+     */
+    public void addMatches(TagLists tagLists, Collection<TagGroup> result) {
+        BitSet matches = getMatches(tagLists);
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1))
+            result.add(tagGroups[i]);
+    }
+
+    private void retain(BitSet result, TagType dimension, List<? extends Tag> tags) {
+        if (tags == null || tags.size() == 0 || result.isEmpty())
+            return;
+
+        Map<Tag, Object> dimensionPositions = positions.get(dimension);
+        BitSet union = new BitSet(tagGroups.length);
+        for (Tag tag: tags) {
+            Object tagPositions = dimensionPositions.get(tag);
+            if (tagPositions instanceof BitSet) {
+                union.or((BitSet)tagPositions);
+            }
+            else if (tagPositions != null) {
+                for (int i: (int[])tagPositions)
+                    union.set(i);
+            }
+        }
+        result.and(union);
+    }
+}
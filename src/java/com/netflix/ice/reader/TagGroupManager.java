@@ -26,7 +26,7 @@ import java.util.Map;
 /**
  * Interface to manager tag groups.
  */
-public interface TagGroupManager {
+public interface TagGroupManager extends Generational {
 
     /**
      * Get all accounts that meet query in tagLists.
@@ -18,8 +18,12 @@
 package com.netflix.ice.tag;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class Tag implements Comparable<Tag>, Serializable {
+    // initialized before the tags below
+    private static final AtomicInteger nextId = new AtomicInteger();
+
     public static final Tag aggregated = new Tag("aggregated") {
         @Override
         public int compareTo(Tag t) {
@@ -29,9 +33,14 @@ public abstract class Tag implements Comparable<Tag>, Serializable {
 
     public final String name;
     public final String s3Name;
+    /**
+     * Number of this tag object, unique in the process. Tag groups are looked up by the ids of their tags.
+     */
+    public final int id;
     Tag(String name) {
         this.name = name;
         this.s3Name = Tag.toS3(name);
+        this.id = nextId.getAndIncrement();
     }
 
     @Override
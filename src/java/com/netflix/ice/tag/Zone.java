@@ -168,8 +168,14 @@ public class Zone extends Tag {
             return null;
         Zone zone = zonesByName.get(name);
         if (zone == null) {
-            zonesByName.putIfAbsent(name, new Zone(region, name));
-            zone = zonesByName.get(name);
+            // creating a zone registers it with its region, so creation must not race
+            synchronized (zonesByName) {
+                zone = zonesByName.get(name);
+                if (zone == null) {
+                    zone = new Zone(region, name);
+                    zonesByName.put(name, zone);
+                }
+            }
         }
         return zone;
     }
@@ -0,0 +1,292 @@
+package com.netflix.ice.basic;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Interval;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.ice.common.AwsUtils;
+import com.netflix.ice.common.ConsolidateType;
+import com.netflix.ice.common.DataFileFormat;
+import com.netflix.ice.common.IceOptions;
+import com.netflix.ice.common.LocalS3Client;
+import com.netflix.ice.common.Rollup;
+import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.common.TestConfigs;
+import com.netflix.ice.reader.AggregateType;
+import com.netflix.ice.reader.TagLists;
+import com.netflix.ice.tag.Account;
+import com.netflix.ice.tag.Operation;
+import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.Tag;
+import com.netflix.ice.tag.TagType;
+import com.netflix.ice.tag.UsageType;
+import com.netflix.ice.tag.Zone;
+
+public class BasicDataManagerTest {
+	private static final DateTime START = new DateTime(2013, 6, 1, 0, 0, DateTimeZone.UTC);
+	private static final int HOURS = 240;
+	private static final String FILE_NAME = "cost_hourly_all_2013-06";
+	private static final Interval INTERVAL = new Interval(START.plusHours(5), START.plusHours(HOURS - 7));
+
+	private File dir;
+	private LocalS3Client s3;
+	private List<TagGroup> tagGroups;
+	private double[][] values;
+	private BasicTagGroupManager tagGroupManager;
+	private final List<BasicDataManager> dataManagers = Lists.newArrayList();
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("datamanager", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdirs());
+		s3 = new LocalS3Client();
+
+		tagGroups = Lists.newArrayList();
+		Operation[] operations = {Operation.ondemandInstances, Operation.reservedInstancesHeavy, Operation.borrowedInstancesHeavy,
+				Operation.lentInstancesHeavy};
+		for (Account account: new Account[] {TestConfigs.ACCOUNT, TestConfigs.OTHER_ACCOUNT}) {
+			for (Operation operation: operations) {
+				for (int i = 0; i < 3; i++) {
+					UsageType usageType = UsageType.getUsageType("m1.size" + i, "hours");
+					tagGroups.add(TagGroup.getTagGroup(account, Region.US_EAST_1, Zone.US_EAST_1A, Product.ec2_instance, operation, usageType, null));
+					tagGroups.add(TagGroup.getTagGroup(account, Region.US_EAST_1, Zone.US_EAST_1B, Product.ec2_instance, operation, usageType, null));
+					tagGroups.add(TagGroup.getTagGroup(account, Region.US_WEST_2, Zone.US_WEST_2A, Product.ec2_instance, operation, usageType, null));
+				}
+			}
+			tagGroups.add(TagGroup.getTagGroup(account, Region.US_WEST_2, null, Product.ebs, Operation.getOperation("CreateVolume"),
+					UsageType.getUsageType("EBS:VolumeUsage", "GB"), null));
+		}
+
+		Random random = new Random(1);
+		values = new double[HOURS][tagGroups.size()];
+		for (int i = 0; i < HOURS; i++) {
+			for (int j = 0; j < tagGroups.size(); j++) {
+				if (random.nextInt(3) > 0)
+					values[i][j] = random.nextDouble() * 10;
+			}
+		}
+
+		TreeMap<Long, Collection<TagGroup>> tagGroupsByMonth = Maps.newTreeMap();
+		tagGroupsByMonth.put(START.getMillis(), tagGroups);
+		tagGroupManager = new BasicTagGroupManager(tagGroupsByMonth);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (BasicDataManager dataManager: dataManagers)
+			dataManager.shutdown();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testRollupsSameAsFullScan() throws Exception {
+		String withRollups = putData(1, 0);
+		String withoutRollups = putData(0, 0);
+
+		// one pass per group, and one pass for all groups
+		for (int groupedScanMinGroups: new int[] {100, 1}) {
+			BasicDataManager expected = newDataManager(withoutRollups, groupedScanMinGroups);
+			BasicDataManager dataManager = newDataManager(withRollups, groupedScanMinGroups);
+			for (TagType groupBy: Rollup.DIMENSIONS)
+				assertSameData(groupBy + " " + groupedScanMinGroups, getData(expected, new TagLists(), groupBy, false), getData(dataManager, new TagLists(), groupBy, false), 1);
+			assertSameData("reservations " + groupedScanMinGroups, getData(expected, new TagLists(), TagType.Operation, true),
+					getData(dataManager, new TagLists(), TagType.Operation, true), 1);
+		}
+	}
+
+	@Test
+	public void testUsesRollupsOnlyWithoutFilters() throws Exception {
+		// rollups with twice the totals tell which queries are answered from them
+		BasicDataManager expected = newDataManager(putData(0, 0), 4);
+		BasicDataManager dataManager = newDataManager(putData(2, 0), 4);
+		TagLists noFilters = new TagLists();
+		TagLists accountFilter = new TagLists(Lists.newArrayList(TestConfigs.OTHER_ACCOUNT));
+		TagLists zoneFilter = new TagLists(null, null, Lists.newArrayList(Zone.US_EAST_1A));
+		TagLists productFilter = new TagLists(null, null, null, Lists.newArrayList(Product.ec2_instance));
+
+		for (TagType groupBy: Rollup.DIMENSIONS)
+			assertSameData(groupBy.toString(), getData(expected, noFilters, groupBy, false), getData(dataManager, noFilters, groupBy, false), 2);
+		assertSameData("account filter", getData(expected, accountFilter, TagType.Account, false), getData(dataManager, accountFilter, TagType.Account, false), 2);
+		assertSameData("product filter", getData(expected, productFilter, TagType.Product, false), getData(dataManager, productFilter, TagType.Product, false), 2);
+		assertSameData("reservations by operation", getData(expected, noFilters, TagType.Operation, true), getData(dataManager, noFilters, TagType.Operation, true), 2);
+
+		// filters on other dimensions, dimensions without rollups, and reservations by anything but operation
+		assertSameData("account filter by region", getData(expected, accountFilter, TagType.Region, false), getData(dataManager, accountFilter, TagType.Region, false), 1);
+		assertSameData("zone filter", getData(expected, zoneFilter, TagType.Account, false), getData(dataManager, zoneFilter, TagType.Account, false), 1);
+		assertSameData("product filter by operation", getData(expected, productFilter, TagType.Operation, false),
+				getData(dataManager, productFilter, TagType.Operation, false), 1);
+		assertSameData("by zone", getData(expected, noFilters, TagType.Zone, false), getData(dataManager, noFilters, TagType.Zone, false), 1);
+		assertSameData("by usage type", getData(expected, noFilters, TagType.UsageType, false), getData(dataManager, noFilters, TagType.UsageType, false), 1);
+		assertSameData("no group by", getData(expected, noFilters, null, false), getData(dataManager, noFilters, null, false), 1);
+		assertSameData("reservations by account", getData(expected, noFilters, TagType.Account, true), getData(dataManager, noFilters, TagType.Account, true), 1);
+	}
+
+	@Test
+	public void testIgnoresRollupsOfOtherVersion() throws Exception {
+		BasicDataManager expected = newDataManager(putData(0, 0), 4);
+		BasicDataManager dataManager = newDataManager(putData(2, 1), 4);
+
+		for (TagType groupBy: Rollup.DIMENSIONS)
+			assertSameData(groupBy.toString(), getData(expected, new TagLists(), groupBy, false), getData(dataManager, new TagLists(), groupBy, false), 1);
+	}
+
+	@Test
+	public void testIgnoresRollupsUnlessEnabled() throws Exception {
+		BasicDataManager expected = newDataManager(putData(0, 0), 4);
+		String workBucket = putData(2, 0);
+		BasicDataManager dataManager = newDataManager(workBucket, 4, false);
+
+		for (TagType groupBy: Rollup.DIMENSIONS)
+			assertSameData(groupBy.toString(), getData(expected, new TagLists(), groupBy, false), getData(dataManager, new TagLists(), groupBy, false), 1);
+		// the rollups are not even downloaded
+		for (TagType dimension: Rollup.DIMENSIONS)
+			assertFalse(new File(new File(dir, workBucket + "-4-false"), Rollup.getFileName(FILE_NAME, dimension)).exists());
+	}
+
+	@Test
+	public void testGroupedScanSameAsScanPerGroup() throws Exception {
+		String workBucket = putData(0, 0);
+		BasicDataManager perGroup = newDataManager(workBucket, Integer.MAX_VALUE);
+		BasicDataManager grouped = newDataManager(workBucket, 1);
+		// queries with fewer groups than the default minimum are scanned per group, the others at once
+		BasicDataManager dataManager = newDataManager(workBucket, 4);
+		TagGroup tagGroup = tagGroups.get(0);
+		TagLists[] tagListsArray = {
+			new TagLists(),
+			new TagLists(Lists.newArrayList(TestConfigs.OTHER_ACCOUNT)),
+			new TagLists(null, Lists.newArrayList(Region.US_EAST_1), Lists.newArrayList(Zone.US_EAST_1A, Zone.US_EAST_1B)),
+			new TagLists(null, null, null, null, Lists.newArrayList(tagGroup.operation, Operation.lentInstancesHeavy), Lists.newArrayList(tagGroup.usageType)),
+		};
+
+		for (TagLists tagLists: tagListsArray) {
+			for (TagType groupBy: new TagType[] {TagType.Account, TagType.Region, TagType.Zone, TagType.Product, TagType.Operation, TagType.UsageType}) {
+				for (boolean forReservation: new boolean[] {false, true}) {
+					String message = tagLists + " " + groupBy + " " + forReservation;
+					Map<Tag, double[]> expected = getData(perGroup, tagLists, groupBy, forReservation);
+					assertSameBits(message, expected, getData(grouped, tagLists, groupBy, forReservation));
+					assertSameBits(message, expected, getData(dataManager, tagLists, groupBy, forReservation));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Puts the data file in a new work bucket, with rollups holding factor times the totals of the data unless factor is
+	 * 0, and checksumOffset added to the checksum of the data file.
+	 * @return the work bucket
+	 */
+	private String putData(double factor, long checksumOffset) throws IOException {
+		String workBucket = "work-" + System.nanoTime();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		DataFileFormat.Writer writer = new DataFileFormat.Writer(out, tagGroups, HOURS, DataFileFormat.DEFAULT_VERSION);
+		int[] columns = new int[tagGroups.size()];
+		double[] rowValues = new double[tagGroups.size()];
+		for (double[] row: values) {
+			int count = 0;
+			for (int j = 0; j < row.length; j++) {
+				if (row[j] != 0) {
+					columns[count] = j;
+					rowValues[count++] = row[j];
+				}
+			}
+			writer.writeRow(count, columns, rowValues);
+		}
+		writer.finish();
+		out.close();
+		long lastModified = System.currentTimeMillis() - 60000;
+		s3.put(workBucket, "ice/" + FILE_NAME, bytes.toByteArray(), lastModified);
+		if (factor == 0)
+			return workBucket;
+
+		CRC32 checksum = new CRC32();
+		checksum.update(bytes.toByteArray());
+		for (TagType dimension: Rollup.DIMENSIONS) {
+			Map<String, double[]> totals = Maps.newHashMap();
+			for (int j = 0; j < tagGroups.size(); j++) {
+				Tag tag = Rollup.getTag(tagGroups.get(j), dimension);
+				if (tag == null)
+					continue;
+				if (!totals.containsKey(tag.name))
+					totals.put(tag.name, new double[HOURS]);
+				for (int i = 0; i < HOURS; i++)
+					totals.get(tag.name)[i] += factor * values[i][j];
+			}
+			bytes = new ByteArrayOutputStream();
+			out = new DataOutputStream(bytes);
+			Rollup.Serializer.serialize(out, new Rollup(dimension, checksum.getValue() + checksumOffset, HOURS, totals));
+			out.close();
+			s3.put(workBucket, "ice/" + Rollup.getFileName(FILE_NAME, dimension), bytes.toByteArray(), lastModified);
+		}
+		return workBucket;
+	}
+
+	private BasicDataManager newDataManager(String workBucket, int groupedScanMinGroups) {
+		return newDataManager(workBucket, groupedScanMinGroups, true);
+	}
+
+	private BasicDataManager newDataManager(String workBucket, int groupedScanMinGroups, boolean useRollups) {
+		Properties properties = new Properties();
+		properties.setProperty(IceOptions.START_MILLIS, "" + START.getMillis());
+		properties.setProperty(IceOptions.WORK_S3_BUCKET_NAME, workBucket);
+		properties.setProperty(IceOptions.READER_GROUPED_SCAN_MIN_GROUPS, "" + groupedScanMinGroups);
+		properties.setProperty(IceOptions.READER_ROLLUPS, "" + useRollups);
+		File localDir = new File(dir, workBucket + "-" + groupedScanMinGroups + "-" + useRollups);
+		assertTrue(localDir.mkdirs());
+		TestConfigs.readerConfig(localDir, properties, tagGroupManager);
+		AwsUtils.setAmazonS3Client(s3);
+
+		BasicDataManager dataManager = new BasicDataManager(null, ConsolidateType.hourly, true);
+		dataManagers.add(dataManager);
+		return dataManager;
+	}
+
+	private static Map<Tag, double[]> getData(BasicDataManager dataManager, TagLists tagLists, TagType groupBy, boolean forReservation) {
+		return dataManager.getData(INTERVAL, tagLists, groupBy, AggregateType.none, forReservation);
+	}
+
+	private static void assertSameBits(String message, Map<Tag, double[]> expected, Map<Tag, double[]> data) {
+		assertEquals(message, expected.keySet(), data.keySet());
+		for (Tag tag: expected.keySet()) {
+			double[] expectedValues = expected.get(tag);
+			double[] values = data.get(tag);
+			assertEquals(message + " " + tag, expectedValues.length, values.length);
+			for (int i = 0; i < expectedValues.length; i++)
+				assertEquals(message + " " + tag + " " + i, Double.doubleToLongBits(expectedValues[i]), Double.doubleToLongBits(values[i]));
+		}
+	}
+
+	private static void assertSameData(String message, Map<Tag, double[]> expected, Map<Tag, double[]> data, double factor) {
+		assertEquals(message, expected.keySet(), data.keySet());
+		assertTrue(message, expected.size() > 0);
+		for (Tag tag: expected.keySet()) {
+			double[] expectedValues = expected.get(tag);
+			double[] values = data.get(tag);
+			assertEquals(message + " " + tag, expectedValues.length, values.length);
+			for (int i = 0; i < expectedValues.length; i++)
+				assertEquals(message + " " + tag + " " + i, factor * expectedValues[i], values[i], Math.abs(factor * expectedValues[i]) * 1e-12);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.netflix.ice.basic;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.cache.CacheStats;
+import com.netflix.ice.common.TestConfigs;
+import com.netflix.ice.processor.Ec2InstanceReservationPrice.ReservationUtilization;
+import com.netflix.ice.processor.ProcessorConfig;
+import com.netflix.ice.tag.Operation;
+import com.netflix.ice.tag.Product;
+
+public class BasicLineItemProcessorTest {
+	// reservations bought before this time are heavy utilization by default, the others light
+	private static final long UTILIZATION_CHANGE = new DateTime(2013, 6, 15, 0, 0, DateTimeZone.UTC).getMillis();
+
+	private static final Product[] PRODUCTS = {Product.ec2, Product.ebs, Product.rds, Product.s3};
+	private static final String[][] OPERATIONS_AND_USAGE_TYPES = {
+		{"RunInstances", "BoxUsage:m1.small"},
+		{"RunInstances", "BoxUsage"},
+		{"RunInstances:0002", "USW2-BoxUsage:m3.large"},
+		{"RunInstances:0010", "APS1-HeavyUsage:m1.large"},
+		{"RunInstances", "LightUsage"},
+		{"RunComputeNode:0001", "Node:dw.hs1.xlarge"},
+		{"CreateDBInstance", "USW2-InstanceUsage:db.m1.small"},
+		{"EBS Snapshot Copy", "EUW1-EBS:SnapshotUsage"},
+		{"", "EBS:VolumeUsage"},
+		{"", "ElasticIP:IdleAddress"},
+		{"PutObject", "Requests-Tier1"},
+		{"", "Unknown"},
+	};
+	private static final String[] DESCRIPTIONS = {"$0.06 per On Demand Linux m1.small Instance Hour", "$0.01 per 1,000 PUT requests"};
+	private static final double[] COSTS = {0, 0.25, 1.5, 0};
+	private static final long[] TIMES = {UTILIZATION_CHANGE - 3600000L, UTILIZATION_CHANGE, UTILIZATION_CHANGE - 7200000L, UTILIZATION_CHANGE + 3600000L};
+
+	private File dir;
+	private ProcessorConfig config;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("lineitems", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdirs());
+		config = TestConfigs.processorConfig(dir, new Properties(), new TestConfigs.NoReservationService() {
+			@Override
+			public ReservationUtilization getDefaultReservationUtilization(long time) {
+				return time < UTILIZATION_CHANGE ? ReservationUtilization.HEAVY : ReservationUtilization.LIGHT;
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testCachedSameAsReform() {
+		BasicLineItemProcessor processor = new BasicLineItemProcessor();
+		int lookups = 0;
+		// costs and times vary innermost, so that line items differing only in them find each other in the cache
+		for (Product product: PRODUCTS) {
+			for (boolean reservationUsage: new boolean[] {false, true}) {
+				for (String[] operationAndUsageType: OPERATIONS_AND_USAGE_TYPES) {
+					for (String description: DESCRIPTIONS) {
+						for (double cost: COSTS) {
+							for (long time: TIMES) {
+								String message = product + " " + reservationUsage + " " + operationAndUsageType[0] + " " + operationAndUsageType[1] + " "
+										+ description + " " + cost + " " + new DateTime(time, DateTimeZone.UTC);
+								BasicLineItemProcessor.ReformedMetaData expected = processor.reform(time, config, product, reservationUsage,
+										operationAndUsageType[0], operationAndUsageType[1], description, cost);
+								BasicLineItemProcessor.ReformedMetaData result = processor.getReformedMetaData(time, config, product, reservationUsage,
+										operationAndUsageType[0], operationAndUsageType[1], description, cost);
+								lookups++;
+
+								assertSame(message, expected.region, result.region);
+								assertSame(message, expected.product, result.product);
+								assertSame(message, expected.operation, result.operation);
+								assertSame(message, expected.usageType, result.usageType);
+							}
+						}
+					}
+				}
+			}
+		}
+
+		CacheStats stats = processor.getReformCacheStats();
+		assertEquals(lookups, stats.requestCount());
+		// at most one miss for every zero or non-zero cost and utilization of a line item
+		assertTrue(stats.missCount() <= lookups / COSTS.length / TIMES.length * 3);
+		assertTrue(stats.hitCount() >= lookups / 2);
+	}
+
+	@Test
+	public void testReservationUtilizationOfStartTime() {
+		BasicLineItemProcessor processor = new BasicLineItemProcessor();
+		BasicLineItemProcessor.ReformedMetaData heavy = processor.getReformedMetaData(UTILIZATION_CHANGE - 1, config, Product.ec2, true,
+				"RunInstances", "BoxUsage:m1.small", "m1.small", 0.5);
+		BasicLineItemProcessor.ReformedMetaData light = processor.getReformedMetaData(UTILIZATION_CHANGE, config, Product.ec2, true,
+				"RunInstances", "BoxUsage:m1.small", "m1.small", 0.5);
+		BasicLineItemProcessor.ReformedMetaData fixed = processor.getReformedMetaData(UTILIZATION_CHANGE, config, Product.ec2, true,
+				"RunInstances", "BoxUsage:m1.small", "m1.small", 0);
+
+		assertSame(Operation.reservedInstancesHeavy, heavy.operation);
+		assertSame(Operation.reservedInstancesLight, light.operation);
+		assertSame(Operation.reservedInstancesFixed, fixed.operation);
+		assertEquals(0, processor.getReformCacheStats().hitCount());
+
+		processor.getReformedMetaData(UTILIZATION_CHANGE + 1, config, Product.ec2, true, "RunInstances", "BoxUsage:m1.small", "m1.small", 1.5);
+		processor.getReformedMetaData(UTILIZATION_CHANGE - 2, config, Product.ec2, true, "RunInstances", "BoxUsage:m1.small", "m1.small", 0);
+		assertEquals(2, processor.getReformCacheStats().hitCount());
+	}
+}
@@ -0,0 +1,201 @@
+package com.netflix.ice.basic;
+
+import static org.junit.Assert.*;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Interval;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.reader.TagLists;
+import com.netflix.ice.tag.Account;
+import com.netflix.ice.tag.Operation;
+import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.ResourceGroup;
+import com.netflix.ice.tag.Tag;
+import com.netflix.ice.tag.TagType;
+import com.netflix.ice.tag.UsageType;
+import com.netflix.ice.tag.Zone;
+
+public class BasicTagGroupManagerTest {
+	private static final TagType[] GROUP_BYS = {
+		TagType.Account, TagType.Region, TagType.Zone, TagType.Product, TagType.Operation, TagType.UsageType, TagType.ResourceGroup
+	};
+	private static final DateTime START = new DateTime(2014, 1, 1, 0, 0, DateTimeZone.UTC);
+
+	private final List<Account> accounts = Lists.newArrayList();
+	private final List<Region> regions = Lists.newArrayList(Region.US_EAST_1, Region.US_WEST_2);
+	private final List<Zone> zones = Lists.newArrayList(Zone.US_EAST_1A, Zone.US_EAST_1B, Zone.US_WEST_2A, null);
+	private final List<Product> products = Lists.newArrayList(Product.ec2_instance, Product.ebs, Product.s3);
+	private final List<Operation> operations = Lists.<Operation>newArrayList(Operation.ondemandInstances, Operation.reservedInstancesHeavy,
+			Operation.bonusReservedInstancesHeavy, Operation.borrowedInstancesHeavy, Operation.lentInstancesHeavy, Operation.reservedInstancesLight);
+	private final List<UsageType> usageTypes = Lists.newArrayList();
+	private final List<ResourceGroup> resourceGroups = Lists.newArrayList();
+	private final TreeMap<Long, Collection<TagGroup>> tagGroups = Maps.newTreeMap();
+	private final BasicTagGroupManager manager;
+
+	public BasicTagGroupManagerTest() {
+		for (int i = 0; i < 40; i++)
+			accounts.add(new Account("30000000000" + i, "manager" + i));
+		for (int i = 0; i < 10; i++)
+			usageTypes.add(UsageType.getUsageType("usage" + i, "hours"));
+		for (int i = 0; i < 10; i++)
+			resourceGroups.add(ResourceGroup.getResourceGroup("group" + i));
+		resourceGroups.add(null);
+
+		Random random = new Random(1);
+		for (int month = 0; month < 3; month++) {
+			Set<TagGroup> monthTagGroups = Sets.newHashSet();
+			for (int i = 0; i < 3000; i++)
+				monthTagGroups.add(TagGroup.getTagGroup(pick(random, accounts), pick(random, regions), pick(random, zones), pick(random, products),
+						pick(random, operations), pick(random, usageTypes), pick(random, resourceGroups)));
+			tagGroups.put(START.plusMonths(month).getMillis(), monthTagGroups);
+		}
+		manager = new BasicTagGroupManager(tagGroups);
+	}
+
+	@Test
+	public void testTagListsMap() {
+		Interval[] intervals = {
+			new Interval(START, START.plusMonths(3)),
+			new Interval(START.plusMonths(1), START.plusMonths(1).plusDays(7)),
+		};
+		for (Interval interval: intervals) {
+			for (TagType groupBy: GROUP_BYS) {
+				for (int i = 0; i < 6; i++) {
+					assertSameTagListsMap(interval, i, groupBy, false);
+					assertSameTagListsMap(interval, i, groupBy, true);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testValuesSameAsScan() {
+		Interval interval = new Interval(START.plusMonths(1), START.plusMonths(3));
+		List<ResourceGroup> withNull = Lists.newArrayList(resourceGroups.get(0), null);
+		TagLists[] tagListsArray = {
+			getTagLists(0), getTagLists(1), getTagLists(2), getTagLists(4), getTagLists(5),
+			// the other dimensions only match resource group filters containing null
+			new TagLists(Lists.newArrayList(accounts.subList(0, 10)), null, null, null, null, null, withNull),
+		};
+		for (int i = 0; i < tagListsArray.length; i++) {
+			TagLists tagLists = tagListsArray[i];
+			assertEquals("" + i, scan(interval, tagLists, TagType.Account), Sets.<Tag>newTreeSet(manager.getAccounts(interval, tagLists)));
+			assertEquals("" + i, scan(interval, tagLists, TagType.Region), Sets.<Tag>newTreeSet(manager.getRegions(interval, tagLists)));
+			assertEquals("" + i, scan(interval, tagLists, TagType.Zone), Sets.<Tag>newTreeSet(manager.getZones(interval, tagLists)));
+			assertEquals("" + i, scan(interval, tagLists, TagType.Product), Sets.<Tag>newTreeSet(manager.getProducts(interval, tagLists)));
+			assertEquals("" + i, scan(interval, tagLists, TagType.Operation), Sets.<Tag>newTreeSet(manager.getOperations(interval, tagLists)));
+			assertEquals("" + i, scan(interval, tagLists, TagType.UsageType), Sets.<Tag>newTreeSet(manager.getUsageTypes(interval, tagLists)));
+			assertEquals("" + i, scan(interval, tagLists, TagType.ResourceGroup), Sets.<Tag>newTreeSet(manager.getResourceGroups(interval, tagLists)));
+		}
+		assertTrue(manager.getAccounts(interval, getTagLists(4)).isEmpty());
+		assertFalse(manager.getAccounts(interval, tagListsArray[5]).isEmpty());
+	}
+
+	private void assertSameTagListsMap(Interval interval, int i, TagType groupBy, boolean forReservation) {
+		// getTagListsMap may remove lent operations from the lists it is given
+		Map<Tag, TagLists> expected = expectedTagListsMap(interval, getTagLists(i), groupBy, forReservation);
+		Map<Tag, TagLists> result = manager.getTagListsMap(interval, getTagLists(i), groupBy, forReservation);
+
+		String message = interval + " " + i + " " + groupBy + " " + forReservation;
+		if (i == 0)
+			assertFalse(message, expected.isEmpty());
+		assertEquals(message, expected.keySet(), result.keySet());
+		for (Tag tag: expected.keySet()) {
+			TagLists expectedTagLists = expected.get(tag);
+			TagLists tagLists = result.get(tag);
+			assertEquals(message + " " + tag, expectedTagLists.accounts, tagLists.accounts);
+			assertEquals(message + " " + tag, expectedTagLists.regions, tagLists.regions);
+			assertEquals(message + " " + tag, expectedTagLists.zones, tagLists.zones);
+			assertEquals(message + " " + tag, expectedTagLists.products, tagLists.products);
+			assertEquals(message + " " + tag, expectedTagLists.operations, tagLists.operations);
+			assertEquals(message + " " + tag, expectedTagLists.usageTypes, tagLists.usageTypes);
+			assertEquals(message + " " + tag, expectedTagLists.resourceGroups, tagLists.resourceGroups);
+		}
+	}
+
+	private TagLists getTagLists(int i) {
+		switch (i) {
+			case 0: return new TagLists();
+			case 1: return new TagLists(Lists.newArrayList(accounts.subList(0, 10)));
+			case 2: return new TagLists(null, Lists.newArrayList(Region.US_EAST_1), null, Lists.newArrayList(Product.ec2_instance));
+			case 3: return new TagLists(null, null, null, null, Lists.<Operation>newArrayList(Operation.ondemandInstances, Operation.lentInstancesHeavy));
+			case 4: return new TagLists(null, null, null, null, null, null, Lists.newArrayList(resourceGroups.subList(0, 3)));
+			default: return new TagLists(Lists.newArrayList(accounts.subList(5, 30)), null, Lists.newArrayList(Zone.US_EAST_1A, Zone.US_WEST_2A),
+					null, Lists.<Operation>newArrayList(), Lists.newArrayList(usageTypes.subList(0, 5)));
+		}
+	}
+
+	/**
+	 * getTagListsMap as it was written before it went through the catalogs, scanning the tag groups of each lookup.
+	 */
+	private Map<Tag, TagLists> expectedTagListsMap(Interval interval, TagLists tagLists, TagType groupBy, boolean forReservation) {
+		Map<Tag, TagLists> result = Maps.newHashMap();
+
+		TagLists tagListsForTag = tagLists;
+		if (groupBy != TagType.ResourceGroup && tagLists.resourceGroups != null && tagLists.resourceGroups.size() > 0) {
+			tagListsForTag = new TagLists(tagLists.accounts, tagLists.regions, tagLists.zones, tagLists.products, tagLists.operations, tagLists.usageTypes);
+		}
+
+		List<Tag> groupByTags = Lists.newArrayList(scan(interval, tagListsForTag, groupBy));
+		if (groupBy == TagType.Operation && !forReservation) {
+			for (Operation.ReservationOperation lentOp: Operation.getLentInstances())
+				groupByTags.remove(lentOp);
+		}
+		for (Tag tag: groupByTags) {
+			if (tagLists.contains(tag, groupBy)) {
+				TagLists tmp = tagLists.getTagLists(tag, groupBy);
+				if (!forReservation && groupBy != TagType.Operation) {
+					if (tmp.operations == null || tmp.operations.size() == 0) {
+						List<Operation> operations = Lists.newArrayList();
+						for (Tag operation: scan(null, tmp, TagType.Operation))
+							operations.add((Operation)operation);
+						tmp = new TagLists(tmp.accounts, tmp.regions, tmp.zones, tmp.products, operations, tmp.usageTypes, tmp.resourceGroups);
+					}
+					for (Operation.ReservationOperation lentOp: Operation.getLentInstances())
+						tmp.operations.remove(lentOp);
+				}
+				result.put(tag, tmp);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return sorted tags of dimension in the tag groups of the months overlapping interval, or of all months if interval
+	 * is null. Resource groups are removed from the tag groups unless dimension is ResourceGroup.
+	 */
+	private Set<Tag> scan(Interval interval, TagLists tagLists, TagType dimension) {
+		Set<Tag> result = Sets.newTreeSet();
+		for (Map.Entry<Long, Collection<TagGroup>> entry: tagGroups.entrySet()) {
+			DateTime month = new DateTime(entry.getKey(), DateTimeZone.UTC);
+			if (interval != null && new Interval(month, month.plusMonths(1)).overlap(interval) == null)
+				continue;
+			for (TagGroup tagGroup: entry.getValue()) {
+				if (dimension != TagType.ResourceGroup)
+					tagGroup = TagGroup.getTagGroup(tagGroup.account, tagGroup.region, tagGroup.zone, tagGroup.product, tagGroup.operation, tagGroup.usageType, null);
+				Tag tag = tagGroup.getTag(dimension);
+				if (tag != null && tagLists.contains(tagGroup))
+					result.add(tag);
+			}
+		}
+		return result;
+	}
+
+	private static <T> T pick(Random random, List<T> list) {
+		return list.get(random.nextInt(list.size()));
+	}
+}
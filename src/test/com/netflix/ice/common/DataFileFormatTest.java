@@ -0,0 +1,240 @@
+package com.netflix.ice.common;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.netflix.ice.reader.ReadOnlyData;
+import com.netflix.ice.reader.ReaderConfig;
+import com.netflix.ice.tag.Operation;
+import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.ResourceGroup;
+import com.netflix.ice.tag.UsageType;
+
+public class DataFileFormatTest {
+	private static final int NUM_ROWS = 300;
+	private static final int NUM_COLUMNS = 200;
+
+	private File dir;
+	private List<TagGroup> tagGroups;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("format", "");
+		assertTrue(dir.delete());
+		TestConfigs.readerConfig(dir, new Properties());
+
+		UsageType usageType = UsageType.getUsageType("m1.small", "hours");
+		tagGroups = Lists.newArrayList();
+		for (int i = 0; i < NUM_COLUMNS; i++)
+			tagGroups.add(TagGroup.getTagGroup(TestConfigs.ACCOUNT, Region.US_EAST_1, null, Product.ec2, Operation.ondemandInstances, usageType,
+					ResourceGroup.getResourceGroup("app" + i)));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testRoundTripVersion1() throws IOException {
+		assertRoundTrip(DataFileFormat.VERSION_1);
+	}
+
+	@Test
+	public void testRoundTripVersion2() throws IOException {
+		assertRoundTrip(DataFileFormat.VERSION_2);
+	}
+
+	@Test
+	public void testDetectsVersion() throws IOException {
+		double[][] rows = randomRows(new Random(1));
+		assertEquals(DataFileFormat.VERSION_1, read(write(rows, DataFileFormat.VERSION_1)).getVersion());
+		assertEquals(DataFileFormat.VERSION_2, read(write(rows, DataFileFormat.VERSION_2)).getVersion());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownVersion() throws IOException {
+		new DataFileFormat.Writer(new DataOutputStream(new ByteArrayOutputStream()), tagGroups, 0, 3);
+	}
+
+	@Test
+	public void testVersion2IsSmaller() throws IOException {
+		double[][] rows = randomRows(new Random(1));
+		assertTrue(write(rows, DataFileFormat.VERSION_2).length < write(rows, DataFileFormat.VERSION_1).length);
+	}
+
+	@Test
+	public void testReadsVersion1FilesBitForBit() throws IOException {
+		double[][] rows = randomRows(new Random(2));
+		// zeros of all kinds, including rows which only hold zeros
+		rows[7][3] = -0.0;
+		rows[7][4] = 0;
+		Arrays.fill(rows[8], 0);
+		byte[] file = writeVersion1File(rows);
+
+		double[][] expected = readVersion1File(file);
+		DataFileFormat.Reader reader = read(file);
+		assertEquals(DataFileFormat.VERSION_1, reader.getVersion());
+		assertEquals(tagGroups, reader.getKeys());
+		assertSameRows(expected, readRows(reader));
+
+		ReadOnlyData data = ReadOnlyData.Serializer.deserialize(new DataInputStream(new ByteArrayInputStream(file)));
+		assertEquals(tagGroups, Lists.newArrayList(data.getTagGroups()));
+		for (int i = 0; i < NUM_ROWS; i++)
+			assertSameRow("row " + i, expected[i], data.getData(i));
+	}
+
+	private void assertRoundTrip(int version) throws IOException {
+		double[][] rows = randomRows(new Random(1));
+		DataFileFormat.Reader reader = read(write(rows, version));
+		assertEquals(version, reader.getVersion());
+		assertEquals(tagGroups, reader.getKeys());
+		assertEquals(NUM_ROWS, reader.getNum());
+		assertSameRows(rows, readRows(reader));
+	}
+
+	/**
+	 * Rows with NaN, negative values, tiny and huge values, long runs of the same value in a column, long runs of empty
+	 * rows and columns far apart.
+	 */
+	private static double[][] randomRows(Random random) {
+		double[][] rows = new double[NUM_ROWS][NUM_COLUMNS];
+		for (int i = 0; i < NUM_ROWS; i++) {
+			if (i >= 100 && i < 200)
+				continue;
+			for (int j = 0; j < NUM_COLUMNS; j++) {
+				switch (random.nextInt(8)) {
+					case 0:
+						rows[i][j] = Double.NaN;
+						break;
+					case 1:
+						rows[i][j] = -random.nextDouble() * Math.pow(10, random.nextInt(20) - 10);
+						break;
+					case 2:
+					case 3:
+						rows[i][j] = random.nextDouble() * Math.pow(10, random.nextInt(20) - 10);
+						break;
+				}
+			}
+			// the same value hour after hour
+			rows[i][0] = 0.012;
+			rows[i][NUM_COLUMNS - 1] = Double.MAX_VALUE;
+		}
+		rows[250][1] = Double.MIN_VALUE;
+		rows[250][2] = Double.NEGATIVE_INFINITY;
+		return rows;
+	}
+
+	private byte[] write(double[][] rows, int version) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		DataFileFormat.Writer writer = new DataFileFormat.Writer(out, tagGroups, rows.length, version);
+		int[] columns = new int[NUM_COLUMNS];
+		double[] values = new double[NUM_COLUMNS];
+		for (double[] row: rows) {
+			int count = 0;
+			for (int j = 0; j < row.length; j++) {
+				if (row[j] != 0) {
+					columns[count] = j;
+					values[count++] = row[j];
+				}
+			}
+			writer.writeRow(count, columns, values);
+		}
+		writer.finish();
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static DataFileFormat.Reader read(byte[] file) throws IOException {
+		return new DataFileFormat.Reader(new DataInputStream(new ByteArrayInputStream(file)), ReaderConfig.getInstance());
+	}
+
+	private static double[][] readRows(DataFileFormat.Reader reader) throws IOException {
+		int numKeys = reader.getKeys().size();
+		int[] columns = new int[numKeys];
+		double[] values = new double[numKeys];
+		double[][] rows = new double[reader.getNum()][numKeys];
+		for (int i = 0; i < rows.length; i++) {
+			int count = reader.readRow(columns, values);
+			for (int k = 0; k < count; k++) {
+				assertTrue("ascending columns", k == 0 || columns[k] > columns[k - 1]);
+				rows[i][columns[k]] = values[k];
+			}
+		}
+		reader.close();
+		return rows;
+	}
+
+	/**
+	 * Writes rows the way processors did before there were several versions.
+	 */
+	private byte[] writeVersion1File(double[][] rows) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(tagGroups.size());
+		for (TagGroup tagGroup: tagGroups)
+			TagGroup.Serializer.serialize(out, tagGroup);
+		out.writeInt(rows.length);
+		for (int i = 0; i < rows.length; i++) {
+			boolean hasData = i < 100 || i >= 200 || i == 8;
+			out.writeBoolean(hasData);
+			if (hasData) {
+				for (double v: rows[i])
+					out.writeDouble(v);
+			}
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads rows the way readers did before there were several versions.
+	 */
+	private static double[][] readVersion1File(byte[] file) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(file));
+		int numKeys = in.readInt();
+		for (int j = 0; j < numKeys; j++)
+			TagGroup.Serializer.deserialize(ReaderConfig.getInstance(), in);
+		double[][] rows = new double[in.readInt()][numKeys];
+		for (int i = 0; i < rows.length; i++) {
+			if (in.readBoolean()) {
+				for (int j = 0; j < numKeys; j++) {
+					double v = in.readDouble();
+					if (v != 0)
+						rows[i][j] = v;
+				}
+			}
+		}
+		return rows;
+	}
+
+	private static void assertSameRows(double[][] expected, double[][] rows) {
+		assertEquals(expected.length, rows.length);
+		for (int i = 0; i < expected.length; i++)
+			assertSameRow("row " + i, expected[i], rows[i]);
+	}
+
+	private static void assertSameRow(String message, double[] expected, double[] row) {
+		assertEquals(message, expected.length, row.length);
+		for (int j = 0; j < expected.length; j++)
+			assertEquals(message + " column " + j, Double.doubleToRawLongBits(expected[j]), Double.doubleToRawLongBits(row[j]));
+	}
+}
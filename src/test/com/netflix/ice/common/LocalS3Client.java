@@ -0,0 +1,200 @@
+package com.netflix.ice.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Keeps buckets in memory, with the calls AwsUtils makes for listing, downloading and uploading. Set it with
+ * AwsUtils.setAmazonS3Client after the configuration is created, since creating one replaces the client.
+ */
+public class LocalS3Client extends AmazonS3Client {
+	private final SortedMap<String, StoredObject> objects = Maps.newTreeMap();
+	private final Set<String> changing = Sets.newHashSet();
+	private int version;
+
+	public LocalS3Client() {
+		super(new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret")));
+	}
+
+	public synchronized void put(String bucketName, String key, byte[] content, long lastModified) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(content.length);
+		metadata.setLastModified(new Date(lastModified));
+		metadata.setHeader("ETag", "etag" + (++version));
+		objects.put(bucketName + "/" + key, new StoredObject(content, metadata));
+	}
+
+	public synchronized byte[] get(String bucketName, String key) {
+		StoredObject object = objects.get(bucketName + "/" + key);
+		return object == null ? null : object.content;
+	}
+
+	/**
+	 * Makes every download of the object fail, as if it were replaced by another version while its parts are fetched.
+	 */
+	public synchronized void changeWhileDownloading(String bucketName, String key) {
+		changing.add(bucketName + "/" + key);
+	}
+
+	/**
+	 * @return keys of the bucket starting with prefix, in order
+	 */
+	public synchronized List<String> keys(String bucketName, String prefix) {
+		List<String> keys = Lists.newArrayList();
+		String start = bucketName + "/" + prefix;
+		for (String name: objects.tailMap(start).keySet()) {
+			if (!name.startsWith(start))
+				break;
+			keys.add(name.substring(bucketName.length() + 1));
+		}
+		return keys;
+	}
+
+	@Override
+	public void setEndpoint(String endpoint) {
+	}
+
+	@Override
+	public synchronized ObjectListing listObjects(ListObjectsRequest request) {
+		ObjectListing listing = new ObjectListing();
+		listing.setBucketName(request.getBucketName());
+		listing.setPrefix(request.getPrefix());
+		String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+		for (String key: keys(request.getBucketName(), prefix)) {
+			StoredObject object = objects.get(request.getBucketName() + "/" + key);
+			S3ObjectSummary summary = new S3ObjectSummary();
+			summary.setBucketName(request.getBucketName());
+			summary.setKey(key);
+			summary.setSize(object.content.length);
+			summary.setLastModified(object.metadata.getLastModified());
+			summary.setETag(object.metadata.getETag());
+			listing.getObjectSummaries().add(summary);
+		}
+		return listing;
+	}
+
+	@Override
+	public ObjectListing listObjects(String bucketName, String prefix) {
+		return listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix));
+	}
+
+	@Override
+	public synchronized ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
+		return getStoredObject(request.getBucketName(), request.getKey()).metadata.clone();
+	}
+
+	@Override
+	public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+		return getObjectMetadata(new GetObjectMetadataRequest(bucketName, key));
+	}
+
+	@Override
+	public synchronized S3Object getObject(GetObjectRequest request) {
+		StoredObject object = getStoredObject(request.getBucketName(), request.getKey());
+		List<String> eTags = request.getMatchingETagConstraints();
+		if (eTags != null && eTags.size() > 0 && (!eTags.contains(object.metadata.getETag())
+				|| changing.contains(request.getBucketName() + "/" + request.getKey())))
+			return null;
+
+		byte[] content = object.content;
+		long[] range = request.getRange();
+		if (range != null)
+			content = Arrays.copyOfRange(content, (int) range[0], (int) Math.min(content.length, range[1] + 1));
+
+		S3Object result = new S3Object();
+		result.setBucketName(request.getBucketName());
+		result.setKey(request.getKey());
+		result.setObjectMetadata(object.metadata.clone());
+		result.setObjectContent(new ByteArrayInputStream(content));
+		return result;
+	}
+
+	@Override
+	public S3Object getObject(String bucketName, String key) {
+		return getObject(new GetObjectRequest(bucketName, key));
+	}
+
+	@Override
+	public PutObjectResult putObject(PutObjectRequest request) {
+		byte[] content;
+		try {
+			if (request.getFile() != null)
+				content = FileUtils.readFileToByteArray(request.getFile());
+			else
+				content = readFully(request.getInputStream());
+		}
+		catch (IOException e) {
+			throw new AmazonClientException(e);
+		}
+
+		synchronized (this) {
+			put(request.getBucketName(), request.getKey(), content, System.currentTimeMillis());
+			Map<String, String> userMetadata = request.getMetadata() == null ? null : request.getMetadata().getUserMetadata();
+			if (userMetadata != null)
+				objects.get(request.getBucketName() + "/" + request.getKey()).metadata.setUserMetadata(userMetadata);
+		}
+		return new PutObjectResult();
+	}
+
+	@Override
+	public PutObjectResult putObject(String bucketName, String key, InputStream input, ObjectMetadata metadata) {
+		return putObject(new PutObjectRequest(bucketName, key, input, metadata));
+	}
+
+	private StoredObject getStoredObject(String bucketName, String key) {
+		StoredObject object = objects.get(bucketName + "/" + key);
+		if (object == null) {
+			AmazonS3Exception e = new AmazonS3Exception("Not Found");
+			e.setStatusCode(404);
+			throw e;
+		}
+		return object;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		try {
+			return IOUtils.toByteArray(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static class StoredObject {
+		final byte[] content;
+		final ObjectMetadata metadata;
+
+		StoredObject(byte[] content, ObjectMetadata metadata) {
+			this.content = content;
+			this.metadata = metadata;
+		}
+	}
+}
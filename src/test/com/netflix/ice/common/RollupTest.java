@@ -0,0 +1,110 @@
+package com.netflix.ice.common;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+import com.netflix.ice.tag.Operation;
+import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.TagType;
+import com.netflix.ice.tag.UsageType;
+import com.netflix.ice.tag.Zone;
+
+public class RollupTest {
+
+	@Test
+	public void testSerializer() throws IOException {
+		Map<String, double[]> values = Maps.newHashMap();
+		values.put("ec2_instance", new double[] {1.5, 0, -2, Double.MAX_VALUE});
+		values.put("s3", new double[] {0, 0, 0, Double.MIN_VALUE});
+		Rollup rollup = new Rollup(TagType.Product, 0xfedcba98L, 4, values);
+
+		Rollup result = read(write(rollup));
+
+		assertEquals(TagType.Product, result.getDimension());
+		assertEquals(0xfedcba98L, result.getDataChecksum());
+		assertEquals(4, result.getNum());
+		for (Map.Entry<String, double[]> entry: values.entrySet()) {
+			double[] row = new double[4];
+			result.sum(new Product(entry.getKey()), 0, row, 0, 4);
+			assertArrayEquals(entry.getValue(), row, 0);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotARollupFile() throws IOException {
+		byte[] bytes = write(new Rollup(TagType.Account, 0, 0, Maps.<String, double[]>newHashMap()));
+		bytes[0]++;
+		read(bytes);
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownVersion() throws IOException {
+		byte[] bytes = write(new Rollup(TagType.Account, 0, 0, Maps.<String, double[]>newHashMap()));
+		// the version follows the magic number
+		bytes[7]++;
+		read(bytes);
+	}
+
+	@Test
+	public void testSum() {
+		Map<String, double[]> values = Maps.newHashMap();
+		values.put("us-east-1", new double[] {1, 2, 3, 4, 5});
+		Rollup rollup = new Rollup(TagType.Region, 0, 5, values);
+
+		double[] result = {10, 10, 10, 10};
+		rollup.sum(Region.US_EAST_1, 2, result, 1, 3);
+		assertArrayEquals(new double[] {10, 13, 14, 15}, result, 0);
+
+		// tags without values add nothing
+		rollup.sum(Region.US_WEST_2, 0, result, 0, 4);
+		assertArrayEquals(new double[] {10, 13, 14, 15}, result, 0);
+	}
+
+	@Test
+	public void testGetTag() {
+		UsageType usageType = UsageType.getUsageType("m1.small", "hours");
+		TagGroup ondemand = TagGroup.getTagGroup(TestConfigs.ACCOUNT, Region.US_EAST_1, Zone.US_EAST_1A, Product.ec2_instance,
+				Operation.ondemandInstances, usageType, null);
+		TagGroup lent = TagGroup.getTagGroup(TestConfigs.ACCOUNT, Region.US_EAST_1, Zone.US_EAST_1A, Product.ec2_instance,
+				Operation.lentInstancesHeavy, usageType, null);
+
+		assertEquals(TestConfigs.ACCOUNT, Rollup.getTag(ondemand, TagType.Account));
+		assertEquals(Region.US_EAST_1, Rollup.getTag(ondemand, TagType.Region));
+		assertEquals(Product.ec2_instance, Rollup.getTag(ondemand, TagType.Product));
+		assertEquals(Operation.ondemandInstances, Rollup.getTag(ondemand, TagType.Operation));
+
+		// lent instances are only in the totals by operation
+		assertNull(Rollup.getTag(lent, TagType.Account));
+		assertNull(Rollup.getTag(lent, TagType.Region));
+		assertNull(Rollup.getTag(lent, TagType.Product));
+		assertEquals(Operation.lentInstancesHeavy, Rollup.getTag(lent, TagType.Operation));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoRollupByZone() {
+		Rollup.getTag(TagGroup.getTagGroup(TestConfigs.ACCOUNT, Region.US_EAST_1, Zone.US_EAST_1A, Product.ec2_instance,
+				Operation.ondemandInstances, UsageType.getUsageType("m1.small", "hours"), null), TagType.Zone);
+	}
+
+	private static byte[] write(Rollup rollup) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		Rollup.Serializer.serialize(out, rollup);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Rollup read(byte[] bytes) throws IOException {
+		return Rollup.Serializer.deserialize(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+}
@@ -0,0 +1,234 @@
+package com.netflix.ice.common;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+public class S3DownloaderTest {
+	private static final int PART_SIZE = 1000;
+
+	private File dir;
+	private S3Downloader downloader;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("s3downloader", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdir());
+		downloader = new S3Downloader(PART_SIZE, 4, 5, 10);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		downloader.shutdown();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testDownloadInParts() throws Exception {
+		LocalS3 s3 = new LocalS3(content(10 * PART_SIZE + 123));
+		File file = new File(dir, "data");
+
+		assertTrue(downloader.download(s3, "bucket", "data", file));
+
+		assertArrayEquals(s3.content, FileUtils.readFileToByteArray(file));
+		assertEquals("one ranged get per part", 11, s3.gets.get());
+		assertFalse("temporary file left behind", new File(dir, "data.download").exists());
+	}
+
+	@Test
+	public void testDownloadEmptyObject() throws Exception {
+		LocalS3 s3 = new LocalS3(new byte[0]);
+		File file = new File(dir, "data");
+
+		assertTrue(downloader.download(s3, "bucket", "data", file));
+
+		assertEquals(0, file.length());
+	}
+
+	@Test
+	public void testReplacesExistingFile() throws Exception {
+		LocalS3 s3 = new LocalS3(content(3 * PART_SIZE));
+		File file = new File(dir, "data");
+		FileUtils.writeByteArrayToFile(file, content(5 * PART_SIZE));
+
+		assertTrue(downloader.download(s3, "bucket", "data", file));
+
+		assertArrayEquals(s3.content, FileUtils.readFileToByteArray(file));
+	}
+
+	@Test
+	public void testRetriesFailedParts() throws Exception {
+		LocalS3 s3 = new LocalS3(content(5 * PART_SIZE));
+		s3.failures.set(3);
+		s3.shortReads.set(2);
+		File file = new File(dir, "data");
+
+		assertTrue(downloader.download(s3, "bucket", "data", file));
+
+		assertArrayEquals(s3.content, FileUtils.readFileToByteArray(file));
+		assertEquals(5 + 3 + 2, s3.gets.get());
+	}
+
+	@Test
+	public void testGivesUpAfterMaxAttempts() throws Exception {
+		LocalS3 s3 = new LocalS3(content(PART_SIZE));
+		s3.failures.set(5);
+		File file = new File(dir, "data");
+
+		try {
+			downloader.download(s3, "bucket", "data", file);
+			fail("download should fail");
+		}
+		catch (IOException e) {
+		}
+		assertFalse(file.exists());
+		assertFalse("temporary file left behind", new File(dir, "data.download").exists());
+	}
+
+	@Test
+	public void testStartsOverWhenObjectChanges() throws Exception {
+		final LocalS3 s3 = new LocalS3(content(4 * PART_SIZE));
+		final byte[] newContent = content(6 * PART_SIZE);
+		s3.beforeGet = new Runnable() {
+			public void run() {
+				s3.beforeGet = null;
+				s3.put(newContent);
+			}
+		};
+		File file = new File(dir, "data");
+
+		assertTrue(downloader.download(s3, "bucket", "data", file));
+
+		assertArrayEquals(newContent, FileUtils.readFileToByteArray(file));
+		assertEquals(2, s3.metadataRequests.get());
+	}
+
+	@Test
+	public void testConcurrentRequestsShareDownload() throws Exception {
+		final LocalS3 s3 = new LocalS3(content(8 * PART_SIZE));
+		s3.metadataLatch = new CountDownLatch(1);
+		final File file = new File(dir, "data");
+		final boolean[] results = new boolean[2];
+
+		Thread[] threads = new Thread[2];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						results[index] = downloader.download(s3, "bucket", "data", file);
+					}
+					catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+		}
+
+		threads[0].start();
+		while (s3.metadataRequests.get() == 0)
+			Thread.sleep(1);
+		threads[1].start();
+		while (threads[1].getState() != Thread.State.WAITING)
+			Thread.sleep(1);
+		s3.metadataLatch.countDown();
+		for (Thread thread: threads)
+			thread.join();
+
+		assertTrue(results[0]);
+		assertTrue(results[1]);
+		assertEquals("object downloaded once", 1, s3.metadataRequests.get());
+		assertEquals(8, s3.gets.get());
+		assertArrayEquals(s3.content, FileUtils.readFileToByteArray(file));
+	}
+
+	private static byte[] content(int size) {
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		return content;
+	}
+
+	/**
+	 * Serves one object from memory the way S3 serves ranged gets with an ETag constraint.
+	 */
+	private static class LocalS3 extends AbstractAmazonS3 {
+		volatile byte[] content;
+		volatile String eTag;
+		volatile Runnable beforeGet;
+		volatile CountDownLatch metadataLatch;
+		final AtomicInteger metadataRequests = new AtomicInteger();
+		final AtomicInteger gets = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		final AtomicInteger shortReads = new AtomicInteger();
+		private int version;
+
+		LocalS3(byte[] content) {
+			put(content);
+		}
+
+		synchronized void put(byte[] content) {
+			this.content = content;
+			this.eTag = "etag" + (++version);
+		}
+
+		@Override
+		public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+			metadataRequests.incrementAndGet();
+			if (metadataLatch != null) {
+				try {
+					metadataLatch.await();
+				}
+				catch (InterruptedException e) {
+					throw new AmazonClientException(e);
+				}
+			}
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(content.length);
+			metadata.setHeader("ETag", eTag);
+			return metadata;
+		}
+
+		@Override
+		public S3Object getObject(GetObjectRequest request) {
+			gets.incrementAndGet();
+			Runnable runnable = beforeGet;
+			if (runnable != null)
+				runnable.run();
+			if (failures.getAndDecrement() > 0)
+				throw new AmazonClientException("injected failure");
+
+			byte[] content;
+			synchronized (this) {
+				if (!request.getMatchingETagConstraints().contains(eTag))
+					return null;
+				content = this.content;
+			}
+			long[] range = request.getRange();
+			int end = (int)Math.min(range[1] + 1, content.length);
+			if (shortReads.getAndDecrement() > 0)
+				end = (int)range[0] + (end - (int)range[0]) / 2;
+
+			S3Object s3Object = new S3Object();
+			s3Object.setObjectContent(new ByteArrayInputStream(Arrays.copyOfRange(content, (int)range[0], end)));
+			return s3Object;
+		}
+	}
+}
@@ -0,0 +1,295 @@
+package com.netflix.ice.common;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.google.common.collect.Lists;
+
+public class S3UploaderTest {
+	private static final int PART_SIZE = 1000;
+
+	private File dir;
+	private S3Uploader uploader;
+	private LocalS3 s3;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("s3uploader", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdir());
+		uploader = new S3Uploader(PART_SIZE, 4, 5, 10);
+		s3 = new LocalS3();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		uploader.shutdown();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testSmallFileInOnePut() throws Exception {
+		File file = write("data", content(PART_SIZE, 1));
+
+		assertTrue(uploader.upload(s3, "bucket", "prefix/data", file));
+
+		assertArrayEquals(FileUtils.readFileToByteArray(file), s3.objects.get("prefix/data"));
+		assertEquals(1, s3.puts.get());
+		assertEquals(0, s3.parts.get());
+	}
+
+	@Test
+	public void testLargeFileInParts() throws Exception {
+		File file = write("data", content(7 * PART_SIZE + 10, 1));
+
+		assertTrue(uploader.upload(s3, "bucket", "data", file));
+
+		assertArrayEquals(FileUtils.readFileToByteArray(file), s3.objects.get("data"));
+		assertEquals(0, s3.puts.get());
+		assertEquals(8, s3.parts.get());
+	}
+
+	@Test
+	public void testSkipsUnchangedFile() throws Exception {
+		File file = write("data", content(3 * PART_SIZE, 1));
+		assertTrue(uploader.upload(s3, "bucket", "data", file));
+		int parts = s3.parts.get();
+
+		assertFalse(uploader.upload(s3, "bucket", "data", file));
+		assertEquals(parts, s3.parts.get());
+
+		write("data", content(3 * PART_SIZE, 2));
+		assertTrue(uploader.upload(s3, "bucket", "data", file));
+		assertArrayEquals(FileUtils.readFileToByteArray(file), s3.objects.get("data"));
+	}
+
+	@Test
+	public void testSkipsFileUploadedByEarlierProcess() throws Exception {
+		File file = write("data", content(PART_SIZE / 2, 1));
+		assertTrue(uploader.upload(s3, "bucket", "data", file));
+
+		S3Uploader restarted = new S3Uploader(PART_SIZE, 4, 5, 10);
+		try {
+			assertFalse(restarted.upload(s3, "bucket", "data", file));
+		}
+		finally {
+			restarted.shutdown();
+		}
+		assertEquals(1, s3.puts.get());
+	}
+
+	@Test
+	public void testRetriesFailedParts() throws Exception {
+		File file = write("data", content(5 * PART_SIZE, 1));
+		s3.failures.set(3);
+
+		assertTrue(uploader.upload(s3, "bucket", "data", file));
+
+		assertArrayEquals(FileUtils.readFileToByteArray(file), s3.objects.get("data"));
+		assertEquals(5 + 3, s3.parts.get());
+	}
+
+	@Test
+	public void testAbortsFailedUpload() throws Exception {
+		File file = write("data", content(3 * PART_SIZE, 1));
+		s3.failures.set(100);
+
+		try {
+			uploader.upload(s3, "bucket", "data", file);
+			fail("upload should fail");
+		}
+		catch (IOException e) {
+		}
+		assertNull(s3.objects.get("data"));
+		assertEquals(1, s3.aborts.get());
+	}
+
+	@Test
+	public void testBackgroundUploadsInOrder() throws Exception {
+		List<File> files = Lists.newArrayList(
+				write("data_byAccount", content(PART_SIZE / 2, 1)),
+				write("data", content(4 * PART_SIZE, 2)));
+
+		uploader.submit(s3, "bucket", "prefix/", files);
+		uploader.awaitAll();
+
+		assertEquals(Lists.newArrayList("prefix/data_byAccount", "prefix/data"), s3.completed);
+		for (File file: files)
+			assertArrayEquals(FileUtils.readFileToByteArray(file), s3.objects.get("prefix/" + file.getName()));
+	}
+
+	@Test
+	public void testBackgroundUploadError() throws Exception {
+		File file = write("data", content(PART_SIZE / 2, 1));
+		s3.failures.set(100);
+
+		uploader.submit(s3, "bucket", "", Lists.newArrayList(file));
+		try {
+			uploader.awaitAll();
+			fail("upload should fail");
+		}
+		catch (IOException e) {
+		}
+
+		// the error is reported once
+		s3.failures.set(0);
+		uploader.awaitAll();
+	}
+
+	@Test
+	public void testResubmitAfterUploadError() throws Exception {
+		File file = write("data", content(PART_SIZE / 2, 1));
+		s3.failures.set(100);
+
+		uploader.submit(s3, "bucket", "", Lists.newArrayList(file));
+		try {
+			uploader.await(file);
+			fail("upload should fail");
+		}
+		catch (IOException e) {
+		}
+
+		// the failed upload does not stay pending, so the file can be archived again: archiving awaits the last upload
+		// of the file before writing and submitting it
+		s3.failures.set(0);
+		uploader.await(file);
+		write("data", content(PART_SIZE / 2, 2));
+		uploader.submit(s3, "bucket", "", Lists.newArrayList(file));
+		uploader.await(file);
+		assertArrayEquals(FileUtils.readFileToByteArray(file), s3.objects.get("data"));
+		uploader.awaitAll();
+	}
+
+	private File write(String name, byte[] content) throws IOException {
+		File file = new File(dir, name);
+		FileUtils.writeByteArrayToFile(file, content);
+		return file;
+	}
+
+	private static byte[] content(int size, int seed) {
+		byte[] content = new byte[size];
+		new Random(seed).nextBytes(content);
+		return content;
+	}
+
+	/**
+	 * Keeps objects and their user metadata in memory, with put and multipart upload.
+	 */
+	private static class LocalS3 extends AbstractAmazonS3 {
+		final Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+		final Map<String, ObjectMetadata> metadata = new ConcurrentHashMap<String, ObjectMetadata>();
+		final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<String, Map<Integer, byte[]>>();
+		final List<String> completed = Lists.newArrayList();
+		final AtomicInteger puts = new AtomicInteger();
+		final AtomicInteger parts = new AtomicInteger();
+		final AtomicInteger aborts = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+
+		@Override
+		public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+			ObjectMetadata result = metadata.get(key);
+			if (result == null) {
+				AmazonS3Exception e = new AmazonS3Exception("Not Found");
+				e.setStatusCode(404);
+				throw e;
+			}
+			return result;
+		}
+
+		@Override
+		public PutObjectResult putObject(PutObjectRequest request) {
+			puts.incrementAndGet();
+			if (failures.getAndDecrement() > 0)
+				throw new AmazonClientException("injected failure");
+			try {
+				store(request.getKey(), FileUtils.readFileToByteArray(request.getFile()), request.getMetadata());
+			}
+			catch (IOException e) {
+				throw new AmazonClientException(e);
+			}
+			return new PutObjectResult();
+		}
+
+		@Override
+		public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+			String uploadId = request.getKey() + "#" + System.nanoTime();
+			uploads.put(uploadId, new ConcurrentHashMap<Integer, byte[]>());
+			metadata.put(uploadId, request.getObjectMetadata());
+			InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+			result.setUploadId(uploadId);
+			return result;
+		}
+
+		@Override
+		public UploadPartResult uploadPart(UploadPartRequest request) {
+			parts.incrementAndGet();
+			if (failures.getAndDecrement() > 0)
+				throw new AmazonClientException("injected failure");
+			byte[] part = new byte[(int)request.getPartSize()];
+			try {
+				RandomAccessFile file = new RandomAccessFile(request.getFile(), "r");
+				try {
+					file.seek(request.getFileOffset());
+					file.readFully(part);
+				}
+				finally {
+					file.close();
+				}
+			}
+			catch (IOException e) {
+				throw new AmazonClientException(e);
+			}
+			uploads.get(request.getUploadId()).put(request.getPartNumber(), part);
+			UploadPartResult result = new UploadPartResult();
+			result.setPartNumber(request.getPartNumber());
+			result.setETag("part" + request.getPartNumber());
+			return result;
+		}
+
+		@Override
+		public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+			Map<Integer, byte[]> upload = uploads.remove(request.getUploadId());
+			int size = 0;
+			for (PartETag partETag: request.getPartETags())
+				size += upload.get(partETag.getPartNumber()).length;
+			byte[] content = new byte[size];
+			int offset = 0;
+			for (PartETag partETag: request.getPartETags()) {
+				byte[] part = upload.get(partETag.getPartNumber());
+				System.arraycopy(part, 0, content, offset, part.length);
+				offset += part.length;
+			}
+			store(request.getKey(), content, metadata.remove(request.getUploadId()));
+			return new CompleteMultipartUploadResult();
+		}
+
+		@Override
+		public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+			aborts.incrementAndGet();
+			uploads.remove(request.getUploadId());
+			metadata.remove(request.getUploadId());
+		}
+
+		private synchronized void store(String key, byte[] content, ObjectMetadata objectMetadata) {
+			objects.put(key, content);
+			metadata.put(key, objectMetadata);
+			completed.add(key);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.netflix.ice.common;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.ice.reader.ReaderConfig;
+import com.netflix.ice.tag.Operation;
+import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.ResourceGroup;
+import com.netflix.ice.tag.UsageType;
+import com.netflix.ice.tag.Zone;
+
+public class TagGroupTest {
+	private File dir;
+	private TreeMap<Long, Collection<TagGroup>> tagGroups;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("tagdb", "");
+		assertTrue(dir.delete());
+		TestConfigs.readerConfig(dir, new Properties());
+
+		// tag groups with and without zone and resource group, some of them in several months
+		UsageType instance = UsageType.getUsageType("m1.small", "hours");
+		UsageType storage = UsageType.getUsageType("EBS:VolumeUsage", "GB");
+		List<TagGroup> all = Lists.newArrayList();
+		for (int i = 0; i < 50; i++) {
+			all.add(TagGroup.getTagGroup(TestConfigs.ACCOUNT, Region.US_EAST_1, i % 2 == 0 ? Zone.US_EAST_1A : Zone.US_EAST_1B, Product.ec2,
+					Operation.ondemandInstances, instance, i % 3 == 0 ? null : ResourceGroup.getResourceGroup("app" + i)));
+			all.add(TagGroup.getTagGroup(TestConfigs.ACCOUNT, Region.EU_WEST_1, null, Product.ebs, Operation.getOperation("CreateVolume"), storage,
+					null));
+		}
+		tagGroups = Maps.newTreeMap();
+		tagGroups.put(1370044800000L, all.subList(0, 60));
+		tagGroups.put(1372636800000L, all.subList(40, 100));
+		tagGroups.put(1375315200000L, Lists.<TagGroup>newArrayList());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testRoundTripVersion1() throws IOException {
+		assertEquals(tagGroups, read(write(TagGroup.Serializer.TAGDB_VERSION_1)));
+	}
+
+	@Test
+	public void testRoundTripVersion2() throws IOException {
+		assertEquals(tagGroups, read(write(TagGroup.Serializer.TAGDB_VERSION_2)));
+	}
+
+	@Test
+	public void testRoundTripWithoutMonths() throws IOException {
+		tagGroups.clear();
+		assertEquals(tagGroups, read(write(TagGroup.Serializer.TAGDB_VERSION_1)));
+		assertEquals(tagGroups, read(write(TagGroup.Serializer.TAGDB_VERSION_2)));
+	}
+
+	@Test
+	public void testDefaultVersion() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TagGroup.Serializer.serializeTagGroups(new DataOutputStream(bytes), tagGroups);
+		assertArrayEquals(write(TagGroup.Serializer.TAGDB_DEFAULT_VERSION), bytes.toByteArray());
+	}
+
+	@Test
+	public void testReadsVersion1Files() throws IOException {
+		// the layout written before there were several versions
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(tagGroups.size());
+		for (Long monthMilli: tagGroups.keySet()) {
+			out.writeLong(monthMilli);
+			out.writeInt(tagGroups.get(monthMilli).size());
+			for (TagGroup tagGroup: tagGroups.get(monthMilli))
+				TagGroup.Serializer.serialize(out, tagGroup);
+		}
+
+		assertArrayEquals(bytes.toByteArray(), write(TagGroup.Serializer.TAGDB_VERSION_1));
+		assertEquals(tagGroups, read(bytes.toByteArray()));
+	}
+
+	@Test
+	public void testVersion2IsSmaller() throws IOException {
+		assertTrue(write(TagGroup.Serializer.TAGDB_VERSION_2).length < write(TagGroup.Serializer.TAGDB_VERSION_1).length / 4);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWriteUnknownVersion() throws IOException {
+		write(3);
+	}
+
+	@Test(expected = IOException.class)
+	public void testReadUnknownVersion() throws IOException {
+		byte[] file = write(TagGroup.Serializer.TAGDB_VERSION_2);
+		// the version follows the magic number
+		file[7] = 3;
+		read(file);
+	}
+
+	private byte[] write(int version) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TagGroup.Serializer.serializeTagGroups(new DataOutputStream(bytes), tagGroups, version);
+		return bytes.toByteArray();
+	}
+
+	private static TreeMap<Long, Collection<TagGroup>> read(byte[] file) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(file));
+		TreeMap<Long, Collection<TagGroup>> result = TagGroup.Serializer.deserializeTagGroups(ReaderConfig.getInstance(), in);
+		assertEquals("bytes left", -1, in.read());
+		// lists of the same tag groups in the same order compare equal
+		for (Long monthMilli: result.keySet())
+			result.put(monthMilli, Lists.newArrayList(result.get(monthMilli)));
+		return result;
+	}
+}
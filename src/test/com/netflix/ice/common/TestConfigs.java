@@ -0,0 +1,161 @@
+package com.netflix.ice.common;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.ec2.model.ReservedInstances;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.ice.basic.BasicAccountService;
+import com.netflix.ice.basic.BasicLineItemProcessor;
+import com.netflix.ice.basic.BasicProductService;
+import com.netflix.ice.processor.Ec2InstanceReservationPrice.ReservationUtilization;
+import com.netflix.ice.processor.ProcessorConfig;
+import com.netflix.ice.processor.ReservationService;
+import com.netflix.ice.reader.ApplicationGroup;
+import com.netflix.ice.reader.ApplicationGroupService;
+import com.netflix.ice.reader.DataManager;
+import com.netflix.ice.reader.Managers;
+import com.netflix.ice.reader.ReaderConfig;
+import com.netflix.ice.reader.TagGroupManager;
+import com.netflix.ice.tag.Account;
+import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.UsageType;
+
+/**
+ * Processor and reader configurations for tests, with local services only and no S3 access at construction.
+ */
+public class TestConfigs {
+	public static final Account ACCOUNT = new Account("123456789012", "test");
+	public static final Account OTHER_ACCOUNT = new Account("210987654321", "other");
+
+	public static ProcessorConfig processorConfig(File localDir, Properties properties) {
+		return processorConfig(localDir, properties, new NoReservationService());
+	}
+
+	public static ProcessorConfig processorConfig(File localDir, Properties properties, ReservationService reservationService) {
+		return new ProcessorConfig(withDefaults(localDir, properties), credentials(), accountService(), new BasicProductService(),
+				reservationService, null, new BasicLineItemProcessor(), null);
+	}
+
+	public static ReaderConfig readerConfig(File localDir, Properties properties) {
+		return readerConfig(localDir, properties, null);
+	}
+
+	/**
+	 * @param tagGroupManager tag groups of every product, or null
+	 */
+	public static ReaderConfig readerConfig(File localDir, Properties properties, TagGroupManager tagGroupManager) {
+		return new ReaderConfig(withDefaults(localDir, properties), credentials(), new TestManagers(tagGroupManager), accountService(),
+				new BasicProductService(), null, new NoApplicationGroupService(), null, null);
+	}
+
+	private static Properties withDefaults(File localDir, Properties properties) {
+		Properties result = new Properties();
+		result.setProperty(IceOptions.START_MILLIS, "0");
+		result.setProperty(IceOptions.WORK_S3_BUCKET_NAME, "work");
+		result.setProperty(IceOptions.BILLING_S3_BUCKET_NAME, "billing");
+		result.setProperty(IceOptions.BILLING_S3_BUCKET_REGION, "us-east-1");
+		result.setProperty(IceOptions.LOCAL_DIR, localDir.getPath());
+		result.putAll(properties);
+		return result;
+	}
+
+	private static AWSStaticCredentialsProvider credentials() {
+		return new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret"));
+	}
+
+	private static AccountService accountService() {
+		return new BasicAccountService(Lists.newArrayList(ACCOUNT, OTHER_ACCOUNT), Maps.<Account, List<Account>>newHashMap(),
+				Maps.<Account, String>newHashMap(), Maps.<Account, String>newHashMap());
+	}
+
+	/**
+	 * No reservations, with heavy utilization by default.
+	 */
+	public static class NoReservationService implements ReservationService {
+		public void init() {
+		}
+
+		public Collection<TagGroup> getTagGroups(ReservationUtilization utilization) {
+			return Collections.emptyList();
+		}
+
+		public ReservationUtilization getDefaultReservationUtilization(long time) {
+			return ReservationUtilization.HEAVY;
+		}
+
+		public ReservationInfo getReservation(long time, TagGroup tagGroup, ReservationUtilization utilization) {
+			return new ReservationInfo(0, 0, 0);
+		}
+
+		public double getLatestHourlyTotalPrice(long time, Region region, UsageType usageType, ReservationUtilization utilization) {
+			return 0;
+		}
+
+		public void updateEc2Reservations(Map<String, ReservedInstances> reservations) {
+		}
+	}
+
+	private static class TestManagers implements Managers {
+		private final TagGroupManager tagGroupManager;
+
+		TestManagers(TagGroupManager tagGroupManager) {
+			this.tagGroupManager = tagGroupManager;
+		}
+
+		public void init() {
+		}
+
+		public Collection<Product> getProducts() {
+			return Collections.emptyList();
+		}
+
+		public TagGroupManager getTagGroupManager(Product product) {
+			return tagGroupManager;
+		}
+
+		public DataManager getCostManager(Product product, ConsolidateType consolidateType) {
+			return null;
+		}
+
+		public DataManager getUsageManager(Product product, ConsolidateType consolidateType) {
+			return null;
+		}
+
+		public void shutdown() {
+		}
+
+		public long getGeneration() {
+			return 0;
+		}
+	}
+
+	private static class NoApplicationGroupService implements ApplicationGroupService {
+		public void init() {
+		}
+
+		public Map<String, ApplicationGroup> getApplicationGroups() {
+			return Collections.emptyMap();
+		}
+
+		public ApplicationGroup getApplicationGroup(String name) {
+			return null;
+		}
+
+		public boolean saveApplicationGroup(ApplicationGroup applicationGroup) {
+			return false;
+		}
+
+		public boolean deleteApplicationGroup(String name) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package com.netflix.ice.processor;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.csvreader.CsvReader;
+import com.google.common.collect.Lists;
+
+public class BillingCsvReaderTest {
+
+	@Test
+	public void testQuotedFields() throws IOException {
+		assertSameRecords("\"a\",\"b\",\"c\"\n\"1\",\"2\",\"3\"\n");
+		assertSameRecords("a,\"b\",c\n\"\",,\"\"\n");
+	}
+
+	@Test
+	public void testEmbeddedQuotes() throws IOException {
+		assertSameRecords("\"say \"\"hi\"\"\",\"\"\"\"\n\"a\"\"\",\"\"\"b\"\n");
+	}
+
+	@Test
+	public void testEmbeddedCommasAndLineBreaks() throws IOException {
+		assertSameRecords("\"a,b\",\"c\nd\",\"e\r\nf\"\n\"g,\",\",h\"\n");
+	}
+
+	@Test
+	public void testLineBreaks() throws IOException {
+		assertSameRecords("a,b\r\nc,d\r\n");
+		assertSameRecords("a,b\rc,d\r");
+		assertSameRecords("a,b\n\n\r\n\nc,d\n");
+		assertSameRecords("\n\na\n");
+	}
+
+	@Test
+	public void testEmptyTrailingFields() throws IOException {
+		assertSameRecords("a,b,\nc,,\n,,\n");
+		assertSameRecords("\"a\",\"b\",\"\"\r\n\"c\",,\r\n");
+	}
+
+	@Test
+	public void testEndWithoutLineBreak() throws IOException {
+		assertSameRecords("a,b\nc,d");
+		assertSameRecords("a,b\n\"c\",\"d\"");
+		assertSameRecords("a,b\nc,");
+		assertSameRecords("a");
+		assertSameRecords("");
+	}
+
+	@Test
+	public void testWhitespace() throws IOException {
+		assertSameRecords(" a , b\t,\t c \n \"d\" ,  \" e \"\n");
+	}
+
+	@Test
+	public void testBillingLines() throws IOException {
+		StringBuilder csv = new StringBuilder();
+		csv.append("\"InvoiceID\",\"PayerAccountId\",\"LinkedAccountId\",\"RecordType\",\"ProductName\",\"UsageType\",\"Cost\",\"user:Name\"\r\n");
+		for (int i = 0; i < 5000; i++) {
+			csv.append("\"Estimated\",\"123456789012\",\"210987654321\",\"LineItem\",\"Amazon Elastic Compute Cloud\",\"BoxUsage:m1.small\",\"")
+					.append(i * 0.013).append("\",\"").append(i % 7 == 0 ? "" : "server " + i % 100).append("\"\r\n");
+		}
+		assertSameRecords(csv.toString());
+	}
+
+	@Test
+	public void testRandomRecords() throws IOException {
+		String[] fields = {"", "a", "abc", "1.25", " x ", "\"q\"", "\"\"", "\"a,b\"", "\"a\"\"b\"", "\"l\nm\"", "\"l\r\nm\"", "\t"};
+		String[] ends = {"\n", "\r\n", "\r", "\n\n"};
+		Random random = new Random(1);
+		for (int i = 0; i < 200; i++) {
+			StringBuilder csv = new StringBuilder();
+			int numRecords = random.nextInt(20);
+			for (int j = 0; j < numRecords; j++) {
+				int numFields = 1 + random.nextInt(8);
+				for (int k = 0; k < numFields; k++)
+					csv.append(k == 0 ? "" : ",").append(fields[random.nextInt(fields.length)]);
+				if (j < numRecords - 1 || random.nextBoolean())
+					csv.append(ends[random.nextInt(ends.length)]);
+			}
+			assertSameRecords(csv.toString());
+		}
+	}
+
+	@Test
+	public void testRepeatedValuesAreShared() throws IOException {
+		BillingCsvReader reader = new BillingCsvReader(new StringReader("ec2,1\nec2,2\n"));
+		assertTrue(reader.readRecord());
+		String[] first = reader.getValues();
+		assertTrue(reader.readRecord());
+		String[] second = reader.getValues();
+		assertSame(first[0], second[0]);
+		assertEquals("2", second[1]);
+		assertFalse(reader.readRecord());
+	}
+
+	/**
+	 * Checks that BillingCsvReader reads the same records as CsvReader from csv, also when the input comes a few
+	 * characters at a time.
+	 */
+	private static void assertSameRecords(String csv) throws IOException {
+		List<String[]> expected = Lists.newArrayList();
+		CsvReader csvReader = new CsvReader(new StringReader(csv), ',');
+		csvReader.setSafetySwitch(false);
+		while (csvReader.readRecord())
+			expected.add(csvReader.getValues());
+		csvReader.close();
+
+		assertRecords(csv, expected, new StringReader(csv));
+		assertRecords(csv, expected, new ChunkedReader(csv, 3));
+		assertRecords(csv, expected, new ChunkedReader(csv, 1));
+	}
+
+	private static void assertRecords(String csv, List<String[]> expected, Reader input) throws IOException {
+		String message = describe(csv);
+		BillingCsvReader reader = new BillingCsvReader(input);
+		for (int i = 0; i < expected.size(); i++) {
+			assertTrue(message + " record " + i, reader.readRecord());
+			assertArrayEquals(message + " record " + i, expected.get(i), reader.getValues());
+		}
+		assertFalse(message, reader.readRecord());
+		reader.close();
+	}
+
+	private static String describe(String csv) {
+		if (csv.length() > 200)
+			csv = csv.substring(0, 200) + "...";
+		return "[" + csv.replace("\r", "\\r").replace("\n", "\\n").replace("\t", "\\t") + "]";
+	}
+
+	/**
+	 * Returns at most chunkSize characters per read.
+	 */
+	private static class ChunkedReader extends Reader {
+		private final String s;
+		private final int chunkSize;
+		private int position = 0;
+
+		ChunkedReader(String s, int chunkSize) {
+			this.s = s;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		public int read(char[] buffer, int offset, int length) {
+			if (position == s.length())
+				return -1;
+			int n = Math.min(Math.min(length, chunkSize), s.length() - position);
+			s.getChars(position, position + n, buffer, offset);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
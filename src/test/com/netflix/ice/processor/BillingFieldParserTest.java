@@ -0,0 +1,152 @@
+package com.netflix.ice.processor;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BillingFieldParserTest {
+	private static final String[] TIMES = {
+		"2014-01-01 00:00:00",
+		"2014-01-31 23:59:59",
+		"2014-02-28 23:00:00",
+		"2012-02-29 00:00:00",
+		"2000-02-29 12:00:00",
+		"2013-12-31 23:00:00",
+		"2014-06-15 07:00:00",
+		"1969-12-31 23:59:59",
+		"1970-01-01 00:00:00",
+		"2100-03-01 00:00:00",
+		"2014/01/01 00:00:00",
+		"2014/02/28 23:59:59",
+		"2016/02/29 05:00:00",
+		"2013/12/31 23:00:00",
+	};
+
+	private static final String[] INVALID_TIMES = {
+		"",
+		"2014-01-01",
+		"2014-01-01T00:00:00",
+		"2014-01/01 00:00:00",
+		"2014-13-01 00:00:00",
+		"2014-02-29 00:00:00",
+		"2014-01-01 24:00:00",
+		"2014-01-01 00:60:00",
+		"2014-0a-01 00:00:00",
+	};
+
+	private static final String[] NUMBERS = {
+		"0",
+		"0.0",
+		"-0",
+		"1",
+		"744",
+		"0.0000001",
+		"0.00000001",
+		"0.013",
+		"0.0000000000",
+		"0.1",
+		"0.7",
+		"2.505",
+		"1234.56789",
+		"0.0000053640",
+		"12.0000000000",
+		"-0.4499999999",
+		"-12.34",
+		"+3.5",
+		"100.",
+		".25",
+		"00000123.4500",
+		"999999999999999",
+		"9999999999999999",
+		"123456789012345678901234567890",
+		"0.1234567890123456789",
+		"0.00000000000000000000001",
+		"1.5E-4",
+		"2e10",
+		"NaN",
+		"-Infinity",
+		" 1.5",
+	};
+
+	private static final String[] INVALID_NUMBERS = {
+		"",
+		"-",
+		".",
+		"-.",
+		"1.2.3",
+		"1,5",
+		"abc",
+	};
+
+	@Test
+	public void testTimes() {
+		for (String time: TIMES)
+			assertEquals(time, expectedMillis(time), BillingFieldParser.parseMillis(time));
+	}
+
+	@Test
+	public void testInvalidTimes() {
+		for (String time: INVALID_TIMES) {
+			try {
+				BillingFieldParser.parseMillis(time);
+				fail(time + " should not parse");
+			}
+			catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+	@Test
+	public void testRandomTimes() {
+		Random random = new Random(1);
+		long start = LineItemProcessor.amazonBillingDateFormat.parseMillis("1990-01-01 00:00:00");
+		long end = LineItemProcessor.amazonBillingDateFormat.parseMillis("2050-01-01 00:00:00");
+		for (int i = 0; i < 100000; i++) {
+			long millis = start + (long)(random.nextDouble() * (end - start)) / 1000 * 1000;
+			String time = (i % 2 == 0 ? LineItemProcessor.amazonBillingDateFormat : LineItemProcessor.amazonBillingDateFormat2).print(millis);
+			assertEquals(time, millis, BillingFieldParser.parseMillis(time));
+		}
+	}
+
+	@Test
+	public void testNumbers() {
+		for (String number: NUMBERS)
+			assertEquals(number, Double.doubleToLongBits(Double.parseDouble(number)), Double.doubleToLongBits(BillingFieldParser.parseDouble(number)));
+	}
+
+	@Test
+	public void testInvalidNumbers() {
+		for (String number: INVALID_NUMBERS) {
+			try {
+				BillingFieldParser.parseDouble(number);
+				fail(number + " should not parse");
+			}
+			catch (NumberFormatException e) {
+			}
+		}
+	}
+
+	@Test
+	public void testRandomNumbers() {
+		Random random = new Random(1);
+		for (int i = 0; i < 100000; i++) {
+			// rates, quantities and costs with up to 10 decimals, as in billing files
+			long digits = random.nextLong() % 1000000000000000L;
+			int decimals = random.nextInt(11);
+			String number = BigDecimal.valueOf(digits, decimals).toPlainString();
+			assertEquals(number, Double.doubleToLongBits(Double.parseDouble(number)), Double.doubleToLongBits(BillingFieldParser.parseDouble(number)));
+		}
+	}
+
+	private static long expectedMillis(String time) {
+		try {
+			return LineItemProcessor.amazonBillingDateFormat.parseMillis(time);
+		}
+		catch (IllegalArgumentException e) {
+			return LineItemProcessor.amazonBillingDateFormat2.parseMillis(time);
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package com.netflix.ice.processor;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.google.common.collect.Lists;
+import com.netflix.ice.common.AwsUtils;
+import com.netflix.ice.common.IceOptions;
+import com.netflix.ice.common.LocalS3Client;
+import com.netflix.ice.common.Rollup;
+import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.common.TestConfigs;
+import com.netflix.ice.tag.Account;
+import com.netflix.ice.tag.Operation;
+import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.Tag;
+import com.netflix.ice.tag.TagType;
+import com.netflix.ice.tag.UsageType;
+import com.netflix.ice.tag.Zone;
+
+public class DataWriterTest {
+	private static final int HOURS = 200;
+
+	private File dir;
+	private LocalS3Client s3;
+	private String workBucket;
+	private List<TagGroup> tagGroups;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("datawriter", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdirs());
+		// uploads are remembered by bucket and key, so every test has its own bucket
+		workBucket = "work-" + System.nanoTime();
+		Properties properties = new Properties();
+		properties.setProperty(IceOptions.WORK_S3_BUCKET_NAME, workBucket);
+		properties.setProperty(IceOptions.PROCESSOR_ROLLUPS, "true");
+		TestConfigs.processorConfig(dir, properties);
+		s3 = new LocalS3Client();
+		AwsUtils.setAmazonS3Client(s3);
+
+		tagGroups = Lists.newArrayList();
+		for (Account account: new Account[] {TestConfigs.ACCOUNT, TestConfigs.OTHER_ACCOUNT}) {
+			for (Operation operation: new Operation[] {Operation.ondemandInstances, Operation.reservedInstancesHeavy, Operation.lentInstancesHeavy}) {
+				for (int i = 0; i < 5; i++) {
+					UsageType usageType = UsageType.getUsageType("m1.size" + i, "hours");
+					tagGroups.add(TagGroup.getTagGroup(account, Region.US_EAST_1, Zone.US_EAST_1A, Product.ec2_instance, operation, usageType, null));
+					tagGroups.add(TagGroup.getTagGroup(account, Region.US_WEST_2, Zone.US_WEST_2A, Product.ec2_instance, operation, usageType, null));
+				}
+			}
+			tagGroups.add(TagGroup.getTagGroup(account, Region.US_EAST_1, null, Product.s3, Operation.getOperation("PutObject"),
+					UsageType.getUsageType("Requests-Tier1", "requests"), null));
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testRollupsSameAsFullScan() throws Exception {
+		DataWriter writer = new DataWriter("cost_hourly_all_2013-06", false);
+		addRandomValues(writer.getData(), new Random(1));
+		writer.archive();
+		AwsUtils.awaitUploads();
+
+		File file = new File(dir, "cost_hourly_all_2013-06");
+		ReadWriteData data = readData(file);
+		long checksum = Rollup.checksum(file);
+		for (TagType dimension: Rollup.DIMENSIONS) {
+			Rollup rollup = readRollup(new File(dir, Rollup.getFileName(file.getName(), dimension)));
+			assertEquals(dimension, rollup.getDimension());
+			assertEquals(checksum, rollup.getDataChecksum());
+			assertEquals(HOURS, rollup.getNum());
+
+			for (Tag tag: getTags(dimension)) {
+				double[] expected = new double[HOURS];
+				for (TagGroup tagGroup: data.getTagGroups()) {
+					if (tag.equals(Rollup.getTag(tagGroup, dimension))) {
+						for (int i = 0; i < HOURS; i++) {
+							Double v = data.getData(i).get(tagGroup);
+							expected[i] += v == null ? 0 : v;
+						}
+					}
+				}
+				double[] values = new double[HOURS];
+				rollup.sum(tag, 0, values, 0, HOURS);
+				for (int i = 0; i < HOURS; i++)
+					assertEquals(dimension + " " + tag + " hour " + i, expected[i], values[i], Math.abs(expected[i]) * 1e-12);
+			}
+		}
+
+		// rollups are uploaded with their data file
+		assertEquals(Lists.newArrayList("ice/cost_hourly_all_2013-06", "ice/cost_hourly_all_2013-06_byAccount",
+				"ice/cost_hourly_all_2013-06_byOperation", "ice/cost_hourly_all_2013-06_byProduct", "ice/cost_hourly_all_2013-06_byRegion"),
+				s3.keys(workBucket, "ice/cost_hourly_all_2013-06"));
+	}
+
+	@Test
+	public void testRollupsOfOtherVersion() throws Exception {
+		DataWriter writer = new DataWriter("cost_hourly_all_2013-06", false);
+		addRandomValues(writer.getData(), new Random(1));
+		writer.archive();
+		File rollupFile = new File(dir, Rollup.getFileName("cost_hourly_all_2013-06", TagType.Account));
+		long rollupChecksum = readRollup(rollupFile).getDataChecksum();
+
+		// the data file changes, but the rollups are not written again
+		addRandomValues(writer.getData(), new Random(2));
+		writer.archive(writer.getData(), false);
+		AwsUtils.awaitUploads();
+
+		assertEquals(rollupChecksum, readRollup(rollupFile).getDataChecksum());
+		assertFalse(rollupChecksum == Rollup.checksum(new File(dir, "cost_hourly_all_2013-06")));
+	}
+
+	@Test
+	public void testLoadData() throws Exception {
+		DataWriter writer = new DataWriter("cost_hourly_all_2013-06", false);
+		addRandomValues(writer.getData(), new Random(1));
+		writer.archive();
+		AwsUtils.awaitUploads();
+		File file = new File(dir, "cost_hourly_all_2013-06");
+		ReadWriteData expected = readData(file);
+		assertTrue(file.delete());
+
+		ReadWriteData data = new DataWriter("cost_hourly_all_2013-06", true).getData();
+		assertEquals(expected.getNum(), data.getNum());
+		for (int i = 0; i < expected.getNum(); i++)
+			assertEquals(expected.getData(i), data.getData(i));
+	}
+
+	@Test
+	public void testLoadMissingData() throws Exception {
+		// a month without data in s3 starts empty
+		assertEquals(0, new DataWriter("cost_hourly_all_2013-06", true).getData().getNum());
+	}
+
+	@Test
+	public void testLoadDataFailed() throws Exception {
+		byte[] content = new byte[1000];
+		s3.put(workBucket, "ice/cost_hourly_all_2013-06", content, System.currentTimeMillis());
+		s3.changeWhileDownloading(workBucket, "ice/cost_hourly_all_2013-06");
+
+		// the data must not start empty, since archiving it would replace the data in s3
+		try {
+			new DataWriter("cost_hourly_all_2013-06", true);
+			fail("download did not fail");
+		}
+		catch (AmazonClientException e) {
+		}
+		assertFalse(new File(dir, "cost_hourly_all_2013-06").exists());
+		assertSame(content, s3.get(workBucket, "ice/cost_hourly_all_2013-06"));
+	}
+
+	private void addRandomValues(ReadWriteData data, Random random) {
+		for (int i = 0; i < HOURS; i++) {
+			for (TagGroup tagGroup: tagGroups) {
+				if (random.nextInt(3) > 0)
+					data.add(i, tagGroup, random.nextDouble() * 10);
+			}
+		}
+	}
+
+	private List<Tag> getTags(TagType dimension) {
+		List<Tag> tags = Lists.newArrayList();
+		for (TagGroup tagGroup: tagGroups) {
+			Tag tag = tagGroup.getTag(dimension);
+			if (!tags.contains(tag))
+				tags.add(tag);
+		}
+		return tags;
+	}
+
+	private static ReadWriteData readData(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return ReadWriteData.Serializer.deserialize(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static Rollup readRollup(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return Rollup.Serializer.deserialize(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package com.netflix.ice.processor;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.netflix.ice.common.AwsUtils;
+import com.netflix.ice.common.IceOptions;
+import com.netflix.ice.common.LocalS3Client;
+import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.common.TestConfigs;
+
+public class ProcessingCheckpointTest {
+	private static final DateTime START = new DateTime(2013, 6, 1, 0, 0, DateTimeZone.UTC);
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss").withZone(DateTimeZone.UTC);
+	private static final String BILLING_FILE = TestConfigs.ACCOUNT.id + "-aws-billing-detailed-line-items-2013-06.csv.zip";
+	private static final String[] HEADER = {"InvoiceID", "PayerAccountId", "LinkedAccountId", "RecordType", "ProductName", "RateId",
+			"SubscriptionId", "PricingPlanId", "UsageType", "Operation", "AvailabilityZone", "ReservedInstance", "ItemDescription",
+			"UsageStartDate", "UsageEndDate", "UsageQuantity", "Rate", "Cost"};
+
+	private File dir;
+	private LocalS3Client s3;
+	private String billingBucket;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("checkpoint", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdirs());
+		s3 = new LocalS3Client();
+		// uploads are remembered by bucket and key, so every test has its own buckets
+		billingBucket = "billing-" + System.nanoTime();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testSerializer() throws IOException {
+		List<BillingFileProcessor.DelayedItems> delayedItems = Lists.newArrayList();
+		delayedItems.add(new BillingFileProcessor.DelayedItems(false, HEADER, Lists.newArrayList(line(0, 24 * 30, "AWS Data Transfer",
+				"PrevMon-DataXfer-Out-Bytes", "", "", 10, 1.5), new String[] {"", "quoted, \"text\"", ""})));
+		delayedItems.add(new BillingFileProcessor.DelayedItems(true, new String[] {"a", "b"}, Lists.<String[]>newArrayList()));
+		ProcessingCheckpoint checkpoint = new ProcessingCheckpoint(START.plusDays(3).getMillis(), Lists.newArrayList("billing/" + BILLING_FILE),
+				Lists.newArrayList("ec2", "s3"), delayedItems);
+
+		ProcessingCheckpoint result = ProcessingCheckpoint.Serializer.deserialize(new DataInputStream(new ByteArrayInputStream(serialize(checkpoint))));
+
+		assertEquals(checkpoint.endMilli, result.endMilli);
+		assertEquals(START.plusDays(2).getMillis(), result.getFromMilli());
+		assertEquals(checkpoint.billingFileKeys, result.billingFileKeys);
+		assertEquals(checkpoint.products, result.products);
+		assertEquals(delayedItems.size(), result.delayedItems.size());
+		for (int i = 0; i < delayedItems.size(); i++) {
+			BillingFileProcessor.DelayedItems expected = delayedItems.get(i);
+			BillingFileProcessor.DelayedItems delayed = result.delayedItems.get(i);
+			assertEquals(expected.withTags, delayed.withTags);
+			assertArrayEquals(expected.headers, delayed.headers);
+			assertEquals(expected.items.size(), delayed.items.size());
+			for (int j = 0; j < expected.items.size(); j++)
+				assertArrayEquals(expected.items.get(j), delayed.items.get(j));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testSerializerUnknownVersion() throws IOException {
+		ProcessingCheckpoint checkpoint = new ProcessingCheckpoint(START.getMillis(), Lists.<String>newArrayList(), Lists.<String>newArrayList(),
+				Lists.<BillingFileProcessor.DelayedItems>newArrayList());
+		byte[] bytes = serialize(checkpoint);
+		// the version comes first
+		bytes[3]++;
+		ProcessingCheckpoint.Serializer.deserialize(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	@Test
+	public void testResumeSameAsFullRun() throws Exception {
+		// the first 10 days, then the first 20 days of the month from the checkpoint of the first run
+		String incrementalBucket = "work-incremental-" + System.nanoTime();
+		ProcessorConfig config = processorConfig(new File(dir, "incremental"), incrementalBucket, true);
+		putBillingFile(10, System.currentTimeMillis() - 3600000L);
+		new BillingFileProcessor(null, null, null, null).poll();
+		putBillingFile(20, System.currentTimeMillis() + 3600000L);
+		new BillingFileProcessor(null, null, null, null).poll();
+
+		ProcessingCheckpoint checkpoint = ProcessingCheckpoint.load(config, "2013-06");
+		assertNotNull(checkpoint);
+		assertEquals(START.plusDays(18).getMillis(), checkpoint.getFromMilli());
+		AwsUtils.awaitUploads();
+
+		// all 20 days at once
+		String fullBucket = "work-full-" + System.nanoTime();
+		processorConfig(new File(dir, "full"), fullBucket, false);
+		new BillingFileProcessor(null, null, null, null).poll();
+		AwsUtils.awaitUploads();
+
+		List<String> keys = getArchivedKeys(fullBucket);
+		assertTrue(keys.contains("ice/cost_hourly_all_2013-06"));
+		assertTrue(keys.contains("ice/tagdb_all"));
+		assertEquals(keys, getArchivedKeys(incrementalBucket));
+		for (String key: keys) {
+			if (key.startsWith("ice/tagdb_"))
+				assertEquals(key, readTagGroups(fullBucket, key), readTagGroups(incrementalBucket, key));
+			else
+				assertSameData(key, readData(fullBucket, key), readData(incrementalBucket, key));
+		}
+	}
+
+	private ProcessorConfig processorConfig(File localDir, String workBucket, boolean incremental) {
+		assertTrue(localDir.mkdirs());
+		Properties properties = new Properties();
+		properties.setProperty(IceOptions.START_MILLIS, "" + START.getMillis());
+		properties.setProperty(IceOptions.WORK_S3_BUCKET_NAME, workBucket);
+		properties.setProperty(IceOptions.BILLING_S3_BUCKET_NAME, billingBucket);
+		properties.setProperty(IceOptions.PROCESSOR_INCREMENTAL, "" + incremental);
+		ProcessorConfig config = TestConfigs.processorConfig(localDir, properties);
+		AwsUtils.setAmazonS3Client(s3);
+		return config;
+	}
+
+	/**
+	 * Puts a billing file with hourly, daily and delayed line items of the first days of the month.
+	 */
+	private void putBillingFile(int days, long lastModified) throws IOException {
+		List<String[]> lines = Lists.newArrayList();
+		lines.add(HEADER);
+		// data transfer of the last month, spread over the month
+		lines.add(line(0, 24, "AWS Data Transfer", "PrevMon-DataXfer-Out-Bytes", "", "", 100, 9.0));
+		for (int day = 0; day < days; day++) {
+			lines.add(line(day * 24, 24, "Amazon Simple Storage Service", "TimedStorage-ByteHrs", "StandardStorage", "", 1000 + day, 0.3 + day / 100.0));
+			for (int hour = day * 24; hour < (day + 1) * 24; hour++) {
+				lines.add(line(hour, 1, "Amazon Elastic Compute Cloud", "BoxUsage:m1.small", "RunInstances", "us-east-1a", 2 + hour % 3, 0.06 * (2 + hour % 3)));
+				if (hour % 5 != 0)
+					lines.add(line(hour, 1, "Amazon Elastic Compute Cloud", "BoxUsage:m1.large", "RunInstances", "us-east-1b", 1, 0.24));
+				lines.add(line(hour, 1, "AWS Data Transfer", "DataTransfer-Out-Bytes", "", "", hour * 0.01, hour * 0.0012));
+			}
+		}
+
+		StringBuilder csv = new StringBuilder();
+		for (String[] line: lines) {
+			for (int i = 0; i < line.length; i++)
+				csv.append(i == 0 ? "\"" : ",\"").append(line[i]).append("\"");
+			csv.append("\n");
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		zip.putNextEntry(new ZipEntry(BILLING_FILE.substring(0, BILLING_FILE.length() - ".zip".length())));
+		zip.write(csv.toString().getBytes("UTF-8"));
+		zip.closeEntry();
+		zip.close();
+		s3.put(billingBucket, BILLING_FILE, bytes.toByteArray(), lastModified);
+	}
+
+	private static String[] line(int hour, int hours, String product, String usageType, String operation, String zone, double usage, double cost) {
+		DateTime start = START.plusHours(hour);
+		DateTime end = start.plusHours(hours).minusSeconds(1);
+		return new String[] {"Estimated", TestConfigs.ACCOUNT.id, TestConfigs.ACCOUNT.id, "LineItem", product, "1", "1", "1", usageType, operation, zone,
+				"N", usageType + " usage", DATE_FORMAT.print(start), DATE_FORMAT.print(end), "" + usage, "" + (usage == 0 ? 0 : cost / usage), "" + cost};
+	}
+
+	private static byte[] serialize(ProcessingCheckpoint checkpoint) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		ProcessingCheckpoint.Serializer.serialize(out, checkpoint);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private List<String> getArchivedKeys(String workBucket) {
+		List<String> keys = Lists.newArrayList();
+		for (String key: s3.keys(workBucket, "ice/")) {
+			if (key.startsWith("ice/usage_") || key.startsWith("ice/cost_") || key.startsWith("ice/tagdb_"))
+				keys.add(key);
+		}
+		return keys;
+	}
+
+	private ReadWriteData readData(String workBucket, String key) throws IOException {
+		return ReadWriteData.Serializer.deserialize(new DataInputStream(new ByteArrayInputStream(s3.get(workBucket, key))));
+	}
+
+	private TreeMap<Long, Collection<TagGroup>> readTagGroups(String workBucket, String key) throws IOException {
+		TreeMap<Long, Collection<TagGroup>> result = TagGroup.Serializer.deserializeTagGroups(ProcessorConfig.getInstance(),
+				new DataInputStream(new ByteArrayInputStream(s3.get(workBucket, key))));
+		for (Long monthMilli: result.keySet())
+			result.put(monthMilli, Lists.newArrayList(result.get(monthMilli)));
+		return result;
+	}
+
+	/**
+	 * Values spread over the month are divided again when the month is processed again, so they may differ in the last
+	 * bit.
+	 */
+	private static void assertSameData(String key, ReadWriteData expected, ReadWriteData data) {
+		assertEquals(key, expected.getNum(), data.getNum());
+		for (int i = 0; i < expected.getNum(); i++) {
+			Map<TagGroup, Double> expectedValues = expected.getData(i);
+			Map<TagGroup, Double> values = data.getData(i);
+			assertEquals(key + " hour " + i, expectedValues.keySet(), values.keySet());
+			for (TagGroup tagGroup: expectedValues.keySet()) {
+				double value = expectedValues.get(tagGroup);
+				assertEquals(key + " hour " + i + " " + tagGroup, value, values.get(tagGroup), Math.abs(value) * 1e-12);
+			}
+		}
+	}
+}
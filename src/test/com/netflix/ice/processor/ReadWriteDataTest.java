@@ -0,0 +1,340 @@
+package com.netflix.ice.processor;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.ice.common.DataFileFormat;
+import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.common.TestConfigs;
+import com.netflix.ice.tag.Account;
+import com.netflix.ice.tag.Operation;
+import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.ResourceGroup;
+import com.netflix.ice.tag.UsageType;
+
+public class ReadWriteDataTest {
+	private static final int HOURS = 744;
+	// a quarter of the tag groups with random values in a few percent of the hours
+	private static final long MAX_MEMORY_BYTES = 128 * 1024;
+
+	private File spillDir;
+	private List<TagGroup> tagGroups;
+
+	@Before
+	public void setUp() throws Exception {
+		spillDir = File.createTempFile("spill", "");
+		assertTrue(spillDir.delete());
+
+		Account account = TestConfigs.ACCOUNT;
+		UsageType usageType = UsageType.getUsageType("m1.small", "hours");
+		tagGroups = Lists.newArrayList();
+		for (int i = 0; i < 2000; i++)
+			tagGroups.add(TagGroup.getTagGroup(account, Region.US_EAST_1, null, Product.ec2, Operation.ondemandInstances, usageType,
+					ResourceGroup.getResourceGroup("app" + i)));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(spillDir);
+	}
+
+	@Test
+	public void testSpillsAndMergesBack() {
+		ReadWriteData expected = new ReadWriteData();
+		ReadWriteData data = new ReadWriteData(spillDir, MAX_MEMORY_BYTES);
+		addRandomValues(new Random(1), 50000, expected, data);
+		assertTrue("nothing spilled", spillDir.list().length > 0);
+
+		assertSameValues(expected, data);
+		assertEquals("spilled files left behind", 0, spillDir.list().length);
+	}
+
+	@Test
+	public void testMerge() {
+		ReadWriteData expected = new ReadWriteData();
+		ReadWriteData data = new ReadWriteData(spillDir, MAX_MEMORY_BYTES);
+		ReadWriteData other = new ReadWriteData(spillDir, MAX_MEMORY_BYTES);
+		addRandomValues(new Random(1), 20000, expected, data);
+		addRandomValues(new Random(2), 20000, expected, other);
+
+		data.merge(other);
+
+		assertSameValues(expected, data);
+	}
+
+	@Test
+	public void testMergeIntoDataWhichDoesNotSpill() {
+		ReadWriteData expected = new ReadWriteData();
+		ReadWriteData data = new ReadWriteData();
+		ReadWriteData other = new ReadWriteData(spillDir, MAX_MEMORY_BYTES);
+		addRandomValues(new Random(1), 20000, expected, data);
+		addRandomValues(new Random(2), 20000, expected, other);
+
+		data.merge(other);
+
+		assertSameValues(expected, data);
+	}
+
+	@Test
+	public void testCutSpilledData() {
+		ReadWriteData expected = new ReadWriteData();
+		ReadWriteData data = new ReadWriteData(spillDir, MAX_MEMORY_BYTES);
+		addRandomValues(new Random(1), 50000, expected, data);
+
+		expected.cutData(500);
+		data.cutData(500);
+
+		assertEquals(500, data.getNum());
+		assertSameValues(expected, data);
+	}
+
+	@Test
+	public void testPutAfterSpill() {
+		ReadWriteData data = new ReadWriteData(spillDir, MAX_MEMORY_BYTES);
+		addRandomValues(new Random(1), 50000, new ReadWriteData(), data);
+
+		data.put(10, tagGroups.get(0), 1.5);
+		data.add(10, tagGroups.get(0), 1);
+
+		assertEquals(2.5, data.getData(10).get(tagGroups.get(0)), 0);
+	}
+
+	@Test
+	public void testClear() {
+		ReadWriteData data = new ReadWriteData(spillDir, MAX_MEMORY_BYTES);
+		addRandomValues(new Random(1), 50000, new ReadWriteData(), data);
+
+		data.clear();
+
+		assertEquals(0, spillDir.list().length);
+		assertTrue(data.getTagGroups().isEmpty());
+	}
+
+	@Test
+	public void testHourView() {
+		ReadWriteData data = new ReadWriteData();
+		Map<TagGroup, Double> hour = data.getData(3);
+
+		assertTrue(hour.isEmpty());
+		assertNull(hour.put(tagGroups.get(0), 1.5));
+		assertEquals(1.5, hour.put(tagGroups.get(0), 2.5), 0);
+		assertEquals(2.5, hour.get(tagGroups.get(0)), 0);
+		assertTrue(hour.containsKey(tagGroups.get(0)));
+		assertFalse(hour.containsKey(tagGroups.get(1)));
+		assertNull(hour.get("not a tag group"));
+		assertEquals(1, hour.size());
+		assertEquals(4, data.getNum());
+		// other hours of the same column are absent
+		assertTrue(data.getData(2).isEmpty());
+
+		data.add(3, tagGroups.get(0), 1);
+		assertEquals(3.5, hour.get(tagGroups.get(0)), 0);
+
+		assertEquals(3.5, hour.remove(tagGroups.get(0)), 0);
+		assertNull(hour.remove(tagGroups.get(0)));
+		assertNull(hour.get(tagGroups.get(0)));
+		assertEquals(0, hour.size());
+		assertTrue(hour.isEmpty());
+		// removed values leave their column behind
+		assertTrue(data.getTagGroups().isEmpty());
+		assertEquals(1, data.getColumnTagGroups().size());
+	}
+
+	@Test
+	public void testNaNIsAbsent() {
+		ReadWriteData data = new ReadWriteData();
+		data.put(0, tagGroups.get(0), 1);
+		data.put(0, tagGroups.get(0), Double.NaN);
+		data.put(0, tagGroups.get(1), 0);
+
+		Map<TagGroup, Double> hour = data.getData(0);
+		assertNull(hour.get(tagGroups.get(0)));
+		assertFalse(hour.containsKey(tagGroups.get(0)));
+		// zero is a value
+		assertEquals(0, hour.get(tagGroups.get(1)), 0);
+		assertEquals(1, hour.size());
+		assertEquals(Lists.newArrayList(tagGroups.get(1)), Lists.newArrayList(hour.keySet()));
+
+		// adding to an absent value starts from it
+		data.add(0, tagGroups.get(0), 2);
+		assertEquals(2, hour.get(tagGroups.get(0)), 0);
+		assertEquals(2, hour.size());
+	}
+
+	@Test
+	public void testIteratorRemove() {
+		ReadWriteData data = new ReadWriteData();
+		for (int i = 0; i < 10; i++)
+			data.put(5, tagGroups.get(i), i);
+
+		Iterator<Map.Entry<TagGroup, Double>> iterator = data.getData(5).entrySet().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getValue() % 2 == 0)
+				iterator.remove();
+		}
+
+		Map<TagGroup, Double> hour = data.getData(5);
+		assertEquals(5, hour.size());
+		for (int i = 0; i < 10; i++)
+			assertEquals(i % 2 == 0 ? null : Double.valueOf(i), hour.get(tagGroups.get(i)));
+	}
+
+	@Test
+	public void testSerializerRoundTripVersion1() throws IOException {
+		assertSerializerRoundTrip(DataFileFormat.VERSION_1);
+	}
+
+	@Test
+	public void testSerializerRoundTripVersion2() throws IOException {
+		assertSerializerRoundTrip(DataFileFormat.VERSION_2);
+	}
+
+	private void assertSerializerRoundTrip(int version) throws IOException {
+		TestConfigs.processorConfig(spillDir, new Properties());
+		Random random = new Random(4);
+		ReadWriteData data = new ReadWriteData();
+		ReadWriteData expected = new ReadWriteData();
+		for (int i = 0; i < HOURS; i++) {
+			// long runs of the same value, of empty hours and of hours with one value
+			data.put(i, tagGroups.get(0), 0.012);
+			expected.put(i, tagGroups.get(0), 0.012);
+			if (i > 100 && i < 300)
+				continue;
+			for (int j = 1; j < 200; j++) {
+				TagGroup tagGroup = tagGroups.get(j * 7);
+				double value;
+				switch (random.nextInt(6)) {
+					case 0:
+						value = Double.NaN;
+						break;
+					case 1:
+						value = 0;
+						break;
+					case 2:
+						value = -random.nextDouble() * Math.pow(10, random.nextInt(20) - 10);
+						break;
+					default:
+						value = random.nextDouble() * Math.pow(10, random.nextInt(20) - 10);
+				}
+				data.put(i, tagGroup, value);
+				// zeros are not written, NaN is no value
+				if (value != 0 && !Double.isNaN(value))
+					expected.put(i, tagGroup, value);
+			}
+		}
+		data.put(HOURS + 500, tagGroups.get(1999), -1);
+		expected.put(HOURS + 500, tagGroups.get(1999), -1);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ReadWriteData.Serializer.serialize(new DataOutputStream(bytes), data, version);
+		ReadWriteData result = ReadWriteData.Serializer.deserialize(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+		assertEquals(expected.getNum(), result.getNum());
+		assertEquals(expected.getTagGroups(), result.getTagGroups());
+		for (int i = 0; i < expected.getNum(); i++) {
+			assertEquals("hour " + i, expected.getData(i), Maps.newHashMap(result.getData(i)));
+			for (Map.Entry<TagGroup, Double> entry: expected.getData(i).entrySet())
+				assertEquals(Double.doubleToRawLongBits(entry.getValue()), Double.doubleToRawLongBits(result.getData(i).get(entry.getKey())));
+		}
+	}
+
+	@Test
+	public void testSameAsHashMapsWithSparseColumns() {
+		assertSameAsHashMaps(tagGroups.size());
+	}
+
+	@Test
+	public void testSameAsHashMapsWithDenseColumns() {
+		assertSameAsHashMaps(20);
+	}
+
+	private void assertSameAsHashMaps(int numTagGroups) {
+		Random random = new Random(3);
+		ReadWriteData data = new ReadWriteData();
+		List<Map<TagGroup, Double>> expected = Lists.newArrayList();
+
+		for (int j = 0; j < 20000; j++) {
+			int hour = random.nextInt(100);
+			TagGroup tagGroup = tagGroups.get(random.nextInt(numTagGroups));
+			Map<TagGroup, Double> expectedHour = ReadWriteData.getCreateData(expected, hour);
+			double value = random.nextInt(1000) / 100.0;
+			switch (random.nextInt(10)) {
+				case 0:
+					data.getData(hour).put(tagGroup, value);
+					expectedHour.put(tagGroup, value);
+					break;
+				case 1:
+					data.getData(hour).remove(tagGroup);
+					expectedHour.remove(tagGroup);
+					break;
+				default:
+					data.add(hour, tagGroup, value);
+					Double v = expectedHour.get(tagGroup);
+					expectedHour.put(tagGroup, v == null ? value : v + value);
+			}
+		}
+		assertEquals(expected.size(), data.getNum());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals("hour " + i, expected.get(i).size(), data.getData(i).size());
+			assertEquals("hour " + i, expected.get(i), Maps.newHashMap(data.getData(i)));
+		}
+
+		// clear some hours, then cut the last ones
+		List<Map<TagGroup, Double>> newData = Lists.newArrayList();
+		newData.add(Maps.<TagGroup, Double>newHashMap());
+		newData.add(Maps.<TagGroup, Double>newHashMap());
+		newData.get(1).put(tagGroups.get(0), 1.0);
+		data.setData(newData, 10, false);
+		expected.set(10, newData.get(0));
+		expected.set(11, newData.get(1));
+		data.cutData(50);
+		for (int i = 0; i < expected.size(); i++) {
+			Map<TagGroup, Double> expectedHour = i < 50 ? expected.get(i) : Maps.<TagGroup, Double>newHashMap();
+			assertEquals("hour " + i, expectedHour.size(), data.getData(i).size());
+			assertEquals("hour " + i, expectedHour, Maps.newHashMap(data.getData(i)));
+		}
+	}
+
+	private void addRandomValues(Random random, int count, ReadWriteData... datas) {
+		for (int j = 0; j < count; j++) {
+			int hour = random.nextInt(HOURS);
+			TagGroup tagGroup = tagGroups.get(random.nextInt(tagGroups.size()));
+			double value = random.nextInt(1000) / 100.0;
+			for (ReadWriteData data: datas)
+				data.add(hour, tagGroup, value);
+		}
+	}
+
+	private static void assertSameValues(ReadWriteData expected, ReadWriteData data) {
+		assertEquals(expected.getTagGroups(), data.getTagGroups());
+		assertEquals(expected.getNum(), data.getNum());
+		for (int i = 0; i < expected.getNum(); i++) {
+			Map<TagGroup, Double> expectedHour = expected.getData(i);
+			Map<TagGroup, Double> hour = data.getData(i);
+			assertEquals("hour " + i, expectedHour.size(), hour.size());
+			for (Map.Entry<TagGroup, Double> entry: expectedHour.entrySet()) {
+				// partial sums are added up in a different order
+				assertEquals("hour " + i + " " + entry.getKey(), entry.getValue(), hour.get(entry.getKey()), 1e-9);
+			}
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package com.netflix.ice.processor;
+
+import static org.junit.Assert.*;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.model.ReservedInstances;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.ice.common.AccountService;
+import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.processor.Ec2InstanceReservationPrice.ReservationUtilization;
+import com.netflix.ice.tag.Account;
+import com.netflix.ice.tag.Operation;
+import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.ResourceGroup;
+import com.netflix.ice.tag.UsageType;
+import com.netflix.ice.tag.Zone;
+
+public class ReservationProcessorTest {
+	private static final int HOURS = 24 * 31;
+	private static final long START_MILLI = 1388534400000L; // 2014-01-01
+
+	private static final ReservationUtilization[] UTILIZATIONS = {ReservationUtilization.HEAVY, ReservationUtilization.LIGHT, ReservationUtilization.FIXED};
+	private static final Region[] REGIONS = {Region.US_EAST_1, Region.US_WEST_2};
+	private static final Zone[][] ZONES = {{Zone.US_EAST_1A, Zone.US_EAST_1B, null}, {Zone.US_WEST_2A, null}};
+
+	private final List<Account> accounts = Lists.newArrayList();
+	private final List<UsageType> usageTypes = Lists.newArrayList();
+	private final TestReservationService reservationService = new TestReservationService();
+	private final TestAccountService accountService = new TestAccountService();
+
+	public ReservationProcessorTest() {
+		for (int i = 0; i < 20; i++)
+			accounts.add(new Account("10000000000" + i, "account" + i));
+		for (String name: new String[] {"m1.small", "m3.large", "c4.xlarge", "r3.2xlarge.windows"})
+			usageTypes.add(UsageType.getUsageType(name, "hours"));
+
+		// the first five accounts own reservations, each shared with a few of the others
+		Random random = new Random(1);
+		for (int owner = 0; owner < 5; owner++) {
+			List<Account> borrowers = Lists.newArrayList(accounts.get(owner));
+			for (int i = 5; i < accounts.size(); i++) {
+				if (random.nextInt(3) == 0)
+					borrowers.add(accounts.get(i));
+			}
+			accountService.reservationAccounts.put(accounts.get(owner), borrowers);
+		}
+		accountService.noExternalMapping = accounts.get(7);
+
+		for (ReservationUtilization utilization: UTILIZATIONS) {
+			List<TagGroup> tagGroups = Lists.newArrayList();
+			for (int owner = 0; owner < 5; owner++) {
+				for (int j = 0; j < 6; j++) {
+					int region = random.nextInt(REGIONS.length);
+					TagGroup tagGroup = tagGroup(owner, region, random.nextInt(ZONES[region].length), random.nextInt(usageTypes.size()), Operation.getReservedInstances(utilization), null);
+					if (!tagGroups.contains(tagGroup))
+						tagGroups.add(tagGroup);
+				}
+			}
+			reservationService.tagGroups.put(utilization, tagGroups);
+		}
+	}
+
+	@Test
+	public void testParallelSameAsSerial() throws Exception {
+		assertSameResults(0);
+	}
+
+	@Test
+	public void testParallelSameAsSerialFromHour() throws Exception {
+		assertSameResults(300);
+	}
+
+	private void assertSameResults(int fromHour) throws Exception {
+		ReadWriteData serialUsage = new ReadWriteData();
+		ReadWriteData serialCost = new ReadWriteData();
+		addRandomData(serialUsage, serialCost);
+		ReadWriteData parallelUsage = new ReadWriteData();
+		ReadWriteData parallelCost = new ReadWriteData();
+		addRandomData(parallelUsage, parallelCost);
+
+		new ReservationProcessor(reservationService, accountService, START_MILLI, 1).process(serialUsage, serialCost, fromHour);
+		new ReservationProcessor(reservationService, accountService, START_MILLI, 4).process(parallelUsage, parallelCost, fromHour);
+
+		assertTrue("no borrowed usage", hasOperation(serialUsage, Operation.borrowedInstancesHeavy));
+		assertTrue("no bonus usage", hasOperation(serialUsage, Operation.bonusReservedInstancesHeavy));
+		assertSameData(serialUsage, parallelUsage);
+		assertSameData(serialCost, parallelCost);
+	}
+
+	private void addRandomData(ReadWriteData usageData, ReadWriteData costData) {
+		Random random = new Random(2);
+		for (int account = 0; account < accounts.size(); account++) {
+			for (int region = 0; region < REGIONS.length; region++) {
+				for (int zone = 0; zone < ZONES[region].length; zone++) {
+					for (int usageType = 0; usageType < usageTypes.size(); usageType++) {
+						if (random.nextInt(3) != 0)
+							continue;
+						ReservationUtilization utilization = UTILIZATIONS[random.nextInt(UTILIZATIONS.length)];
+						Operation operation = random.nextInt(4) == 0 ? Operation.ondemandInstances : Operation.getReservedInstances(utilization);
+						TagGroup tagGroup = tagGroup(account, region, zone, usageType, operation, null);
+						TagGroup resourceTagGroup = tagGroup(account, region, zone, usageType, operation, ResourceGroup.getResourceGroup("app" + account));
+						for (int i = 0; i < HOURS; i++) {
+							if (random.nextInt(10) == 0)
+								continue;
+							double usage = random.nextInt(8);
+							usageData.add(i, tagGroup, usage);
+							costData.add(i, tagGroup, usage * 0.1);
+							usageData.add(i, resourceTagGroup, usage);
+							costData.add(i, resourceTagGroup, usage * 0.1);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private TagGroup tagGroup(int account, int region, int zone, int usageType, Operation operation, ResourceGroup resourceGroup) {
+		return TagGroup.getTagGroup(accounts.get(account), REGIONS[region], ZONES[region][zone], Product.ec2_instance, operation, usageTypes.get(usageType), resourceGroup);
+	}
+
+	private static boolean hasOperation(ReadWriteData data, Operation operation) {
+		for (TagGroup tagGroup: data.getTagGroups()) {
+			if (tagGroup.operation == operation)
+				return true;
+		}
+		return false;
+	}
+
+	private static void assertSameData(ReadWriteData expected, ReadWriteData data) {
+		assertEquals(expected.getNum(), data.getNum());
+		Collection<TagGroup> tagGroups = expected.getTagGroups();
+		assertEquals(tagGroups, data.getTagGroups());
+		for (int i = 0; i < expected.getNum(); i++) {
+			Map<TagGroup, Double> expectedHour = expected.getData(i);
+			Map<TagGroup, Double> hour = data.getData(i);
+			for (TagGroup tagGroup: tagGroups) {
+				Double expectedValue = expectedHour.get(tagGroup);
+				Double value = hour.get(tagGroup);
+				if (expectedValue == null)
+					assertNull("hour " + i + " " + tagGroup, value);
+				else
+					assertEquals("hour " + i + " " + tagGroup, Double.doubleToLongBits(expectedValue), Double.doubleToLongBits(value));
+			}
+		}
+	}
+
+	/**
+	 * Reservations whose capacity changes from hour to hour.
+	 */
+	private static class TestReservationService implements ReservationService {
+		final Map<ReservationUtilization, List<TagGroup>> tagGroups = Maps.newHashMap();
+
+		public void init() {
+		}
+
+		public Collection<TagGroup> getTagGroups(ReservationUtilization utilization) {
+			List<TagGroup> result = tagGroups.get(utilization);
+			return result == null ? Lists.<TagGroup>newArrayList() : result;
+		}
+
+		public ReservationUtilization getDefaultReservationUtilization(long time) {
+			return ReservationUtilization.HEAVY;
+		}
+
+		public ReservationInfo getReservation(long time, TagGroup tagGroup, ReservationUtilization utilization) {
+			double hourlyCost = 0.01 * (tagGroup.usageType.name.length() + utilization.ordinal());
+			if (!getTagGroups(utilization).contains(tagGroup))
+				return new ReservationInfo(0, 0, hourlyCost);
+			int hour = (int)((time - START_MILLI) / 3600000L);
+			int capacity = new Random(tagGroup.toString().hashCode() * 31L + hour).nextInt(12);
+			return new ReservationInfo(capacity, 0.02, hourlyCost);
+		}
+
+		public double getLatestHourlyTotalPrice(long time, Region region, UsageType usageType, ReservationUtilization utilization) {
+			return 0;
+		}
+
+		public void updateEc2Reservations(Map<String, ReservedInstances> reservations) {
+		}
+	}
+
+	private static class TestAccountService implements AccountService {
+		final Map<Account, List<Account>> reservationAccounts = Maps.newLinkedHashMap();
+		Account noExternalMapping;
+
+		public Account getAccountById(String accountId) {
+			return null;
+		}
+
+		public Account getAccountByName(String accountName) {
+			return null;
+		}
+
+		public List<Account> getAccounts(List<String> accountNames) {
+			return null;
+		}
+
+		public Map<Account, List<Account>> getReservationAccounts() {
+			return reservationAccounts;
+		}
+
+		public Map<Account, String> getReservationAccessRoles() {
+			return null;
+		}
+
+		public Map<Account, String> getReservationAccessExternalIds() {
+			return null;
+		}
+
+		public boolean externalMappingExist(Account account, Zone zone) {
+			return account != noExternalMapping;
+		}
+	}
+}
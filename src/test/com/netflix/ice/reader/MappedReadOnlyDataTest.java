@@ -0,0 +1,196 @@
+package com.netflix.ice.reader;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.netflix.ice.common.DataFileFormat;
+import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.common.TestConfigs;
+import com.netflix.ice.tag.Operation;
+import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.ResourceGroup;
+import com.netflix.ice.tag.UsageType;
+
+public class MappedReadOnlyDataTest {
+	private static final int NUM_ROWS = 100;
+	private static final int NUM_COLUMNS = 60;
+
+	private File dir;
+	private List<TagGroup> tagGroups;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("mapped", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdirs());
+		TestConfigs.readerConfig(dir, new Properties());
+
+		UsageType usageType = UsageType.getUsageType("m1.small", "hours");
+		tagGroups = Lists.newArrayList();
+		for (int i = 0; i < NUM_COLUMNS; i++)
+			tagGroups.add(TagGroup.getTagGroup(TestConfigs.ACCOUNT, Region.US_EAST_1, null, Product.ec2, Operation.ondemandInstances, usageType,
+					ResourceGroup.getResourceGroup("app" + i)));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testSameAsReadOnlyDataForVersion1() throws Exception {
+		assertSameAsReadOnlyData(writeRandomData(new File(dir, "cost_hourly_2013-06"), new Random(1), DataFileFormat.VERSION_1));
+	}
+
+	@Test
+	public void testSameAsReadOnlyDataForVersion2() throws Exception {
+		assertSameAsReadOnlyData(writeRandomData(new File(dir, "cost_hourly_2013-06"), new Random(1), DataFileFormat.VERSION_2));
+	}
+
+	@Test
+	public void testReloadsChangedFile() throws Exception {
+		File file = writeRandomData(new File(dir, "cost_hourly_2013-06"), new Random(1), DataFileFormat.VERSION_2);
+		MappedReadOnlyData.load(file);
+		writeRandomData(file, new Random(2), DataFileFormat.VERSION_2);
+		assertTrue(file.setLastModified(file.lastModified() + 10000));
+
+		assertSameAsReadOnlyData(file);
+		// the mapped file of the previous version is deleted
+		assertEquals(2, dir.list().length);
+	}
+
+	@Test
+	public void testConcurrentLoads() throws Exception {
+		final List<File> files = Lists.newArrayList();
+		for (int i = 0; i < 4; i++)
+			files.add(writeRandomData(new File(dir, "cost_hourly_2013-0" + (i + 1)), new Random(i), DataFileFormat.VERSION_2));
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<ReadOnlyData>> futures = Lists.newArrayList();
+			for (int i = 0; i < 16; i++) {
+				final File file = files.get(i % files.size());
+				futures.add(executor.submit(new Callable<ReadOnlyData>() {
+					public ReadOnlyData call() throws Exception {
+						return MappedReadOnlyData.load(file);
+					}
+				}));
+			}
+			for (int i = 0; i < futures.size(); i++)
+				assertSameData(readData(files.get(i % files.size())), futures.get(i).get());
+		}
+		finally {
+			executor.shutdown();
+		}
+		// one mapped file per data file
+		assertEquals(2 * files.size(), dir.list().length);
+	}
+
+	private void assertSameAsReadOnlyData(File file) throws IOException {
+		ReadOnlyData expected = readData(file);
+		ReadOnlyData data = MappedReadOnlyData.load(file);
+		assertSameData(expected, data);
+
+		Random random = new Random(3);
+		int numGroups = 5;
+		int[] columns = new int[NUM_COLUMNS / 3];
+		for (int i = 0; i < columns.length; i++)
+			columns[i] = random.nextInt(NUM_COLUMNS);
+		int[] columnToGroup = new int[NUM_COLUMNS];
+		int[][] columnToGroups = new int[NUM_COLUMNS][];
+		for (int column = 0; column < NUM_COLUMNS; column++) {
+			columnToGroup[column] = random.nextInt(numGroups + 1) - 1;
+			if (random.nextBoolean())
+				columnToGroups[column] = new int[] {random.nextInt(numGroups), random.nextInt(numGroups)};
+		}
+
+		double[] expectedSum = new double[NUM_ROWS];
+		double[] sum = new double[NUM_ROWS];
+		expected.sum(columns, 5, expectedSum, 3, 90);
+		data.sum(columns, 5, sum, 3, 90);
+		assertSameValues("sum", expectedSum, sum);
+
+		double[][] expectedGroups = new double[numGroups][NUM_ROWS];
+		double[][] groups = new double[numGroups][NUM_ROWS];
+		expected.sumByGroup(columnToGroup, 5, expectedGroups, 3, 90);
+		data.sumByGroup(columnToGroup, 5, groups, 3, 90);
+		for (int group = 0; group < numGroups; group++)
+			assertSameValues("sumByGroup " + group, expectedGroups[group], groups[group]);
+
+		expectedGroups = new double[numGroups][NUM_ROWS];
+		groups = new double[numGroups][NUM_ROWS];
+		expected.sumByGroups(columnToGroups, 5, expectedGroups, 3, 90);
+		data.sumByGroups(columnToGroups, 5, groups, 3, 90);
+		for (int group = 0; group < numGroups; group++)
+			assertSameValues("sumByGroups " + group, expectedGroups[group], groups[group]);
+	}
+
+	private static void assertSameData(ReadOnlyData expected, ReadOnlyData data) {
+		assertEquals(Lists.newArrayList(expected.getTagGroups()), Lists.newArrayList(data.getTagGroups()));
+		assertEquals(expected.getNum(), data.getNum());
+		for (int i = 0; i < expected.getNum(); i++)
+			assertSameValues("row " + i, expected.getData(i), data.getData(i));
+	}
+
+	private static void assertSameValues(String message, double[] expected, double[] values) {
+		assertEquals(message, expected.length, values.length);
+		for (int i = 0; i < expected.length; i++)
+			assertEquals(message + " " + i, Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(values[i]));
+	}
+
+	private static ReadOnlyData readData(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return ReadOnlyData.Serializer.deserialize(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private File writeRandomData(File file, Random random, int version) throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			DataFileFormat.Writer writer = new DataFileFormat.Writer(out, tagGroups, NUM_ROWS, version);
+			int[] columns = new int[NUM_COLUMNS];
+			double[] values = new double[NUM_COLUMNS];
+			for (int i = 0; i < NUM_ROWS; i++) {
+				int count = 0;
+				for (int j = 0; j < NUM_COLUMNS; j++) {
+					// empty rows, sparse rows and full rows
+					if (i % 10 != 0 && random.nextInt(i % 3 + 1) == 0) {
+						columns[count] = j;
+						values[count++] = random.nextDouble() * Math.pow(10, random.nextInt(8));
+					}
+				}
+				writer.writeRow(count, columns, values);
+			}
+			writer.finish();
+		}
+		finally {
+			out.close();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,85 @@
+package com.netflix.ice.reader;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.Tag;
+
+public class QueryExecutorTest {
+	private static final Tag[] TAGS = {Tag.aggregated, Product.ec2, Product.s3, Product.rds, Product.ebs};
+
+	@Test
+	public void testSameSumsAsSerial() {
+		QueryExecutor serial = new QueryExecutor(1);
+		QueryExecutor parallel = new QueryExecutor(4);
+		try {
+			Map<Tag, double[]> expected = serial.sum(getLookups());
+			Map<Tag, double[]> result = parallel.sum(getLookups());
+
+			assertEquals(Lists.newArrayList(expected.keySet()), Lists.newArrayList(result.keySet()));
+			for (Tag tag: expected.keySet()) {
+				double[] expectedValues = expected.get(tag);
+				double[] values = result.get(tag);
+				assertEquals(expectedValues.length, values.length);
+				for (int i = 0; i < values.length; i++)
+					assertEquals(tag + " " + i, Double.doubleToLongBits(expectedValues[i]), Double.doubleToLongBits(values[i]));
+			}
+		}
+		finally {
+			parallel.shutdown();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testFailure() {
+		QueryExecutor parallel = new QueryExecutor(4);
+		try {
+			List<Callable<Map<Tag, double[]>>> lookups = getLookups();
+			lookups.add(5, new Callable<Map<Tag, double[]>>() {
+				public Map<Tag, double[]> call() {
+					throw new IllegalStateException();
+				}
+			});
+			parallel.sum(lookups);
+		}
+		finally {
+			parallel.shutdown();
+		}
+	}
+
+	/**
+	 * Lookups of random values, which add up differently in another order.
+	 */
+	private static List<Callable<Map<Tag, double[]>>> getLookups() {
+		List<Callable<Map<Tag, double[]>>> result = Lists.newArrayList();
+		for (int i = 0; i < 50; i++) {
+			final Random random = new Random(i);
+			result.add(new Callable<Map<Tag, double[]>>() {
+				public Map<Tag, double[]> call() throws Exception {
+					// finish in a different order than submitted
+					Thread.sleep(random.nextInt(5));
+					Map<Tag, double[]> data = Maps.newHashMap();
+					for (Tag tag: TAGS) {
+						if (random.nextBoolean())
+							continue;
+						double[] values = new double[24];
+						for (int j = 0; j < values.length; j++)
+							values[j] = random.nextDouble() * Math.pow(10, random.nextInt(8));
+						data.put(tag, values);
+					}
+					return data;
+				}
+			});
+		}
+		return result;
+	}
+}
@@ -0,0 +1,148 @@
+package com.netflix.ice.reader;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.ice.tag.Region;
+
+public class QueryResultCacheTest {
+
+	private static class TestManager implements Generational {
+		final AtomicLong generation = new AtomicLong();
+
+		public long getGeneration() {
+			return generation.get();
+		}
+	}
+
+	private static class CountingLoader implements QueryResultCache.Loader {
+		final AtomicInteger loads = new AtomicInteger();
+		final TestManager manager;
+		final int size;
+
+		CountingLoader(TestManager manager, int size) {
+			this.manager = manager;
+			this.size = size;
+		}
+
+		public Map<String, Object> load(QueryResultCache.Generations generations) throws Exception {
+			generations.add(manager);
+			loads.incrementAndGet();
+			Map<String, Object> result = Maps.newHashMap();
+			result.put("data", new double[size]);
+			return result;
+		}
+	}
+
+	@Test
+	public void testHit() {
+		QueryResultCache cache = new QueryResultCache(1024 * 1024);
+		CountingLoader loader = new CountingLoader(new TestManager(), 10);
+
+		Map<String, Object> result = cache.get("query", loader);
+
+		assertSame(result, cache.get("query", loader));
+		assertEquals(1, loader.loads.get());
+		assertNotSame(result, cache.get("other query", loader));
+		assertEquals(2, loader.loads.get());
+	}
+
+	@Test
+	public void testNewGeneration() {
+		QueryResultCache cache = new QueryResultCache(1024 * 1024);
+		TestManager manager = new TestManager();
+		CountingLoader loader = new CountingLoader(manager, 10);
+
+		Map<String, Object> result = cache.get("query", loader);
+		manager.generation.incrementAndGet();
+
+		assertNotSame(result, cache.get("query", loader));
+		assertEquals(2, loader.loads.get());
+		cache.get("query", loader);
+		assertEquals(2, loader.loads.get());
+	}
+
+	@Test
+	public void testConcurrentMissesLoadOnce() throws Exception {
+		final QueryResultCache cache = new QueryResultCache(1024 * 1024);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger loads = new AtomicInteger();
+		final QueryResultCache.Loader loader = new QueryResultCache.Loader() {
+			public Map<String, Object> load(QueryResultCache.Generations generations) throws Exception {
+				loads.incrementAndGet();
+				started.countDown();
+				release.await();
+				return Maps.newHashMap();
+			}
+		};
+
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Map<String, Object>>> futures = Lists.newArrayList();
+			for (int i = 0; i < 8; i++) {
+				futures.add(pool.submit(new Callable<Map<String, Object>>() {
+					public Map<String, Object> call() {
+						return cache.get("query", loader);
+					}
+				}));
+			}
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			// give the other lookups time to find the computation in progress
+			Thread.sleep(200);
+			release.countDown();
+
+			Map<String, Object> result = futures.get(0).get(10, TimeUnit.SECONDS);
+			for (Future<Map<String, Object>> future: futures)
+				assertSame(result, future.get(10, TimeUnit.SECONDS));
+			assertEquals(1, loads.get());
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testMaxWeight() {
+		// room for a few results of 80KB
+		QueryResultCache cache = new QueryResultCache(256 * 1024);
+		CountingLoader loader = new CountingLoader(new TestManager(), 10000);
+
+		for (int i = 0; i < 20; i++)
+			cache.get("query" + i, loader);
+		cache.get("query0", loader);
+
+		assertEquals(21, loader.loads.get());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testLoadFailure() {
+		new QueryResultCache(1024).get("query", new QueryResultCache.Loader() {
+			public Map<String, Object> load(QueryResultCache.Generations generations) throws Exception {
+				throw new IllegalStateException();
+			}
+		});
+	}
+
+	@Test
+	public void testKey() {
+		assertEquals(QueryResultCache.getKey("cost", Lists.newArrayList(Region.US_WEST_2, Region.US_EAST_1), null),
+				QueryResultCache.getKey("cost", Lists.newArrayList(Region.US_EAST_1, Region.US_WEST_2), null));
+		assertFalse(QueryResultCache.getKey("cost", Lists.newArrayList(Region.US_EAST_1), Lists.newArrayList()).equals(
+				QueryResultCache.getKey("cost", Lists.newArrayList(), Lists.newArrayList(Region.US_EAST_1))));
+	}
+}
@@ -0,0 +1,101 @@
+package com.netflix.ice.reader;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.netflix.ice.common.TagGroup;
+
+public class ReadOnlyDataTest {
+
+	@Test
+	public void testSumByGroupSameAsSum() {
+		Random random = new Random(2);
+		int numRows = 48;
+		int numColumns = 40;
+		int numGroups = 5;
+		double[][] values = new double[numRows][numColumns];
+		for (int i = 0; i < numRows; i++) {
+			for (int j = 0; j < numColumns; j++)
+				values[i][j] = random.nextDouble() * Math.pow(10, random.nextInt(8));
+		}
+		ReadOnlyData data = new ReadOnlyData(values, Collections.<TagGroup>emptyList());
+
+		// columns in no group or in one group, some groups without columns
+		int[] columnToGroup = new int[numColumns];
+		List<List<Integer>> groupColumns = Lists.newArrayList();
+		for (int group = 0; group < numGroups; group++)
+			groupColumns.add(Lists.<Integer>newArrayList());
+		for (int column = 0; column < numColumns; column++) {
+			columnToGroup[column] = random.nextInt(numGroups) - 1;
+			if (columnToGroup[column] >= 0)
+				groupColumns.get(columnToGroup[column]).add(column);
+		}
+
+		double[][] result = new double[numGroups][30];
+		data.sumByGroup(columnToGroup, 10, result, 2, 24);
+
+		for (int group = 0; group < numGroups; group++) {
+			double[] expected = new double[30];
+			data.sum(toArray(groupColumns.get(group)), 10, expected, 2, 24);
+			for (int i = 0; i < expected.length; i++)
+				assertEquals(group + " " + i, Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(result[group][i]));
+		}
+	}
+
+	@Test
+	public void testSumByGroupsSameAsSum() {
+		Random random = new Random(1);
+		int numRows = 48;
+		int numColumns = 40;
+		int numGroups = 5;
+		double[][] values = new double[numRows][numColumns];
+		for (int i = 0; i < numRows; i++) {
+			for (int j = 0; j < numColumns; j++)
+				values[i][j] = random.nextDouble() * Math.pow(10, random.nextInt(8));
+		}
+		ReadOnlyData data = new ReadOnlyData(values, Collections.<TagGroup>emptyList());
+
+		// columns in no group, one group or several groups
+		int[][] columnToGroups = new int[numColumns][];
+		List<List<Integer>> groupColumns = Lists.newArrayList();
+		for (int group = 0; group < numGroups; group++)
+			groupColumns.add(Lists.<Integer>newArrayList());
+		for (int column = 0; column < numColumns; column++) {
+			List<Integer> groups = Lists.newArrayList();
+			for (int group = 0; group < numGroups; group++) {
+				if (random.nextInt(3) == 0) {
+					groups.add(group);
+					groupColumns.get(group).add(column);
+				}
+			}
+			if (groups.size() > 0) {
+				columnToGroups[column] = new int[groups.size()];
+				for (int i = 0; i < groups.size(); i++)
+					columnToGroups[column][i] = groups.get(i);
+			}
+		}
+
+		double[][] result = new double[numGroups][30];
+		data.sumByGroups(columnToGroups, 10, result, 2, 24);
+
+		for (int group = 0; group < numGroups; group++) {
+			double[] expected = new double[30];
+			data.sum(toArray(groupColumns.get(group)), 10, expected, 2, 24);
+			for (int i = 0; i < expected.length; i++)
+				assertEquals(group + " " + i, Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(result[group][i]));
+		}
+	}
+
+	private static int[] toArray(List<Integer> columns) {
+		int[] result = new int[columns.size()];
+		for (int i = 0; i < columns.size(); i++)
+			result[i] = columns.get(i);
+		return result;
+	}
+}
@@ -0,0 +1,124 @@
+package com.netflix.ice.reader;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.tag.Account;
+import com.netflix.ice.tag.Operation;
+import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.ResourceGroup;
+import com.netflix.ice.tag.Tag;
+import com.netflix.ice.tag.TagType;
+import com.netflix.ice.tag.UsageType;
+import com.netflix.ice.tag.Zone;
+
+public class TagGroupCatalogTest {
+	private static final TagType[] DIMENSIONS = {
+		TagType.Account, TagType.Region, TagType.Zone, TagType.Product, TagType.Operation, TagType.UsageType, TagType.ResourceGroup
+	};
+
+	private final List<Account> accounts = Lists.newArrayList();
+	private final List<Region> regions = Lists.newArrayList(Region.US_EAST_1, Region.US_WEST_2, Region.EU_WEST_1);
+	private final List<Zone> zones = Lists.newArrayList(Zone.US_EAST_1A, Zone.US_EAST_1B, Zone.US_WEST_2A, Zone.EU_WEST_1A, null);
+	private final List<Product> products = Lists.newArrayList(Product.ec2, Product.ec2_instance, Product.s3, Product.rds);
+	private final List<Operation> operations = Lists.<Operation>newArrayList(Operation.ondemandInstances, Operation.reservedInstancesHeavy, Operation.bonusReservedInstancesHeavy);
+	private final List<UsageType> usageTypes = Lists.newArrayList();
+	private final List<ResourceGroup> resourceGroups = Lists.newArrayList();
+	private final List<TagGroup> tagGroups = Lists.newArrayList();
+
+	public TagGroupCatalogTest() {
+		for (int i = 0; i < 30; i++)
+			accounts.add(new Account("20000000000" + i, "catalog" + i));
+		for (int i = 0; i < 20; i++)
+			usageTypes.add(UsageType.getUsageType("usage" + i, "hours"));
+		for (int i = 0; i < 40; i++)
+			resourceGroups.add(ResourceGroup.getResourceGroup("group" + i));
+		resourceGroups.add(null);
+
+		Random random = new Random(1);
+		for (int i = 0; i < 5000; i++)
+			tagGroups.add(TagGroup.getTagGroup(pick(random, accounts), pick(random, regions), pick(random, zones), pick(random, products),
+					pick(random, operations), pick(random, usageTypes), pick(random, resourceGroups)));
+	}
+
+	@Test
+	public void testSameValuesAsScan() {
+		TagGroupCatalog catalog = new TagGroupCatalog(tagGroups, DIMENSIONS);
+		Random random = new Random(2);
+		for (int i = 0; i < 500; i++) {
+			// no filter, one filter and several filters, sometimes on the dimension looked up
+			TagLists tagLists = new TagLists(
+					randomList(random, accounts, i % 3 == 1 ? 0.3 : 0.1),
+					randomList(random, regions, 0.1),
+					randomList(random, zones, 0.1),
+					randomList(random, products, i % 3 == 1 ? 0.3 : 0.1),
+					randomList(random, operations, 0.1),
+					randomList(random, usageTypes, 0.1),
+					randomList(random, resourceGroups, 0.1));
+			if (i % 3 == 0)
+				tagLists = new TagLists();
+			for (TagType dimension: DIMENSIONS) {
+				Set<Tag> values = Sets.newTreeSet();
+				catalog.addValues(dimension, tagLists, values);
+				assertEquals(dimension + " " + i, scan(dimension, tagLists), values);
+			}
+		}
+	}
+
+	@Test
+	public void testSingleFilter() {
+		TagGroupCatalog catalog = new TagGroupCatalog(tagGroups, DIMENSIONS);
+		for (TagType filter: DIMENSIONS) {
+			for (TagGroup tagGroup: tagGroups.subList(0, 20)) {
+				Tag tag = tagGroup.getTag(filter);
+				if (tag == null)
+					continue;
+				TagLists tagLists = new TagLists().getTagLists(tag, filter);
+				for (TagType dimension: DIMENSIONS) {
+					Set<Tag> values = Sets.newTreeSet();
+					catalog.addValues(dimension, tagLists, values);
+					assertEquals(filter + " " + tag + " " + dimension, scan(dimension, tagLists), values);
+				}
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDimensionNotCatalogued() {
+		new TagGroupCatalog(tagGroups, TagType.ResourceGroup).addValues(TagType.Account, new TagLists(), Sets.<Tag>newTreeSet());
+	}
+
+	private Set<Tag> scan(TagType dimension, TagLists tagLists) {
+		Set<Tag> result = Sets.newTreeSet();
+		for (TagGroup tagGroup: tagGroups) {
+			Tag tag = tagGroup.getTag(dimension);
+			if (tag != null && tagLists.contains(tagGroup))
+				result.add(tag);
+		}
+		return result;
+	}
+
+	private static <T> T pick(Random random, List<T> list) {
+		return list.get(random.nextInt(list.size()));
+	}
+
+	private static <T> List<T> randomList(Random random, List<T> list, double probability) {
+		if (random.nextDouble() > probability)
+			return null;
+		List<T> result = Lists.newArrayList();
+		for (T t: list) {
+			if (random.nextInt(3) == 0)
+				result.add(t);
+		}
+		return result;
+	}
+}
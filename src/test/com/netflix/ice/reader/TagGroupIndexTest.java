@@ -0,0 +1,128 @@
+package com.netflix.ice.reader;
+
+import static org.junit.Assert.*;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.tag.Account;
+import com.netflix.ice.tag.Operation;
+import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.ResourceGroup;
+import com.netflix.ice.tag.UsageType;
+import com.netflix.ice.tag.Zone;
+
+public class TagGroupIndexTest {
+	private final List<Account> accounts = Lists.newArrayList();
+	private final List<Region> regions = Lists.newArrayList(Region.US_EAST_1, Region.US_WEST_2, Region.EU_WEST_1);
+	private final List<Zone> zones = Lists.newArrayList(Zone.US_EAST_1A, Zone.US_EAST_1B, Zone.US_WEST_2A, Zone.EU_WEST_1A, null);
+	private final List<Product> products = Lists.newArrayList(Product.ec2, Product.ec2_instance, Product.s3, Product.rds);
+	private final List<Operation> operations = Lists.<Operation>newArrayList(Operation.ondemandInstances, Operation.reservedInstancesHeavy, Operation.bonusReservedInstancesHeavy);
+	private final List<UsageType> usageTypes = Lists.newArrayList();
+	private final List<ResourceGroup> resourceGroups = Lists.newArrayList();
+	private final List<TagGroup> tagGroups = Lists.newArrayList();
+
+	public TagGroupIndexTest() {
+		for (int i = 0; i < 50; i++)
+			accounts.add(new Account("40000000000" + i, "index" + i));
+		// many usage types and resource groups, so that some positions are kept as lists and others as bit sets
+		for (int i = 0; i < 100; i++)
+			usageTypes.add(UsageType.getUsageType("indexusage" + i, "hours"));
+		for (int i = 0; i < 5; i++)
+			usageTypes.add(usageTypes.get(0));
+		for (int i = 0; i < 60; i++)
+			resourceGroups.add(ResourceGroup.getResourceGroup("indexgroup" + i));
+		resourceGroups.add(null);
+
+		Random random = new Random(1);
+		for (int i = 0; i < 5000; i++)
+			tagGroups.add(TagGroup.getTagGroup(pick(random, accounts), pick(random, regions), pick(random, zones), pick(random, products),
+					pick(random, operations), pick(random, usageTypes), pick(random, resourceGroups)));
+	}
+
+	@Test
+	public void testMatchesSameAsScan() {
+		TagGroupIndex index = new TagGroupIndex(tagGroups);
+		assertEquals(tagGroups.size(), index.size());
+		for (int i = 0; i < tagGroups.size(); i++)
+			assertSame(tagGroups.get(i), index.get(i));
+
+		Random random = new Random(2);
+		for (int i = 0; i < 1000; i++) {
+			TagLists tagLists = new TagLists(
+					randomList(random, accounts),
+					randomList(random, regions),
+					randomList(random, zones),
+					randomList(random, products),
+					randomList(random, operations),
+					randomList(random, usageTypes),
+					randomList(random, resourceGroups));
+			assertEquals("" + i, scan(tagLists), index.getMatches(tagLists));
+
+			List<TagGroup> matches = Lists.newArrayList();
+			index.addMatches(tagLists, matches);
+			List<TagGroup> expected = Lists.newArrayList();
+			for (TagGroup tagGroup: tagGroups) {
+				if (tagLists.contains(tagGroup))
+					expected.add(tagGroup);
+			}
+			assertEquals("" + i, expected, matches);
+		}
+	}
+
+	@Test
+	public void testSingleTag() {
+		TagGroupIndex index = new TagGroupIndex(tagGroups);
+		for (TagGroup tagGroup: tagGroups.subList(0, 20)) {
+			TagLists tagLists = new TagLists(null, null, null, null, null, Lists.newArrayList(tagGroup.usageType));
+			assertEquals(tagGroup.usageType.name, scan(tagLists), index.getMatches(tagLists));
+			tagLists = new TagLists(null, null, null, null, null, null, Lists.newArrayList(tagGroup.resourceGroup));
+			assertEquals("" + tagGroup.resourceGroup, scan(tagLists), index.getMatches(tagLists));
+		}
+	}
+
+	@Test
+	public void testIndexOfDataBuiltOnce() {
+		ReadOnlyData data = new ReadOnlyData(new double[1][tagGroups.size()], tagGroups);
+		TagGroupIndex index = data.getIndex();
+		assertSame(index, data.getIndex());
+		TagLists tagLists = new TagLists(Lists.newArrayList(accounts.subList(0, 10)));
+		assertEquals(scan(tagLists), index.getMatches(tagLists));
+	}
+
+	private BitSet scan(TagLists tagLists) {
+		BitSet result = new BitSet();
+		for (int i = 0; i < tagGroups.size(); i++) {
+			if (tagLists.contains(tagGroups.get(i)))
+				result.set(i);
+		}
+		return result;
+	}
+
+	private static <T> T pick(Random random, List<T> list) {
+		return list.get(random.nextInt(list.size()));
+	}
+
+	/**
+	 * @return null, an empty list or a random part of list, which may contain null
+	 */
+	private static <T> List<T> randomList(Random random, List<T> list) {
+		int kind = random.nextInt(4);
+		if (kind == 0)
+			return null;
+		List<T> result = Lists.newArrayList();
+		if (kind == 1)
+			return result;
+		for (T t: list) {
+			if (random.nextInt(kind == 2 ? 20 : 3) == 0)
+				result.add(t);
+		}
+		return result;
+	}
+}